@@ -0,0 +1,43 @@
+package l5;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Heap allocation counter of the current thread.
+ *
+ * It uses the HotSpot extension of {@link ThreadMXBean}, so on other
+ * JVMs {@link #isSupported()} is false and the counter always reads 0.
+ */
+public class AllocationCounter {
+
+	private static com.sun.management.ThreadMXBean threadBean = null;
+
+	static {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+			if (threadBean.isThreadAllocatedMemorySupported()) {
+				threadBean.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				threadBean = null;
+			}
+		}
+	}
+
+	public static boolean isSupported() {
+		return threadBean != null;
+	}
+
+	/**
+	 * get the bytes allocated by the current thread so far
+	 * @return
+	 */
+	public static long getAllocatedBytes() {
+		if (threadBean == null) {
+			return 0;
+		}
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+	}
+}
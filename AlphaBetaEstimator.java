@@ -0,0 +1,82 @@
+package l5;
+
+/**
+ * Alpha-beta filter: predicts the value with the current speed, then
+ * corrects the value by alpha and the speed by beta times the prediction
+ * error.
+ *
+ * Small alpha and beta smooth more but lag more.
+ */
+public class AlphaBetaEstimator implements VelocityEstimator {
+
+	private double alpha;
+	private double beta;
+
+	private boolean started = false;
+	private double value;
+	private double speed;
+	private long time;
+
+	/**
+	 * @param alpha
+	 * value gain, in (0, 1]
+	 * @param beta
+	 * speed gain, in (0, 2), usually much smaller than alpha
+	 */
+	public AlphaBetaEstimator(double alpha, double beta) {
+		this.alpha = alpha;
+		this.beta = beta;
+	}
+
+	@Override
+	public void reset() {
+		started = false;
+		speed = 0;
+	}
+
+	@Override
+	public double update(double v, long t) {
+		if (!started) {
+			started = true;
+			value = v;
+			speed = 0;
+			time = t;
+			return 0;
+		}
+		double dt = (t - time) / 1e9;
+		time = t;
+		if (dt <= 0) {
+			return speed;
+		}
+		double predicted = value + speed * dt;
+		double error = v - predicted;
+		value = predicted + alpha * error;
+		speed += beta * error / dt;
+		return speed;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		AlphaBetaEstimator t = new AlphaBetaEstimator(0.5, 0.2);
+		assert (t.update(10, 0) == 0);
+
+		// converges to a constant speed of 30 units/s, with irregular
+		// frame times
+		long time = 0;
+		double v = 10;
+		double speed = 0;
+		for (int i = 0; i < 200; i++) {
+			long dt = (i % 3 + 1) * 33000000L;
+			time += dt;
+			v += 30 * dt / 1e9;
+			speed = t.update(v, time);
+		}
+		assert (Math.abs(speed - 30) < 0.01) : speed;
+
+		// reset forgets the speed
+		t.reset();
+		assert (t.update(0, time) == 0);
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,86 @@
+package l5;
+
+/**
+ * A tiny micro benchmark harness.
+ *
+ * Subclasses implement {@link #op(int)}, which is called once per
+ * iteration. The harness warms up the JIT, then reports the average time
+ * and the heap allocation per operation. The results of all operations are
+ * summed into a field so the JIT can not remove them. An operation may do
+ * a batch of samples, then the results are per sample and the throughput
+ * is printed too.
+ *
+ * Run with -Xbatch -XX:-TieredCompilation for steadier numbers.
+ */
+public abstract class Benchmark {
+
+	private String name;
+	private int batch;
+
+	// sink of the operation results
+	private double sink = 0;
+
+	public Benchmark(String name) {
+		this(name, 1);
+	}
+
+	/**
+	 * @param name
+	 * @param batch
+	 * the samples done by each operation
+	 */
+	public Benchmark(String name, int batch) {
+		this.name = name;
+		this.batch = batch;
+	}
+
+	/**
+	 * run one operation
+	 * @param i
+	 * the iteration counter, use it to pick the input
+	 * @return a value depending on the work done
+	 */
+	protected abstract double op(int i);
+
+	/**
+	 * run the benchmark and print the result
+	 * @param warmup
+	 * number of warm up iterations
+	 * @param iterations
+	 * number of measured iterations
+	 * @return the average time per sample in ns
+	 */
+	public double run(int warmup, int iterations) {
+		for (int i = 0; i < warmup; i++) {
+			sink += op(i);
+		}
+		long bytes = AllocationCounter.getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += op(i);
+		}
+		long time = System.nanoTime() - start;
+		bytes = AllocationCounter.getAllocatedBytes() - bytes;
+
+		double nsPerOp = (double) time / iterations / batch;
+		String line = String.format("%-40s %12.1f ns/op %10.1f B/op", name,
+				nsPerOp, (double) bytes / iterations / batch);
+		if (batch > 1) {
+			line += String.format(" %8.2f M samples/s", 1e3 / nsPerOp);
+		}
+		System.out.println(line);
+		return nsPerOp;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the sum of all operation results, print it to be sure the
+	 * work is not optimized away
+	 */
+	public double getSink() {
+		return sink;
+	}
+}
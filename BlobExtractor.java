@@ -0,0 +1,294 @@
+package l5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Connected component labeling of a binary mask in pure Java.
+ *
+ * The mask is read once in raster order. Each foreground pixel takes the
+ * label of its 8-connected neighbors above and on the left, a new label
+ * if there is none, and the labels it touches are merged by union-find.
+ * Area, bounding box and coordinate sums are accumulated per label during
+ * the pass and merged into the root labels at the end, so the pixels are
+ * never read twice.
+ *
+ * All the buffers are primitive arrays allocated in the constructor,
+ * {@link #extract} does not allocate.
+ */
+public class BlobExtractor {
+
+	private int maxWidth;
+	private int maxHeight;
+
+	// labels of the previous and the current row, 0 for background
+	private int[] prevRow;
+	private int[] curRow;
+
+	// union-find parent of each label, and the per label statistics
+	private int[] parent;
+	private int[] area;
+	private int[] minX;
+	private int[] minY;
+	private int[] maxX;
+	private int[] maxY;
+	private long[] sumX;
+	private long[] sumY;
+
+	// labels used by the last extract, label 0 is not used
+	private int labelNum = 0;
+
+	// root label of the largest component of the last extract, 0 if none
+	private int largest = 0;
+
+	/**
+	 * @param w
+	 * @param h
+	 * the max mask size
+	 */
+	public BlobExtractor(int w, int h) {
+		maxWidth = w;
+		maxHeight = h;
+		prevRow = new int[w];
+		curRow = new int[w];
+		// a new label starts only at a pixel without labeled neighbors
+		// before it, so they are never 8-connected
+		int maxLabels = ((w + 1) / 2) * ((h + 1) / 2) + 1;
+		parent = new int[maxLabels];
+		area = new int[maxLabels];
+		minX = new int[maxLabels];
+		minY = new int[maxLabels];
+		maxX = new int[maxLabels];
+		maxY = new int[maxLabels];
+		sumX = new long[maxLabels];
+		sumY = new long[maxLabels];
+	}
+
+	/**
+	 * label the mask inside a window
+	 * @param mask
+	 * the mask bytes, non zero is foreground
+	 * @param step
+	 * bytes per mask row
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * the window, in mask pixels. The results are in mask pixels too.
+	 * @return the number of components
+	 */
+	public int extract(ByteBuffer mask, int step, int x0, int y0, int w, int h) {
+		if (w > maxWidth || h > maxHeight) {
+			throw new IllegalArgumentException("window larger than "
+					+ maxWidth + "x" + maxHeight);
+		}
+		labelNum = 1;
+		for (int i = 0; i < w; i++) {
+			prevRow[i] = 0;
+		}
+		for (int y = y0; y < y0 + h; y++) {
+			int offset = y * step + x0;
+			int left = 0;
+			for (int i = 0; i < w; i++) {
+				if (mask.get(offset + i) == 0) {
+					curRow[i] = 0;
+					left = 0;
+					continue;
+				}
+				int upLeft = i > 0 ? prevRow[i - 1] : 0;
+				int up = prevRow[i];
+				int upRight = i + 1 < w ? prevRow[i + 1] : 0;
+				int label = up != 0 ? up : (left != 0 ? left
+						: (upLeft != 0 ? upLeft : upRight));
+				int x = x0 + i;
+				if (label == 0) {
+					label = labelNum++;
+					parent[label] = label;
+					area[label] = 0;
+					minX[label] = x;
+					maxX[label] = x;
+					minY[label] = y;
+					maxY[label] = y;
+					sumX[label] = 0;
+					sumY[label] = 0;
+				} else {
+					// left, up-left and up-right are all joined through up
+					// already. Without up, left and up-left are joined, only
+					// up-right may be another label
+					if (up == 0 && upRight != 0) {
+						union(label, upRight);
+					}
+					if (x < minX[label]) {
+						minX[label] = x;
+					}
+					if (x > maxX[label]) {
+						maxX[label] = x;
+					}
+					maxY[label] = y;
+				}
+				area[label]++;
+				sumX[label] += x;
+				sumY[label] += y;
+				curRow[i] = label;
+				left = label;
+			}
+			int[] t = prevRow;
+			prevRow = curRow;
+			curRow = t;
+		}
+
+		// every label adds its own statistics to its root, a root is
+		// always smaller than the labels under it
+		int components = 0;
+		largest = 0;
+		for (int label = labelNum - 1; label > 0; label--) {
+			int root = find(label);
+			if (root == label) {
+				components++;
+				if (largest == 0 || area[label] > area[largest]
+						|| (area[label] == area[largest] && label < largest)) {
+					largest = label;
+				}
+				continue;
+			}
+			area[root] += area[label];
+			sumX[root] += sumX[label];
+			sumY[root] += sumY[label];
+			if (minX[label] < minX[root]) {
+				minX[root] = minX[label];
+			}
+			if (maxX[label] > maxX[root]) {
+				maxX[root] = maxX[label];
+			}
+			if (minY[label] < minY[root]) {
+				minY[root] = minY[label];
+			}
+			if (maxY[label] > maxY[root]) {
+				maxY[root] = maxY[label];
+			}
+		}
+		return components;
+	}
+
+	/**
+	 * find the root with path halving
+	 * @param label
+	 * @return
+	 */
+	private int find(int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * merge two labels, the smaller root becomes the root
+	 * @param a
+	 * @param b
+	 * 0 is ignored
+	 */
+	private void union(int a, int b) {
+		if (a == 0 || b == 0) {
+			return;
+		}
+		int ra = find(a);
+		int rb = find(b);
+		if (ra < rb) {
+			parent[rb] = ra;
+		} else if (rb < ra) {
+			parent[ra] = rb;
+		}
+	}
+
+	/**
+	 * @return true if the last extract found a component
+	 */
+	public boolean hasBlob() {
+		return largest != 0;
+	}
+
+	/**
+	 * @return pixel area of the largest component
+	 */
+	public int getArea() {
+		return largest == 0 ? 0 : area[largest];
+	}
+
+	public int getX() {
+		return minX[largest];
+	}
+
+	public int getY() {
+		return minY[largest];
+	}
+
+	public int getWidth() {
+		return maxX[largest] - minX[largest] + 1;
+	}
+
+	public int getHeight() {
+		return maxY[largest] - minY[largest] + 1;
+	}
+
+	public double getCentroidX() {
+		return (double) sumX[largest] / area[largest];
+	}
+
+	public double getCentroidY() {
+		return (double) sumY[largest] / area[largest];
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		String[] rows = {
+				"..........",
+				".##....#..",
+				".##...#.#.",
+				"......#.#.",
+				"...#...#..",
+				"..###.....",
+				"...#......",
+				"#........#", };
+		int w = rows[0].length(), h = rows.length;
+		ByteBuffer mask = ByteBuffer.allocate(w * h);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				mask.put(y * w + x, (byte) (rows[y].charAt(x) == '#' ? 255 : 0));
+			}
+		}
+		BlobExtractor t = new BlobExtractor(w, h);
+
+		// square, ring (8-connected), plus, two single pixels
+		assert (t.extract(mask, w, 0, 0, w, h) == 5);
+		// the largest by pixel area is the ring, 6 pixels
+		assert (t.getArea() == 6) : t.getArea();
+		assert (t.getX() == 6 && t.getY() == 1);
+		assert (t.getWidth() == 3 && t.getHeight() == 4);
+		assert (Math.abs(t.getCentroidX() - 7) < 0.000001);
+		assert (Math.abs(t.getCentroidY() - 2.5) < 0.000001);
+
+		// a window: only the square and the top of the plus
+		assert (t.extract(mask, w, 0, 0, 5, 5) == 2);
+		assert (t.getArea() == 4);
+		assert (t.getX() == 1 && t.getY() == 1);
+
+		// a u shape merges two labels started on the first row
+		String[] u = { "#..#", "#..#", "####" };
+		ByteBuffer umask = ByteBuffer.allocate(12);
+		for (int y = 0; y < 3; y++) {
+			for (int x = 0; x < 4; x++) {
+				umask.put(y * 4 + x, (byte) (u[y].charAt(x) == '#' ? 1 : 0));
+			}
+		}
+		assert (t.extract(umask, 4, 0, 0, 4, 3) == 1);
+		assert (t.getArea() == 8);
+		assert (t.getWidth() == 4 && t.getHeight() == 3);
+
+		// empty mask
+		assert (t.extract(ByteBuffer.allocate(w * h), w, 0, 0, w, h) == 0);
+		assert (!t.hasBlob());
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,360 @@
+package l5;
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * Adaptive color model of the human: a hue-saturation histogram used for
+ * back projection instead of a fixed threshold box.
+ *
+ * The histogram is learned from a selected region, then blended with the
+ * histogram of every confident detection:
+ *   model = (1 - forgetting) * model + forgetting * sample
+ * so old lighting is forgotten exponentially. A detection is confident if
+ * at least MIN_CONFIDENCE of its pixels already match the model, a box
+ * flooded by the background does not teach the model the background.
+ *
+ * The histograms are computed in java from the hsv bytes. At most
+ * MAX_SAMPLES pixels of a box are read, evenly spread, so the cost of an
+ * update is bounded whatever the box size. The update and the back
+ * projection times are recorded.
+ *
+ * The hue is the 0 - 255 hue of CV_BGR2HSV_FULL.
+ */
+public class ColorModel {
+
+	public static final int H_BINS = 32;
+	public static final int S_BINS = 32;
+	// 256 values per channel
+	private static final int H_SHIFT = 3;
+	private static final int S_SHIFT = 3;
+
+	// max pixels read by learn and update
+	private static final int MAX_SAMPLES = 2048;
+
+	// the hue of dark or gray pixels is noise, they are not learned
+	private static final int MIN_SATURATION = 32;
+	private static final int MIN_VALUE = 32;
+
+	public static final double DEF_FORGETTING = 0.05;
+
+	// min fraction of the box pixels matching the model to update it
+	private static final double MIN_CONFIDENCE = 0.5;
+
+	// min weight of a human pixel, as fraction of the max bin
+	private static final double DEF_MASK_THRESHOLD = 0.1;
+
+	private double forgetting;
+	private double maskThreshold = DEF_MASK_THRESHOLD;
+
+	// normalized to a sum of 1, indexed by h * S_BINS + s
+	private double[] model = new double[H_BINS * S_BINS];
+	private double[] sample = new double[H_BINS * S_BINS];
+	private double maxBin = 0;
+	private boolean learned = false;
+
+	// the opencv histogram is behind the model until synced
+	private boolean dirty = false;
+
+	// pixels read and fraction of them matching of the last update
+	private int samples = 0;
+	private double confidence = 0;
+	private long updates = 0;
+	private long rejects = 0;
+
+	private CvHistogram hist;
+	private IplImage hPlane;
+	private IplImage sPlane;
+	private IplImage[] planes;
+
+	private final LatencyStats updateTime = new LatencyStats("color update");
+	private final LatencyStats projectTime = new LatencyStats(
+			"back projection");
+
+	/**
+	 * @param w
+	 * @param h
+	 * the frame size
+	 * @param forgetting
+	 * weight of a new detection in the model, in (0, 1]
+	 */
+	public ColorModel(int w, int h, double forgetting) {
+		if (forgetting <= 0 || forgetting > 1) {
+			throw new IllegalArgumentException("forgetting not in (0, 1]: "
+					+ forgetting);
+		}
+		this.forgetting = forgetting;
+		hist = CvHistogram.create(2, new int[] { H_BINS, S_BINS },
+				CV_HIST_ARRAY, new float[][] { { 0, 256 }, { 0, 256 } }, 1);
+		hPlane = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 1);
+		sPlane = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 1);
+		planes = new IplImage[] { hPlane, sPlane };
+	}
+
+	/**
+	 * replace the model by the histogram of a region
+	 * @param hsv
+	 * the hsv bytes
+	 * @param step
+	 * bytes per row
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * the region, inside the image
+	 * @return false if the region has no colored pixel
+	 */
+	public boolean learn(ByteBuffer hsv, int step, int x, int y, int w, int h) {
+		if (histogram(hsv, step, x, y, w, h) == 0) {
+			return false;
+		}
+		System.arraycopy(sample, 0, model, 0, model.length);
+		learned = true;
+		modelChanged();
+		return true;
+	}
+
+	/**
+	 * blend the histogram of a detection into the model if it is confident
+	 * @param hsv
+	 * @param step
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * the detection box, inside the image
+	 * @return true if the model was updated
+	 */
+	public boolean update(ByteBuffer hsv, int step, int x, int y, int w,
+			int h) {
+		if (!learned) {
+			return false;
+		}
+		long start = System.nanoTime();
+		boolean updated = false;
+		int n = histogram(hsv, step, x, y, w, h);
+		if (n > 0 && confidence >= MIN_CONFIDENCE) {
+			for (int i = 0; i < model.length; i++) {
+				model[i] += forgetting * (sample[i] - model[i]);
+			}
+			modelChanged();
+			updates++;
+			updated = true;
+		} else {
+			rejects++;
+		}
+		updateTime.record(System.nanoTime() - start);
+		return updated;
+	}
+
+	/**
+	 * fill the sample histogram from a sparse grid of the region, and the
+	 * fraction of its pixels matching the model
+	 * @return the number of colored pixels
+	 */
+	private int histogram(ByteBuffer hsv, int step, int x, int y, int w,
+			int h) {
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = 0;
+		}
+		int stride = (int) Math.ceil(Math.sqrt((double) w * h / MAX_SAMPLES));
+		if (stride < 1) {
+			stride = 1;
+		}
+		double threshold = maskThreshold * maxBin;
+		int n = 0;
+		int matched = 0;
+		for (int j = y; j < y + h; j += stride) {
+			int offset = j * step;
+			for (int i = x; i < x + w; i += stride) {
+				int p = offset + i * 3;
+				int s = hsv.get(p + 1) & 0xff;
+				int v = hsv.get(p + 2) & 0xff;
+				if (s < MIN_SATURATION || v < MIN_VALUE) {
+					continue;
+				}
+				int bin = ((hsv.get(p) & 0xff) >> H_SHIFT) * S_BINS
+						+ (s >> S_SHIFT);
+				sample[bin]++;
+				if (learned && model[bin] >= threshold) {
+					matched++;
+				}
+				n++;
+			}
+		}
+		if (n > 0) {
+			for (int i = 0; i < sample.length; i++) {
+				sample[i] /= n;
+			}
+		}
+		samples = n;
+		confidence = n == 0 ? 0 : (double) matched / n;
+		return n;
+	}
+
+	private void modelChanged() {
+		maxBin = 0;
+		for (int i = 0; i < model.length; i++) {
+			if (model[i] > maxBin) {
+				maxBin = model[i];
+			}
+		}
+		dirty = true;
+	}
+
+	/**
+	 * back project the model into a binary mask, both images honor their
+	 * roi
+	 * @param hsv
+	 * @param mask
+	 * one channel, 255 for the human pixels
+	 */
+	public void backProject(IplImage hsv, IplImage mask) {
+		long start = System.nanoTime();
+		if (dirty) {
+			// the bins are scaled to 0 - 255 of the 8 bit projection
+			for (int i = 0; i < H_BINS; i++) {
+				for (int j = 0; j < S_BINS; j++) {
+					cvSetReal2D(hist.bins(), i, j, 255 * model[i * S_BINS + j]
+							/ maxBin);
+				}
+			}
+			dirty = false;
+		}
+		CvRect roi = cvGetImageROI(hsv);
+		cvSetImageROI(hPlane, roi);
+		cvSetImageROI(sPlane, roi);
+		cvSplit(hsv, hPlane, sPlane, null, null);
+		cvCalcBackProject(planes, mask, hist);
+		cvThreshold(mask, mask, 255 * maskThreshold, 255, CV_THRESH_BINARY);
+		cvResetImageROI(hPlane);
+		cvResetImageROI(sPlane);
+		projectTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @param h
+	 * @param s
+	 * hue and saturation, 0 - 255
+	 * @return the model weight, 1 for the max bin
+	 */
+	public double getWeight(int h, int s) {
+		if (maxBin == 0) {
+			return 0;
+		}
+		return model[(h >> H_SHIFT) * S_BINS + (s >> S_SHIFT)] / maxBin;
+	}
+
+	public boolean isLearned() {
+		return learned;
+	}
+
+	/**
+	 * @return the fraction of the box pixels matching the model at the
+	 * last learn or update
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/**
+	 * @return the colored pixels read by the last learn or update
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @param maskThreshold
+	 * min weight of a human pixel, as fraction of the max bin
+	 */
+	public void setMaskThreshold(double maskThreshold) {
+		this.maskThreshold = maskThreshold;
+	}
+
+	public LatencyStats getUpdateTime() {
+		return updateTime;
+	}
+
+	public LatencyStats getProjectTime() {
+		return projectTime;
+	}
+
+	public String toString() {
+		return "color model: updates " + updates + ", rejects " + rejects
+				+ ", confidence " + String.format("%.2f", confidence) + "\n"
+				+ updateTime + "\n" + projectTime;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (hist != null) {
+			hist.release();
+			hist = null;
+		}
+		if (hPlane != null) {
+			hPlane.release();
+			hPlane = null;
+		}
+		if (sPlane != null) {
+			sPlane.release();
+			sPlane = null;
+		}
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		int w = 100, h = 100, step = w * 3;
+		ByteBuffer hsv = ByteBuffer.allocate(step * h);
+		// left half red (h 0, s 200), right half blue (h 170, s 200), a gray
+		// row at the top
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int p = y * step + x * 3;
+				hsv.put(p, (byte) (x < 50 ? 0 : 170));
+				hsv.put(p + 1, (byte) (y == 0 ? 0 : 200));
+				hsv.put(p + 2, (byte) 200);
+			}
+		}
+		ColorModel t = new ColorModel(w, h, 0.1);
+		assert (!t.update(hsv, step, 0, 0, 10, 10));
+
+		// the gray row is not learned
+		assert (!t.learn(hsv, step, 0, 0, 10, 1));
+		assert (t.learn(hsv, step, 0, 0, 10, 10));
+		assert (t.getWeight(0, 200) == 1);
+		assert (t.getWeight(170, 200) == 0);
+
+		// a blue box does not match, the model is kept
+		assert (!t.update(hsv, step, 60, 10, 20, 20));
+		assert (t.getConfidence() == 0);
+		assert (t.getWeight(170, 200) == 0);
+
+		// 60% red, 40% blue: blended with the forgetting factor
+		assert (t.update(hsv, step, 20, 10, 50, 50)) : t.getConfidence();
+		assert (Math.abs(t.getConfidence() - 0.6) < 0.02) : t
+				.getConfidence();
+		double blue = t.getWeight(170, 200);
+		double red = t.getWeight(0, 200);
+		assert (red == 1);
+		// 0.1 * 0.4 against 0.9 + 0.1 * 0.6
+		assert (Math.abs(blue - 0.04 / 0.96) < 0.002) : blue;
+
+		// the update reads at most MAX_SAMPLES pixels of a big box
+		ByteBuffer big = ByteBuffer.allocate(1000 * 1000 * 3);
+		for (int i = 0; i < big.capacity(); i += 3) {
+			big.put(i + 1, (byte) 200);
+			big.put(i + 2, (byte) 200);
+		}
+		ColorModel b = new ColorModel(1000, 1000, 0.1);
+		assert (b.learn(big, 3000, 0, 0, 1000, 1000));
+		assert (b.getSamples() <= MAX_SAMPLES * 1.1) : b.getSamples();
+		assert (b.getSamples() >= MAX_SAMPLES / 2) : b.getSamples();
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,93 @@
+package l5;
+
+/**
+ * Control loop scheduler.
+ *
+ * The control loop runs one tick for every new detection published by
+ * {@link HumanDetection}, so it follows the camera frame rate. If no
+ * detection comes before the fallback deadline, a fallback tick runs at a
+ * fixed rate. If no detection comes for the watchdog time, the robot should
+ * be stopped.
+ *
+ * It also measures:
+ * - the latency from the frame capture to the drive command
+ * - the drift of the fallback ticks, how late they wake up after their
+ *   deadline
+ */
+public class ControlScheduler {
+
+	private long periodNanos;
+	private long watchdogNanos;
+
+	// time of the last tick and the last fresh detection
+	private long lastTick;
+	private long lastFrame;
+
+	private LatencyStats latency = new LatencyStats("frame to command");
+	private LatencyStats drift = new LatencyStats("fallback tick drift");
+
+	/**
+	 * @param periodMillis
+	 * the fallback tick period
+	 * @param watchdogMillis
+	 * the max time without a fresh detection
+	 */
+	public ControlScheduler(long periodMillis, long watchdogMillis) {
+		this.periodNanos = periodMillis * 1000000L;
+		this.watchdogNanos = watchdogMillis * 1000000L;
+		lastTick = System.nanoTime();
+		lastFrame = lastTick;
+	}
+
+	/**
+	 * @return the deadline of the next fallback tick, in
+	 * {@link System#nanoTime()}
+	 */
+	public long getNextDeadline() {
+		return lastTick + periodNanos;
+	}
+
+	/**
+	 * start a tick
+	 * @param fresh
+	 * true if the tick is woken by a new detection, false if it is a
+	 * fallback tick
+	 */
+	public void tick(boolean fresh) {
+		long now = System.nanoTime();
+		if (fresh) {
+			lastTick = now;
+			lastFrame = now;
+		} else {
+			long deadline = getNextDeadline();
+			drift.record(now - deadline);
+			// keep the fixed rate, unless we are already a whole period late
+			lastTick = now - deadline < periodNanos ? deadline : now;
+		}
+	}
+
+	/**
+	 * @return true if there is no fresh detection for the watchdog time
+	 */
+	public boolean isWatchdogExpired() {
+		return System.nanoTime() - lastFrame > watchdogNanos;
+	}
+
+	/**
+	 * a drive command was sent
+	 * @param frameTime
+	 * the capture time of the frame the command is calculated from, in
+	 * {@link System#nanoTime()}
+	 */
+	public void commandIssued(long frameTime) {
+		latency.record(System.nanoTime() - frameTime);
+	}
+
+	public LatencyStats getLatency() {
+		return latency;
+	}
+
+	public LatencyStats getDrift() {
+		return drift;
+	}
+}
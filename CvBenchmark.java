@@ -0,0 +1,272 @@
+package l5;
+
+import java.util.Random;
+
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * Benchmarks of the segmentation steps of {@link HumanDetection} on
+ * {@link SyntheticFrame}s, no camera or display needed.
+ *
+ * The steps change the mask in place, so each row runs the steps from the
+ * threshold up to the named one; the cost of a step is the difference to
+ * the row before it.
+ *
+ * At the end the whole frame search is compared with the coarse to fine
+ * search of {@link PyramidSegmenter} for localization error and time.
+ *
+ * usage: java l5.CvBenchmark [width height [iterations]]
+ */
+public class CvBenchmark {
+
+	private static final int DEF_WIDTH = 640;
+	private static final int DEF_HEIGHT = 480;
+	private static final int DEF_ITERATIONS = 300;
+
+	/**
+	 * human size in the frame, as fraction of the frame height
+	 */
+	private static final double[] HUMAN_SIZES = { 0.2, 0.5, 0.9 };
+
+	public static void main(String[] args) {
+		int w = args.length > 1 ? Integer.parseInt(args[0]) : DEF_WIDTH;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : DEF_HEIGHT;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2])
+				: DEF_ITERATIONS;
+		int warmup = iterations / 4;
+		double sink = 0;
+
+		final SyntheticFrame scene = new SyntheticFrame(w, h, 42);
+		final HumanSegmenter segmenter = new HumanSegmenter(w, h);
+		final HumanSegmenter labeling = new HumanSegmenter(w, h);
+		labeling.setLabeling(true);
+		final HumanSegmenter table = new HumanSegmenter(w, h);
+		table.setClassifier(HumanSegmenter.Classifier.TABLE);
+		final HumanSegmenter fused = new HumanSegmenter(w, h);
+		fused.setClassifier(HumanSegmenter.Classifier.FUSED);
+		final HumanSegmenter adaptive = new HumanSegmenter(w, h);
+		adaptive.setColorModel(new ColorModel(w, h, ColorModel.DEF_FORGETTING));
+		// the copies of a run with display, headless only fills the frame
+		final FrameSlot slot = new FrameSlot(w, h, true);
+
+		for (double size : HUMAN_SIZES) {
+			int hh = (int) (h * size);
+			int hw = hh / 3;
+			System.out.println("== " + w + "x" + h + ", human " + hw + "x"
+					+ hh);
+			final IplImage frame = scene.render(w / 3, h / 2, hw, hh);
+
+			// pick the human color like a mouse click on the human center
+			segmenter.convertColor(frame);
+			final CvScalar color = cvGet2D(segmenter.getHsvImage(), h / 2,
+					w / 3);
+			labeling.convertColor(frame);
+			table.convertColor(frame);
+			adaptive.convertColor(frame);
+			adaptive.learnColor(w / 3 - 7, h / 2 - 7, 15, 15);
+			final CvRect box = cvRect(w / 3 - hw / 2, h / 2 - hh / 2, hw, hh);
+
+			Benchmark[] benchmarks = new Benchmark[] {
+				new Benchmark("convert color") {
+					@Override
+					protected double op(int i) {
+						segmenter.convertColor(frame);
+						return i;
+					}
+				},
+				new Benchmark("threshold") {
+					@Override
+					protected double op(int i) {
+						segmenter.threshold(color);
+						return i;
+					}
+				},
+				new Benchmark("threshold table") {
+					@Override
+					protected double op(int i) {
+						table.threshold(color);
+						return i;
+					}
+				},
+				new Benchmark("convert color+threshold fused") {
+					@Override
+					protected double op(int i) {
+						fused.convertColor(frame);
+						fused.threshold(color);
+						return i;
+					}
+				},
+				new Benchmark("threshold+morphology") {
+					@Override
+					protected double op(int i) {
+						segmenter.threshold(color);
+						segmenter.morphology();
+						return i;
+					}
+				},
+				new Benchmark("threshold+morphology+contours") {
+					@Override
+					protected double op(int i) {
+						segmenter.threshold(color);
+						segmenter.morphology();
+						CvRect r = segmenter.findBlob();
+						return r == null ? 0 : r.width();
+					}
+				},
+				new Benchmark("threshold+morphology+labeling") {
+					@Override
+					protected double op(int i) {
+						labeling.threshold(color);
+						labeling.morphology();
+						CvRect r = labeling.findBlob();
+						return r == null ? 0 : r.width();
+					}
+				},
+				new Benchmark("back projection") {
+					@Override
+					protected double op(int i) {
+						adaptive.threshold(color);
+						return i;
+					}
+				},
+				new Benchmark("color model update") {
+					@Override
+					protected double op(int i) {
+						return adaptive.updateColor(box) ? 1 : 0;
+					}
+				},
+				new Benchmark("segment") {
+					@Override
+					protected double op(int i) {
+						CvRect r = segmenter.segment(frame, color);
+						return r == null ? 0 : r.width();
+					}
+				},
+				new Benchmark("seed color 15x15") {
+					RegionStats stats = new RegionStats();
+
+					@Override
+					protected double op(int i) {
+						segmenter.measureColor(stats, frame.width() / 3,
+								frame.height() / 2, 7);
+						return stats.getMedian(0);
+					}
+				},
+				new Benchmark("capture copy") {
+					@Override
+					protected double op(int i) {
+						slot.fill(frame, i, 0);
+						return i;
+					}
+				},
+				new Benchmark("display mask copy+rectangle") {
+					@Override
+					protected double op(int i) {
+						segmenter.copyMask(slot.getMask());
+						cvRectangle(slot.getImage(), cvPoint(i % 8, 0),
+								cvPoint(frame.width() / 2, frame.height() / 2),
+								CvScalar.RED, 1, CV_AA, 0);
+						return i;
+					}
+				},
+				new Benchmark("segment roi tracking") {
+					RoiTracker tracker = new RoiTracker(frame.width(),
+							frame.height(), 5);
+
+					@Override
+					protected double op(int i) {
+						if (tracker.hasWindow()) {
+							int[] window = tracker.getWindow();
+							segmenter.setRoi(window[0], window[1], window[2],
+									window[3]);
+						}
+						boolean inWindow = segmenter.hasRoi();
+						CvRect r = segmenter.segment(frame, color);
+						segmenter.clearRoi();
+						if (r != null) {
+							tracker.hit(r.x(), r.y(), r.width(), r.height(),
+									inWindow);
+							return r.width();
+						}
+						tracker.miss(inWindow);
+						return 0;
+					}
+				},
+			};
+			for (Benchmark bm : benchmarks) {
+				bm.run(warmup, iterations);
+				sink += bm.getSink();
+			}
+		}
+		System.out.println("sink: " + sink);
+
+		comparePyramid(scene, segmenter, w, h, iterations);
+
+		segmenter.release();
+		labeling.release();
+		table.release();
+		fused.release();
+		adaptive.release();
+		slot.release();
+		scene.release();
+	}
+
+	/**
+	 * compare the whole frame search with the coarse to fine search on the
+	 * image pyramid: localization error against the rendered human and
+	 * ms/frame, over random human positions and sizes
+	 * @param scene
+	 * @param segmenter
+	 * @param w
+	 * @param h
+	 * @param frames
+	 */
+	private static void comparePyramid(SyntheticFrame scene,
+			HumanSegmenter segmenter, int w, int h, int frames) {
+		System.out.println("== localization, " + frames + " random frames");
+		for (int levels = 0; levels <= 3; levels++) {
+			PyramidSegmenter pyramid = levels == 0 ? null
+					: new PyramidSegmenter(segmenter, w, h, levels);
+			Random random = new Random(7);
+			double errorSum = 0;
+			double errorMax = 0;
+			int misses = 0;
+			long time = 0;
+			for (int i = 0; i < frames; i++) {
+				int hh = h / 5 + random.nextInt(h / 2);
+				int hw = hh / 3;
+				int x = hw / 2 + random.nextInt(w - hw);
+				int y = hh / 2 + random.nextInt(h - hh);
+				IplImage frame = scene.render(x, y, hw, hh);
+				segmenter.convertColor(frame);
+				CvScalar color = cvGet2D(segmenter.getHsvImage(), y, x);
+
+				long start = System.nanoTime();
+				CvRect r = pyramid == null ? segmenter.segment(frame, color)
+						: pyramid.segment(frame, color, null);
+				time += System.nanoTime() - start;
+				if (r == null) {
+					misses++;
+					continue;
+				}
+				// error of the controller inputs, center x and height
+				double error = Math.abs(r.x() + r.width() / 2 - x)
+						+ Math.abs(r.height() - (hh / 2) * 2 - 1);
+				errorSum += error;
+				errorMax = Math.max(errorMax, error);
+			}
+			int hits = frames - misses;
+			System.out.println(String.format(
+					"pyramid levels %d: %8.3f ms/frame, mean error %6.2f px, "
+							+ "max error %6.1f px, misses %d", levels,
+					time / 1e6 / frames, hits == 0 ? 0 : errorSum / hits,
+					errorMax, misses));
+			if (pyramid != null) {
+				pyramid.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package l5;
+
+/**
+ * An immutable human detection result of one camera frame.
+ *
+ * {@link HumanDetection} publishes a new object for every processed frame,
+ * so a reader always sees x, h and y of the same frame, and can tell a new
+ * frame from a repeated one by the sequence number.
+ */
+public final class Detection {
+
+	/** published before the first frame **/
+	public static final Detection NONE = new Detection(0, -1, 0,
+			HumanDetection.NON_OBJECT, HumanDetection.NON_OBJECT,
+			HumanDetection.NON_OBJECT);
+
+	private final long seq;
+	private final long frameIndex;
+	private final long captureTime;
+	private final int x;
+	private final int h;
+	private final int y;
+
+	/**
+	 * @param seq
+	 * publish sequence number, starts from 1
+	 * @param frameIndex
+	 * index of the camera frame, starts from 0
+	 * @param captureTime
+	 * capture time of the frame, in {@link System#nanoTime()}
+	 * @param x
+	 * human center x relative to the calibrated x
+	 * @param h
+	 * human height
+	 * @param y
+	 * human center y
+	 */
+	public Detection(long seq, long frameIndex, long captureTime, int x,
+			int h, int y) {
+		this.seq = seq;
+		this.frameIndex = frameIndex;
+		this.captureTime = captureTime;
+		this.x = x;
+		this.h = h;
+		this.y = y;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public long getFrameIndex() {
+		return frameIndex;
+	}
+
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getH() {
+		return h;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * @return false if the human is not found in the frame
+	 */
+	public boolean isVisible() {
+		return x != HumanDetection.NON_OBJECT && h != HumanDetection.NON_OBJECT;
+	}
+
+	public String toString() {
+		return "#" + seq + " frame " + frameIndex + ": x = " + x + " h = " + h
+				+ " y = " + y;
+	}
+}
@@ -0,0 +1,28 @@
+package l5;
+
+/**
+ * The plain difference of the last two samples over their time difference.
+ * No filtering, the single frame noise goes straight into the speed.
+ */
+public class DifferenceEstimator implements VelocityEstimator {
+
+	private SampleRing samples = new SampleRing(2);
+
+	@Override
+	public void reset() {
+		samples.clear();
+	}
+
+	@Override
+	public double update(double value, long time) {
+		samples.add(value, time);
+		if (samples.size() < 2) {
+			return 0;
+		}
+		long dt = samples.getTime(1) - samples.getTime(0);
+		if (dt <= 0) {
+			return 0;
+		}
+		return (samples.getValue(1) - samples.getValue(0)) * 1e9 / dt;
+	}
+}
@@ -0,0 +1,18 @@
+package l5;
+
+/**
+ * The velocity command interface of the robot, the part of
+ * {@link ohmm.OHMMDrive} used by {@link FzControll}, so the control can
+ * also drive a {@link SimulatedRobot}.
+ */
+public interface Drive {
+
+	/**
+	 * set the robot velocity
+	 * @param v
+	 * forward speed, mm/s
+	 * @param w
+	 * turn rate, rad/s, left is positive
+	 */
+	void driveSetVW(float v, float w);
+}
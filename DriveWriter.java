@@ -0,0 +1,386 @@
+package l5;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the velocity commands to a slow {@link Drive}, like the serial
+ * link of the robot, on its own thread, so the control never waits for a
+ * write.
+ *
+ * {@link #driveSetVW(float, float)} only puts the command into a single
+ * slot mailbox, a newer command replaces one not written yet. The writer
+ * thread then:
+ * - suppresses a command within the deadband of the last written one, like
+ *   the repeated stops while the human is not visible. An exact stop after
+ *   a move is always written.
+ * - limits the change of v and w to the max accelerations, writing one
+ *   ramp step every RAMP_PERIOD until the command is reached. A stop, v
+ *   and w 0, is written at once, also within a ramp, as the stops of the
+ *   watchdog, a lost human or a too near human must not coast.
+ * - records the write latency
+ */
+public class DriveWriter implements Drive {
+
+	// commands nearer to the last written one are not written
+	public static final double DEF_DEADBAND_V = 5;
+	public static final double DEF_DEADBAND_W = 0.02;
+
+	// max accelerations, in mm/s^2 and rad/s^2
+	public static final double DEF_MAX_ACCEL_V = 500;
+	public static final double DEF_MAX_ACCEL_W = 4;
+
+	// min time between the ramp steps, in ns
+	public static final long RAMP_PERIOD = 50000000L;
+
+	private final Drive drive;
+
+	private double deadbandV = DEF_DEADBAND_V;
+	private double deadbandW = DEF_DEADBAND_W;
+	private double maxAccelV = DEF_MAX_ACCEL_V;
+	private double maxAccelW = DEF_MAX_ACCEL_W;
+
+	// the mailbox, guarded by lock
+	private final Object lock = new Object();
+	private float targetV = 0;
+	private float targetW = 0;
+	private boolean pending = false;
+	private boolean idle = true;
+	private boolean running = false;
+	private long offered = 0;
+	private long coalesced = 0;
+
+	// writer thread only
+	private float lastV = 0;
+	private float lastW = 0;
+	private long lastWrite = 0;
+	private boolean written = false;
+	private boolean atTarget = true;
+
+	private volatile long writes = 0;
+	private volatile long suppressed = 0;
+	private volatile long rampSteps = 0;
+	private final LatencyStats writeTime = new LatencyStats("drive write");
+
+	private Thread thread;
+
+	/**
+	 * @param drive
+	 * gets the commands on the writer thread
+	 */
+	public DriveWriter(Drive drive) {
+		this.drive = drive;
+	}
+
+	/**
+	 * queue a command, never blocks on the drive
+	 */
+	public void driveSetVW(float v, float w) {
+		synchronized (lock) {
+			if (pending) {
+				coalesced++;
+			}
+			targetV = v;
+			targetW = w;
+			pending = true;
+			idle = false;
+			offered++;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * start the writer thread
+	 */
+	public void start() {
+		synchronized (lock) {
+			if (running) {
+				return;
+			}
+			running = true;
+		}
+		thread = new Thread("drive writer") {
+			public void run() {
+				try {
+					write();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * stop the writer thread, a queued command may be dropped
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		if (thread != null) {
+			thread.join();
+			thread = null;
+		}
+	}
+
+	/**
+	 * wait until the last command is written or suppressed
+	 * @param timeout
+	 * in ms
+	 * @return false on timeout
+	 * @throws InterruptedException
+	 */
+	public boolean flush(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			while (!idle) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				lock.wait(wait);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * the writer thread loop
+	 * @throws InterruptedException
+	 */
+	private void write() throws InterruptedException {
+		while (true) {
+			float v, w;
+			synchronized (lock) {
+				while (running) {
+					if (pending && targetV == 0 && targetW == 0) {
+						break;
+					} else if (!atTarget) {
+						// in a ramp, the next step is due after RAMP_PERIOD
+						long wait = lastWrite + RAMP_PERIOD - System.nanoTime();
+						if (wait <= 0) {
+							break;
+						}
+						lock.wait(wait / 1000000, (int) (wait % 1000000));
+					} else if (pending) {
+						break;
+					} else {
+						idle = true;
+						lock.notifyAll();
+						lock.wait();
+					}
+				}
+				if (!running) {
+					return;
+				}
+				v = targetV;
+				w = targetW;
+				pending = false;
+			}
+
+			long now = System.nanoTime();
+			long elapsed = written ? Math.min(now - lastWrite, RAMP_PERIOD)
+					: RAMP_PERIOD;
+			double dt = elapsed / 1e9;
+			boolean stop = v == 0 && w == 0;
+			float nextV = stop ? 0 : approach(lastV, v, maxAccelV * dt);
+			float nextW = stop ? 0 : approach(lastW, w, maxAccelW * dt);
+			boolean reached = nextV == v && nextW == w;
+			if (!reached && elapsed < RAMP_PERIOD) {
+				// a new command in a ramp waits for the next step
+				atTarget = false;
+				continue;
+			}
+			if (reached && written && !(stop && (lastV != 0 || lastW != 0))
+					&& Math.abs(v - lastV) < deadbandV
+					&& Math.abs(w - lastW) < deadbandW) {
+				suppressed++;
+				atTarget = true;
+				continue;
+			}
+
+			try {
+				drive.driveSetVW(nextV, nextW);
+			} catch (RuntimeException e) {
+				// keep writing the next commands
+				e.printStackTrace();
+			}
+			lastWrite = System.nanoTime();
+			writeTime.record(lastWrite - now);
+			lastV = nextV;
+			lastW = nextW;
+			written = true;
+			atTarget = reached;
+			writes++;
+			if (!reached) {
+				rampSteps++;
+			}
+		}
+	}
+
+	/**
+	 * @param from
+	 * @param to
+	 * @param maxStep
+	 * @return to, or the value maxStep from the start towards it
+	 */
+	private static float approach(float from, float to, double maxStep) {
+		if (Math.abs(to - from) <= maxStep) {
+			return to;
+		}
+		return (float) (to > from ? from + maxStep : from - maxStep);
+	}
+
+	/**
+	 * @param deadbandV
+	 * in mm/s
+	 * @param deadbandW
+	 * in rad/s, 0 writes every changed command
+	 */
+	public void setDeadband(double deadbandV, double deadbandW) {
+		this.deadbandV = deadbandV;
+		this.deadbandW = deadbandW;
+	}
+
+	/**
+	 * @param maxAccelV
+	 * in mm/s^2
+	 * @param maxAccelW
+	 * in rad/s^2, infinite writes every command at once
+	 */
+	public void setAccelerationLimits(double maxAccelV, double maxAccelW) {
+		this.maxAccelV = maxAccelV;
+		this.maxAccelW = maxAccelW;
+	}
+
+	/**
+	 * @return the write latency of the drive
+	 */
+	public LatencyStats getWriteTime() {
+		return writeTime;
+	}
+
+	public long getWriteCount() {
+		return writes;
+	}
+
+	public long getSuppressedCount() {
+		return suppressed;
+	}
+
+	public String toString() {
+		long o, c;
+		synchronized (lock) {
+			o = offered;
+			c = coalesced;
+		}
+		return String.format("drive writer: offered %d, written %d, "
+				+ "coalesced %d, suppressed %d, ramp steps %d\n%s", o, writes,
+				c, suppressed, rampSteps, writeTime);
+	}
+
+	// unit test
+	public static void main(String[] args) throws InterruptedException {
+		// a serial link of 20 ms per write
+		final List<float[]> commands = new ArrayList<float[]>();
+		Drive slow = new Drive() {
+			public void driveSetVW(float v, float w) {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				synchronized (commands) {
+					commands.add(new float[] { v, w });
+				}
+			}
+		};
+		DriveWriter t = new DriveWriter(slow);
+		t.setAccelerationLimits(Double.POSITIVE_INFINITY,
+				Double.POSITIVE_INFINITY);
+		t.start();
+
+		// the control never waits for the link, the last command wins
+		long start = System.nanoTime();
+		for (int i = 1; i <= 100; i++) {
+			t.driveSetVW(i, 0.01f * i);
+		}
+		assert (System.nanoTime() - start < 20000000L);
+		assert (t.flush(2000));
+		assert (t.getWriteCount() < 10) : t;
+		synchronized (commands) {
+			float[] last = commands.get(commands.size() - 1);
+			assert (last[0] == 100 && last[1] == 1) : t;
+		}
+		assert (t.getWriteTime().getMean() >= 19e6) : t;
+
+		// the repeated stops are written once
+		long writes = t.getWriteCount();
+		for (int i = 0; i < 10; i++) {
+			t.driveSetVW(0, 0);
+			assert (t.flush(2000));
+		}
+		assert (t.getWriteCount() == writes + 1) : t;
+		// within the deadband
+		t.driveSetVW(3, 0.01f);
+		assert (t.flush(2000));
+		assert (t.getWriteCount() == writes + 1) : t;
+		// an exact stop after a small move is written
+		t.driveSetVW(6, 0);
+		assert (t.flush(2000));
+		t.driveSetVW(0, 0);
+		assert (t.flush(2000));
+		assert (t.getWriteCount() == writes + 3) : t;
+
+		// the ramp to 200 mm/s steps at most 500 mm/s^2 * RAMP_PERIOD
+		t.setAccelerationLimits(500, 4);
+		synchronized (commands) {
+			commands.clear();
+		}
+		t.driveSetVW(200, 0);
+		assert (t.flush(5000));
+		synchronized (commands) {
+			float prev = 0;
+			double maxStep = 500 * RAMP_PERIOD / 1e9;
+			for (float[] c : commands) {
+				assert (c[0] - prev <= maxStep + 1e-3) : c[0] + " " + prev;
+				prev = c[0];
+			}
+			assert (prev == 200) : prev;
+			assert (commands.size() >= 200 / maxStep) : commands.size();
+		}
+
+		// a stop is written at once, not ramped down
+		synchronized (commands) {
+			commands.clear();
+		}
+		t.driveSetVW(0, 0);
+		assert (t.flush(5000));
+		synchronized (commands) {
+			assert (commands.size() == 1) : commands.size();
+			assert (commands.get(0)[0] == 0 && commands.get(0)[1] == 0);
+		}
+
+		// also within a ramp, the ramp is not finished
+		synchronized (commands) {
+			commands.clear();
+		}
+		t.driveSetVW(200, 0);
+		Thread.sleep(3 * RAMP_PERIOD / 1000000);
+		t.driveSetVW(0, 0);
+		assert (t.flush(5000));
+		synchronized (commands) {
+			float[] last = commands.get(commands.size() - 1);
+			assert (last[0] == 0 && last[1] == 0);
+			float top = commands.get(commands.size() - 2)[0];
+			assert (top > 0 && top < 200) : top;
+		}
+		t.stop();
+		System.out.println(t);
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,290 @@
+package l5;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Capture, segmentation and annotation stages on their own threads.
+ *
+ * The capture stage runs in the grab loop: it copies the grabbed frame into
+ * a free {@link FrameSlot} and offers it to the segmentation ring. The
+ * segmentation thread offers the slot to the annotation ring, and the
+ * annotation thread hands it to the capture stage for display. The rings
+ * drop the oldest slot when full, so capture never waits for processing and
+ * the segmentation always works on the freshest frame.
+ *
+ * All the slots are allocated in the constructor. Dropped and displayed
+ * slots go back to the capture stage through two more rings, so every ring
+ * has one producer and one consumer.
+ *
+ * Each stage records its service time, the rings report the queue depth and
+ * the drops, see {@link #toString()}.
+ *
+ * Without an annotation stage the pipeline is headless: there is no
+ * annotation thread and ring, the slots have no debug mask, and the
+ * segmented slots go to the capture stage directly. The debug masks can
+ * also be left out with an annotation stage.
+ */
+public class FramePipeline {
+
+	private FrameSlot[] slots;
+
+	// capture -> segment -> annotate
+	private FrameRing<FrameSlot> segmentQueue;
+	private FrameRing<FrameSlot> annotateQueue;
+
+	// annotate -> capture, the newest annotated slot
+	private final AtomicReference<FrameSlot> annotated = new AtomicReference<FrameSlot>();
+
+	// segment -> capture and annotate -> capture, slots to reuse
+	private FrameRing<FrameSlot> segmentRecycle;
+	private FrameRing<FrameSlot> annotateRecycle;
+
+	// free slots and the displayed slot, owned by the capture stage
+	private FrameSlot[] free;
+	private int freeNum = 0;
+	private FrameSlot displayed = null;
+	private long frameIndex = 0;
+	private long skipped = 0;
+
+	private Worker segmentWorker;
+	private Worker annotateWorker;
+	private volatile boolean running = false;
+
+	private final LatencyStats captureTime = new LatencyStats("capture");
+	private final LatencyStats segmentTime = new LatencyStats("segment");
+	private final LatencyStats annotateTime = new LatencyStats("annotate");
+	// capture to display
+	private final LatencyStats frameAge = new LatencyStats("frame age");
+
+	// how long a stage waits for a slot before checking the running flag
+	private static final long TAKE_TIMEOUT = 100000000L;
+
+	/**
+	 * @param w
+	 * @param h
+	 * the frame size
+	 * @param capacity
+	 * capacity of the segmentation and the annotation rings
+	 * @param segment
+	 * @param annotate
+	 * the stage work, run on their own threads. Null annotate for headless.
+	 */
+	public FramePipeline(int w, int h, int capacity, FrameStage segment,
+			FrameStage annotate) {
+		this(w, h, capacity, segment, annotate, annotate != null);
+	}
+
+	/**
+	 * @param w
+	 * @param h
+	 * the frame size
+	 * @param capacity
+	 * capacity of the segmentation and the annotation rings
+	 * @param segment
+	 * @param annotate
+	 * the stage work, run on their own threads. Null annotate for headless.
+	 * @param masks
+	 * allocate the debug masks of the slots
+	 */
+	public FramePipeline(int w, int h, int capacity, FrameStage segment,
+			FrameStage annotate, boolean masks) {
+		boolean headless = annotate == null;
+		// the rings full, one slot in each stage, one annotated, one
+		// displayed and one being filled
+		int slotNum = headless ? capacity + 4 : 2 * capacity + 5;
+		slots = new FrameSlot[slotNum];
+		free = new FrameSlot[slotNum];
+		for (int i = 0; i < slotNum; i++) {
+			slots[i] = new FrameSlot(w, h, masks);
+			free[freeNum++] = slots[i];
+		}
+		segmentQueue = new FrameRing<FrameSlot>(capacity);
+		segmentRecycle = new FrameRing<FrameSlot>(slotNum);
+		if (headless) {
+			segmentWorker = new Worker("segment", segment, segmentQueue, null,
+					segmentRecycle, segmentTime);
+		} else {
+			annotateQueue = new FrameRing<FrameSlot>(capacity);
+			annotateRecycle = new FrameRing<FrameSlot>(slotNum);
+			segmentWorker = new Worker("segment", segment, segmentQueue,
+					annotateQueue, segmentRecycle, segmentTime);
+			annotateWorker = new Worker("annotate", annotate, annotateQueue,
+					null, annotateRecycle, annotateTime);
+		}
+	}
+
+	public boolean isHeadless() {
+		return annotateWorker == null;
+	}
+
+	/**
+	 * start the segmentation and the annotation threads
+	 */
+	public void start() {
+		running = true;
+		segmentWorker.start();
+		if (annotateWorker != null) {
+			annotateWorker.start();
+		}
+	}
+
+	/**
+	 * stop the threads and wait for them
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		segmentWorker.join();
+		if (annotateWorker != null) {
+			annotateWorker.join();
+		}
+	}
+
+	/**
+	 * the capture stage, called by the grab loop for every frame
+	 * @param frame
+	 * the grabbed frame, it is copied
+	 * @param frameTime
+	 * the capture time of the frame, {@link System#nanoTime()} for a live
+	 * frame
+	 * @return the newest annotated slot, or segmented slot if headless.
+	 * Null before the first one. It is owned by the caller until the next
+	 * call.
+	 */
+	public FrameSlot capture(IplImage frame, long frameTime) {
+		long start = System.nanoTime();
+		recycle(segmentRecycle);
+		if (annotateRecycle != null) {
+			recycle(annotateRecycle);
+		}
+
+		FrameSlot s = annotated.getAndSet(null);
+		if (s != null) {
+			if (displayed != null) {
+				free[freeNum++] = displayed;
+			}
+			displayed = s;
+			frameAge.record(start - s.getFillTime());
+		}
+
+		s = freeNum > 0 ? free[--freeNum] : null;
+		if (s == null) {
+			// all the slots are in flight, which the slot count rules out
+			skipped++;
+		} else {
+			s.fill(frame, frameIndex++, frameTime);
+			s = segmentQueue.offer(s);
+			if (s != null) {
+				free[freeNum++] = s;
+			}
+		}
+		captureTime.record(System.nanoTime() - start);
+		return displayed;
+	}
+
+	private void recycle(FrameRing<FrameSlot> ring) {
+		FrameSlot s;
+		while ((s = ring.poll()) != null) {
+			free[freeNum++] = s;
+		}
+	}
+
+	/**
+	 * a stage thread, takes the slots from the input ring, runs the stage
+	 * and passes them to the output ring, or to the capture stage for
+	 * display if there is no output ring
+	 */
+	private class Worker extends Thread {
+
+		private FrameStage stage;
+		private FrameRing<FrameSlot> input;
+		private FrameRing<FrameSlot> output;
+		private FrameRing<FrameSlot> recycle;
+		private LatencyStats time;
+
+		Worker(String name, FrameStage stage, FrameRing<FrameSlot> input,
+				FrameRing<FrameSlot> output, FrameRing<FrameSlot> recycle,
+				LatencyStats time) {
+			super(name);
+			setDaemon(true);
+			this.stage = stage;
+			this.input = input;
+			this.output = output;
+			this.recycle = recycle;
+			this.time = time;
+		}
+
+		public void run() {
+			while (running) {
+				FrameSlot s = input.take(System.nanoTime() + TAKE_TIMEOUT);
+				if (s == null) {
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					stage.process(s);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				time.record(System.nanoTime() - start);
+				FrameSlot old = output != null ? output.offer(s) : annotated
+						.getAndSet(s);
+				if (old != null) {
+					recycle.offer(old);
+				}
+			}
+		}
+	}
+
+	public LatencyStats getCaptureTime() {
+		return captureTime;
+	}
+
+	public LatencyStats getSegmentTime() {
+		return segmentTime;
+	}
+
+	public LatencyStats getAnnotateTime() {
+		return annotateTime;
+	}
+
+	public LatencyStats getFrameAge() {
+		return frameAge;
+	}
+
+	/**
+	 * @return the input ring of the segmentation, for its depth and drops
+	 */
+	public FrameRing<FrameSlot> getSegmentQueue() {
+		return segmentQueue;
+	}
+
+	/**
+	 * @return the input ring of the annotation, for its depth and drops.
+	 * Null if headless.
+	 */
+	public FrameRing<FrameSlot> getAnnotateQueue() {
+		return annotateQueue;
+	}
+
+	public String toString() {
+		String s = captureTime + ", skipped " + skipped + "\n" + segmentTime
+				+ "\n  queue " + segmentQueue + "\n";
+		if (annotateWorker != null) {
+			s += annotateTime + "\n  queue " + annotateQueue + "\n";
+		}
+		return s + frameAge;
+	}
+
+	/** Releases allocated memory, stop the threads first. **/
+	public void release() {
+		if (slots != null) {
+			for (FrameSlot s : slots) {
+				s.release();
+			}
+			slots = null;
+		}
+	}
+}
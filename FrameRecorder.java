@@ -0,0 +1,252 @@
+package l5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Writes raw frames with their capture times into a {@link FrameRecording}
+ * file.
+ *
+ * The rows are stored packed, without the row padding of the image. The
+ * frame count in the header is written by {@link #close()}.
+ *
+ * By default {@link #record} writes on the calling thread. After
+ * {@link #startWriter} it only copies the frame into a free record and
+ * offers it to a drop oldest {@link FrameRing}, and a writer thread does
+ * the file io, so a slow disk drops recorded frames instead of stalling
+ * the caller. The records are allocated by startWriter and recycled
+ * through a second ring, like the slots of {@link FramePipeline}.
+ */
+public class FrameRecorder {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int width;
+	private int height;
+	private int channels;
+	// written frames, by the writer thread if started
+	private volatile int frameNum = 0;
+
+	// one record: the time and the packed frame
+	private ByteBuffer record;
+
+	// the pixels the row view was made of, the view is reused for them
+	private ByteBuffer rowPixels = null;
+	private ByteBuffer rowView = null;
+
+	// caller -> writer, writer -> caller, free records owned by the caller
+	private FrameRing<ByteBuffer> writeQueue = null;
+	private FrameRing<ByteBuffer> writeRecycle = null;
+	private ByteBuffer[] free;
+	private int freeNum = 0;
+	// records not recorded for lack of a free one
+	private long skipped = 0;
+	private Thread writer = null;
+	private volatile boolean running = false;
+	// the first error of the writer, thrown by the next record
+	private volatile IOException writeError = null;
+
+	// how long the writer waits for a record before checking the running flag
+	private static final long TAKE_TIMEOUT = 100000000L;
+
+	/**
+	 * create the file, an existing one is overwritten
+	 * @param f
+	 * @param width
+	 * @param height
+	 * @param channels
+	 * @throws IOException
+	 */
+	public FrameRecorder(File f, int width, int height, int channels)
+			throws IOException {
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(FrameRecording.HEADER_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(FrameRecording.MAGIC).putInt(FrameRecording.VERSION)
+				.putInt(width).putInt(height).putInt(channels).putInt(0);
+		header.rewind();
+		channel.write(header);
+		record = allocateRecord();
+	}
+
+	private ByteBuffer allocateRecord() {
+		return ByteBuffer.allocateDirect(
+				FrameRecording.TIME_SIZE + width * height * channels).order(
+				ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * write on a writer thread from now on
+	 * @param capacity
+	 * records queued for the writer before the oldest is dropped
+	 */
+	public void startWriter(int capacity) {
+		if (writer != null) {
+			return;
+		}
+		writeQueue = new FrameRing<ByteBuffer>(capacity);
+		// the ring full, one being written and one being filled
+		int recordNum = capacity + 2;
+		writeRecycle = new FrameRing<ByteBuffer>(recordNum);
+		free = new ByteBuffer[recordNum];
+		free[freeNum++] = record;
+		while (freeNum < recordNum) {
+			free[freeNum++] = allocateRecord();
+		}
+		running = true;
+		writer = new Thread("frame writer") {
+			public void run() {
+				while (running || writeQueue.size() > 0) {
+					ByteBuffer r = writeQueue.take(System.nanoTime()
+							+ TAKE_TIMEOUT);
+					if (r == null) {
+						continue;
+					}
+					try {
+						if (writeError == null) {
+							write(r);
+						}
+					} catch (IOException e) {
+						writeError = e;
+					}
+					writeRecycle.offer(r);
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * append a frame
+	 * @param frame
+	 * of the recording size and channels
+	 * @param time
+	 * capture time in ns
+	 * @throws IOException
+	 */
+	public void record(IplImage frame, long time) throws IOException {
+		record(frame.getByteBuffer(), frame.widthStep(), time);
+	}
+
+	/**
+	 * append a frame
+	 * @param pixels
+	 * the frame bytes
+	 * @param step
+	 * bytes per row
+	 * @param time
+	 * capture time in ns
+	 * @throws IOException
+	 */
+	public void record(ByteBuffer pixels, int step, long time)
+			throws IOException {
+		if (writer == null) {
+			pack(pixels, step, time, record);
+			write(record);
+			return;
+		}
+		if (writeError != null) {
+			throw writeError;
+		}
+		ByteBuffer r;
+		while ((r = writeRecycle.poll()) != null) {
+			free[freeNum++] = r;
+		}
+		if (freeNum == 0) {
+			// all the records are in flight, which the record count rules out
+			skipped++;
+			return;
+		}
+		r = free[--freeNum];
+		pack(pixels, step, time, r);
+		r = writeQueue.offer(r);
+		if (r != null) {
+			free[freeNum++] = r;
+		}
+	}
+
+	/**
+	 * copy the time and the packed rows into a record
+	 */
+	private void pack(ByteBuffer pixels, int step, long time, ByteBuffer dst) {
+		int rowSize = width * channels;
+		if (pixels != rowPixels) {
+			rowView = pixels.duplicate();
+			rowPixels = pixels;
+		}
+		dst.clear();
+		dst.putLong(time);
+		if (step == rowSize) {
+			rowView.limit(height * rowSize).position(0);
+			dst.put(rowView);
+		} else {
+			for (int y = 0; y < height; y++) {
+				rowView.limit(y * step + rowSize).position(y * step);
+				dst.put(rowView);
+			}
+		}
+		dst.flip();
+	}
+
+	private void write(ByteBuffer r) throws IOException {
+		while (r.hasRemaining()) {
+			channel.write(r);
+		}
+		frameNum++;
+	}
+
+	/**
+	 * @return the frames written so far
+	 */
+	public int getFrameCount() {
+		return frameNum;
+	}
+
+	/**
+	 * @return the frames dropped because the writer fell behind, 0 without
+	 * a writer
+	 */
+	public long getDropped() {
+		return writeQueue == null ? 0 : writeQueue.getDropped() + skipped;
+	}
+
+	/**
+	 * write the frame count and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (writer != null) {
+			// the writer empties the queue first
+			running = false;
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		if (file != null) {
+			ByteBuffer count = ByteBuffer.allocate(4).order(
+					ByteOrder.LITTLE_ENDIAN);
+			count.putInt(frameNum).rewind();
+			channel.write(count, FrameRecording.COUNT_OFFSET);
+			file.close();
+			file = null;
+		}
+		if (writeError != null) {
+			throw writeError;
+		}
+	}
+}
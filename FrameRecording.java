@@ -0,0 +1,273 @@
+package l5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * A memory mapped recording of raw frames, written by
+ * {@link FrameRecorder}.
+ *
+ * format, little endian:
+ *   header: magic "L5FR", version, width, height, channels, frame count,
+ *     then zeros up to HEADER_SIZE bytes
+ *   frames: the capture time in ns (long), then the packed rows
+ *
+ * All the records have the same size, so a frame is found by its index.
+ * The file is mapped in chunks of whole frames, each below 2 GB, and the
+ * frames are copied straight from the page cache into the image.
+ */
+public class FrameRecording {
+
+	static final int MAGIC = 0x5246354c;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int COUNT_OFFSET = 20;
+	static final int TIME_SIZE = 8;
+
+	private RandomAccessFile file;
+	private int width;
+	private int height;
+	private int channels;
+	private int frameNum;
+	private long recordSize;
+
+	private int framesPerChunk;
+	private MappedByteBuffer[] chunks;
+
+	/**
+	 * map a recording
+	 * @param f
+	 * @throws IOException
+	 * if it is not a recording
+	 */
+	public FrameRecording(File f) throws IOException {
+		this(f, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param f
+	 * @param maxChunk
+	 * max bytes of a mapped chunk
+	 * @throws IOException
+	 */
+	FrameRecording(File f, int maxChunk) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		file.getChannel().read(header, 0);
+		header.rewind();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			file.close();
+			throw new IOException("not a frame recording: " + f);
+		}
+		width = header.getInt();
+		height = header.getInt();
+		channels = header.getInt();
+		frameNum = header.getInt();
+		recordSize = TIME_SIZE + (long) width * height * channels;
+		// a recorder that did not close leaves the count 0
+		long available = (file.length() - HEADER_SIZE) / recordSize;
+		if (frameNum == 0 || frameNum > available) {
+			frameNum = (int) available;
+		}
+		framesPerChunk = (int) Math.max(1, maxChunk / recordSize);
+		chunks = new MappedByteBuffer[(frameNum + framesPerChunk - 1)
+				/ framesPerChunk];
+	}
+
+	private ByteBuffer chunk(int i) throws IOException {
+		int c = i / framesPerChunk;
+		if (chunks[c] == null) {
+			long start = HEADER_SIZE + c * framesPerChunk * recordSize;
+			long size = Math.min(framesPerChunk, frameNum - c
+					* framesPerChunk)
+					* recordSize;
+			chunks[c] = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					start, size);
+			chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return chunks[c];
+	}
+
+	private int offset(int i) {
+		return (int) ((i % framesPerChunk) * recordSize);
+	}
+
+	/**
+	 * @param i
+	 * the frame index
+	 * @return the capture time in ns
+	 * @throws IOException
+	 */
+	public long getTime(int i) throws IOException {
+		return chunk(i).getLong(offset(i));
+	}
+
+	/**
+	 * copy a frame into an image
+	 * @param i
+	 * the frame index
+	 * @param dst
+	 * of the recording size and channels
+	 * @throws IOException
+	 */
+	public void read(int i, IplImage dst) throws IOException {
+		read(i, dst.getByteBuffer(), dst.widthStep());
+	}
+
+	/**
+	 * copy a frame
+	 * @param i
+	 * the frame index
+	 * @param dst
+	 * the frame bytes
+	 * @param step
+	 * bytes per row of dst
+	 * @throws IOException
+	 */
+	public void read(int i, ByteBuffer dst, int step) throws IOException {
+		ByteBuffer src = chunk(i).duplicate();
+		int rowSize = width * channels;
+		int start = offset(i) + TIME_SIZE;
+		for (int y = 0; y < height; y++) {
+			src.limit(start + (y + 1) * rowSize).position(start + y * rowSize);
+			ByteBuffer row = dst.duplicate();
+			row.position(y * step);
+			row.put(src);
+		}
+	}
+
+	public int getFrameCount() {
+		return frameNum;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * close the file, the mapped chunks are unmapped by the garbage
+	 * collector
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+			chunks = null;
+		}
+	}
+
+	// unit test
+	public static void main(String[] args) throws IOException {
+		File f = File.createTempFile("frames", ".l5fr");
+		f.deleteOnExit();
+		int w = 5, h = 3, step = 16;
+		FrameRecorder rec = new FrameRecorder(f, w, h, 3);
+		ByteBuffer frame = ByteBuffer.allocate(step * h);
+		for (int n = 0; n < 7; n++) {
+			for (int i = 0; i < frame.capacity(); i++) {
+				frame.put(i, (byte) (n * 31 + i));
+			}
+			rec.record(frame, step, 1000L * n);
+		}
+		assert (rec.getFrameCount() == 7);
+		rec.close();
+
+		// chunks of 2 frames
+		int recordSize = TIME_SIZE + w * h * 3;
+		FrameRecording r = new FrameRecording(f, 2 * recordSize + 1);
+		assert (r.getFrameCount() == 7);
+		assert (r.getWidth() == w && r.getHeight() == h);
+		assert (r.getChannels() == 3);
+		ByteBuffer dst = ByteBuffer.allocate(step * h);
+		for (int n = 6; n >= 0; n--) {
+			assert (r.getTime(n) == 1000L * n);
+			r.read(n, dst, step);
+			for (int y = 0; y < h; y++) {
+				for (int i = 0; i < w * 3; i++) {
+					int p = y * step + i;
+					assert (dst.get(p) == (byte) (n * 31 + p)) : n + " " + p;
+				}
+			}
+		}
+		r.close();
+
+		// the writer thread records the same frames
+		File fw = File.createTempFile("frames", ".l5fr");
+		fw.deleteOnExit();
+		rec = new FrameRecorder(fw, w, h, 3);
+		rec.startWriter(64);
+		for (int n = 0; n < 7; n++) {
+			for (int i = 0; i < frame.capacity(); i++) {
+				frame.put(i, (byte) (n * 31 + i));
+			}
+			rec.record(frame, step, 1000L * n);
+			// the frame is copied, changing it does not change the record
+			frame.put(0, (byte) 99);
+		}
+		rec.close();
+		assert (rec.getFrameCount() == 7 && rec.getDropped() == 0);
+		r = new FrameRecording(fw);
+		assert (r.getFrameCount() == 7);
+		for (int n = 0; n < 7; n++) {
+			assert (r.getTime(n) == 1000L * n);
+			r.read(n, dst, step);
+			for (int y = 0; y < h; y++) {
+				for (int i = 0; i < w * 3; i++) {
+					int p = y * step + i;
+					assert (dst.get(p) == (byte) (n * 31 + p)) : n + " " + p;
+				}
+			}
+		}
+		r.close();
+
+		// a writer behind drops the oldest frames, the caller never waits
+		fw = File.createTempFile("frames", ".l5fr");
+		fw.deleteOnExit();
+		rec = new FrameRecorder(fw, w, h, 3);
+		rec.startWriter(1);
+		int frames = 20000;
+		for (int n = 0; n < frames; n++) {
+			rec.record(frame, step, n);
+		}
+		rec.close();
+		assert (rec.getFrameCount() + rec.getDropped() == frames) : rec
+				.getFrameCount() + " " + rec.getDropped();
+		r = new FrameRecording(fw);
+		assert (r.getFrameCount() == rec.getFrameCount());
+		for (int n = 1; n < r.getFrameCount(); n++) {
+			assert (r.getTime(n) > r.getTime(n - 1));
+		}
+		r.close();
+
+		// not a recording
+		File bad = File.createTempFile("bad", ".l5fr");
+		bad.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(bad, "rw");
+		raf.write(new byte[HEADER_SIZE]);
+		raf.close();
+		try {
+			new FrameRecording(bad);
+			assert (false);
+		} catch (IOException e) {
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,373 @@
+package l5;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * Offline replay of a {@link FrameRecording} through
+ * {@link HumanDetection} and the fuzzy control of {@link FzControll},
+ * headless and without the robot or the camera.
+ *
+ * modes:
+ * lockstep: each frame waits for its detection, none is dropped and the
+ *   frame times are the recorded ones, so the output is the same on every
+ *   run and can be compared across changes
+ * realtime: the frames are fed at the recorded times, frames are dropped
+ *   like on the robot
+ * flood: the frames are fed as fast as possible, for the max throughput
+ *
+ * The detections and the commands are written as csv, one row per
+ * detection: frame, x, h, y, v, w. The human color is picked by a click at
+ * the given pixel of the first frame.
+ *
+ * usage:
+ * java l5.FrameReplay generate file [frames [width height]]
+ *   record a synthetic human walking, the click is the frame center
+ * java l5.FrameReplay run file lockstep|realtime|flood clickX clickY [csv]
+ * java l5.FrameReplay compare a.csv b.csv
+ *   exits with 1 if the detections or the commands differ
+ * java l5.FrameReplay test
+ *   replays a generated recording in lockstep twice, the runs must match
+ */
+public class FrameReplay {
+
+	public enum Mode {
+		LOCKSTEP, REALTIME, FLOOD;
+	}
+
+	private static final int DEF_FRAMES = 300;
+	private static final int DEF_WIDTH = 640;
+	private static final int DEF_HEIGHT = 480;
+	// the recorded frame period of the synthetic recording, in ns
+	private static final long SYNTHETIC_PERIOD = 200000000L;
+
+	// wait for a detection before giving up, in ns
+	private static final long DETECTION_TIMEOUT = 2000000000L;
+
+	// commands that differ less are equal
+	private static final double COMMAND_TOLERANCE = 1e-9;
+
+	private static final String CSV_HEADER = "frame,x,h,y,v,w";
+
+	private FrameRecording recording;
+	private HumanDetection detection;
+	private FzControll control;
+	private Mode mode;
+
+	// wall time each frame was fed, for the latency
+	private long[] feedTimes;
+
+	private final LatencyStats latency = new LatencyStats(
+			"detection latency");
+	private long detections = 0;
+
+	/**
+	 * @param recording
+	 * @param mode
+	 * @throws IOException
+	 */
+	public FrameReplay(FrameRecording recording, Mode mode) throws IOException {
+		this.recording = recording;
+		this.mode = mode;
+		detection = new HumanDetection();
+		detection.setHeadless(true);
+		control = new FzControll(null, detection);
+		control.setVerbose(false);
+		control.setCalibratedY(detection.getCalibratedY());
+		feedTimes = new long[recording.getFrameCount()];
+	}
+
+	/**
+	 * replay all the frames
+	 * @param clickX
+	 * @param clickY
+	 * the pixel of the first frame giving the human color
+	 * @param out
+	 * gets the csv rows, may be null
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run(int clickX, int clickY, final PrintWriter out)
+			throws IOException, InterruptedException {
+		int n = recording.getFrameCount();
+		IplImage frame = IplImage.create(cvSize(recording.getWidth(),
+				recording.getHeight()), IPL_DEPTH_8U, recording.getChannels());
+		detection.handleMouse(CV_EVENT_LBUTTONDOWN, clickX, clickY, 0);
+		if (out != null) {
+			out.println(CSV_HEADER);
+		}
+
+		// the controller thread, like FzControll.followHuman; in lockstep the
+		// feeding thread controls each detection as soon as it is published,
+		// so none is overwritten before it is seen
+		final long lastFrame = n - 1;
+		final boolean[] done = new boolean[] { mode == Mode.LOCKSTEP };
+		final double[] command = new double[2];
+		Thread consumer = new Thread("replay control") {
+			public void run() {
+				Detection d = detection.getDetection();
+				try {
+					while (d.getFrameIndex() < lastFrame) {
+						Detection last = d;
+						d = detection.awaitDetection(last.getSeq(),
+								System.nanoTime() + DETECTION_TIMEOUT);
+						if (d.getSeq() == last.getSeq()) {
+							break;
+						}
+						control(d, command, out);
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				synchronized (done) {
+					done[0] = true;
+					done.notifyAll();
+				}
+			}
+		};
+		if (mode != Mode.LOCKSTEP) {
+			consumer.start();
+		}
+
+		long start = System.nanoTime();
+		long firstTime = n > 0 ? recording.getTime(0) : 0;
+		for (int i = 0; i < n; i++) {
+			long time = recording.getTime(i);
+			if (mode == Mode.REALTIME) {
+				long wait = start + time - firstTime - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+			}
+			recording.read(i, frame);
+			long seq = detection.getDetection().getSeq();
+			feedTimes[i] = System.nanoTime();
+			// the recorded times go to the speed estimators
+			detection.process(frame, mode == Mode.REALTIME ? start + time
+					- firstTime : time);
+			if (mode == Mode.LOCKSTEP) {
+				Detection d = detection.awaitDetection(seq, System.nanoTime()
+						+ DETECTION_TIMEOUT);
+				if (d.getSeq() != seq) {
+					control(d, command, out);
+				}
+			}
+		}
+		synchronized (done) {
+			long deadline = System.nanoTime() + DETECTION_TIMEOUT;
+			while (!done[0] && System.nanoTime() < deadline) {
+				done.wait(DETECTION_TIMEOUT / 1000000);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%s: %d frames, %d detections in "
+				+ "%.2f s, %.1f detections/s", mode, n, detections, seconds,
+				detections / seconds));
+		System.out.println(latency);
+		System.out.println(detection.pipeline);
+		frame.release();
+	}
+
+	/**
+	 * control one detection and write its csv row
+	 * @param d
+	 * @param command
+	 * gets v and w
+	 * @param out
+	 * may be null
+	 */
+	private void control(Detection d, double[] command, PrintWriter out) {
+		latency.record(System.nanoTime() - feedTimes[(int) d.getFrameIndex()]);
+		detections++;
+		control.control(d, command);
+		if (out != null) {
+			out.println(d.getFrameIndex() + "," + d.getX() + "," + d.getH()
+					+ "," + d.getY() + "," + command[0] + "," + command[1]);
+		}
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		detection.release();
+	}
+
+	/**
+	 * record a synthetic human walking left and right, and coming closer
+	 * and going away
+	 * @param file
+	 * @param frames
+	 * @param w
+	 * @param h
+	 * @throws IOException
+	 */
+	public static void generate(File file, int frames, int w, int h)
+			throws IOException {
+		SyntheticFrame scene = new SyntheticFrame(w, h, 7);
+		scene.setNoise(200);
+		FrameRecorder recorder = new FrameRecorder(file, w, h, 3);
+		for (int i = 0; i < frames; i++) {
+			int x = (int) (w / 2 + w / 4 * Math.sin(2 * Math.PI * i / 50));
+			int hh = (int) (h * (0.5 + 0.2 * Math.sin(2 * Math.PI * i / 80)));
+			recorder.record(scene.render(x, h / 2, hh / 3, hh),
+					SYNTHETIC_PERIOD * i);
+		}
+		recorder.close();
+		scene.release();
+		System.out.println("recorded " + frames + " frames to " + file
+				+ ", click " + (w / 2) + " " + (h / 2));
+	}
+
+	/**
+	 * compare the csv of two replays by frame
+	 * @param a
+	 * @param b
+	 * @return the number of frames that differ or are in one file only
+	 * @throws IOException
+	 */
+	public static int compare(File a, File b) throws IOException {
+		Map<Long, double[]> rowsA = readCsv(a);
+		Map<Long, double[]> rowsB = readCsv(b);
+		int onlyA = 0, onlyB = 0, detectionDiffs = 0, commandDiffs = 0;
+		double maxV = 0, maxW = 0;
+		for (Map.Entry<Long, double[]> e : rowsA.entrySet()) {
+			double[] ra = e.getValue();
+			double[] rb = rowsB.get(e.getKey());
+			if (rb == null) {
+				onlyA++;
+				continue;
+			}
+			if (ra[0] != rb[0] || ra[1] != rb[1] || ra[2] != rb[2]) {
+				detectionDiffs++;
+				if (detectionDiffs <= 10) {
+					System.out.println("frame " + e.getKey() + ": x h y "
+							+ (int) ra[0] + " " + (int) ra[1] + " "
+							+ (int) ra[2] + " -> " + (int) rb[0] + " "
+							+ (int) rb[1] + " " + (int) rb[2]);
+				}
+			}
+			double dv = Math.abs(ra[3] - rb[3]);
+			double dw = Math.abs(ra[4] - rb[4]);
+			if (dv > COMMAND_TOLERANCE || dw > COMMAND_TOLERANCE) {
+				commandDiffs++;
+			}
+			maxV = Math.max(maxV, dv);
+			maxW = Math.max(maxW, dw);
+		}
+		for (Long frame : rowsB.keySet()) {
+			if (!rowsA.containsKey(frame)) {
+				onlyB++;
+			}
+		}
+		System.out.println(String.format("%d frames, only in a %d, only in "
+				+ "b %d, detections differ %d, commands differ %d, max |dv| "
+				+ "%.6f, max |dw| %.6f", rowsA.size(), onlyA, onlyB,
+				detectionDiffs, commandDiffs, maxV, maxW));
+		return onlyA + onlyB + Math.max(detectionDiffs, commandDiffs);
+	}
+
+	/**
+	 * @param f
+	 * @return x, h, y, v, w by frame
+	 * @throws IOException
+	 */
+	private static Map<Long, double[]> readCsv(File f) throws IOException {
+		Map<Long, double[]> rows = new HashMap<Long, double[]>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			String line = br.readLine();
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split(",");
+				double[] row = new double[5];
+				for (int i = 0; i < 5; i++) {
+					row[i] = Double.parseDouble(fields[i + 1]);
+				}
+				rows.put(Long.parseLong(fields[0]), row);
+			}
+		} finally {
+			br.close();
+		}
+		return rows;
+	}
+
+	private static void usage() {
+		System.err.println("usage: java l5.FrameReplay generate file "
+				+ "[frames [width height]]");
+		System.err.println("       java l5.FrameReplay run file "
+				+ "lockstep|realtime|flood clickX clickY [csv]");
+		System.err.println("       java l5.FrameReplay compare a.csv b.csv");
+		System.err.println("       java l5.FrameReplay test");
+		System.exit(2);
+	}
+
+	// unit test
+	private static void test() throws Exception {
+		File f = File.createTempFile("replay", ".l5fr");
+		f.deleteOnExit();
+		int frames = 60;
+		generate(f, frames, DEF_WIDTH, DEF_HEIGHT);
+		File[] csv = new File[2];
+		for (int run = 0; run < csv.length; run++) {
+			csv[run] = File.createTempFile("replay", ".csv");
+			csv[run].deleteOnExit();
+			FrameRecording recording = new FrameRecording(f);
+			FrameReplay replay = new FrameReplay(recording, Mode.LOCKSTEP);
+			PrintWriter out = new PrintWriter(new FileWriter(csv[run]));
+			replay.run(DEF_WIDTH / 2, DEF_HEIGHT / 2, out);
+			out.close();
+			assert (replay.detections == frames) : replay.detections;
+			replay.release();
+			recording.close();
+		}
+
+		// lockstep is reproducible
+		assert (compare(csv[0], csv[1]) == 0);
+
+		assert (false) : "all tests passed!";
+	}
+
+	/** Program entry point. **/
+	public static void main(String[] args) throws Exception {
+		if (args.length == 1 && args[0].equals("test")) {
+			test();
+		}
+		if (args.length < 2) {
+			usage();
+		}
+		File file = new File(args[1]);
+		if (args[0].equals("generate")) {
+			generate(file, args.length > 2 ? Integer.parseInt(args[2])
+					: DEF_FRAMES, args.length > 4 ? Integer.parseInt(args[3])
+					: DEF_WIDTH, args.length > 4 ? Integer.parseInt(args[4])
+					: DEF_HEIGHT);
+		} else if (args[0].equals("run") && args.length >= 5) {
+			FrameRecording recording = new FrameRecording(file);
+			FrameReplay replay = new FrameReplay(recording, Mode
+					.valueOf(args[2].toUpperCase()));
+			PrintWriter out = args.length > 5 ? new PrintWriter(
+					new FileWriter(args[5])) : null;
+			replay.run(Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+					out);
+			if (out != null) {
+				out.close();
+			}
+			replay.release();
+			recording.close();
+		} else if (args[0].equals("compare") && args.length >= 3) {
+			System.exit(compare(file, new File(args[2])) == 0 ? 0 : 1);
+		} else {
+			usage();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package l5;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single producer, single consumer ring with drop oldest
+ * backpressure.
+ *
+ * The producer never blocks: when the ring is full, {@link #offer} removes
+ * the oldest element and hands it back, so the consumer always gets the
+ * freshest elements. Only the producer writes the head. The consumer and a
+ * dropping producer both move the tail by compare and set, so an element is
+ * owned by exactly one of them.
+ *
+ * The ring does not allocate after construction. A consumer waiting in
+ * {@link #take} is parked and unparked by the producer.
+ *
+ * @param <T>
+ */
+public class FrameRing<T> {
+
+	private final Object[] elements;
+	private final int capacity;
+
+	// next position to write, written by the producer only
+	private final AtomicLong head = new AtomicLong();
+	// next position to read
+	private final AtomicLong tail = new AtomicLong();
+
+	// the consumer waiting in take, null if none
+	private volatile Thread consumer = null;
+
+	// statistics
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile int maxDepth = 0;
+
+	public FrameRing(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be >= 1: "
+					+ capacity);
+		}
+		this.capacity = capacity;
+		elements = new Object[capacity];
+	}
+
+	/**
+	 * add an element, by the producer only
+	 * @param e
+	 * @return the dropped oldest element if the ring was full, null
+	 * otherwise. The caller owns it again.
+	 */
+	@SuppressWarnings("unchecked")
+	public T offer(T e) {
+		offered.incrementAndGet();
+		T oldest = null;
+		long h = head.get();
+		long t = tail.get();
+		if (h - t >= capacity) {
+			// if the consumer moves the tail first there is room already
+			T first = (T) elements[(int) (t % capacity)];
+			if (tail.compareAndSet(t, t + 1)) {
+				oldest = first;
+				dropped.incrementAndGet();
+			}
+		}
+		elements[(int) (h % capacity)] = e;
+		// the volatile write publishes the element
+		head.set(h + 1);
+		int depth = (int) (h + 1 - tail.get());
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+		Thread c = consumer;
+		if (c != null) {
+			LockSupport.unpark(c);
+		}
+		return oldest;
+	}
+
+	/**
+	 * remove the oldest element, by the consumer, or by the producer to
+	 * drop it
+	 * @return null if empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		while (true) {
+			long t = tail.get();
+			if (t >= head.get()) {
+				return null;
+			}
+			// the slot cannot be overwritten before the tail moves past it
+			T e = (T) elements[(int) (t % capacity)];
+			if (tail.compareAndSet(t, t + 1)) {
+				return e;
+			}
+		}
+	}
+
+	/**
+	 * remove the oldest element, wait for one if empty. By the consumer
+	 * only.
+	 * @param deadline
+	 * give up at this {@link System#nanoTime()}
+	 * @return null if timed out or interrupted
+	 */
+	public T take(long deadline) {
+		T e = poll();
+		if (e != null) {
+			return e;
+		}
+		consumer = Thread.currentThread();
+		try {
+			// an unpark before the park is remembered, so no wake up is lost
+			while ((e = poll()) == null) {
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0 || Thread.interrupted()) {
+					break;
+				}
+				LockSupport.parkNanos(this, wait);
+			}
+		} finally {
+			consumer = null;
+		}
+		return e;
+	}
+
+	/**
+	 * @return the number of queued elements
+	 */
+	public int size() {
+		long t = tail.get();
+		return (int) Math.max(0, Math.min(capacity, head.get() - t));
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public long getOffered() {
+		return offered.get();
+	}
+
+	/**
+	 * @return the number of elements dropped by {@link #offer}
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public String toString() {
+		return "depth " + size() + "/" + capacity + ", max depth " + maxDepth
+				+ ", dropped " + dropped.get() + "/" + offered.get();
+	}
+
+	// unit test
+	public static void main(String[] args) throws InterruptedException {
+		FrameRing<Integer> r = new FrameRing<Integer>(3);
+		assert (r.poll() == null);
+		assert (r.offer(1) == null);
+		assert (r.offer(2) == null);
+		assert (r.offer(3) == null);
+		assert (r.size() == 3);
+
+		// full, the oldest is dropped and handed back
+		assert (r.offer(4) == 1);
+		assert (r.getDropped() == 1);
+		assert (r.poll() == 2);
+		assert (r.poll() == 3);
+		assert (r.poll() == 4);
+		assert (r.poll() == null);
+		assert (r.take(System.nanoTime() + 1000000) == null);
+
+		// a slow consumer sees every element in order or dropped, never twice
+		final FrameRing<Integer> ring = new FrameRing<Integer>(4);
+		final int n = 200000;
+		final int[] seen = new int[1];
+		final boolean[] ordered = new boolean[] { true };
+		Thread c = new Thread() {
+			public void run() {
+				int last = -1;
+				while (true) {
+					Integer e = ring.take(System.nanoTime() + 1000000000L);
+					if (e == null || e == n - 1) {
+						if (e != null) {
+							seen[0]++;
+						}
+						break;
+					}
+					if (e <= last) {
+						ordered[0] = false;
+					}
+					last = e;
+					seen[0]++;
+				}
+			}
+		};
+		c.start();
+		long droppedByOffer = 0;
+		for (int i = 0; i < n; i++) {
+			if (ring.offer(i) != null) {
+				droppedByOffer++;
+			}
+		}
+		c.join();
+		assert (ordered[0]);
+		assert (droppedByOffer == ring.getDropped());
+		assert (seen[0] + ring.getDropped() + ring.size() == n) : seen[0]
+				+ " " + ring.getDropped() + " " + ring.size();
+		assert (ring.getMaxDepth() <= 4);
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,127 @@
+package l5;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * A preallocated frame buffer passed between the stages of
+ * {@link FramePipeline}. It holds a copy of the grabbed frame, the debug
+ * mask and the bounding box found by the segmentation.
+ *
+ * A slot is owned by one stage at a time, the rings hand it over.
+ */
+public class FrameSlot {
+
+	private IplImage image;
+	private IplImage mask;
+
+	private long frameIndex = -1;
+	private long captureTime = 0;
+	private long fillTime = 0;
+
+	// bounding box of the human, width 0 if none
+	private int x = 0;
+	private int y = 0;
+	private int width = 0;
+	private int height = 0;
+
+	/**
+	 * @param w
+	 * @param h
+	 * the frame size
+	 * @param withMask
+	 * allocate the debug mask
+	 */
+	public FrameSlot(int w, int h, boolean withMask) {
+		image = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 3);
+		if (withMask) {
+			mask = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 1);
+		}
+	}
+
+	/**
+	 * copy a grabbed frame in, the box is cleared
+	 * @param frame
+	 * @param frameIndex
+	 * @param captureTime
+	 */
+	public void fill(IplImage frame, long frameIndex, long captureTime) {
+		cvCopy(frame, image);
+		this.frameIndex = frameIndex;
+		this.captureTime = captureTime;
+		fillTime = System.nanoTime();
+		width = 0;
+		height = 0;
+	}
+
+	public void setBox(int x, int y, int width, int height) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	public boolean hasBox() {
+		return width > 0;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public IplImage getImage() {
+		return image;
+	}
+
+	/**
+	 * @return the debug mask, null if not allocated
+	 */
+	public IplImage getMask() {
+		return mask;
+	}
+
+	public long getFrameIndex() {
+		return frameIndex;
+	}
+
+	/**
+	 * @return the capture time in {@link System#nanoTime()}
+	 */
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	/**
+	 * @return the time the frame was copied in, in
+	 * {@link System#nanoTime()}. The same as the capture time unless the
+	 * frame is replayed.
+	 */
+	public long getFillTime() {
+		return fillTime;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (image != null) {
+			image.release();
+			image = null;
+		}
+		if (mask != null) {
+			mask.release();
+			mask = null;
+		}
+	}
+}
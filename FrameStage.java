@@ -0,0 +1,8 @@
+package l5;
+
+/**
+ * the work of a pipeline stage on one slot
+ */
+interface FrameStage {
+	void process(FrameSlot slot);
+}
@@ -0,0 +1,60 @@
+package l5;
+
+/**
+ * The fired sets of one fuzzified input: at most two (index, degree) pairs,
+ * ordered by the set index. Reused by every fuzzification, so a tick does
+ * not allocate.
+ */
+public class FzActiveSets {
+
+	// max sets fired by one input
+	public static final int MAX_ACTIVE = 2;
+
+	private int count = 0;
+	private int[] index = new int[MAX_ACTIVE];
+	private double[] degree = new double[MAX_ACTIVE];
+
+	void clear() {
+		count = 0;
+	}
+
+	void add(int setIndex, double setDegree) {
+		index[count] = setIndex;
+		degree[count] = setDegree;
+		count++;
+	}
+
+	/**
+	 * @return the number of fired sets, 0 to MAX_ACTIVE
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param i
+	 * the pair, less than getCount()
+	 * @return the set index
+	 */
+	public int getIndex(int i) {
+		return index[i];
+	}
+
+	/**
+	 * @param i
+	 * the pair, less than getCount()
+	 * @return the degree, above 0
+	 */
+	public double getDegree(int i) {
+		return degree[i];
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append(i == 0 ? "" : ", ").append(index[i]).append(' ').append(
+					degree[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,384 @@
+package l5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks of the fuzzy controller hot paths:
+ * fuzzify, rule firing, defuzzification and the whole v/w calculation.
+ * The gap of each defuzzification to the exact centroid is printed too.
+ *
+ * Every benchmark runs over each input {@link Distribution}, because the
+ * number of fired sets and rules depends on where the inputs fall.
+ *
+ * usage: java l5.FzBenchmark [iterations]
+ *
+ * This is a quick single process run. The jmh module runs the same
+ * benchmarks in forked JVMs with error bars and the gc profiler.
+ */
+public class FzBenchmark {
+
+	// number of precomputed inputs, power of 2
+	private static final int INPUT_NUM = 4096;
+	private static final int INPUT_MASK = INPUT_NUM - 1;
+
+	private static final int DEF_ITERATIONS = 2000000;
+
+	// min warm up calls of a batch benchmark
+	private static final int BATCH_WARMUP = 200;
+
+	// the rules of the rule tables, benchmarked if found
+	private static final File RULE_FILE = new File("follow.fzr");
+
+	/**
+	 * distribution of the normalized inputs
+	 */
+	public enum Distribution {
+		/** uniform over [-1, 1] **/
+		UNIFORM,
+		/** gaussian around 0, the human is mostly in front of the robot **/
+		CENTERED,
+		/** mostly out of [-1, 1], the inputs are clamped **/
+		SATURATED;
+
+		/**
+		 * sample normalized inputs
+		 * @param random
+		 * @param n
+		 * @return
+		 */
+		public double[] sample(Random random, int n) {
+			double[] v = new double[n];
+			for (int i = 0; i < n; i++) {
+				switch (this) {
+				case UNIFORM:
+					v[i] = random.nextDouble() * 2 - 1;
+					break;
+				case CENTERED:
+					v[i] = Math.max(-1, Math.min(1, random.nextGaussian() * 0.25));
+					break;
+				case SATURATED:
+					v[i] = random.nextDouble() * 4 - 2;
+					break;
+				}
+			}
+			return v;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0])
+				: DEF_ITERATIONS;
+		int warmup = iterations / 4;
+		double sink = 0;
+		FzRuleBase ruleBase = RULE_FILE.exists() ? FzRuleBase.load(RULE_FILE)
+				: null;
+
+		for (Distribution d : Distribution.values()) {
+			System.out.println("== " + d);
+			Random random = new Random(42);
+			final double[] a = d.sample(random, INPUT_NUM);
+			final double[] b = d.sample(random, INPUT_NUM);
+			final FzMemberShipFuncs funcs = new FzMemberShipFuncs();
+			final double[] degreesa = new double[FzMemberShipFuncs.FUNC_NUM];
+			final double[] degreesb = new double[FzMemberShipFuncs.FUNC_NUM];
+			final double[] result = new double[FzMemberShipFuncs.FUNC_NUM];
+			final FzActiveSets setsa = new FzActiveSets();
+			final FzActiveSets setsb = new FzActiveSets();
+			// the fired angle velocity sets of each input pair
+			double[][] fired = new double[INPUT_NUM][FzMemberShipFuncs.FUNC_NUM];
+			FzRule avrule = new FzAVRule();
+			for (int i = 0; i < INPUT_NUM; i++) {
+				funcs.fuzzify(a[i], setsa);
+				funcs.fuzzify(b[i], setsb);
+				avrule.fire(setsa, setsb, fired[i]);
+			}
+
+			Benchmark[] benchmarks = new Benchmark[] {
+				new Benchmark("fuzzify FzElement[]") {
+					@Override
+					protected double op(int i) {
+						return funcs.fuzzify(a[i & INPUT_MASK]).length;
+					}
+				},
+				new Benchmark("fuzzify double[]") {
+					@Override
+					protected double op(int i) {
+						funcs.fuzzify(a[i & INPUT_MASK], degreesa);
+						return degreesa[2];
+					}
+				},
+				new Benchmark("fuzzify FzActiveSets") {
+					@Override
+					protected double op(int i) {
+						funcs.fuzzify(a[i & INPUT_MASK], setsa);
+						return setsa.getCount();
+					}
+				},
+				new FireBenchmark("fire FzAVRule Map", new FzAVRule(), a, b),
+				new FireBenchmark("fire FzVRule Map", new FzVRule(), a, b),
+				new Benchmark("fire FzAVRule double[]") {
+					FzRule rule = new FzAVRule();
+
+					@Override
+					protected double op(int i) {
+						funcs.fuzzify(a[i & INPUT_MASK], degreesa);
+						funcs.fuzzify(b[i & INPUT_MASK], degreesb);
+						rule.fire(degreesa, degreesb, result);
+						return result[2];
+					}
+				},
+				new Benchmark("fire FzVRule double[]") {
+					FzRule rule = new FzVRule();
+
+					@Override
+					protected double op(int i) {
+						funcs.fuzzify(a[i & INPUT_MASK], degreesa);
+						funcs.fuzzify(b[i & INPUT_MASK], degreesb);
+						rule.fire(degreesa, degreesb, result);
+						return result[2];
+					}
+				},
+				new Benchmark("fire FzAVRule FzActiveSets") {
+					FzRule rule = new FzAVRule();
+
+					@Override
+					protected double op(int i) {
+						funcs.fuzzify(a[i & INPUT_MASK], setsa);
+						funcs.fuzzify(b[i & INPUT_MASK], setsb);
+						rule.fire(setsa, setsb, result);
+						return result[2];
+					}
+				},
+				new Benchmark("fire FzAVRule singletons") {
+					FzRule rule = new FzAVRule();
+
+					@Override
+					protected double op(int i) {
+						funcs.fuzzify(a[i & INPUT_MASK], setsa);
+						funcs.fuzzify(b[i & INPUT_MASK], setsb);
+						return rule.fireSingletons(setsa, setsb,
+								FzInference.DEF_AV_SINGLETONS);
+					}
+				},
+				new DefuzzifyBenchmark("defuzzify area centers",
+						FzDefuzzifier.Method.AREA_CENTERS, fired),
+				new DefuzzifyBenchmark("defuzzify centroid",
+						FzDefuzzifier.Method.CENTROID, fired),
+				new DefuzzifyBenchmark("defuzzify sampled "
+						+ FzDefuzzifier.DEF_SAMPLES,
+						FzDefuzzifier.Method.SAMPLED, fired),
+				new DefuzzifyBenchmark("defuzzify height",
+						FzDefuzzifier.Method.HEIGHT, fired),
+				new VWBenchmark("getVW exact", 0, null, null, null, a, b),
+				new VWBenchmark("getVW centroid", 0, null,
+						FzDefuzzifier.Method.CENTROID, null, a, b),
+				new VWBenchmark("getVW height", 0, null,
+						FzDefuzzifier.Method.HEIGHT, null, a, b),
+				new VWBenchmark("getVW sugeno", 0, null, null,
+						FzInference.Mode.SUGENO, a, b),
+				new VWBenchmark("getVW surface 129", 129, null, null, null,
+						a, b),
+				new VWBenchmark("getVW sugeno surface 129", 129, null, null,
+						FzInference.Mode.SUGENO, a, b),
+				ruleBase == null ? null : new VWBenchmark("getVW rule base",
+						0, ruleBase, null, null, a, b),
+				new BatchVWBenchmark("getVW batch exact", 0, null, a, b),
+				new BatchVWBenchmark("getVW batch sugeno", 0,
+						FzInference.Mode.SUGENO, a, b),
+				new BatchVWBenchmark("getVW batch surface 129", 129, null,
+						a, b),
+			};
+			for (Benchmark bm : benchmarks) {
+				if (bm == null) {
+					continue;
+				}
+				if (bm instanceof BatchVWBenchmark) {
+					// as many samples as the single sample rows, but enough
+					// calls to compile the batch call
+					bm.run(Math.max(warmup / INPUT_NUM, BATCH_WARMUP),
+							iterations / INPUT_NUM + 1);
+				} else {
+					bm.run(warmup, iterations);
+				}
+				sink += bm.getSink();
+			}
+			printDefuzzifyGap(fired);
+		}
+		System.out.println("sink: " + sink);
+	}
+
+	/**
+	 * map normalized inputs back into the raw input ranges of the control,
+	 * y and yd take the inputs of the next index so all four differ
+	 * @param a
+	 * @param b
+	 * normalized inputs, of a power of 2 length
+	 * @param calibratedY
+	 * @param x
+	 * @param xd
+	 * @param y
+	 * @param yd
+	 * the raw inputs, of the same length
+	 */
+	static void toRawInputs(double[] a, double[] b, int calibratedY,
+			double[] x, double[] xd, double[] y, double[] yd) {
+		int mask = a.length - 1;
+		for (int i = 0; i < a.length; i++) {
+			x[i] = a[i] * 140;
+			xd[i] = b[i] * 140;
+			y[i] = calibratedY - 40 + (a[(i + 1) & mask] + 1) * 20;
+			yd[i] = b[(i + 1) & mask] * 100;
+		}
+	}
+
+	/**
+	 * print the error of each defuzzification against the exact centroid,
+	 * in normalized output units
+	 * @param fired
+	 * the fired set degrees
+	 */
+	private static void printDefuzzifyGap(double[][] fired) {
+		FzDefuzzifier defuzzifier = new FzDefuzzifier(FzMemberShipFuncs.SHAPES);
+		for (FzDefuzzifier.Method m : FzDefuzzifier.Method.values()) {
+			if (m == FzDefuzzifier.Method.CENTROID) {
+				continue;
+			}
+			double max = 0, sum = 0;
+			int n = 0;
+			for (double[] degrees : fired) {
+				double e = Math.abs(defuzzifier.defuzzify(degrees, m)
+						- defuzzifier.getCentroid(degrees));
+				max = Math.max(max, e);
+				sum += e;
+				n++;
+			}
+			System.out.println(String.format("%-40s max %.6f mean %.6f",
+					"gap to centroid " + m, max, sum / n));
+		}
+	}
+
+	/**
+	 * defuzzify the fired sets of an input pair
+	 */
+	private static class DefuzzifyBenchmark extends Benchmark {
+		private FzDefuzzifier defuzzifier = new FzDefuzzifier(
+				FzMemberShipFuncs.SHAPES);
+		private FzDefuzzifier.Method method;
+		private double[][] fired;
+
+		public DefuzzifyBenchmark(String name, FzDefuzzifier.Method method,
+				double[][] fired) {
+			super(name);
+			this.method = method;
+			this.fired = fired;
+		}
+
+		@Override
+		protected double op(int i) {
+			return defuzzifier.defuzzify(fired[i & INPUT_MASK], method);
+		}
+	}
+
+	/**
+	 * fuzzify two inputs and fire the rules on the FzElement/Map api
+	 */
+	private static class FireBenchmark extends Benchmark {
+		private FzMemberShipFuncs funcs = new FzMemberShipFuncs();
+		private FzRule rule;
+		private double[] a;
+		private double[] b;
+
+		public FireBenchmark(String name, FzRule rule, double[] a, double[] b) {
+			super(name);
+			this.rule = rule;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		protected double op(int i) {
+			Map<Integer, FzElement> result = rule.fire(
+					funcs.fuzzify(a[i & INPUT_MASK]),
+					funcs.fuzzify(b[i & INPUT_MASK]));
+			return result.size();
+		}
+	}
+
+	/**
+	 * the whole v/w calculation from raw controller inputs
+	 */
+	private static class VWBenchmark extends Benchmark {
+		private static final int CALIBRATED_Y = 200;
+
+		private FzInference inference = new FzInference();
+		private double[] vw = new double[2];
+		private double[] x = new double[INPUT_NUM];
+		private double[] xd = new double[INPUT_NUM];
+		private double[] y = new double[INPUT_NUM];
+		private double[] yd = new double[INPUT_NUM];
+
+		/**
+		 * @param name
+		 * @param resolution
+		 * control surface resolution, 0 for the exact inference
+		 * @param ruleBase
+		 * used instead of the rule tables, may be null
+		 * @param method
+		 * the defuzzification, null for the default
+		 * @param mode
+		 * the inference, null for the default
+		 * @param a
+		 * @param b
+		 * normalized inputs, mapped back into the raw input ranges
+		 */
+		public VWBenchmark(String name, int resolution, FzRuleBase ruleBase,
+				FzDefuzzifier.Method method, FzInference.Mode mode,
+				double[] a, double[] b) {
+			super(name);
+			inference.setRuleBase(ruleBase);
+			if (method != null) {
+				inference.setDefuzzification(method);
+			}
+			if (mode != null) {
+				inference.setMode(mode);
+			}
+			inference.setCalibratedY(CALIBRATED_Y);
+			if (resolution > 0) {
+				inference.compileSurfaces(resolution);
+			}
+			toRawInputs(a, b, CALIBRATED_Y, x, xd, y, yd);
+		}
+
+		@Override
+		protected double op(int i) {
+			int k = i & INPUT_MASK;
+			inference.getVW(x[k], xd[k], y[k], yd[k], vw);
+			return vw[0] + vw[1];
+		}
+	}
+
+	/**
+	 * the v/w calculation of all the inputs by one batch call
+	 */
+	private static class BatchVWBenchmark extends Benchmark {
+		private VWBenchmark inputs;
+		private double[] v = new double[INPUT_NUM];
+		private double[] w = new double[INPUT_NUM];
+
+		public BatchVWBenchmark(String name, int resolution,
+				FzInference.Mode mode, double[] a, double[] b) {
+			super(name, INPUT_NUM);
+			inputs = new VWBenchmark(name, resolution, null, null, mode, a, b);
+		}
+
+		@Override
+		protected double op(int i) {
+			inputs.inference.getVW(inputs.x, inputs.xd, inputs.y, inputs.yd,
+					v, w, 0, INPUT_NUM);
+			return v[i & INPUT_MASK] + w[i & INPUT_MASK];
+		}
+	}
+}
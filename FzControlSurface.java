@@ -0,0 +1,323 @@
+package l5;
+
+/**
+ * A compiled fuzzy control surface.
+ *
+ * The fuzzy controller output is a fixed function of two bounded
+ * normalized inputs, so it can be sampled once on a dense grid and then
+ * answered by bilinear interpolation instead of running
+ * fuzzify -> fire -> defuzzify on every control tick.
+ *
+ * The grid has resolution x resolution points, stored row by row in a flat
+ * array. Inputs outside the range are clamped to the border.
+ */
+public class FzControlSurface {
+
+	private FzSurfaceFunc func;
+
+	private double aMin;
+	private double aMax;
+	private double bMin;
+	private double bMax;
+
+	// grid points per axis
+	private int resolution;
+
+	// inverse of the grid step, so lookup only multiplies
+	private double aInvStep;
+	private double bInvStep;
+
+	// sampled values, index = ai * resolution + bi
+	private double[] values;
+
+	/**
+	 * sample the function on the grid
+	 * @param func
+	 * the exact function
+	 * @param aMin
+	 * @param aMax
+	 * the range of the first input
+	 * @param bMin
+	 * @param bMax
+	 * the range of the second input
+	 * @param resolution
+	 * number of grid points along each input axis, at least 2
+	 */
+	public FzControlSurface(FzSurfaceFunc func, double aMin, double aMax,
+			double bMin, double bMax, int resolution) {
+		if (resolution < 2) {
+			throw new IllegalArgumentException("resolution must be >= 2: "
+					+ resolution);
+		}
+		this.func = func;
+		this.aMin = aMin;
+		this.aMax = aMax;
+		this.bMin = bMin;
+		this.bMax = bMax;
+		this.resolution = resolution;
+		aInvStep = (resolution - 1) / (aMax - aMin);
+		bInvStep = (resolution - 1) / (bMax - bMin);
+
+		values = new double[resolution * resolution];
+		for (int i = 0; i < resolution; i++) {
+			double a = aMin + i / aInvStep;
+			for (int j = 0; j < resolution; j++) {
+				double b = bMin + j / bInvStep;
+				values[i * resolution + j] = func.eval(a, b);
+			}
+		}
+	}
+
+	/**
+	 * get the interpolated output
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public double lookup(double a, double b) {
+		double fa = (a - aMin) * aInvStep;
+		double fb = (b - bMin) * bInvStep;
+		int last = resolution - 1;
+		// clamp, this also catches NaN
+		if (!(fa > 0)) {
+			fa = 0;
+		} else if (fa > last) {
+			fa = last;
+		}
+		if (!(fb > 0)) {
+			fb = 0;
+		} else if (fb > last) {
+			fb = last;
+		}
+		int i = (int) fa;
+		int j = (int) fb;
+		if (i == last) {
+			i--;
+		}
+		if (j == last) {
+			j--;
+		}
+		double ta = fa - i;
+		double tb = fb - j;
+		int k = i * resolution + j;
+		double v00 = values[k];
+		double v01 = values[k + 1];
+		double v10 = values[k + resolution];
+		double v11 = values[k + resolution + 1];
+		double v0 = v00 + (v01 - v00) * tb;
+		double v1 = v10 + (v11 - v10) * tb;
+		return v0 + (v1 - v0) * ta;
+	}
+
+	/**
+	 * look up many samples, the same to the bit as {@link #lookup(double, double)} on each,
+	 * with the grid fields read once per call
+	 * @param a
+	 * @param b
+	 * the inputs, from index 0
+	 * @param out
+	 * gets the interpolated values
+	 * @param o
+	 * the index of the first value in out
+	 * @param n
+	 * the number of samples
+	 */
+	public void lookup(double[] a, double[] b, double[] out, int o, int n) {
+		double aMin = this.aMin, bMin = this.bMin;
+		double aInvStep = this.aInvStep, bInvStep = this.bInvStep;
+		int resolution = this.resolution;
+		double[] values = this.values;
+		int last = resolution - 1;
+		for (int s = 0; s < n; s++) {
+			double fa = (a[s] - aMin) * aInvStep;
+			double fb = (b[s] - bMin) * bInvStep;
+			if (!(fa > 0)) {
+				fa = 0;
+			} else if (fa > last) {
+				fa = last;
+			}
+			if (!(fb > 0)) {
+				fb = 0;
+			} else if (fb > last) {
+				fb = last;
+			}
+			int i = (int) fa;
+			int j = (int) fb;
+			if (i == last) {
+				i--;
+			}
+			if (j == last) {
+				j--;
+			}
+			double ta = fa - i;
+			double tb = fb - j;
+			int k = i * resolution + j;
+			double v00 = values[k];
+			double v01 = values[k + 1];
+			double v10 = values[k + resolution];
+			double v11 = values[k + resolution + 1];
+			double v0 = v00 + (v01 - v00) * tb;
+			double v1 = v10 + (v11 - v10) * tb;
+			out[o + s] = v0 + (v1 - v0) * ta;
+		}
+	}
+
+	/**
+	 * compare the surface with the exact function at the centers of a
+	 * probes x probes grid over the input range. The probes are not aligned
+	 * with the surface grid, so this is a sampled estimate of the max
+	 * error, not a bound.
+	 * @param probes
+	 * number of probes along each input axis
+	 * @return the max absolute error at the probes
+	 */
+	public double getMaxError(int probes) {
+		double maxError = 0;
+		double aStep = (aMax - aMin) / probes;
+		double bStep = (bMax - bMin) / probes;
+		for (int i = 0; i < probes; i++) {
+			double a = aMin + (i + 0.5) * aStep;
+			for (int j = 0; j < probes; j++) {
+				double b = bMin + (j + 0.5) * bStep;
+				double error = Math.abs(func.eval(a, b) - lookup(a, b));
+				if (error > maxError) {
+					maxError = error;
+				}
+			}
+		}
+		return maxError;
+	}
+
+	/**
+	 * bound the error of the surface against the exact function.
+	 *
+	 * The function is probed on a grid with probesPerCell steps per surface
+	 * cell, which holds the surface grid points, the cell midpoints if even,
+	 * and the points between them. Any point is within half a probe step
+	 * of a probe along each axis, so its error is at most the error of the
+	 * nearest probe plus the slopes of the function and of the surface
+	 * times half a probe step. The slopes of the function are the largest
+	 * differences between neighboring probes, so the bound holds if the
+	 * function does not get steeper between the probes than at them.
+	 * @param probesPerCell
+	 * probe steps along each axis of a cell, at least 1
+	 * @return the error bound
+	 */
+	public double getErrorBound(int probesPerCell) {
+		if (probesPerCell < 1) {
+			throw new IllegalArgumentException("probesPerCell must be >= 1: "
+					+ probesPerCell);
+		}
+		int n = (resolution - 1) * probesPerCell + 1;
+		double aStep = (aMax - aMin) / (n - 1);
+		double bStep = (bMax - bMin) / (n - 1);
+		double maxError = 0;
+		double fSlopeA = 0, fSlopeB = 0;
+		double[] row = new double[n];
+		double[] lastRow = new double[n];
+		for (int i = 0; i < n; i++) {
+			double a = i == n - 1 ? aMax : aMin + i * aStep;
+			for (int j = 0; j < n; j++) {
+				double b = j == n - 1 ? bMax : bMin + j * bStep;
+				double f = func.eval(a, b);
+				row[j] = f;
+				maxError = Math.max(maxError, Math.abs(f - lookup(a, b)));
+				if (j > 0) {
+					fSlopeB = Math.max(fSlopeB, Math.abs(f - row[j - 1])
+							/ bStep);
+				}
+				if (i > 0) {
+					fSlopeA = Math.max(fSlopeA, Math.abs(f - lastRow[j])
+							/ aStep);
+				}
+			}
+			double[] t = lastRow;
+			lastRow = row;
+			row = t;
+		}
+		// the bilinear surface is steepest along the grid edges
+		double sSlopeA = 0, sSlopeB = 0;
+		for (int i = 0; i < resolution; i++) {
+			for (int j = 0; j < resolution; j++) {
+				int k = i * resolution + j;
+				if (i > 0) {
+					sSlopeA = Math.max(sSlopeA, Math.abs(values[k]
+							- values[k - resolution])
+							* aInvStep);
+				}
+				if (j > 0) {
+					sSlopeB = Math.max(sSlopeB, Math.abs(values[k]
+							- values[k - 1])
+							* bInvStep);
+				}
+			}
+		}
+		return maxError + (fSlopeA + sSlopeA) * aStep / 2
+				+ (fSlopeB + sSlopeB) * bStep / 2;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		double threshold = 0.000001;
+
+		// a bilinear function is reproduced exactly
+		FzControlSurface s = new FzControlSurface(new FzSurfaceFunc() {
+			@Override
+			public double eval(double a, double b) {
+				return 2 * a - 3 * b + a * b + 1;
+			}
+		}, -1, 1, 0, 1, 5);
+		assert (Math.abs(s.lookup(0.3, 0.7) - (0.6 - 2.1 + 0.21 + 1)) < threshold);
+		assert (Math.abs(s.lookup(-1, 0) - (-2 + 1)) < threshold);
+		assert (Math.abs(s.lookup(1, 1) - (2 - 3 + 1 + 1)) < threshold);
+		assert (s.getMaxError(50) < threshold);
+		// the bound covers the sampled error, dense probes only get nearer
+		assert (s.getErrorBound(4) >= s.getMaxError(50));
+		assert (s.getErrorBound(8) < s.getErrorBound(2));
+		// out of range inputs are clamped
+		assert (Math.abs(s.lookup(5, -5) - s.lookup(1, 0)) < threshold);
+
+		// the block lookup gives the same bits, NaN and out of range too
+		double[] ba = { 0.3, -1, 1, 5, Double.NaN, -0.77 };
+		double[] bb = { 0.7, 0, 1, -5, 0.5, 0.123 };
+		double[] out = new double[ba.length + 2];
+		s.lookup(ba, bb, out, 2, ba.length);
+		for (int i = 0; i < ba.length; i++) {
+			assert (out[2 + i] == s.lookup(ba[i], bb[i])) : i;
+		}
+
+		// the fuzzy surfaces get closer to the exact inference as the
+		// resolution grows
+		FzInference inference = new FzInference();
+		inference.compileSurfaces(17);
+		double coarse = inference.getSurfaceError(100);
+		inference.compileSurfaces(257);
+		double fine = inference.getSurfaceError(100);
+		assert (fine < coarse);
+		assert (fine < 0.01);
+
+		// the bound is above the error anywhere, also off the probe grids
+		inference.compileSurfaces(33);
+		double bound = inference.getSurfaceErrorBound(4);
+		assert (bound >= inference.getSurfaceError(997)) : bound;
+		assert (bound >= inference.getSurfaceError(100)) : bound;
+		assert (bound < 0.5) : bound;
+
+		// grid points are exact
+		assert (Math.abs(inference.getAngleVelocity(0.25, -0.5)
+				- new FzControlSurface(new FzSurfaceFunc() {
+					FzInference exact = new FzInference();
+
+					@Override
+					public double eval(double a, double b) {
+						return exact.getAngleVelocity(a, b);
+					}
+				}, -1, 1, -1, 1, 9).lookup(0.25, -0.5)) < threshold);
+
+		assert (false) : "all tests passed!";
+	}
+}
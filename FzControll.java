@@ -1,7 +1,6 @@
 package l5;
 
-import java.util.Collection;
-import java.util.Map;
+import java.io.File;
 
 import ohmm.OHMM;
 import ohmm.OHMMDrive;
@@ -28,32 +27,73 @@ import ohmm.OHMMDrive;
  */
 public class FzControll {
 
-	private FzMemberShipFuncs fzMemberShipFuncs = new FzMemberShipFuncs();
+	// default grid resolution of the compiled control surfaces
+	public static final int DEF_SURFACE_RESOLUTION = 129;
 
-	// normalizer for human x position
-	private FzNormalizer xNormalizer = new FzNormalizer(-140, 140);
-	// normalizer for human x speed
-	private FzNormalizer xdNormalizer = new FzNormalizer(-140, 140);
-	// normalizer for human y position
-	private FzNormalizer yNormalizer;
-	// normalizer for human y speed
-	private FzNormalizer ydNormalizer = new FzNormalizer(-100, 100);
-	// normalizer for robot velocity
-	private FzNormalizer vNormalizer = new FzNormalizer(0, 250);
-	// normalizer for robot angle velocity
-	private FzNormalizer avNormalizer = new FzNormalizer(-0.8, 0.8);
+	// the gains of FzTuner, used if found
+	public static final File GAINS_FILE = new File("gains.fzg");
 
-	// velocity rule
-	private FzRule vrule = new FzVRule();
+	// other set shapes of the rule tables, used if found
+	public static final File SHAPES_FILE = new File("shapes.fzs");
 
-	// angle velocity rule
-	private FzRule avrule = new FzAVRule();
+	// the Sugeno singletons of FzTuner, switch to the Sugeno inference if
+	// found
+	public static final File SINGLETONS_FILE = new File(
+			FzTuner.SINGLETONS_FILE);
 
-	private OHMMDrive ohmm;
+	// probe steps per surface cell of the error bound
+	private static final int SURFACE_PROBES_PER_CELL = 8;
+
+	// max normalized error bound of a used control surface, 7.5 mm/s of v
+	// and 0.024 rad/s of w at the default gains
+	public static final double SURFACE_TOLERANCE = 0.03;
+
+	// fallback control period when no new detection comes, in ms
+	public static final long FALLBACK_PERIOD = 300;
+
+	// period the speed normalizers are tuned for, the human speed is the
+	// position difference over this period, in ms
+	public static final long DERIVATIVE_PERIOD = 300;
+
+	// max time without a new detection before stopping the robot, in ms
+	public static final long WATCHDOG_TIME = 1000;
+
+	// print the scheduler statistics every STATS_INTERVAL commands
+	private static final int STATS_INTERVAL = 100;
+
+	private FzInference fzInference = new FzInference();
+
+	// samples kept by the default speed estimators, a DERIVATIVE_PERIOD
+	// at up to 100 fps
+	private static final int SPEED_SAMPLES = 32;
+
+	// human x position and height speed estimators
+	private VelocityEstimator xEstimator = newSpeedEstimator();
+	private VelocityEstimator yEstimator = newSpeedEstimator();
+
+	// controller output, reused by every tick
+	private double[] vw = new double[2];
+
+	// the robot command, w is negated for the robot
+	private double[] command = new double[2];
+
+	// the speed normalizers are tuned for the difference over
+	// DERIVATIVE_PERIOD, so scale the speed per second to it
+	private static final double SPEED_SCALE = DERIVATIVE_PERIOD / 1000.0;
+
+	// print the inputs and the outputs of every tick
+	private boolean verbose = true;
+
+	private Drive ohmm;
 
 	private HumanDetection humanDetect;
 
-	public FzControll(OHMMDrive ohmm, HumanDetection humanDetect) {
+	/**
+	 * @param ohmm
+	 * the robot, or a {@link SimulatedRobot}
+	 * @param humanDetect
+	 */
+	public FzControll(Drive ohmm, HumanDetection humanDetect) {
 		this.ohmm = ohmm;
 		this.humanDetect = humanDetect;
 	}
@@ -61,184 +101,205 @@ public class FzControll {
 	public void followHuman() {
 
 		// wait for press r to start following human
+		try {
+			humanDetect.awaitRun();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return;
+		}
+		fzInference.setCalibratedY(humanDetect.getCalibratedY());
+		ControlScheduler scheduler = new ControlScheduler(FALLBACK_PERIOD,
+				WATCHDOG_TIME);
+		Detection detection = humanDetect.getDetection();
+		long commands = 0;
+		xEstimator.reset();
+		yEstimator.reset();
 		while (true) {
-			if (humanDetect.isRun() == true) {
 
-				break;
-			}
+			// wake up on a new detection, or on the fallback deadline
+			Detection last = detection;
 			try {
-				Thread.sleep(1000);
+				detection = humanDetect.awaitDetection(last.getSeq(),
+						scheduler.getNextDeadline());
 			} catch (InterruptedException e) {
 				e.printStackTrace();
+				return;
+			}
+			boolean fresh = detection.getSeq() != last.getSeq();
+			scheduler.tick(fresh);
+			if (!fresh) {
+				// no new frame, the last command is still valid
+				// unless the camera stalled
+				if (scheduler.isWatchdogExpired()) {
+					System.out.println("no detection, watchdog expired!");
+					ohmm.driveSetVW(0, 0);
+					xEstimator.reset();
+					yEstimator.reset();
+				}
+				continue;
 			}
-		}
-		yNormalizer = new FzNormalizer(humanDetect.getCalibratedY() - 40,
-				humanDetect.getCalibratedY());
-		int xhy[];
-		// x: human x position
-		// px: previous human x position
-		// xd(x derivative): human vertical speed
-		// y is similar.
-		double x, px, xd, y, py, yd;
-		px = HumanDetection.NON_OBJECT;
-		py = HumanDetection.NON_OBJECT;
-		while (true) {
 
-			xhy = humanDetect.getXHY();
-			if (xhy[0] == HumanDetection.NON_OBJECT
-					&& xhy[1] == HumanDetection.NON_OBJECT) {
+			long frameTime = detection.getCaptureTime();
+			if (!control(detection, command)) {
 				// human not visible;
 				System.out.println("human is not visible!");
 				ohmm.driveSetVW(0, 0);
-				px = HumanDetection.NON_OBJECT;
-				py = HumanDetection.NON_OBJECT;
-				try {
-					Thread.sleep(300);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				scheduler.commandIssued(frameTime);
 				continue;
 			}
-			x = xhy[0];
-			y = xhy[1];
-			xd = px != HumanDetection.NON_OBJECT ? (x - px) : 0;
-			yd = py != HumanDetection.NON_OBJECT ? (y - py) : 0;
-			px = x;
-			py = y;
-
-			double[] vw = getVW(x, xd, y, yd);
-
-			if (xhy[2] <= 30) {
-				// if the human is too near the robot,
-				// the height will be very small, the
-				// robot will consider the human is far way
-				// and continue to drive forward. So we use
-				// the human center y position to check if
-				// the human is too near the human.
-				vw[0] = 0;
-			}
-			System.out.println("x = " + xhy[0] + " y = " + xhy[1]);
-			System.out.println("v = " + vw[0] + " w = " + (-vw[1]));
-			// in the paper, turn left is negative
-			// in our robot, turn left is positive
-			// so we need neg the angle velocity
-			ohmm.driveSetVW((float) vw[0], -(float) vw[1]);
+			ohmm.driveSetVW((float) command[0], (float) command[1]);
+			scheduler.commandIssued(frameTime);
 
-			try {
-				Thread.sleep(300);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if (++commands % STATS_INTERVAL == 0) {
+				System.out.println(scheduler.getLatency());
+				System.out.println(scheduler.getDrift());
+				if (ohmm instanceof DriveWriter) {
+					System.out.println(ohmm);
+				}
 			}
 		}
 
 	}
 
 	/**
-	 * calculate the v and w by fuzzy controll
-	 * @param x
-	 * @param xd
-	 * @param y
-	 * @param yd
-	 * @return
+	 * calculate the robot command for a new detection, without driving
+	 * @param detection
+	 * @param out
+	 * gets v and w, w is already negated for the robot
+	 * @return false if the human is not visible, out is 0 then
 	 */
-	private double[] getVW(double x, double xd, double y, double yd) {
-		double[] vw = new double[2];
-		double xn, xdn, yn, ydn;
-
-		// normalize
-		xn = xNormalizer.normalize(x);
-		if (xn > 1 || xn < -1) {
-			xn = xn > 0 ? 1 : -1;
+	public boolean control(Detection detection, double[] out) {
+		if (!detection.isVisible()) {
+			xEstimator.reset();
+			yEstimator.reset();
+			out[0] = 0;
+			out[1] = 0;
+			return false;
 		}
-		xdn = xdNormalizer.normalize(xd);
-		if (xdn > 1 || xdn < -1) {
-			xdn = xdn > 0 ? 1 : -1;
+		long frameTime = detection.getCaptureTime();
+		// x: human x position
+		// xd(x derivative): human vertical speed
+		// y is similar.
+		double x = detection.getX();
+		double y = detection.getH();
+		double xd = xEstimator.update(x, frameTime) * SPEED_SCALE;
+		double yd = yEstimator.update(y, frameTime) * SPEED_SCALE;
+
+		getVW(x, xd, y, yd);
+
+		if (detection.getY() <= 30) {
+			// if the human is too near the robot,
+			// the height will be very small, the
+			// robot will consider the human is far way
+			// and continue to drive forward. So we use
+			// the human center y position to check if
+			// the human is too near the human.
+			vw[0] = 0;
 		}
-		yn = yNormalizer.normalize(y);
-		yn = yn > 1 ? 1 : yn;
-		ydn = ydNormalizer.normalize(yd);
-		if (ydn > 1 || ydn < -1) {
-			ydn = ydn > 0 ? 1 : -1;
+		if (verbose) {
+			System.out.println("x = " + detection.getX() + " y = "
+					+ detection.getH());
+			System.out.println("v = " + vw[0] + " w = " + (-vw[1]));
 		}
+		// in the paper, turn left is negative
+		// in our robot, turn left is positive
+		// so we need neg the angle velocity
+		out[0] = vw[0];
+		out[1] = -vw[1];
+		return true;
+	}
 
-		// fuzzify:
-		// x, xd, yd using the original membership function
-		FzElement[] xFzEle = fzMemberShipFuncs.fuzzify(xn);
-		FzElement[] xdFzEle = fzMemberShipFuncs.fuzzify(xdn);
-		FzElement[] ydFzEle = fzMemberShipFuncs.fuzzify(ydn);
-
-		// y membership function is different, the range change from [-1,
-		// 1] to [0, 1] and the membership function sharp keeps same as the
-		// original one. so it can be mapping into the original function by
-		// multiply by 2 and then left move 1
-		FzElement[] yFzEle = fzMemberShipFuncs.fuzzify(yn * 2 - 1);
-
-		// fire the rule
-		Map<Integer, FzElement> angleVelocitys = avrule.fire(xdFzEle, xFzEle);
-		Map<Integer, FzElement> velocitys = vrule.fire(ydFzEle, yFzEle);
-		System.out.println("x = " + x + " xd = " + xd + " y = " + y + " yd = "
-				+ yd);
-		System.out.println("xn = " + xn + " xdn = " + xdn + " yn = " + yn
-				+ " ydn = " + ydn);
-
-		// calculate the angle velocity centroid
-		double av = calculateCentroid(angleVelocitys.values(), 1, 0);
-
-		// calculate the velocity centroid, the velocity member ship
-		// function range changed from [-1, 1] to [0, 1]
-		// so we need do some transformation to get
-		// the correct result: the range changed from 2 to 1, so the scale is
-		// 0.5
-		// the min value changed from -1 to 0, so the x offset is 1
-		double v = calculateCentroid(velocitys.values(), 0.5, 1);
-		if (yn == 1) {
-			// fix a bug for fuzzy controll
-			// in fuzzy controll, the velocity
-			// can not reach to 0, it cause the robot
-			// moving forward forever even if it has already
-			// near to the human
-			v = 0;
-		}
+	/**
+	 * @param verbose
+	 * print the inputs and the outputs of every tick
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * set the calibrated human height, the height kept by the robot
+	 * @param calibratedY
+	 */
+	public void setCalibratedY(int calibratedY) {
+		fzInference.setCalibratedY(calibratedY);
+	}
 
-		// denormalize
-		vw[0] = vNormalizer.deNormalize(v);
-		vw[1] = avNormalizer.deNormalize(av);
-		return vw;
+	/**
+	 * @return the default human speed estimator: the difference over a
+	 * DERIVATIVE_PERIOD, which is what the speed normalizers are tuned for
+	 * at any frame rate
+	 */
+	public static VelocityEstimator newSpeedEstimator() {
+		return new PeriodDifferenceEstimator(DERIVATIVE_PERIOD * 1000000L,
+				SPEED_SAMPLES);
 	}
 
 	/**
-	 * calculate centroid of the fuzzy output
-	 * using following formula:
-	 * Sum(function center * area after clipped) / Sum(area after clipped)
-	 * @param fzElements 
-	 * fuzzy elements.
-	 * @param scale 
-	 * the scale of the original membership function
-	 * @param xoffset
-	 * the x axis offset of the original membership function
-	 * @return
+	 * set the human speed estimators, e.g. a filter to keep the single
+	 * frame noise out of the speed rules at high frame rates
+	 * @param xEstimator
+	 * for the human x position
+	 * @param yEstimator
+	 * for the human height
 	 */
-	private double calculateCentroid(Collection<FzElement> fzElements,
-			double scale, int xoffset) {
-		double weightSum = 0;
-		double areaSum = 0;
-		for (FzElement fe : fzElements) {
-			int index = fe.getIndex();
-			double clipped = 1 - fe.getDegree();
-			double center = (fzMemberShipFuncs.getCenter(index) + xoffset)
-					* scale;
-			double area = fzMemberShipFuncs.getArea(clipped, index) * scale;
-			weightSum += center * area;
-			areaSum += area;
+	public void setVelocityEstimators(VelocityEstimator xEstimator,
+			VelocityEstimator yEstimator) {
+		this.xEstimator = xEstimator;
+		this.yEstimator = yEstimator;
+	}
+
+	/**
+	 * @return the fuzzy inference, to set its mode, shapes or rules
+	 */
+	public FzInference getInference() {
+		return fzInference;
+	}
+
+	/**
+	 * compile the fuzzy inference into control surfaces, so each control
+	 * tick only interpolates the precomputed grids. The surfaces are only
+	 * used if their error bound is within SURFACE_TOLERANCE, else the
+	 * control keeps the exact inference.
+	 * @param resolution
+	 * number of grid points along each input axis
+	 * @return true if the surfaces are used
+	 */
+	public boolean useControlSurface(int resolution) {
+		fzInference.compileSurfaces(resolution);
+		double bound = fzInference
+				.getSurfaceErrorBound(SURFACE_PROBES_PER_CELL);
+		boolean used = bound <= SURFACE_TOLERANCE;
+		if (!used) {
+			fzInference.clearSurfaces();
 		}
-		return areaSum == 0 ? 0 : weightSum / areaSum;
+		System.out.println("control surface " + resolution + "x" + resolution
+				+ ", error bound = " + bound
+				+ (used ? "" : " above " + SURFACE_TOLERANCE
+						+ ", exact inference used"));
+		return used;
+	}
+
+	/**
+	 * calculate the v and w by fuzzy controll
+	 * @param x
+	 * @param xd
+	 * @param y
+	 * @param yd
+	 */
+	private void getVW(double x, double xd, double y, double yd) {
+		if (verbose) {
+			System.out.println("x = " + x + " xd = " + xd + " y = " + y
+					+ " yd = " + yd);
+		}
+		fzInference.getVW(x, xd, y, yd, vw);
 	}
 
 	/** Program entry point. **/
 	public static void main(String argv[]) {
 		try {
-			OHMMDrive ohmm = (OHMMDrive) OHMM.makeOHMM(new String[] { "-r",
-					"/dev/ttyACM1" });
+			final OHMMDrive ohmm = (OHMMDrive) OHMM.makeOHMM(new String[] {
+					"-r", "/dev/ttyACM1" });
 			final HumanDetection humanDetect = new HumanDetection();
 			humanDetect.init(argv.length, argv);
 			Thread t = new Thread() {
@@ -249,7 +310,36 @@ public class FzControll {
 			};
 			t.start();
 
-			FzControll motionController = new FzControll(ohmm, humanDetect);
+			// the serial writes go through their own thread
+			DriveWriter writer = new DriveWriter(new Drive() {
+				public void driveSetVW(float v, float w) {
+					ohmm.driveSetVW(v, w);
+				}
+			});
+			writer.start();
+			FzControll motionController = new FzControll(writer, humanDetect);
+			// the control runs on every frame, the speed spans
+			// DERIVATIVE_PERIOD whatever the frame rate
+			motionController.setVelocityEstimators(newSpeedEstimator(),
+					newSpeedEstimator());
+			if (GAINS_FILE.exists()) {
+				motionController.getInference().setGains(
+						FzGains.load(GAINS_FILE));
+				System.out.println("gains from " + GAINS_FILE);
+			}
+			if (SHAPES_FILE.exists()) {
+				motionController.getInference().setMemberShipFuncs(
+						FzMemberShipFuncs.load(SHAPES_FILE));
+				System.out.println("set shapes from " + SHAPES_FILE);
+			}
+			if (SINGLETONS_FILE.exists()) {
+				FzInference inference = motionController.getInference();
+				inference.setMode(FzInference.Mode.SUGENO);
+				FzSingletons.load(SINGLETONS_FILE).apply(inference);
+				System.out.println("sugeno singletons from "
+						+ SINGLETONS_FILE);
+			}
+			motionController.useControlSurface(DEF_SURFACE_RESOLUTION);
 			motionController.followHuman();
 
 			t.join();
@@ -0,0 +1,366 @@
+package l5;
+
+/**
+ * Defuzzification of the fired output sets, the degree of each set after
+ * the rules, into a crisp value.
+ *
+ * methods:
+ * area centers: the set centers weighted by the clipped set areas, the
+ *   method of {@link FzInference}. The overlaps of the sets are counted
+ *   twice, so it is only near the centroid.
+ * centroid: the exact centroid of the max of the clipped sets. The output
+ *   is piecewise linear, its pieces end at the set breakpoints, at the
+ *   clip points and where two clipped sets cross, so each piece is
+ *   integrated in closed form.
+ * sampled: the centroid summed over evenly spaced samples, to check the
+ *   exact one
+ * height: the plateau centers weighted by the degrees, the cheapest
+ *
+ * The sets are trapezoids given by a, b, c, d like {@link FzPartition}.
+ * Nothing is allocated after construction, so one object should be used
+ * by one thread. Without any fired set the output is 0.
+ */
+public class FzDefuzzifier {
+
+	public enum Method {
+		AREA_CENTERS, CENTROID, SAMPLED, HEIGHT;
+	}
+
+	public static final int DEF_SAMPLES = 1001;
+
+	private double[] shapes;
+	private int setNum;
+	private double min;
+	private double max;
+
+	private int samples = DEF_SAMPLES;
+
+	// the piece ends of the centroid, and the crossings in a piece
+	private double[] points;
+	private double[] crossings;
+
+	/**
+	 * @param shapes
+	 * a, b, c, d of each output set
+	 */
+	public FzDefuzzifier(double[] shapes) {
+		this.shapes = shapes.clone();
+		setNum = shapes.length / 4;
+		min = Double.MAX_VALUE;
+		max = -Double.MAX_VALUE;
+		for (double v : shapes) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		points = new double[6 * setNum];
+		crossings = new double[setNum * (setNum - 1) / 2 + 2];
+	}
+
+	/**
+	 * @param degrees
+	 * the degree of each set, 0 if not fired
+	 * @param method
+	 * @return the crisp output
+	 */
+	public double defuzzify(double[] degrees, Method method) {
+		switch (method) {
+		case AREA_CENTERS:
+			return getAreaCenters(degrees);
+		case CENTROID:
+			return getCentroid(degrees);
+		case SAMPLED:
+			return getSampledCentroid(degrees);
+		default:
+			return getHeight(degrees);
+		}
+	}
+
+	/**
+	 * @param degrees
+	 * @return the set centers weighted by the clipped areas
+	 */
+	public double getAreaCenters(double[] degrees) {
+		double weightSum = 0;
+		double areaSum = 0;
+		for (int s = 0; s < setNum; s++) {
+			double d = degrees[s];
+			if (d == 0) {
+				continue;
+			}
+			int p = 4 * s;
+			double slopes = shapes[p + 1] - shapes[p] + shapes[p + 3]
+					- shapes[p + 2];
+			double area = d * (shapes[p + 3] - shapes[p]) - d * d * slopes / 2;
+			weightSum += (shapes[p] + shapes[p + 3]) / 2 * area;
+			areaSum += area;
+		}
+		return areaSum == 0 ? 0 : weightSum / areaSum;
+	}
+
+	/**
+	 * @param degrees
+	 * @return the plateau centers weighted by the degrees
+	 */
+	public double getHeight(double[] degrees) {
+		double weightSum = 0;
+		double degreeSum = 0;
+		for (int s = 0; s < setNum; s++) {
+			double d = degrees[s];
+			if (d != 0) {
+				weightSum += (shapes[4 * s + 1] + shapes[4 * s + 2]) / 2 * d;
+				degreeSum += d;
+			}
+		}
+		return degreeSum == 0 ? 0 : weightSum / degreeSum;
+	}
+
+	/**
+	 * @param degrees
+	 * @return the exact centroid of the max of the clipped sets
+	 */
+	public double getCentroid(double[] degrees) {
+		// the piece ends: the breakpoints and the clip points of the fired
+		// sets
+		int n = 0;
+		for (int s = 0; s < setNum; s++) {
+			double d = degrees[s];
+			if (d == 0) {
+				continue;
+			}
+			int p = 4 * s;
+			double a = shapes[p], b = shapes[p + 1];
+			double c = shapes[p + 2], e = shapes[p + 3];
+			points[n++] = a;
+			points[n++] = b;
+			points[n++] = c;
+			points[n++] = e;
+			points[n++] = a + d * (b - a);
+			points[n++] = e - d * (e - c);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		// insertion sort, a few points
+		for (int i = 1; i < n; i++) {
+			double v = points[i];
+			int j = i - 1;
+			while (j >= 0 && points[j] > v) {
+				points[j + 1] = points[j];
+				j--;
+			}
+			points[j + 1] = v;
+		}
+
+		double area = 0;
+		double moment = 0;
+		for (int i = 0; i + 1 < n; i++) {
+			double x0 = points[i], x1 = points[i + 1];
+			if (x1 <= x0) {
+				continue;
+			}
+			// every clipped set is linear on [x0, x1], so the max changes
+			// the set only where two of them cross
+			int m = 0;
+			crossings[m++] = x0;
+			for (int s = 0; s < setNum; s++) {
+				if (degrees[s] == 0) {
+					continue;
+				}
+				double s0 = clipped(s, degrees[s], x0);
+				double s1 = clipped(s, degrees[s], x1);
+				for (int r = s + 1; r < setNum; r++) {
+					if (degrees[r] == 0) {
+						continue;
+					}
+					double d0 = s0 - clipped(r, degrees[r], x0);
+					double d1 = s1 - clipped(r, degrees[r], x1);
+					if (d0 * d1 < 0) {
+						crossings[m++] = x0 + (x1 - x0) * d0 / (d0 - d1);
+					}
+				}
+			}
+			crossings[m++] = x1;
+			for (int k = 2; k < m - 1; k++) {
+				double v = crossings[k];
+				int j = k - 1;
+				while (j >= 1 && crossings[j] > v) {
+					crossings[j + 1] = crossings[j];
+					j--;
+				}
+				crossings[j + 1] = v;
+			}
+
+			for (int k = 0; k + 1 < m; k++) {
+				double u0 = crossings[k], u1 = crossings[k + 1];
+				if (u1 <= u0) {
+					continue;
+				}
+				// the set on top in the middle is on top on the whole piece
+				int top = top(degrees, (u0 + u1) / 2);
+				double f0 = clipped(top, degrees[top], u0);
+				double f1 = clipped(top, degrees[top], u1);
+				double w = u1 - u0;
+				area += (f0 + f1) * w / 2;
+				moment += w * (u0 * (2 * f0 + f1) + u1 * (f0 + 2 * f1)) / 6;
+			}
+		}
+		return area == 0 ? 0 : moment / area;
+	}
+
+	/**
+	 * @param degrees
+	 * @return the centroid summed over the samples
+	 */
+	public double getSampledCentroid(double[] degrees) {
+		double step = (max - min) / samples;
+		double area = 0;
+		double moment = 0;
+		for (int i = 0; i < samples; i++) {
+			double x = min + (i + 0.5) * step;
+			double f = 0;
+			for (int s = 0; s < setNum; s++) {
+				if (degrees[s] != 0) {
+					f = Math.max(f, clipped(s, degrees[s], x));
+				}
+			}
+			area += f;
+			moment += f * x;
+		}
+		return area == 0 ? 0 : moment / area;
+	}
+
+	/**
+	 * @return the set with the max clipped value at x
+	 */
+	private int top(double[] degrees, double x) {
+		int top = -1;
+		double best = -1;
+		for (int s = 0; s < setNum; s++) {
+			if (degrees[s] != 0) {
+				double f = clipped(s, degrees[s], x);
+				if (f > best) {
+					best = f;
+					top = s;
+				}
+			}
+		}
+		return top;
+	}
+
+	/**
+	 * @return the set s clipped at degree, at x
+	 */
+	private double clipped(int s, double degree, double x) {
+		int p = 4 * s;
+		double a = shapes[p], b = shapes[p + 1];
+		double c = shapes[p + 2], d = shapes[p + 3];
+		double f;
+		if (x <= a || x >= d) {
+			// a shoulder is 1 at its end
+			f = (x == a && a == b) || (x == d && c == d) ? 1 : 0;
+		} else if (x < b) {
+			f = (x - a) / (b - a);
+		} else if (x <= c) {
+			f = 1;
+		} else {
+			f = (d - x) / (d - c);
+		}
+		return Math.min(degree, f);
+	}
+
+	/**
+	 * @param samples
+	 * the number of samples of the sampled centroid
+	 */
+	public void setSamples(int samples) {
+		if (samples < 1) {
+			throw new IllegalArgumentException("samples must be >= 1: "
+					+ samples);
+		}
+		this.samples = samples;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		double threshold = 1e-12;
+		FzDefuzzifier t = new FzDefuzzifier(FzMemberShipFuncs.SHAPES);
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		double[] degrees = new double[n];
+
+		// nothing fired
+		for (Method m : Method.values()) {
+			assert (t.defuzzify(degrees, m) == 0) : m;
+		}
+
+		// one symmetric triangle, any clip: its center
+		degrees[3] = 0.3;
+		for (Method m : Method.values()) {
+			double e = m == Method.SAMPLED ? 1e-4 : threshold;
+			assert (Math.abs(t.defuzzify(degrees, m) - 0.4) < e) : m;
+		}
+
+		// the left shoulder at full degree: a trapezoid from -1 to -0.4,
+		// 1 on [-1, -0.8], its centroid is
+		// (0.2 * -0.9 + 0.2 * (-0.8 + 0.4 / 3)) / (0.2 + 0.2)
+		degrees[3] = 0;
+		degrees[0] = 1;
+		double expected = (0.2 * -0.9 + 0.2 * (-0.8 + 0.4 / 3)) / 0.4;
+		assert (Math.abs(t.getCentroid(degrees) - expected) < threshold);
+		// the area centers use the middle of the support
+		assert (Math.abs(t.getAreaCenters(degrees) + 0.7) < threshold);
+		assert (Math.abs(t.getHeight(degrees) + 0.9) < threshold);
+
+		// two overlapping sets counted once: two full triangles at 0 and
+		// 0.4 make one trapezoid from -0.4 to 0.8, 1 on [0, 0.4] less the
+		// dip to 0.5 at 0.2
+		degrees[0] = 0;
+		degrees[2] = 1;
+		degrees[3] = 1;
+		assert (Math.abs(t.getCentroid(degrees) - 0.2) < threshold);
+		degrees[3] = 0.5;
+		double c = t.getCentroid(degrees);
+		t.setSamples(200001);
+		assert (Math.abs(c - t.getSampledCentroid(degrees)) < 1e-6) : c;
+		// the area centers count the overlap twice, so they differ
+		assert (Math.abs(c - t.getAreaCenters(degrees)) > 1e-3);
+
+		// the same as FzInference on every fired vector, and the
+		// exact centroid is the limit of the sampled one
+		FzMemberShipFuncs funcs = new FzMemberShipFuncs();
+		FzRule rule = new FzAVRule();
+		double[] dx = new double[n], dy = new double[n];
+		t.setSamples(100001);
+		for (double a = -1; a <= 1; a += 0.1) {
+			for (double b = -1; b <= 1; b += 0.1) {
+				funcs.fuzzify(a, dx);
+				funcs.fuzzify(b, dy);
+				rule.fire(dx, dy, degrees);
+				double area = 0, weight = 0;
+				for (int s = 0; s < n; s++) {
+					if (degrees[s] != 0) {
+						double ar = funcs.getArea(1 - degrees[s], s);
+						weight += funcs.getCenter(s) * ar;
+						area += ar;
+					}
+				}
+				assert (Math.abs(t.getAreaCenters(degrees) - weight / area) < threshold);
+				double exact = t.getCentroid(degrees);
+				double sampled = t.getSampledCentroid(degrees);
+				assert (Math.abs(exact - sampled) < 1e-5) : a + " " + b
+						+ " " + exact + " " + sampled;
+			}
+		}
+
+		try {
+			t.setSamples(0);
+			assert (false);
+		} catch (IllegalArgumentException e) {
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,211 @@
+package l5;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * The normalizer ranges of {@link FzInference}, the gains of the fuzzy
+ * control:
+ * x: human x position range, +-x pixels
+ * xd: human x speed range, +-xd pixels per FzControll.DERIVATIVE_PERIOD
+ * y: human height window, from the calibrated height - y to it, in pixels
+ * yd: human height speed range, +-yd pixels per DERIVATIVE_PERIOD
+ * v: max velocity, in mm/s
+ * w: max angle velocity, in rad/s
+ *
+ * gain file, one statement per line, # starts a comment:
+ *   name value
+ * the gains left out keep their defaults.
+ */
+public class FzGains {
+
+	public static final String[] NAMES = { "x", "xd", "y", "yd", "v", "w" };
+
+	public static final int X = 0;
+	public static final int XD = 1;
+	public static final int Y = 2;
+	public static final int YD = 3;
+	public static final int V = 4;
+	public static final int W = 5;
+
+	// the ranges the rule tables were written for
+	private static final double[] DEFAULTS = { 140, 140, 40, 100, 250, 0.8 };
+
+	private double[] values;
+
+	public FzGains() {
+		values = DEFAULTS.clone();
+	}
+
+	/**
+	 * @param values
+	 * of each gain, in the order of NAMES
+	 * @throws IllegalArgumentException
+	 * if not one value per gain or a value is not above 0
+	 */
+	public FzGains(double[] values) {
+		if (values.length != NAMES.length) {
+			throw new IllegalArgumentException("one value per gain: "
+					+ values.length);
+		}
+		this.values = new double[NAMES.length];
+		for (int i = 0; i < values.length; i++) {
+			set(i, values[i]);
+		}
+	}
+
+	/**
+	 * @param f
+	 * @return the gains of a gain file
+	 * @throws IOException
+	 * if it can not be read or has an error
+	 */
+	public static FzGains load(File f) throws IOException {
+		Reader r = new FileReader(f);
+		try {
+			return parse(r, f.getPath());
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * @param r
+	 * the gain file
+	 * @param source
+	 * the file name for the error messages
+	 * @return the gains
+	 * @throws IOException
+	 * if it has an error
+	 */
+	public static FzGains parse(Reader r, String source) throws IOException {
+		FzGains gains = new FzGains();
+		BufferedReader br = new BufferedReader(r);
+		String line;
+		int lineNum = 0;
+		while ((line = br.readLine()) != null) {
+			lineNum++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			String[] tokens = line.trim().split("\\s+");
+			String where = source + ":" + lineNum + ": ";
+			if (tokens[0].length() == 0) {
+				continue;
+			}
+			int i = Arrays.asList(NAMES).indexOf(tokens[0]);
+			if (i < 0 || tokens.length != 2) {
+				throw new IOException(where + "expected: name value, names "
+						+ Arrays.toString(NAMES));
+			}
+			try {
+				gains.set(i, Double.parseDouble(tokens[1]));
+			} catch (NumberFormatException e) {
+				throw new IOException(where + "bad number: " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				throw new IOException(where + e.getMessage());
+			}
+		}
+		return gains;
+	}
+
+	/**
+	 * write a gain file
+	 * @param f
+	 * @param comment
+	 * written on top, may be null
+	 * @throws IOException
+	 */
+	public void save(File f, String comment) throws IOException {
+		PrintWriter w = new PrintWriter(new FileWriter(f));
+		try {
+			if (comment != null) {
+				w.println("# " + comment);
+			}
+			w.print(this);
+		} finally {
+			w.close();
+		}
+		if (w.checkError()) {
+			throw new IOException("can not write " + f);
+		}
+	}
+
+	public double get(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @param i
+	 * the gain, one of X .. W
+	 * @param value
+	 * @throws IllegalArgumentException
+	 * if the value is not above 0
+	 */
+	public void set(int i, double value) {
+		if (!(value > 0) || Double.isInfinite(value)) {
+			throw new IllegalArgumentException(NAMES[i] + " must be > 0: "
+					+ value);
+		}
+		values[i] = value;
+	}
+
+	public FzGains copy() {
+		return new FzGains(values);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < NAMES.length; i++) {
+			sb.append(NAMES[i]).append(' ').append(values[i]).append('\n');
+		}
+		return sb.toString();
+	}
+
+	// unit test
+	public static void main(String[] args) throws IOException {
+		FzGains t = new FzGains();
+		assert (t.get(X) == 140 && t.get(Y) == 40 && t.get(W) == 0.8);
+
+		// the file gives back the same gains
+		t.set(V, 300);
+		FzGains p = parse(new StringReader(t.toString()), "test");
+		for (int i = 0; i < NAMES.length; i++) {
+			assert (p.get(i) == t.get(i)) : NAMES[i];
+		}
+		p = parse(new StringReader("# faster\nv 400  # mm/s\n\n"), "test");
+		assert (p.get(V) == 400 && p.get(X) == 140);
+		File f = File.createTempFile("gains", ".fzg");
+		try {
+			t.save(f, "test");
+			assert (load(f).get(V) == 300);
+		} finally {
+			f.delete();
+		}
+
+		// the copy is independent
+		p = t.copy();
+		p.set(X, 100);
+		assert (t.get(X) == 140);
+
+		String[] bad = { "x\n", "z 1\n", "x one\n", "x -1\n", "x 0\n" };
+		for (String b : bad) {
+			try {
+				parse(new StringReader(b), "bad");
+				assert (false) : b;
+			} catch (IOException e) {
+				assert (e.getMessage().startsWith("bad:1:")) : e.getMessage();
+			}
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
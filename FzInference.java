@@ -0,0 +1,878 @@
+package l5;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The fuzzy inference part of {@link FzControll}, without any dependency on
+ * the robot or the camera.
+ *
+ * It normalizes the human position and speed, fuzzifies them, fires the
+ * angle velocity and velocity rules, defuzzifies the fired rules and
+ * denormalizes the result into the robot v and w.
+ *
+ * The inference works on degree vectors owned by this object, so a control
+ * tick does not allocate anything except the result of
+ * {@link #getVW(double, double, double, double)}. Use
+ * {@link #getVW(double, double, double, double, double[])} for a tick
+ * without any allocation. So one object should be used by one thread.
+ *
+ * The inference can also be compiled into a pair of
+ * {@link FzControlSurface}, after that {@link #getVW} only does the
+ * normalization and two table lookups.
+ *
+ * modes, switched by {@link #setMode(Mode)}:
+ * MAMDANI: the rules fire output sets, which are clipped and defuzzified.
+ *   The velocity can not reach 0, so it is forced to 0 when the human
+ *   height reaches the calibrated one.
+ * SUGENO: zero order Takagi-Sugeno, each output set is a crisp singleton
+ *   and the output is the singletons weighted by the fired cells. No
+ *   clipping or areas, and the VERYSLOW singleton is 0, so the velocity
+ *   stops without forcing it.
+ *
+ * The defuzzification is the area weighted set centers by default, the
+ * other methods of {@link FzDefuzzifier} are set by
+ * {@link #setDefuzzification(FzDefuzzifier.Method)}.
+ *
+ * The set shapes are a table, other shapes are set by
+ * {@link #setMemberShipFuncs(FzMemberShipFuncs)}.
+ *
+ * The rule tables can be replaced by a {@link FzRuleBase} from a rule file,
+ * which may have more inputs than x, xd, y and yd, set by
+ * {@link #setRuleInput(String, double)}.
+ */
+public class FzInference {
+
+	public enum Mode {
+		MAMDANI, SUGENO;
+	}
+
+	// the Sugeno singletons of the output sets, normalized: the Mamdani set
+	// centers, except VERYSLOW is a stop
+	public static final double[] DEF_AV_SINGLETONS = { -0.7, -0.4, 0, 0.4,
+			0.7 };
+	public static final double[] DEF_V_SINGLETONS = { 0, 0.3, 0.5, 0.7, 0.85 };
+
+	// samples per block of the batch getVW, the block inputs stay in the
+	// cache
+	private static final int BATCH_BLOCK = 256;
+
+	private FzMemberShipFuncs fzMemberShipFuncs = new FzMemberShipFuncs();
+
+	// the normalizer ranges
+	private FzGains gains = new FzGains();
+
+	// normalizer for human x position
+	private FzNormalizer xNormalizer = new FzNormalizer(-140, 140);
+	// normalizer for human x speed
+	private FzNormalizer xdNormalizer = new FzNormalizer(-140, 140);
+	// normalizer for human y position
+	private FzNormalizer yNormalizer;
+	// normalizer for human y speed
+	private FzNormalizer ydNormalizer = new FzNormalizer(-100, 100);
+	// normalizer for robot velocity
+	private FzNormalizer vNormalizer = new FzNormalizer(0, 250);
+	// normalizer for robot angle velocity
+	private FzNormalizer avNormalizer = new FzNormalizer(-0.8, 0.8);
+
+	// velocity rule
+	private FzRule vrule = new FzVRule();
+
+	// angle velocity rule
+	private FzRule avrule = new FzAVRule();
+
+	// fired sets of the inputs and degree vectors of the outputs, reused by
+	// every tick
+	private FzActiveSets xSets = new FzActiveSets();
+	private FzActiveSets xdSets = new FzActiveSets();
+	private FzActiveSets ySets = new FzActiveSets();
+	private FzActiveSets ydSets = new FzActiveSets();
+	private double[] avDegrees = new double[FzMemberShipFuncs.FUNC_NUM];
+	private double[] vDegrees = new double[FzMemberShipFuncs.FUNC_NUM];
+
+	// defuzzification of the fired output sets
+	private FzDefuzzifier defuzzifier = new FzDefuzzifier(
+			FzMemberShipFuncs.SHAPES);
+	private FzDefuzzifier.Method defuzzification = FzDefuzzifier.Method.AREA_CENTERS;
+
+	private Mode mode = Mode.MAMDANI;
+	private double[] avSingletons = DEF_AV_SINGLETONS.clone();
+	private double[] vSingletons = DEF_V_SINGLETONS.clone();
+
+	// the normalized inputs of a batch block, null until the first batch
+	private double[] xnBlock, xdnBlock, ynBlock, ydnBlock;
+	private double[] sampleVW = new double[2];
+
+	// compiled control surfaces, null if not compiled
+	private FzControlSurface avSurface = null;
+	private FzControlSurface vSurface = null;
+
+	// the rule base used instead of the rule tables, null if none
+	private FzRuleBase ruleBase = null;
+	private double[] ruleInputs;
+	private double[] ruleOutputs = new double[2];
+	private int xInput, xdInput, yInput, ydInput, vOutput, avOutput;
+	private int calibratedY = -1;
+
+	/**
+	 * set the y range by the calibrated human y position
+	 * @param calibratedY
+	 */
+	public void setCalibratedY(int calibratedY) {
+		this.calibratedY = calibratedY;
+		yNormalizer = new FzNormalizer(calibratedY - gains.get(FzGains.Y),
+				calibratedY);
+		if (ruleBase != null) {
+			setRuleRangeY(ruleBase);
+		}
+	}
+
+	/**
+	 * set the y range of a rule base to the y window of the gains
+	 * @param ruleBase
+	 */
+	private void setRuleRangeY(FzRuleBase ruleBase) {
+		ruleBase.setRange("y", calibratedY - gains.get(FzGains.Y),
+				calibratedY);
+	}
+
+	/**
+	 * set the normalizer ranges of the rule tables, the compiled surfaces
+	 * are dropped. The rule base keeps its own ranges but the y window.
+	 * @param gains
+	 */
+	public void setGains(FzGains gains) {
+		this.gains = gains.copy();
+		double x = gains.get(FzGains.X);
+		double xd = gains.get(FzGains.XD);
+		double yd = gains.get(FzGains.YD);
+		double w = gains.get(FzGains.W);
+		xNormalizer = new FzNormalizer(-x, x);
+		xdNormalizer = new FzNormalizer(-xd, xd);
+		ydNormalizer = new FzNormalizer(-yd, yd);
+		vNormalizer = new FzNormalizer(0, gains.get(FzGains.V));
+		avNormalizer = new FzNormalizer(-w, w);
+		if (calibratedY >= 0) {
+			yNormalizer = new FzNormalizer(calibratedY - gains.get(FzGains.Y),
+					calibratedY);
+			if (ruleBase != null) {
+				setRuleRangeY(ruleBase);
+			}
+		}
+		clearSurfaces();
+	}
+
+	public FzGains getGains() {
+		return gains.copy();
+	}
+
+	/**
+	 * use other set shapes for all the inputs and outputs of the rule
+	 * tables, the compiled surfaces are dropped
+	 * @param funcs
+	 * with {@link FzMemberShipFuncs#FUNC_NUM} sets, in the order of the
+	 * rule tables
+	 * @throws IllegalArgumentException
+	 * if it has another number of sets
+	 */
+	public void setMemberShipFuncs(FzMemberShipFuncs funcs) {
+		if (funcs.getSetNum() != FzMemberShipFuncs.FUNC_NUM) {
+			throw new IllegalArgumentException("the rule tables need "
+					+ FzMemberShipFuncs.FUNC_NUM + " sets: "
+					+ funcs.getSetNum());
+		}
+		fzMemberShipFuncs = funcs;
+		defuzzifier = new FzDefuzzifier(funcs.getShapes());
+		clearSurfaces();
+	}
+
+	/**
+	 * use a rule base instead of the rule tables and the control surfaces
+	 * @param ruleBase
+	 * with the inputs x, xd, y, yd and the outputs v, w in the ranges of
+	 * the normalizers, the y range is set by the calibrated y and the y
+	 * gain. Null goes back to the rule tables.
+	 */
+	public void setRuleBase(FzRuleBase ruleBase) {
+		if (ruleBase != null) {
+			xInput = ruleBase.getInputIndex("x");
+			xdInput = ruleBase.getInputIndex("xd");
+			yInput = ruleBase.getInputIndex("y");
+			ydInput = ruleBase.getInputIndex("yd");
+			vOutput = ruleBase.getOutputIndex("v");
+			avOutput = ruleBase.getOutputIndex("w");
+			if (xInput < 0 || xdInput < 0 || yInput < 0 || ydInput < 0
+					|| vOutput < 0 || avOutput < 0) {
+				throw new IllegalArgumentException("the rule base needs the "
+						+ "inputs x, xd, y, yd and the outputs v, w");
+			}
+			ruleInputs = new double[ruleBase.getInputNum()];
+			ruleOutputs = new double[ruleBase.getOutputNum()];
+			if (calibratedY >= 0) {
+				setRuleRangeY(ruleBase);
+			}
+		}
+		this.ruleBase = ruleBase;
+	}
+
+	/**
+	 * set an extra input of the rule base, it keeps the value until the
+	 * next call
+	 * @param name
+	 * @param value
+	 */
+	public void setRuleInput(String name, double value) {
+		int i = ruleBase == null ? -1 : ruleBase.getInputIndex(name);
+		if (i < 0) {
+			throw new IllegalArgumentException("no rule base input: " + name);
+		}
+		ruleInputs[i] = value;
+	}
+
+	/**
+	 * calculate the v and w by fuzzy controll
+	 * @param x
+	 * @param xd
+	 * @param y
+	 * @param yd
+	 * @return
+	 */
+	public double[] getVW(double x, double xd, double y, double yd) {
+		double[] vw = new double[2];
+		getVW(x, xd, y, yd, vw);
+		return vw;
+	}
+
+	/**
+	 * calculate the v and w by fuzzy controll into a caller owned array
+	 * @param x
+	 * @param xd
+	 * @param y
+	 * @param yd
+	 * @param vw
+	 * the result, vw[0] is v and vw[1] is w
+	 */
+	public void getVW(double x, double xd, double y, double yd, double[] vw) {
+		double xn, xdn, yn, ydn;
+
+		// normalize
+		xn = xNormalizer.normalize(x);
+		if (xn > 1 || xn < -1) {
+			xn = xn > 0 ? 1 : -1;
+		}
+		xdn = xdNormalizer.normalize(xd);
+		if (xdn > 1 || xdn < -1) {
+			xdn = xdn > 0 ? 1 : -1;
+		}
+		yn = yNormalizer.normalize(y);
+		yn = yn > 1 ? 1 : yn;
+		ydn = ydNormalizer.normalize(yd);
+		if (ydn > 1 || ydn < -1) {
+			ydn = ydn > 0 ? 1 : -1;
+		}
+
+		if (ruleBase != null) {
+			// the rule base normalizes by itself
+			ruleInputs[xInput] = x;
+			ruleInputs[xdInput] = xd;
+			ruleInputs[yInput] = y;
+			ruleInputs[ydInput] = yd;
+			ruleBase.evaluate(ruleInputs, ruleOutputs);
+			vw[0] = yn == 1 ? 0 : ruleOutputs[vOutput];
+			vw[1] = ruleOutputs[avOutput];
+			return;
+		}
+
+		double av, v;
+		if (avSurface != null) {
+			av = avSurface.lookup(xdn, xn);
+			v = vSurface.lookup(ydn, yn);
+		} else {
+			av = getAngleVelocity(xdn, xn);
+			v = getVelocity(ydn, yn);
+		}
+		if (yn == 1 && mode == Mode.MAMDANI) {
+			// fix a bug for fuzzy controll
+			// in fuzzy controll, the velocity
+			// can not reach to 0, it cause the robot
+			// moving forward forever even if it has already
+			// near to the human
+			v = 0;
+		}
+
+		// denormalize
+		vw[0] = vNormalizer.deNormalize(v);
+		vw[1] = avNormalizer.deNormalize(av);
+	}
+
+	/**
+	 * calculate the v and w of many samples, the same to the bit as
+	 * {@link #getVW(double, double, double, double, double[])} on each.
+	 *
+	 * The inputs and outputs are arrays of each variable. The samples are
+	 * done in blocks: a loop per input normalizes and clamps the block,
+	 * one loop runs the inference, and a loop per output denormalizes it.
+	 * The normalization loops have no branch, so the JIT can vectorize
+	 * them. Nothing is allocated after the first call.
+	 * @param x
+	 * @param xd
+	 * @param y
+	 * @param yd
+	 * the inputs of the samples
+	 * @param v
+	 * @param w
+	 * the outputs, at the index of the inputs
+	 * @param offset
+	 * the first sample
+	 * @param length
+	 * the number of samples
+	 */
+	public void getVW(double[] x, double[] xd, double[] y, double[] yd,
+			double[] v, double[] w, int offset, int length) {
+		if (ruleBase != null) {
+			// the rule base takes one sample at a time
+			for (int i = offset; i < offset + length; i++) {
+				getVW(x[i], xd[i], y[i], yd[i], sampleVW);
+				v[i] = sampleVW[0];
+				w[i] = sampleVW[1];
+			}
+			return;
+		}
+		if (xnBlock == null) {
+			xnBlock = new double[BATCH_BLOCK];
+			xdnBlock = new double[BATCH_BLOCK];
+			ynBlock = new double[BATCH_BLOCK];
+			ydnBlock = new double[BATCH_BLOCK];
+		}
+		for (int start = 0; start < length; start += BATCH_BLOCK) {
+			int n = Math.min(BATCH_BLOCK, length - start);
+			int o = offset + start;
+
+			// normalize, the same clamps as the single sample
+			xNormalizer.normalize(x, o, xnBlock, n);
+			xdNormalizer.normalize(xd, o, xdnBlock, n);
+			yNormalizer.normalize(y, o, ynBlock, n);
+			ydNormalizer.normalize(yd, o, ydnBlock, n);
+			for (int i = 0; i < n; i++) {
+				xnBlock[i] = Math.max(-1, Math.min(1, xnBlock[i]));
+				xdnBlock[i] = Math.max(-1, Math.min(1, xdnBlock[i]));
+				ynBlock[i] = Math.min(1, ynBlock[i]);
+				ydnBlock[i] = Math.max(-1, Math.min(1, ydnBlock[i]));
+			}
+
+			inferBlock(n, v, w, o);
+
+			vNormalizer.deNormalize(v, o, n);
+			avNormalizer.deNormalize(w, o, n);
+		}
+	}
+
+	/**
+	 * run the inference on the normalized inputs of a batch block, its own
+	 * method so the JIT compiles and inlines it like the single sample. The
+	 * surfaces and the inference are chosen once per block, each output of
+	 * the surfaces is one loop over the block.
+	 * @param n
+	 * the samples of the block
+	 * @param v
+	 * @param w
+	 * get the normalized outputs
+	 * @param o
+	 * the index of the first sample in v and w
+	 */
+	private void inferBlock(int n, double[] v, double[] w, int o) {
+		if (avSurface != null) {
+			avSurface.lookup(xdnBlock, xnBlock, w, o, n);
+			vSurface.lookup(ydnBlock, ynBlock, v, o, n);
+		} else {
+			for (int i = 0; i < n; i++) {
+				w[o + i] = getAngleVelocity(xdnBlock[i], xnBlock[i]);
+				v[o + i] = getVelocity(ydnBlock[i], ynBlock[i]);
+			}
+		}
+		if (mode == Mode.MAMDANI) {
+			// the stop fix of the single sample
+			for (int i = 0; i < n; i++) {
+				if (ynBlock[i] == 1) {
+					v[o + i] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * run the inference of the mode for the angle velocity
+	 * @param xdn normalized human x speed, in [-1, 1]
+	 * @param xn normalized human x position, in [-1, 1]
+	 * @return normalized angle velocity
+	 */
+	double getAngleVelocity(double xdn, double xn) {
+		// fuzzify:
+		// x, xd using the original membership function
+		fzMemberShipFuncs.fuzzify(xn, xSets);
+		fzMemberShipFuncs.fuzzify(xdn, xdSets);
+
+		if (mode == Mode.SUGENO) {
+			return avrule.fireSingletons(xdSets, xSets, avSingletons);
+		}
+
+		// fire the rule on the at most 4 fired cells
+		avrule.fire(xdSets, xSets, avDegrees);
+
+		// calculate the angle velocity centroid
+		return defuzzify(avDegrees, 1, 0);
+	}
+
+	/**
+	 * run the inference of the mode for the velocity
+	 * @param ydn normalized human y speed, in [-1, 1]
+	 * @param yn normalized human y position, in [0, 1]
+	 * @return normalized velocity, without the yn == 1 stop fix of the
+	 * Mamdani mode
+	 */
+	double getVelocity(double ydn, double yn) {
+		// yd using the original membership function
+		fzMemberShipFuncs.fuzzify(ydn, ydSets);
+
+		// y membership function is different, the range change from [-1,
+		// 1] to [0, 1] and the membership function sharp keeps same as the
+		// original one. so it can be mapping into the original function by
+		// multiply by 2 and then left move 1
+		fzMemberShipFuncs.fuzzify(yn * 2 - 1, ySets);
+
+		if (mode == Mode.SUGENO) {
+			// the singletons are already in [0, 1]
+			return vrule.fireSingletons(ydSets, ySets, vSingletons);
+		}
+
+		vrule.fire(ydSets, ySets, vDegrees);
+
+		// calculate the velocity centroid, the velocity member ship
+		// function range changed from [-1, 1] to [0, 1]
+		// so we need do some transformation to get
+		// the correct result: the range changed from 2 to 1, so the scale is
+		// 0.5
+		// the min value changed from -1 to 0, so the x offset is 1
+		return defuzzify(vDegrees, 0.5, 1);
+	}
+
+	/**
+	 * sample both rule bases into control surfaces, after that
+	 * {@link #getVW} answers by bilinear interpolation.
+	 * @param resolution
+	 * number of grid points along each input axis
+	 */
+	public void compileSurfaces(int resolution) {
+		avSurface = new FzControlSurface(new FzSurfaceFunc() {
+			@Override
+			public double eval(double xdn, double xn) {
+				return getAngleVelocity(xdn, xn);
+			}
+		}, -1, 1, -1, 1, resolution);
+		vSurface = new FzControlSurface(new FzSurfaceFunc() {
+			@Override
+			public double eval(double ydn, double yn) {
+				return getVelocity(ydn, yn);
+			}
+		}, -1, 1, 0, 1, resolution);
+	}
+
+	/**
+	 * switch between the Mamdani and the Sugeno inference, the compiled
+	 * surfaces are dropped. The rule base is always Mamdani.
+	 * @param mode
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+		clearSurfaces();
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * set the Sugeno singletons, the compiled surfaces are dropped
+	 * @param av
+	 * of each angle velocity set, normalized to [-1, 1]
+	 * @param v
+	 * of each velocity set, normalized to [0, 1]
+	 * @throws IllegalArgumentException
+	 * if not one value per set
+	 */
+	public void setSingletons(double[] av, double[] v) {
+		if (av.length != FzMemberShipFuncs.FUNC_NUM
+				|| v.length != FzMemberShipFuncs.FUNC_NUM) {
+			throw new IllegalArgumentException("one singleton per set: "
+					+ av.length + ", " + v.length);
+		}
+		avSingletons = av.clone();
+		vSingletons = v.clone();
+		clearSurfaces();
+	}
+
+	/**
+	 * set the defuzzification, the compiled surfaces are dropped
+	 * @param method
+	 */
+	public void setDefuzzification(FzDefuzzifier.Method method) {
+		defuzzification = method;
+		clearSurfaces();
+	}
+
+	public FzDefuzzifier.Method getDefuzzification() {
+		return defuzzification;
+	}
+
+	/**
+	 * defuzzify by the set method
+	 * @param degrees
+	 * the degree of each output set, 0 if not fired.
+	 * @param scale
+	 * @param xoffset
+	 * the transformation of the output, see calculateCentroid
+	 * @return the output, 0 if nothing fired
+	 */
+	private double defuzzify(double[] degrees, double scale, int xoffset) {
+		if (defuzzification == FzDefuzzifier.Method.AREA_CENTERS) {
+			return calculateCentroid(degrees, scale, xoffset);
+		}
+		for (double d : degrees) {
+			if (d != 0) {
+				return (defuzzifier.defuzzify(degrees, defuzzification) + xoffset)
+						* scale;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * drop the compiled surfaces and go back to the exact inference
+	 */
+	public void clearSurfaces() {
+		avSurface = null;
+		vSurface = null;
+	}
+
+	public boolean isSurfaceCompiled() {
+		return avSurface != null;
+	}
+
+	/**
+	 * check the compiled surfaces against the exact inference
+	 * @param probes
+	 * number of probes along each input axis
+	 * @return the max normalized error of both outputs at the probes, an
+	 * estimate and not a bound
+	 */
+	public double getSurfaceError(int probes) {
+		if (avSurface == null) {
+			return 0;
+		}
+		return Math.max(avSurface.getMaxError(probes),
+				vSurface.getMaxError(probes));
+	}
+
+	/**
+	 * bound the error of the compiled surfaces against the exact inference,
+	 * see {@link FzControlSurface#getErrorBound}
+	 * @param probesPerCell
+	 * probe steps along each axis of a surface cell
+	 * @return the normalized error bound of both outputs
+	 */
+	public double getSurfaceErrorBound(int probesPerCell) {
+		if (avSurface == null) {
+			return 0;
+		}
+		return Math.max(avSurface.getErrorBound(probesPerCell), vSurface
+				.getErrorBound(probesPerCell));
+	}
+
+	/**
+	 * calculate centroid of the fuzzy output
+	 * using following formula:
+	 * Sum(function center * area after clipped) / Sum(area after clipped)
+	 * @param degrees
+	 * the degree of each output set, 0 if not fired.
+	 * @param scale
+	 * the scale of the original membership function
+	 * @param xoffset
+	 * the x axis offset of the original membership function
+	 * @return
+	 */
+	private double calculateCentroid(double[] degrees, double scale,
+			int xoffset) {
+		double weightSum = 0;
+		double areaSum = 0;
+		for (int index = 0; index < degrees.length; index++) {
+			if (degrees[index] == 0) {
+				continue;
+			}
+			double clipped = 1 - degrees[index];
+			double center = (fzMemberShipFuncs.getCenter(index) + xoffset)
+					* scale;
+			double area = fzMemberShipFuncs.getArea(clipped, index) * scale;
+			weightSum += center * area;
+			areaSum += area;
+		}
+		return areaSum == 0 ? 0 : weightSum / areaSum;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		FzInference t = new FzInference();
+		t.setCalibratedY(200);
+
+		// the degree vector path gives the same result as the
+		// FzElement/Map path
+		FzMemberShipFuncs funcs = new FzMemberShipFuncs();
+		FzRule avrule = new FzAVRule();
+		FzRule vrule = new FzVRule();
+		for (double a = -1; a <= 1; a += 0.05) {
+			for (double b = -1; b <= 1; b += 0.05) {
+				Map<Integer, FzElement> avs = avrule.fire(funcs.fuzzify(a),
+						funcs.fuzzify(b));
+				double yn = (b + 1) / 2;
+				Map<Integer, FzElement> vs = vrule.fire(funcs.fuzzify(a),
+						funcs.fuzzify(yn * 2 - 1));
+				double av = 0, avArea = 0, v = 0, vArea = 0;
+				for (FzElement e : avs.values()) {
+					double area = funcs.getArea(1 - e.getDegree(), e.getIndex());
+					av += funcs.getCenter(e.getIndex()) * area;
+					avArea += area;
+				}
+				for (FzElement e : vs.values()) {
+					double area = funcs.getArea(1 - e.getDegree(), e.getIndex()) * 0.5;
+					v += (funcs.getCenter(e.getIndex()) + 1) * 0.5 * area;
+					vArea += area;
+				}
+				av = avArea == 0 ? 0 : av / avArea;
+				v = vArea == 0 ? 0 : v / vArea;
+				assert (t.getAngleVelocity(a, b) == av);
+				assert (t.getVelocity(a, yn) == v);
+			}
+		}
+
+		// a control tick does not allocate, neither the exact inference nor
+		// the compiled surfaces
+		double[] vw = new double[2];
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1) {
+				t.compileSurfaces(65);
+			}
+			// warm up
+			for (int i = 0; i < 20000; i++) {
+				t.getVW(i % 280 - 140, i % 200 - 100, 160 + i % 40, i % 50 - 25, vw);
+			}
+			long before = AllocationCounter.getAllocatedBytes();
+			for (int i = 0; i < 100000; i++) {
+				t.getVW(i % 280 - 140, i % 200 - 100, 160 + i % 40, i % 50 - 25, vw);
+			}
+			long allocated = AllocationCounter.getAllocatedBytes() - before;
+			if (AllocationCounter.isSupported()) {
+				// allow the counter's own bookkeeping, but not one
+				// object per tick
+				assert (allocated < 1024) : allocated + " bytes allocated";
+			}
+		}
+
+		// the centroid keeps the symmetry of the rules: no turn on target,
+		// and back to the same output with the default
+		t.clearSurfaces();
+		double av = t.getAngleVelocity(0.3, 0.1);
+		t.setDefuzzification(FzDefuzzifier.Method.CENTROID);
+		assert (t.getAngleVelocity(0, 0) == 0);
+		assert (Math.abs(t.getAngleVelocity(0.3, 0.1)
+				+ t.getAngleVelocity(-0.3, -0.1)) < 1e-12);
+		assert (t.getAngleVelocity(0.3, 0.1) != av);
+		t.setDefuzzification(FzDefuzzifier.Method.AREA_CENTERS);
+		assert (t.getAngleVelocity(0.3, 0.1) == av);
+
+		// the Sugeno mode: no turn on target and a stop at the calibrated
+		// height without the fix, symmetric, and continuous up to the
+		// stop
+		FzInference sugeno = new FzInference();
+		sugeno.setCalibratedY(200);
+		sugeno.setMode(Mode.SUGENO);
+		sugeno.getVW(0, 0, 200, 0, vw);
+		assert (vw[0] == 0 && vw[1] == 0) : vw[0] + " " + vw[1];
+		assert (sugeno.getVelocity(0, 1) == 0);
+		sugeno.getVW(0, 0, 160, 0, vw);
+		assert (vw[0] > 0 && vw[1] == 0);
+		assert (sugeno.getAngleVelocity(0.3, 0.1) == -sugeno
+				.getAngleVelocity(-0.3, -0.1));
+		double prev = sugeno.getVelocity(0, 0.9);
+		for (double yn = 0.9; yn <= 1; yn += 0.001) {
+			double v = sugeno.getVelocity(0, yn);
+			assert (v <= prev && prev - v < 0.01) : yn;
+			prev = v;
+		}
+		// Mamdani jumps to 0
+		assert (t.getVelocity(0, 0.999) > 0.1);
+		// between the table cells the singletons are interpolated
+		assert (Math.abs(sugeno.getAngleVelocity(0, 0.2) - 0.2) < 1e-12);
+		sugeno.compileSurfaces(65);
+		assert (sugeno.getSurfaceError(50) < 0.02) : sugeno.getSurfaceError(50);
+		sugeno.setMode(Mode.MAMDANI);
+		assert (!sugeno.isSurfaceCompiled());
+		try {
+			sugeno.setSingletons(new double[3], DEF_V_SINGLETONS);
+			assert (false);
+		} catch (IllegalArgumentException e) {
+		}
+
+		// the batch gives the same bits as the single samples, in every
+		// mode, also outside the ranges and at an offset
+		Random random = new Random(7);
+		int samples = 1000, offset = 3;
+		int size = samples + offset;
+		double[] bx = new double[size], bxd = new double[size];
+		double[] by = new double[size], byd = new double[size];
+		double[] bv = new double[size], bw = new double[size];
+		for (int i = 0; i < bx.length; i++) {
+			bx[i] = (random.nextDouble() * 2 - 1) * 200;
+			bxd[i] = (random.nextDouble() * 2 - 1) * 200;
+			by[i] = 140 + random.nextDouble() * 80;
+			byd[i] = (random.nextDouble() * 2 - 1) * 150;
+		}
+		bx[offset] = 0;
+		by[offset] = 200;
+		by[offset + 1] = 160;
+		bx[offset + 2] = -140;
+		FzRuleBase rules = null;
+		try {
+			rules = FzRuleBase.parse(new StringReader(
+					"input x -140 140\nterm L -1 -1 -1 1\nterm R -1 1 1 1\n"
+							+ "input xd -140 140\nterm A -1 -1 1 1\n"
+							+ "input y 0 1\nterm A -1 -1 1 1\n"
+							+ "input yd -100 100\nterm A -1 -1 1 1\n"
+							+ "output v 0 250\nterm S -1 -1 -1 1\n"
+							+ "output w -0.8 0.8\nterm L -1 -1 -1 1\n"
+							+ "term R -1 1 1 1\n"
+							+ "if x is L then w is L and v is S\n"
+							+ "if x is R then w is R\n"), "test");
+		} catch (IOException e) {
+			assert (false) : e;
+		}
+		for (int pass = 0; pass < 4; pass++) {
+			FzInference b = new FzInference();
+			b.setCalibratedY(200);
+			if (pass == 1) {
+				b.compileSurfaces(65);
+			} else if (pass == 2) {
+				b.setMode(Mode.SUGENO);
+			} else if (pass == 3) {
+				b.setRuleBase(rules);
+			}
+			b.getVW(bx, bxd, by, byd, bv, bw, offset, samples);
+			assert (bv[0] == 0 && bw[offset - 1] == 0);
+			for (int i = offset; i < offset + samples; i++) {
+				b.getVW(bx[i], bxd[i], by[i], byd[i], vw);
+				assert (Double.doubleToLongBits(vw[0]) == Double
+						.doubleToLongBits(bv[i])) : pass + " " + i;
+				assert (Double.doubleToLongBits(vw[1]) == Double
+						.doubleToLongBits(bw[i])) : pass + " " + i;
+			}
+			// warm up, then the least of some rounds, the jit and the
+			// counter allocate now and then
+			for (int k = 0; k < 2000; k++) {
+				b.getVW(bx, bxd, by, byd, bv, bw, offset, samples);
+			}
+			long allocated = Long.MAX_VALUE;
+			for (int round = 0; round < 5; round++) {
+				long before = AllocationCounter.getAllocatedBytes();
+				for (int k = 0; k < 100; k++) {
+					b.getVW(bx, bxd, by, byd, bv, bw, offset, samples);
+				}
+				allocated = Math.min(allocated, AllocationCounter
+						.getAllocatedBytes() - before);
+			}
+			if (AllocationCounter.isSupported()) {
+				assert (allocated < 1024) : allocated + " bytes allocated";
+			}
+		}
+
+		// the gains: the defaults change nothing, a double v range doubles
+		// the velocity
+		FzInference g = new FzInference();
+		g.setCalibratedY(200);
+		g.getVW(50, 20, 180, 10, vw);
+		double v0 = vw[0], w0 = vw[1];
+		g.setGains(new FzGains());
+		g.getVW(50, 20, 180, 10, vw);
+		assert (vw[0] == v0 && vw[1] == w0);
+		FzGains gains = new FzGains();
+		gains.set(FzGains.V, 500);
+		// a window of 20 px puts 180 at the start like 160 with 40
+		gains.set(FzGains.Y, 20);
+		g.setGains(gains);
+		g.getVW(50, 20, 180, 10, vw);
+		assert (Math.abs(vw[1] - w0) < 1e-12);
+		t.getVW(50, 20, 160, 10, vw);
+		double vStart = vw[0];
+		g.getVW(50, 20, 180, 10, vw);
+		assert (Math.abs(vw[0] - 2 * vStart) < 1e-9) : vw[0] + " " + vStart;
+
+		// the rule base gets the y window of the gains too, set before or
+		// after it
+		FzGains yGains = new FzGains();
+		yGains.set(FzGains.Y, 20);
+		double[] yRuleV = new double[3];
+		for (int order = 0; order < 3; order++) {
+			FzRuleBase yRules = null;
+			try {
+				yRules = FzRuleBase.parse(new StringReader(
+						"input x -140 140\nterm A -1 -1 1 1\n"
+								+ "input xd -140 140\nterm A -1 -1 1 1\n"
+								+ "input y 0 1\nterm N -1 -1 -1 1\n"
+								+ "term F -1 1 1 1\n"
+								+ "input yd -100 100\nterm A -1 -1 1 1\n"
+								+ "output v 0 250\nterm S -1 -1 -1 0\n"
+								+ "term F 0 1 1 1\n"
+								+ "output w -0.8 0.8\nterm Z -1 0 0 1\n"
+								+ "if y is N then v is F and w is Z\n"
+								+ "if y is F then v is S\n"), "test");
+			} catch (IOException e) {
+				assert (false) : e;
+			}
+			FzInference r = new FzInference();
+			if (order == 1) {
+				r.setGains(yGains);
+			}
+			r.setCalibratedY(200);
+			r.setRuleBase(yRules);
+			if (order == 2) {
+				r.setGains(yGains);
+			}
+			// 170 in 160 - 200 is where 185 is in 180 - 200
+			r.getVW(0, 0, order == 0 ? 170 : 185, 0, vw);
+			yRuleV[order] = vw[0];
+			r.getVW(0, 0, 200, 0, vw);
+			assert (vw[0] == 0);
+		}
+		assert (yRuleV[0] > 0);
+		assert (yRuleV[1] == yRuleV[0] && yRuleV[2] == yRuleV[0]) : yRuleV[0]
+				+ " " + yRuleV[1] + " " + yRuleV[2];
+
+		// other shapes change the output but keep the symmetry
+		double before = t.getAngleVelocity(0, 0.2);
+		double[] narrowCenter = FzMemberShipFuncs.SHAPES.clone();
+		narrowCenter[8] = -0.2;
+		narrowCenter[11] = 0.2;
+		t.setMemberShipFuncs(new FzMemberShipFuncs(narrowCenter,
+				new String[] { "A", "B", "C", "D", "E" }));
+		assert (t.getAngleVelocity(0, 0) == 0);
+		assert (t.getAngleVelocity(0, 0.2) != before);
+		assert (t.getAngleVelocity(0, 0.2) == -t.getAngleVelocity(0, -0.2));
+		try {
+			t.setMemberShipFuncs(new FzMemberShipFuncs(new double[] { -1, -1,
+					0, 1 }, new String[] { "A" }));
+			assert (false);
+		} catch (IllegalArgumentException e) {
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -1,5 +1,12 @@
 package l5;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -15,225 +22,256 @@ import java.util.List;
  * [-1, 1] and the [0, 1] one. BTW, The function 
  * represents by this class is in range [-1, 1].
  *
+ * The sets are a table of trapezoids, a, b, c, d of each set: rising from
+ * a to b, 1 up to c, falling to d. A triangle has b == c, a shoulder
+ * a == b or c == d. The degrees, the centers and the clipped areas all
+ * come from the table, by one loop over the sets, so other shapes are
+ * only a different table, e.g. loaded by {@link #load(File)}.
+ *
+ * shape file, one statement per line, # starts a comment:
+ *   term name a b c d
  */
 public class FzMemberShipFuncs {
 
-	private FzMemberShipFunc[] memberShipFuncs = new FzMemberShipFunc[5];
+	// number of fuzzy sets of each variable
+	public static final int FUNC_NUM = 5;
 
-	public FzMemberShipFuncs() {
+	// a, b, c, d of each set, the default shapes
+	static final double[] SHAPES = {
+		-1.0, -1.0, -0.8, -0.4,
+		-0.8, -0.4, -0.4, 0,
+		-0.4, 0, 0, 0.4,
+		0, 0.4, 0.4, 0.8,
+		0.4, 0.8, 1.0, 1.0 };
 
-		/**
-		 * trapezoid membership function for set1
-		 *  degree = 1            (-1.0 <= v <= -0.8)
-		 *  degree = -2.5 * v - 1 (-0.8 <= v <= -0.4)
-		 *  degree = 0       
-		 */
-		memberShipFuncs[0] = new FzMemberShipFunc() {
-
-			@Override
-			public double getDegree(double v) {
-				if (v >= -1.0 && v <= -0.8) {
-					return 1;
-				} else if (v >= -0.8 && v <= -0.4) {
-					return -2.5 * v - 1;
-				} else {
-					return 0;
-				}
-			}
+	private static final String[] NAMES = { "VERYSMALL", "SMALL", "MEDIUM",
+			"LARGE", "VERYLARGE" };
 
-			@Override
-			public boolean isInSupportRange(double v) {
-				return v >= -1.0 && v < -0.4;
-			}
+	private double[] shapes;
+	private String[] names;
+	private int setNum;
 
-			@Override
-			public double getCenter() {
-				return -0.7;
-			}
+	// the rising and falling edge of each set as slope * v + intercept, a
+	// shoulder is 0 * v + 1
+	private double[] riseSlopes;
+	private double[] riseIntercepts;
+	private double[] fallSlopes;
+	private double[] fallIntercepts;
 
-			@Override
-			public double getArea(double clip) {
-				return getClippedTrapezoidArea(clip, 0.6, 0.2, 1);
-			}
-		};
-		/**
-		 * symmetric triangular membership function for set2
-		 *  degree = 2.5 * v + 2 (-0.8 <= v <= -0.4)
-		 *  degree = -2.5 * v    (-0.4 <= v <= 0)
-		 *  degree = 0         
-		 */
-		memberShipFuncs[1] = new FzMemberShipFunc() {
-
-			@Override
-			public double getDegree(double v) {
-				if (v >= -0.8 && v <= -0.4) {
-					return 2.5 * v + 2;
-				} else if (v >= -0.4 && v <= 0) {
-					return -2.5 * v;
-				} else {
-					return 0;
-				}
-			}
+	// the center, bottom and upper length of each set
+	private double[] centers;
+	private double[] bottoms;
+	private double[] uppers;
 
-			@Override
-			public boolean isInSupportRange(double v) {
-				return v > -0.8 && v < 0;
-			}
+	// finds the at most two fired sets from the breakpoints
+	private FzPartition partition;
 
-			@Override
-			public double getCenter() {
-				return -0.4;
-			}
+	public FzMemberShipFuncs() {
+		this(SHAPES, NAMES);
+	}
 
-			@Override
-			public double getArea(double clip) {
-				return getClippedTriangleArea(clip, 0.8, 1);
-			}
-		};
-		/**
-		 * symmetric triangular membership function for set3
-		 *  degree = 2.5 * v + 1  (-0.4 <= v <= 0)
-		 *  degree = -2.5 * v + 1 (0 <= v <= 0.4)
-		 *  degree = 0    
-		 */
-		memberShipFuncs[2] = new FzMemberShipFunc() {
-
-			@Override
-			public double getDegree(double v) {
-				if (v >= -0.4 && v <= 0) {
-					return 2.5 * v + 1;
-				} else if (v >= 0 && v <= 0.4) {
-					return -2.5 * v + 1;
-				} else {
-					return 0;
-				}
+	/**
+	 * @param shapes
+	 * a, b, c, d of each set
+	 * @param names
+	 * the name of each set
+	 * @throws IllegalArgumentException
+	 * if a shape is not a trapezoid or more than two sets overlap
+	 */
+	public FzMemberShipFuncs(double[] shapes, String[] names) {
+		if (names.length * 4 != shapes.length) {
+			throw new IllegalArgumentException("4 points per set: "
+					+ shapes.length + " points, " + names.length + " names");
+		}
+		// checks the shapes
+		partition = new FzPartition(shapes);
+		this.shapes = shapes.clone();
+		this.names = names.clone();
+		setNum = names.length;
+		riseSlopes = new double[setNum];
+		riseIntercepts = new double[setNum];
+		fallSlopes = new double[setNum];
+		fallIntercepts = new double[setNum];
+		centers = new double[setNum];
+		bottoms = new double[setNum];
+		uppers = new double[setNum];
+		for (int s = 0; s < setNum; s++) {
+			int p = 4 * s;
+			double a = shapes[p], b = shapes[p + 1];
+			double c = shapes[p + 2], d = shapes[p + 3];
+			// the same pieces as FzPartition, so both give the same degrees
+			if (a == b) {
+				riseSlopes[s] = 0;
+				riseIntercepts[s] = 1;
+			} else {
+				riseSlopes[s] = 1 / (b - a);
+				riseIntercepts[s] = -a * riseSlopes[s];
 			}
-
-			@Override
-			public boolean isInSupportRange(double v) {
-				return v > -0.4 && v < 0.4;
+			if (c == d) {
+				fallSlopes[s] = 0;
+				fallIntercepts[s] = 1;
+			} else {
+				fallSlopes[s] = -1 / (d - c);
+				fallIntercepts[s] = d / (d - c);
 			}
+			centers[s] = (a + d) / 2;
+			bottoms[s] = d - a;
+			uppers[s] = c - b;
+		}
+	}
 
-			@Override
-			public double getCenter() {
-				return 0;
-			}
+	/**
+	 * @param f
+	 * @return the sets of a shape file
+	 * @throws IOException
+	 * if it can not be read or has an error
+	 */
+	public static FzMemberShipFuncs load(File f) throws IOException {
+		Reader r = new FileReader(f);
+		try {
+			return parse(r, f.getPath());
+		} finally {
+			r.close();
+		}
+	}
 
-			@Override
-			public double getArea(double clip) {
-				return getClippedTriangleArea(clip, 0.8, 1);
-			}
-		};
-		/**
-		 * symmetric triangular membership function for set4
-		 *  degree = 2.5 * v      (0 <= v <= 0.4)
-		 *  degree = -2.5 * v + 2 (0.4 <= v <= 0.8)
-		 *  degree = 0     
-		 */
-		memberShipFuncs[3] = new FzMemberShipFunc() {
-
-			@Override
-			public double getDegree(double v) {
-				if (v >= 0 && v <= 0.4) {
-					return 2.5 * v;
-				} else if (v >= 0.4 && v <= 0.8) {
-					return -2.5 * v + 2;
-				} else {
-					return 0;
-				}
+	/**
+	 * @param r
+	 * the shape file
+	 * @param source
+	 * the file name for the error messages
+	 * @return the sets
+	 * @throws IOException
+	 * if it has an error
+	 */
+	public static FzMemberShipFuncs parse(Reader r, String source)
+			throws IOException {
+		List<String> names = new ArrayList<String>();
+		List<Double> shapes = new ArrayList<Double>();
+		BufferedReader br = new BufferedReader(r);
+		String line;
+		int lineNum = 0;
+		while ((line = br.readLine()) != null) {
+			lineNum++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
 			}
-
-			@Override
-			public boolean isInSupportRange(double v) {
-				return v > 0 && v < 0.8;
+			String[] tokens = line.trim().split("\\s+");
+			String where = source + ":" + lineNum + ": ";
+			if (tokens[0].length() == 0) {
+				continue;
 			}
-
-			@Override
-			public double getCenter() {
-				return 0.4;
+			if (!tokens[0].equals("term") || tokens.length != 6) {
+				throw new IOException(where + "expected: term name a b c d");
 			}
-
-			@Override
-			public double getArea(double clip) {
-				return getClippedTriangleArea(clip, 0.8, 1);
+			if (names.contains(tokens[1])) {
+				throw new IOException(where + "duplicate term " + tokens[1]);
 			}
-		};
-		/**
-		 * trapezoid membership function for set5
-		 *  degree = 2.5 * v - 1 (0.4 <= v <= 0.8)
-		 *  degree = 1           (0.8 <= v <= 1)
-		 *  degree = 0      
-		 */
-		memberShipFuncs[4] = new FzMemberShipFunc() {
-
-			@Override
-			public double getDegree(double v) {
-				if (v >= 0.4 && v <= 0.8) {
-					return 2.5 * v - 1;
-				} else if (v >= 0.8 && v <= 1) {
-					return 1;
-				} else {
-					return 0;
+			names.add(tokens[1]);
+			try {
+				for (int i = 2; i < 6; i++) {
+					shapes.add(Double.parseDouble(tokens[i]));
 				}
+			} catch (NumberFormatException e) {
+				throw new IOException(where + "bad number: " + e.getMessage());
 			}
-
-			@Override
-			public boolean isInSupportRange(double v) {
-				return v > 0.4 && v <= 1;
-			}
-
-			@Override
-			public double getCenter() {
-				return 0.7;
-			}
-
-			@Override
-			public double getArea(double clip) {
-				return getClippedTrapezoidArea(clip, 0.6, 0.2, 1);
-			}
-		};
+		}
+		if (names.isEmpty()) {
+			throw new IOException(source + ": no terms");
+		}
+		double[] points = new double[shapes.size()];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = shapes.get(i);
+		}
+		try {
+			return new FzMemberShipFuncs(points, names.toArray(new String[names
+					.size()]));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(source + ": " + e.getMessage());
+		}
 	}
 
 	public FzElement[] fuzzify(double v) {
 		List<FzElement> eles = new LinkedList<FzElement>();
-		for (int i = 0; i < memberShipFuncs.length; i++) {
-			FzMemberShipFunc f = memberShipFuncs[i];
-			if (f.isInSupportRange(v)) {
-				double degree = f.getDegree(v);
-				if (degree != 0)
-					eles.add(new FzElement(i, f.getDegree(v)));
-			}
+		for (int i = 0; i < setNum; i++) {
+			double degree = getDegree(v, i);
+			if (degree != 0)
+				eles.add(new FzElement(i, degree));
 		}
 		return eles.toArray(new FzElement[] {});
 	}
 
+	/**
+	 * fuzzify into a caller owned degree vector, without any allocation.
+	 * @param v
+	 * the input value
+	 * @param degrees
+	 * the degree of each set, length {@link #getSetNum()}. The sets which
+	 * are not fired get 0.
+	 */
+	public void fuzzify(double v, double[] degrees) {
+		for (int i = 0; i < setNum; i++) {
+			degrees[i] = getDegree(v, i);
+		}
+	}
+
+	/**
+	 * fuzzify into the at most two fired sets, without testing every set
+	 * and without any allocation.
+	 * @param v
+	 * the input value
+	 * @param out
+	 * gets the fired sets, with the same degrees as
+	 * {@link #fuzzify(double, double[])}
+	 */
+	public void fuzzify(double v, FzActiveSets out) {
+		partition.fuzzify(v, out);
+	}
+
+	/**
+	 * @param v
+	 * the input value
+	 * @param funcIndex
+	 * @return the degree of the set, the lower of its edges and 1, 0
+	 * outside the set
+	 */
+	public double getDegree(double v, int funcIndex) {
+		int p = 4 * funcIndex;
+		if (!(v >= shapes[p] && v <= shapes[p + 3])) {
+			return 0;
+		}
+		double rise = riseSlopes[funcIndex] * v + riseIntercepts[funcIndex];
+		double fall = fallSlopes[funcIndex] * v + fallIntercepts[funcIndex];
+		return Math.max(0, Math.min(1, Math.min(rise, fall)));
+	}
+
 	public double getArea(double clip, int funcIndex) {
-		return memberShipFuncs[funcIndex].getArea(clip);
+		return getClippedTrapezoidArea(clip, bottoms[funcIndex],
+				uppers[funcIndex], 1);
 	}
 
 	public double getCenter(int funcIndex) {
-		return memberShipFuncs[funcIndex].getCenter();
+		return centers[funcIndex];
+	}
+
+	public int getSetNum() {
+		return setNum;
+	}
+
+	public String getName(int funcIndex) {
+		return names[funcIndex];
 	}
 
 	/**
-	 * calculate the clipped triangle area.
-	 * @param clip
-	 * the clipped height start from the top
-	 * @param bottom
-	 * the triangle bottom length
-	 * @param height
-	 * the triangle original height
-	 * @return
+	 * @return a, b, c, d of each set
 	 */
-	private double getClippedTriangleArea(double clip, double bottom,
-			double height) {
-		double h = height - clip;
-		double u = bottom * clip / height;
-		return (u + bottom) * h / 2;
+	public double[] getShapes() {
+		return shapes.clone();
 	}
 
 	/**
-	 * calculate the clipped trapezoid area.
+	 * calculate the clipped trapezoid area, a triangle has upper 0.
 	 * @param clip
 	 * the clipped height start from the top
 	 * @param bottom
@@ -361,41 +399,101 @@ public class FzMemberShipFuncs {
 		assert (t.getCenter(3) - 0.4 < threshold);
 		assert (t.getCenter(4) - 0.7 < threshold);
 
-		assert (false) : "all tests passed!";
-	}
-}
-
-/**
- * Represent a single membership function
- * @author pengfan
- *
- */
-interface FzMemberShipFunc {
+		// test fuzzify into degree vector, should match the element array
+		double[] degrees = new double[FUNC_NUM];
+		for (double v = -1.0; v <= 1.0; v += 0.05) {
+			t.fuzzify(v, degrees);
+			es = t.fuzzify(v);
+			int fired = 0;
+			for (int i = 0; i < FUNC_NUM; i++) {
+				if (degrees[i] != 0) {
+					fired++;
+				}
+			}
+			assert (fired == es.length);
+			for (FzElement e : es) {
+				assert (degrees[e.getIndex()] == e.getDegree());
+			}
+		}
 
-	/**
-	 * calculate the fuzzy degree
-	 * @param v
-	 * @return
-	 */
-	public double getDegree(double v);
+		// the sparse fuzzification gives the same sets and degrees
+		FzActiveSets active = new FzActiveSets();
+		for (int i = -1200; i <= 1200; i++) {
+			double v = i / 1000.0;
+			t.fuzzify(v, degrees);
+			t.fuzzify(v, active);
+			int fired = 0;
+			for (int j = 0; j < FUNC_NUM; j++) {
+				if (degrees[j] != 0) {
+					assert (fired < active.getCount()) : v;
+					assert (active.getIndex(fired) == j) : v;
+					assert (active.getDegree(fired) == degrees[j]) : v;
+					fired++;
+				}
+			}
+			assert (fired == active.getCount()) : v + " " + active;
+		}
 
-	/**
-	 * is the input inside the support range
-	 * @param v
-	 * @return
-	 */
-	public boolean isInSupportRange(double v);
+		// the table gives the same degrees as the pieces the sets were
+		// written with
+		for (int i = -1000; i <= 1000; i++) {
+			double v = i / 1000.0;
+			double[] pieces = {
+					v <= -0.8 ? 1 : v <= -0.4 ? -2.5 * v - 1 : 0,
+					v > -0.8 && v <= -0.4 ? 2.5 * v + 2 : v > -0.4 && v < 0 ? -2.5 * v : 0,
+					v > -0.4 && v <= 0 ? 2.5 * v + 1 : v > 0 && v < 0.4 ? -2.5 * v + 1 : 0,
+					v > 0 && v <= 0.4 ? 2.5 * v : v > 0.4 && v < 0.8 ? -2.5 * v + 2 : 0,
+					v > 0.4 && v <= 0.8 ? 2.5 * v - 1 : v > 0.8 ? 1 : 0 };
+			t.fuzzify(v, degrees);
+			for (int j = 0; j < FUNC_NUM; j++) {
+				assert (Math.abs(degrees[j] - pieces[j]) < 1e-15) : v + " " + j;
+			}
+		}
+		assert (t.getSetNum() == FUNC_NUM);
+		assert (t.getName(2).equals("MEDIUM"));
+
+		// other shapes from a shape file: a narrow center
+		try {
+			FzMemberShipFuncs f = parse(new StringReader(
+					"# three sets\n"
+					+ "term NEG -1 -1 -0.5 -0.1\n"
+					+ "term ZERO -0.5 -0.1 0.1 0.5  # a trapezoid\n"
+					+ "term POS 0.1 0.5 1 1\n"), "test");
+			assert (f.getSetNum() == 3);
+			assert (f.getName(1).equals("ZERO"));
+			f.fuzzify(0, degrees);
+			assert (degrees[0] == 0 && degrees[1] == 1 && degrees[2] == 0);
+			f.fuzzify(-0.3, degrees);
+			assert (Math.abs(degrees[0] - 0.5) < threshold);
+			assert (Math.abs(degrees[1] - 0.5) < threshold);
+			assert (Math.abs(f.getCenter(1)) < threshold);
+			// bottom 1, upper 0.2, clipped at half: (0.6 + 1) * 0.5 / 2
+			assert (Math.abs(f.getArea(0.5, 1) - 0.4) < threshold);
+			// the sparse and the full fuzzification agree
+			for (double v = -1; v <= 1; v += 0.01) {
+				f.fuzzify(v, degrees);
+				f.fuzzify(v, active);
+				for (int j = 0; j < active.getCount(); j++) {
+					assert (active.getDegree(j) == degrees[active.getIndex(j)]) : v;
+				}
+			}
+		} catch (IOException e) {
+			assert (false) : e;
+		}
 
-	/**
-	 * get the center of the membership function
-	 * @return
-	 */
-	public double getCenter();
+		// errors name the line
+		String[] bad = { "term A 0 1\n", "term A -1 -1 0 1\nterm A 0 1 1 1\n",
+				"term A -1 0 x 1\n", "set A -1 0 0 1\n", "# nothing\n",
+				"term A 1 0 0 -1\n" };
+		for (String b : bad) {
+			try {
+				parse(new StringReader(b), "bad");
+				assert (false) : b;
+			} catch (IOException e) {
+				assert (e.getMessage().startsWith("bad:")) : e.getMessage();
+			}
+		}
 
-	/**
-	 * get the area of the membership function after been clipped 
-	 * @param clip
-	 * @return
-	 */
-	public double getArea(double clip);
+		assert (false) : "all tests passed!";
+	}
 }
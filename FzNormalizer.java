@@ -36,4 +36,46 @@ public class FzNormalizer {
 		}
 		return v * scale;
 	}
+
+	/**
+	 * normalize many values, the same as {@link #normalize(double)} on
+	 * each. The loops have no branch, so the JIT can vectorize them.
+	 * @param v
+	 * @param offset
+	 * the first value of v
+	 * @param out
+	 * gets the normalized values from index 0
+	 * @param length
+	 */
+	public void normalize(double[] v, int offset, double[] out, int length) {
+		if (min > 0) {
+			for (int i = 0; i < length; i++) {
+				// below min is 0
+				out[i] = Math.max(0, (v[offset + i] - min) / scale);
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				out[i] = v[offset + i] / scale;
+			}
+		}
+	}
+
+	/**
+	 * denormalize many values in place, the same as
+	 * {@link #deNormalize(double)} on each
+	 * @param v
+	 * @param offset
+	 * @param length
+	 */
+	public void deNormalize(double[] v, int offset, int length) {
+		if (min > 0) {
+			for (int i = offset; i < offset + length; i++) {
+				v[i] = min + v[i] * scale;
+			}
+		} else {
+			for (int i = offset; i < offset + length; i++) {
+				v[i] = v[i] * scale;
+			}
+		}
+	}
 }
@@ -0,0 +1,229 @@
+package l5;
+
+import java.util.Arrays;
+
+/**
+ * Sparse fuzzification of one input over trapezoid sets of which at most
+ * two overlap, like the five sets of {@link FzMemberShipFuncs}.
+ *
+ * The breakpoints of all the sets split the range into intervals, and on
+ * each interval at most two sets are linear: rising, flat or falling. So
+ * the fired sets are found from the interval of the input, without testing
+ * every set. The interval comes from a grid of cells no wider than the
+ * narrowest interval, so each cell starts in a known interval and the
+ * input is at most one interval further. The breakpoints need not be
+ * uniform.
+ *
+ * The degrees are slope * v + intercept, the same pieces as the table of
+ * {@link FzMemberShipFuncs}, so both give the same values.
+ */
+public class FzPartition {
+
+	private static final int NONE = -1;
+
+	// sorted distinct breakpoints, interval k is [points[k], points[k+1])
+	private double[] points;
+	private int last;
+
+	// the two sets of each interval by set index, NONE if fewer
+	private int[] sets;
+	private double[] slopes;
+	private double[] intercepts;
+
+	// the interval of each grid cell start
+	private int[] cellIntervals;
+	private double invCell;
+
+	/**
+	 * @param shapes
+	 * a, b, c, d of each set: rising from a to b, 1 up to c, falling to d
+	 * @throws IllegalArgumentException
+	 * if a shape is not a trapezoid or more than two sets overlap
+	 */
+	public FzPartition(double[] shapes) {
+		int setNum = shapes.length / 4;
+		if (setNum == 0 || shapes.length % 4 != 0) {
+			throw new IllegalArgumentException("4 points per set: "
+					+ shapes.length);
+		}
+		for (int s = 0; s < setNum; s++) {
+			int p = 4 * s;
+			if (!(shapes[p] <= shapes[p + 1] && shapes[p + 1] <= shapes[p + 2]
+					&& shapes[p + 2] <= shapes[p + 3])
+					|| shapes[p] == shapes[p + 3]) {
+				throw new IllegalArgumentException("bad trapezoid of set " + s);
+			}
+		}
+		double[] sorted = shapes.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (n == 0 || sorted[i] != sorted[n - 1]) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		points = Arrays.copyOf(sorted, n);
+		last = n - 2;
+
+		sets = new int[2 * (n - 1)];
+		slopes = new double[2 * (n - 1)];
+		intercepts = new double[2 * (n - 1)];
+		Arrays.fill(sets, NONE);
+		double minWidth = Double.MAX_VALUE;
+		for (int k = 0; k < n - 1; k++) {
+			double lo = points[k], hi = points[k + 1];
+			double m = (lo + hi) / 2;
+			minWidth = Math.min(minWidth, hi - lo);
+			int found = 0;
+			for (int s = 0; s < setNum; s++) {
+				int p = 4 * s;
+				double a = shapes[p], b = shapes[p + 1];
+				double c = shapes[p + 2], d = shapes[p + 3];
+				if (m <= a || m >= d) {
+					continue;
+				}
+				if (found == 2) {
+					throw new IllegalArgumentException("more than 2 sets in ["
+							+ lo + ", " + hi + "]");
+				}
+				int j = 2 * k + found;
+				sets[j] = s;
+				if (m < b) {
+					slopes[j] = 1 / (b - a);
+					intercepts[j] = -a * slopes[j];
+				} else if (m <= c) {
+					slopes[j] = 0;
+					intercepts[j] = 1;
+				} else {
+					slopes[j] = -1 / (d - c);
+					intercepts[j] = d / (d - c);
+				}
+				found++;
+			}
+		}
+
+		int cells = (int) Math.ceil((points[n - 1] - points[0]) / minWidth);
+		invCell = cells / (points[n - 1] - points[0]);
+		cellIntervals = new int[cells];
+		int k = 0;
+		for (int c = 0; c < cells; c++) {
+			double start = points[0] + c / invCell;
+			while (k < last && points[k + 1] <= start) {
+				k++;
+			}
+			cellIntervals[c] = k;
+		}
+	}
+
+	/**
+	 * fuzzify a value
+	 * @param v
+	 * @param out
+	 * gets the sets with a degree above 0, none outside the breakpoints
+	 */
+	public void fuzzify(double v, FzActiveSets out) {
+		out.clear();
+		if (!(v >= points[0] && v <= points[last + 1])) {
+			return;
+		}
+		int c = (int) ((v - points[0]) * invCell);
+		int k = cellIntervals[c < cellIntervals.length ? c
+				: cellIntervals.length - 1];
+		if (k < last && v >= points[k + 1]) {
+			k++;
+		} else if (k > 0 && v < points[k]) {
+			k--;
+		}
+		for (int j = 2 * k; j < 2 * k + 2; j++) {
+			int s = sets[j];
+			if (s == NONE) {
+				break;
+			}
+			double d = slopes[j] * v + intercepts[j];
+			if (d > 0) {
+				out.add(s, d);
+			}
+		}
+	}
+
+	/**
+	 * @return the distinct breakpoints, sorted
+	 */
+	public double[] getBreakpoints() {
+		return points.clone();
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		// non uniform: a shoulder, two triangles of different widths and a
+		// right shoulder
+		FzPartition t = new FzPartition(new double[] {
+				-1, -1, -0.9, -0.5,
+				-0.9, -0.5, -0.5, 0.3,
+				-0.5, 0.3, 0.3, 0.35,
+				0.3, 0.35, 1, 1 });
+		assert (Arrays.equals(t.getBreakpoints(), new double[] { -1, -0.9,
+				-0.5, 0.3, 0.35, 1 }));
+		FzActiveSets out = new FzActiveSets();
+		double threshold = 1e-12;
+
+		t.fuzzify(-1, out);
+		assert (out.getCount() == 1 && out.getIndex(0) == 0);
+		assert (out.getDegree(0) == 1);
+
+		t.fuzzify(-0.7, out);
+		assert (out.getCount() == 2) : out;
+		assert (out.getIndex(0) == 0 && out.getIndex(1) == 1);
+		assert (Math.abs(out.getDegree(0) - 0.5) < threshold) : out;
+		assert (Math.abs(out.getDegree(1) - 0.5) < threshold) : out;
+
+		// on a breakpoint only the set at its peak
+		t.fuzzify(-0.5, out);
+		assert (out.getCount() == 1 && out.getIndex(0) == 1) : out;
+		assert (out.getDegree(0) == 1);
+
+		t.fuzzify(0.325, out);
+		assert (out.getCount() == 2) : out;
+		assert (out.getIndex(0) == 2 && out.getIndex(1) == 3);
+		assert (Math.abs(out.getDegree(0) - 0.5) < threshold) : out;
+
+		t.fuzzify(1, out);
+		assert (out.getCount() == 1 && out.getIndex(0) == 3) : out;
+		t.fuzzify(1.5, out);
+		assert (out.getCount() == 0);
+		t.fuzzify(Double.NaN, out);
+		assert (out.getCount() == 0);
+
+		// the degrees match the shapes everywhere
+		double[][] shapes = { { -1, -1, -0.9, -0.5 }, { -0.9, -0.5, -0.5, 0.3 },
+				{ -0.5, 0.3, 0.3, 0.35 }, { 0.3, 0.35, 1, 1 } };
+		for (double v = -1; v <= 1; v += 0.001) {
+			t.fuzzify(v, out);
+			int j = 0;
+			for (int s = 0; s < shapes.length; s++) {
+				double[] p = shapes[s];
+				double d = v < p[0] || v > p[3] ? 0 : v < p[1] ? (v - p[0])
+						/ (p[1] - p[0]) : v <= p[2] ? 1 : (p[3] - v)
+						/ (p[3] - p[2]);
+				if (d > threshold) {
+					assert (j < out.getCount() && out.getIndex(j) == s) : v;
+					assert (Math.abs(out.getDegree(j) - d) < threshold) : v;
+					j++;
+				} else if (j < out.getCount() && out.getIndex(j) == s) {
+					j++;
+				}
+			}
+			assert (j == out.getCount()) : v + " " + out;
+		}
+
+		// three sets overlap
+		try {
+			new FzPartition(new double[] { -1, 0, 0, 1, -1, 0, 0, 1, -1, 0,
+					0, 1 });
+			assert (false);
+		} catch (IllegalArgumentException e) {
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
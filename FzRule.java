@@ -13,6 +13,20 @@ public abstract class FzRule {
 
 	protected abstract int fireRule(int xIndex, int yIndex);
 
+	// the rule table flattened into rule output indexes,
+	// index = xIndex * FUNC_NUM + yIndex
+	private int[] ruleTable;
+
+	public FzRule() {
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		ruleTable = new int[n * n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				ruleTable[i * n + j] = fireRule(i, j);
+			}
+		}
+	}
+
 	/**
 	 * fire the rules according the rule table
 	 * @param elesx the table x array
@@ -43,6 +57,99 @@ public abstract class FzRule {
 		return angleVelocitys;
 	}
 
+	/**
+	 * fire the rules on degree vectors, without any allocation.
+	 * The result degree of each rule output is the max over all table
+	 * cells of the min of the input degrees.
+	 * @param degreesx the degree of each table x set
+	 * @param degreesy the degree of each table y set
+	 * @param result the degree of each rule output, 0 if not fired
+	 */
+	public void fire(double[] degreesx, double[] degreesy, double[] result) {
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		for (int k = 0; k < n; k++) {
+			result[k] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			double dx = degreesx[i];
+			if (dx == 0) {
+				continue;
+			}
+			int row = i * n;
+			for (int j = 0; j < n; j++) {
+				double dy = degreesy[j];
+				int ruleIndex = ruleTable[row + j];
+				if (dy != 0 && ruleIndex != NULL) {
+					// AND the inputs, OR the outputs
+					double degree = FzElement.and(dx, dy);
+					result[ruleIndex] = FzElement.or(result[ruleIndex], degree);
+				}
+			}
+		}
+	}
+
+	/**
+	 * fire the rules on the fired sets only, at most
+	 * {@link FzActiveSets#MAX_ACTIVE} squared table cells, without any
+	 * allocation.
+	 * @param setsx the fired table x sets
+	 * @param setsy the fired table y sets
+	 * @param result the degree of each rule output, 0 if not fired
+	 */
+	public void fire(FzActiveSets setsx, FzActiveSets setsy, double[] result) {
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		for (int k = 0; k < n; k++) {
+			result[k] = 0;
+		}
+		int nx = setsx.getCount();
+		int ny = setsy.getCount();
+		for (int i = 0; i < nx; i++) {
+			double dx = setsx.getDegree(i);
+			int row = setsx.getIndex(i) * n;
+			for (int j = 0; j < ny; j++) {
+				int ruleIndex = ruleTable[row + setsy.getIndex(j)];
+				if (ruleIndex != NULL) {
+					// AND the inputs, OR the outputs
+					double degree = FzElement.and(dx, setsy.getDegree(j));
+					result[ruleIndex] = FzElement.or(result[ruleIndex], degree);
+				}
+			}
+		}
+	}
+
+	/**
+	 * fire the rules with a crisp singleton of each rule output, the zero
+	 * order Sugeno inference, on the fired sets only, without any
+	 * allocation. The inputs are ANDed by product, so between the table
+	 * cells the output is bilinear.
+	 * @param setsx the fired table x sets
+	 * @param setsy the fired table y sets
+	 * @param singletons the crisp value of each rule output
+	 * @return the singletons weighted by the cell degrees, 0 if no rule
+	 * fired
+	 */
+	public double fireSingletons(FzActiveSets setsx, FzActiveSets setsy,
+			double[] singletons) {
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		double weightSum = 0;
+		double sum = 0;
+		int nx = setsx.getCount();
+		int ny = setsy.getCount();
+		for (int i = 0; i < nx; i++) {
+			double dx = setsx.getDegree(i);
+			int row = setsx.getIndex(i) * n;
+			for (int j = 0; j < ny; j++) {
+				int ruleIndex = ruleTable[row + setsy.getIndex(j)];
+				if (ruleIndex != NULL) {
+					double w = dx * setsy.getDegree(j);
+					sum += w * singletons[ruleIndex];
+					weightSum += w;
+				}
+			}
+		}
+		return weightSum == 0 ? 0 : sum / weightSum;
+	}
+
 	// unit test
 	public static void main(String[] args) {
 		FzRule t = new FzAVRule();
@@ -65,6 +172,44 @@ public abstract class FzRule {
 		assert (turnleftEle != null);
 		assert (turnleftEle.getDegree() == 0.6);
 		assert (turnleftEle.getIndex() == FzSets.AV.TURNLEFT.ordinal());
+
+		// the fired sets give the same result as the degree vectors
+		FzMemberShipFuncs funcs = new FzMemberShipFuncs();
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		double[] dx = new double[n], dy = new double[n];
+		double[] dense = new double[n], sparse = new double[n];
+		FzActiveSets sx = new FzActiveSets(), sy = new FzActiveSets();
+		FzRule[] rules = { t, new FzVRule() };
+		for (FzRule rule : rules) {
+			for (double a = -1; a <= 1; a += 0.05) {
+				for (double b = -1; b <= 1; b += 0.05) {
+					funcs.fuzzify(a, dx);
+					funcs.fuzzify(b, dy);
+					funcs.fuzzify(a, sx);
+					funcs.fuzzify(b, sy);
+					rule.fire(dx, dy, dense);
+					rule.fire(sx, sy, sparse);
+					for (int k = 0; k < n; k++) {
+						assert (dense[k] == sparse[k]) : a + " " + b;
+					}
+				}
+			}
+		}
+
+		// the singletons: a cell gives its own, halfway between two cells
+		// their mean
+		double[] singletons = { -1, -0.5, 0, 0.5, 1 };
+		funcs.fuzzify(0, sx);
+		funcs.fuzzify(0, sy);
+		assert (t.fireSingletons(sx, sy, singletons) == 0);
+		funcs.fuzzify(0, sx);
+		funcs.fuzzify(0.4, sy);
+		// NoChange Right: TurnRight
+		assert (t.fireSingletons(sx, sy, singletons) == 0.5);
+		funcs.fuzzify(0.2, sy);
+		assert (Math.abs(t.fireSingletons(sx, sy, singletons) - 0.25) < 1e-12);
+		sy.clear();
+		assert (t.fireSingletons(sx, sy, singletons) == 0);
 		
 		// XD: RapidLeft 0.7 Left 0.2
 		// X: FarLeft 0.5
@@ -76,7 +221,7 @@ public abstract class FzRule {
 				new FzElement(FzSets.X.FARLEFT.ordinal(), 0.5)};
 		Map<Integer, FzElement> result1 = t.fire(elesx1, elesy1);
 		assert (result1.size() == 0);
-		
+
 		assert (false) : "all tests passed!";
 	}
 }
@@ -0,0 +1,618 @@
+package l5;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A general fuzzy rule base: any number of inputs and outputs, each with
+ * its own term sets, loaded from a rule file. It generalizes the two input
+ * tables of {@link FzRule}, see follow.fzr for the rules of
+ * {@link FzAVRule} and {@link FzVRule}.
+ *
+ * rule file, one statement per line, # starts a comment:
+ *   input name min max
+ *   output name min max
+ *   term name a b c d
+ *     a term of the last variable: a trapezoid rising from a to b, 1 up to
+ *     c, falling to d, in the normalized range [-1, 1]. A triangle has
+ *     b == c, a shoulder a == b or c == d.
+ *   if in1 is term and in2 is term ... then out1 is term and ...
+ *     an input left out of a rule matches any value
+ *
+ * The inputs are mapped from [min, max] to [-1, 1] and clamped. A rule
+ * ANDs its input degrees by min, the outputs are ORed by max, and each
+ * output is the sum of its set centers weighted by the clipped set areas,
+ * like {@link FzInference}, mapped back to [min, max]. An output without
+ * any fired rule is 0.
+ *
+ * The rules are compiled into flat index arrays, and each input term has a
+ * bit mask of the rules using it. A tick fuzzifies the inputs, ANDs the
+ * masks of the fired terms into the active rules and only visits those.
+ * It does not allocate, so one object should be used by one thread.
+ */
+public class FzRuleBase {
+
+	private static final int NONE = -1;
+
+	// the variables, the inputs first
+	private String[] names;
+	private int inputNum;
+	private int outputNum;
+	private double[] min;
+	private double[] max;
+
+	// the terms of variable i are termStart[i] .. termStart[i + 1] - 1
+	private int[] termStart;
+	private String[] termNames;
+	// a, b, c, d of each term
+	private double[] shapes;
+
+	// the input term of each rule and input, NONE for any
+	private int[] ruleTerms;
+	// the output term of each rule and output, NONE if not set
+	private int[] ruleOutputs;
+	private int ruleNum;
+
+	// rule bit masks of words longs: of each input term, and of the rules
+	// matching any value of each input
+	private int words;
+	private long[] termMasks;
+	private long[] anyMasks;
+	private long[] allMask;
+
+	// reused by every tick
+	private double[] degrees;
+	private long[] active;
+	private long[] mask;
+
+	private FzRuleBase() {
+	}
+
+	/**
+	 * @param f
+	 * @return the rule base of a rule file
+	 * @throws IOException
+	 * if it can not be read or has an error
+	 */
+	public static FzRuleBase load(File f) throws IOException {
+		Reader r = new FileReader(f);
+		try {
+			return parse(r, f.getPath());
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * @param r
+	 * the rule file
+	 * @param source
+	 * the file name for the error messages
+	 * @return the rule base
+	 * @throws IOException
+	 * if it has an error
+	 */
+	public static FzRuleBase parse(Reader r, String source) throws IOException {
+		List<String> names = new ArrayList<String>();
+		List<double[]> ranges = new ArrayList<double[]>();
+		List<Boolean> outputs = new ArrayList<Boolean>();
+		List<List<String>> termNames = new ArrayList<List<String>>();
+		List<List<double[]>> shapes = new ArrayList<List<double[]>>();
+		// variable and term index pairs of each rule
+		List<int[]> rules = new ArrayList<int[]>();
+
+		BufferedReader br = new BufferedReader(r);
+		String line;
+		int lineNum = 0;
+		while ((line = br.readLine()) != null) {
+			lineNum++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			String[] tokens = line.trim().split("\\s+");
+			String where = source + ":" + lineNum + ": ";
+			if (tokens[0].length() == 0) {
+				continue;
+			}
+			try {
+				if (tokens[0].equals("input") || tokens[0].equals("output")) {
+					if (tokens.length != 4) {
+						throw new IOException(where + "expected: "
+								+ tokens[0] + " name min max");
+					}
+					boolean output = tokens[0].equals("output");
+					if (!output && outputs.contains(Boolean.TRUE)) {
+						throw new IOException(where
+								+ "the inputs must come before the outputs");
+					}
+					if (names.contains(tokens[1])) {
+						throw new IOException(where + "duplicate variable "
+								+ tokens[1]);
+					}
+					double lo = Double.parseDouble(tokens[2]);
+					double hi = Double.parseDouble(tokens[3]);
+					if (!(lo < hi)) {
+						throw new IOException(where + "empty range");
+					}
+					names.add(tokens[1]);
+					ranges.add(new double[] { lo, hi });
+					outputs.add(output);
+					termNames.add(new ArrayList<String>());
+					shapes.add(new ArrayList<double[]>());
+				} else if (tokens[0].equals("term")) {
+					if (names.isEmpty()) {
+						throw new IOException(where + "term before a variable");
+					}
+					if (tokens.length != 6) {
+						throw new IOException(where
+								+ "expected: term name a b c d");
+					}
+					double[] s = new double[4];
+					for (int i = 0; i < 4; i++) {
+						s[i] = Double.parseDouble(tokens[i + 2]);
+					}
+					if (!(s[0] <= s[1] && s[1] <= s[2] && s[2] <= s[3])
+							|| s[0] == s[3]) {
+						throw new IOException(where + "bad trapezoid");
+					}
+					List<String> terms = termNames.get(names.size() - 1);
+					if (terms.contains(tokens[1])) {
+						throw new IOException(where + "duplicate term "
+								+ tokens[1]);
+					}
+					terms.add(tokens[1]);
+					shapes.get(names.size() - 1).add(s);
+				} else if (tokens[0].equals("if")) {
+					rules.add(parseRule(tokens, names, outputs, termNames,
+							where));
+				} else {
+					throw new IOException(where + "unknown statement "
+							+ tokens[0]);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException(where + e.getMessage());
+			}
+		}
+		if (!outputs.contains(Boolean.TRUE)) {
+			throw new IOException(source + ": no output");
+		}
+		for (int i = 0; i < names.size(); i++) {
+			if (termNames.get(i).isEmpty()) {
+				throw new IOException(source + ": no terms of "
+						+ names.get(i));
+			}
+		}
+
+		FzRuleBase rb = new FzRuleBase();
+		rb.compile(names, ranges, outputs, termNames, shapes, rules);
+		return rb;
+	}
+
+	/**
+	 * @return the variable and term index pairs of a rule
+	 */
+	private static int[] parseRule(String[] tokens, List<String> names,
+			List<Boolean> outputs, List<List<String>> termNames, String where)
+			throws IOException {
+		int[] pairs = new int[2 * names.size()];
+		Arrays.fill(pairs, NONE);
+		boolean then = false;
+		boolean used = false;
+		int i = 1;
+		while (i < tokens.length) {
+			if (i + 2 >= tokens.length || !tokens[i + 1].equals("is")) {
+				throw new IOException(where + "expected: variable is term");
+			}
+			int v = names.indexOf(tokens[i]);
+			if (v < 0) {
+				throw new IOException(where + "unknown variable " + tokens[i]);
+			}
+			if (outputs.get(v) != then) {
+				throw new IOException(where + tokens[i]
+						+ (then ? " is not an output" : " is not an input"));
+			}
+			int t = termNames.get(v).indexOf(tokens[i + 2]);
+			if (t < 0) {
+				throw new IOException(where + "unknown term " + tokens[i + 2]
+						+ " of " + tokens[i]);
+			}
+			if (pairs[2 * v] != NONE) {
+				throw new IOException(where + tokens[i] + " is used twice");
+			}
+			pairs[2 * v] = v;
+			pairs[2 * v + 1] = t;
+			used |= then;
+			i += 3;
+			if (i < tokens.length) {
+				if (tokens[i].equals("then") && !then) {
+					then = true;
+				} else if (!tokens[i].equals("and")) {
+					throw new IOException(where + "expected: and, then");
+				}
+				i++;
+			}
+		}
+		if (!used) {
+			throw new IOException(where + "a rule needs an output");
+		}
+		return pairs;
+	}
+
+	/**
+	 * build the flat arrays
+	 */
+	private void compile(List<String> varNames, List<double[]> ranges,
+			List<Boolean> outputs, List<List<String>> varTerms,
+			List<List<double[]>> varShapes, List<int[]> rules) {
+		int n = varNames.size();
+		names = varNames.toArray(new String[n]);
+		outputNum = 0;
+		for (Boolean o : outputs) {
+			if (o) {
+				outputNum++;
+			}
+		}
+		inputNum = n - outputNum;
+		min = new double[n];
+		max = new double[n];
+		termStart = new int[n + 1];
+		List<String> allTerms = new ArrayList<String>();
+		List<double[]> allShapes = new ArrayList<double[]>();
+		for (int v = 0; v < n; v++) {
+			min[v] = ranges.get(v)[0];
+			max[v] = ranges.get(v)[1];
+			termStart[v] = allTerms.size();
+			allTerms.addAll(varTerms.get(v));
+			allShapes.addAll(varShapes.get(v));
+		}
+		termStart[n] = allTerms.size();
+		termNames = allTerms.toArray(new String[allTerms.size()]);
+		shapes = new double[4 * termNames.length];
+		for (int t = 0; t < termNames.length; t++) {
+			System.arraycopy(allShapes.get(t), 0, shapes, 4 * t, 4);
+		}
+
+		ruleNum = rules.size();
+		words = Math.max(1, (ruleNum + 63) / 64);
+		ruleTerms = new int[ruleNum * inputNum];
+		ruleOutputs = new int[ruleNum * outputNum];
+		termMasks = new long[termStart[inputNum] * words];
+		anyMasks = new long[inputNum * words];
+		allMask = new long[words];
+		for (int r = 0; r < ruleNum; r++) {
+			int[] pairs = rules.get(r);
+			long bit = 1L << (r & 63);
+			int word = r >> 6;
+			allMask[word] |= bit;
+			for (int v = 0; v < n; v++) {
+				int t = pairs[2 * v] == NONE ? NONE : termStart[v]
+						+ pairs[2 * v + 1];
+				if (v < inputNum) {
+					ruleTerms[r * inputNum + v] = t;
+					if (t == NONE) {
+						anyMasks[v * words + word] |= bit;
+					} else {
+						termMasks[t * words + word] |= bit;
+					}
+				} else {
+					ruleOutputs[r * outputNum + v - inputNum] = t;
+				}
+			}
+		}
+
+		degrees = new double[termNames.length];
+		active = new long[words];
+		mask = new long[words];
+	}
+
+	/**
+	 * run the inference
+	 * @param inputs
+	 * the input values, in their ranges, clamped
+	 * @param outputs
+	 * gets the output values
+	 */
+	public void evaluate(double[] inputs, double[] outputs) {
+		System.arraycopy(allMask, 0, active, 0, words);
+		for (int v = 0; v < inputNum; v++) {
+			double n = 2 * (inputs[v] - min[v]) / (max[v] - min[v]) - 1;
+			n = n < -1 ? -1 : (n > 1 ? 1 : n);
+			System.arraycopy(anyMasks, v * words, mask, 0, words);
+			for (int t = termStart[v]; t < termStart[v + 1]; t++) {
+				double d = degree(t, n);
+				degrees[t] = d;
+				if (d > 0) {
+					for (int w = 0; w < words; w++) {
+						mask[w] |= termMasks[t * words + w];
+					}
+				}
+			}
+			for (int w = 0; w < words; w++) {
+				active[w] &= mask[w];
+			}
+		}
+
+		for (int t = termStart[inputNum]; t < termNames.length; t++) {
+			degrees[t] = 0;
+		}
+		for (int w = 0; w < words; w++) {
+			long bits = active[w];
+			while (bits != 0) {
+				int r = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				// AND the inputs
+				double d = 1;
+				int base = r * inputNum;
+				for (int v = 0; v < inputNum; v++) {
+					int t = ruleTerms[base + v];
+					if (t != NONE && degrees[t] < d) {
+						d = degrees[t];
+					}
+				}
+				if (d == 0) {
+					continue;
+				}
+				// OR the outputs
+				base = r * outputNum;
+				for (int o = 0; o < outputNum; o++) {
+					int t = ruleOutputs[base + o];
+					if (t != NONE && degrees[t] < d) {
+						degrees[t] = d;
+					}
+				}
+			}
+		}
+
+		for (int o = 0; o < outputNum; o++) {
+			int v = inputNum + o;
+			double weightSum = 0;
+			double areaSum = 0;
+			for (int t = termStart[v]; t < termStart[v + 1]; t++) {
+				double d = degrees[t];
+				if (d == 0) {
+					continue;
+				}
+				int s = 4 * t;
+				double area = getClippedArea(t, d);
+				weightSum += (shapes[s] + shapes[s + 3]) / 2 * area;
+				areaSum += area;
+			}
+			outputs[o] = areaSum == 0 ? 0 : min[v] + (weightSum / areaSum + 1)
+					/ 2 * (max[v] - min[v]);
+		}
+	}
+
+	/**
+	 * @param t
+	 * the term
+	 * @param n
+	 * normalized value
+	 * @return the degree of the term
+	 */
+	private double degree(int t, double n) {
+		int s = 4 * t;
+		double a = shapes[s], b = shapes[s + 1];
+		double c = shapes[s + 2], d = shapes[s + 3];
+		if (n < a || n > d) {
+			return 0;
+		} else if (n < b) {
+			return (n - a) / (b - a);
+		} else if (n <= c) {
+			return 1;
+		}
+		return (d - n) / (d - c);
+	}
+
+	/**
+	 * @param t
+	 * the term
+	 * @param degree
+	 * the clip height
+	 * @return the area of the term clipped at degree, normalized
+	 */
+	private double getClippedArea(int t, double degree) {
+		int s = 4 * t;
+		double slopes = shapes[s + 1] - shapes[s] + shapes[s + 3]
+				- shapes[s + 2];
+		return degree * (shapes[s + 3] - shapes[s]) - degree * degree
+				* slopes / 2;
+	}
+
+	/**
+	 * change the range of a variable, e.g. by a calibration
+	 * @param name
+	 * @param min
+	 * @param max
+	 */
+	public void setRange(String name, double min, double max) {
+		int v = Arrays.asList(names).indexOf(name);
+		if (v < 0) {
+			throw new IllegalArgumentException("unknown variable: " + name);
+		}
+		if (!(min < max)) {
+			throw new IllegalArgumentException("empty range: " + min + " "
+					+ max);
+		}
+		this.min[v] = min;
+		this.max[v] = max;
+	}
+
+	/**
+	 * @param name
+	 * @return the index in the inputs of evaluate, -1 if not an input
+	 */
+	public int getInputIndex(String name) {
+		int v = Arrays.asList(names).indexOf(name);
+		return v < inputNum ? v : -1;
+	}
+
+	/**
+	 * @param name
+	 * @return the index in the outputs of evaluate, -1 if not an output
+	 */
+	public int getOutputIndex(String name) {
+		int v = Arrays.asList(names).indexOf(name);
+		return v < inputNum ? -1 : v - inputNum;
+	}
+
+	public int getInputNum() {
+		return inputNum;
+	}
+
+	public int getOutputNum() {
+		return outputNum;
+	}
+
+	public int getRuleNum() {
+		return ruleNum;
+	}
+
+	public String toString() {
+		return inputNum + " inputs, " + outputNum + " outputs, "
+				+ termNames.length + " terms, " + ruleNum + " rules";
+	}
+
+	// unit test
+	public static void main(String[] args) throws IOException {
+		double threshold = 1e-12;
+
+		// the rule file of FzAVRule and FzVRule gives the same v and w
+		FzRuleBase t = load(new File(args.length > 0 ? args[0] : "follow.fzr"));
+		assert (t.getInputNum() == 4 && t.getOutputNum() == 2);
+		assert (t.getRuleNum() == 50);
+		FzInference inference = new FzInference();
+		inference.setCalibratedY(200);
+		int x = t.getInputIndex("x"), xd = t.getInputIndex("xd");
+		int y = t.getInputIndex("y"), yd = t.getInputIndex("yd");
+		int v = t.getOutputIndex("v"), w = t.getOutputIndex("w");
+		assert (x >= 0 && xd >= 0 && y >= 0 && yd >= 0 && v >= 0 && w >= 0);
+		double[] in = new double[4];
+		double[] out = new double[2];
+		for (double a = -1.2; a <= 1.2; a += 0.01) {
+			for (double b = -1.2; b <= 1.2; b += 0.01) {
+				in[x] = a * 140;
+				in[xd] = b * 140;
+				in[y] = 180 + a * 20;
+				in[yd] = b * 100;
+				t.evaluate(in, out);
+				double an = Math.max(-1, Math.min(1, a));
+				double bn = Math.max(-1, Math.min(1, b));
+				double av = inference.getAngleVelocity(bn, an) * 0.8;
+				double vel = inference.getVelocity(bn, (an + 1) / 2) * 250;
+				assert (Math.abs(out[w] - av) < threshold) : a + " " + b;
+				assert (Math.abs(out[v] - vel) < threshold) : a + " " + b;
+			}
+		}
+
+		// and through FzInference, with the stop at the calibrated height
+		FzInference ruled = new FzInference();
+		ruled.setRuleBase(t);
+		ruled.setCalibratedY(200);
+		double[] vw = new double[2];
+		double[] expected = new double[2];
+		for (int i = 0; i < 10000; i++) {
+			double a = (i % 97) * 3 - 145, b = (i % 89) * 3 - 130;
+			double c = 150 + i % 61, d = (i % 83) * 3 - 120;
+			ruled.getVW(a, b, c, d, vw);
+			inference.getVW(a, b, c, d, expected);
+			assert (Math.abs(vw[0] - expected[0]) < threshold) : i;
+			assert (Math.abs(vw[1] - expected[1]) < threshold) : i;
+		}
+		ruled.getVW(0, 0, 200, 0, vw);
+		assert (vw[0] == 0);
+
+		// three inputs, one left out of a rule, two outputs
+		String rules = "input a 0 10\n"
+				+ "term LOW -1 -1 -1 1\n"
+				+ "term HIGH -1 1 1 1\n"
+				+ "input b -1 1\n"
+				+ "term NEG -1 -1 -1 0\n"
+				+ "term POS 0 1 1 1\n"
+				+ "input c -1 1 # a confidence\n"
+				+ "term BAD -1 -1 -1 1\n"
+				+ "term GOOD -1 1 1 1\n"
+				+ "output o -1 1\n"
+				+ "term DOWN -1 -1 -1 0\n"
+				+ "term UP 0 1 1 1\n"
+				+ "output p 0 1\n"
+				+ "term ON -1 1 1 1\n"
+				+ "\n"
+				+ "if a is HIGH and b is POS and c is GOOD then o is UP and p is ON\n"
+				+ "if a is LOW and c is GOOD then o is DOWN\n";
+		FzRuleBase t3 = parse(new StringReader(rules), "test");
+		assert (t3.getInputNum() == 3 && t3.getOutputNum() == 2);
+		assert (t3.getRuleNum() == 2);
+		// only the second rule, for any b
+		double[] out3 = new double[2];
+		t3.evaluate(new double[] { 0, 1, 1 }, out3);
+		// the center of DOWN is the middle of its support
+		double down = -0.5;
+		assert (Math.abs(out3[0] - down) < threshold) : out3[0];
+		assert (out3[1] == 0);
+		t3.evaluate(new double[] { 0, -1, 1 }, out3);
+		assert (Math.abs(out3[0] - down) < threshold) : out3[0];
+		// nothing fires without confidence
+		t3.evaluate(new double[] { 10, 1, -1 }, out3);
+		assert (out3[0] == 0 && out3[1] == 0);
+		// the first rule only
+		t3.evaluate(new double[] { 10, 1, 1 }, out3);
+		assert (Math.abs(out3[0] + down) < threshold) : out3[0];
+		assert (Math.abs(out3[1] - 0.5) < threshold) : out3[1];
+		// the range can be changed
+		t3.setRange("a", 10, 20);
+		t3.evaluate(new double[] { 10, 1, 1 }, out3);
+		assert (Math.abs(out3[0] - down) < threshold) : out3[0];
+
+		// more than 64 rules
+		StringBuilder many = new StringBuilder("input a -1 1\n");
+		// triangles centered at -1 + i * 2 / 99
+		for (int i = 0; i < 100; i++) {
+			double c = -1 + i * 2 / 99.0;
+			many.append("term A" + i + " " + (c - 2 / 99.0) + " " + c + " "
+					+ c + " " + (c + 2 / 99.0) + "\n");
+		}
+		many.append("output o -1 1\n");
+		many.append("term LOW -1 -1 -1 0\n");
+		many.append("term HIGH 0 1 1 1\n");
+		for (int i = 0; i < 100; i++) {
+			many.append("if a is A" + i + " then o is "
+					+ (i < 90 ? "LOW" : "HIGH") + "\n");
+		}
+		FzRuleBase t100 = parse(new StringReader(many.toString()), "many");
+		double[] o = new double[1];
+		t100.evaluate(new double[] { 0.5 }, o);
+		assert (o[0] < 0) : o[0];
+		t100.evaluate(new double[] { 1 }, o);
+		assert (o[0] > 0) : o[0];
+
+		// errors
+		String[] bad = { "term A 0 0 1 1\n",
+				"input a 0 1\noutput o 0 1\ninput b 0 1\n",
+				"input a 1 0\n",
+				"input a 0 1\nterm A 1 0 0 1\n",
+				"input a 0 1\nterm A 0 0 1 1\noutput o 0 1\nterm B 0 0 1 1\n"
+						+ "if a is C then o is B\n",
+				"input a 0 1\nterm A 0 0 1 1\noutput o 0 1\nterm B 0 0 1 1\n"
+						+ "if a is A\n",
+				"input a 0 1\nterm A 0 0 1 1\noutput o 0 1\nterm B 0 0 1 1\n"
+						+ "if o is B then a is A\n",
+				"input a 0 1\nterm A 0 0 1 1\n" };
+		for (String s : bad) {
+			try {
+				parse(new StringReader(s), "bad");
+				assert (false) : s;
+			} catch (IOException e) {
+			}
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,248 @@
+package l5;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * The consequents of the Sugeno inference of {@link FzInference}, the crisp
+ * singleton of each output set, normalized:
+ * w: of each angle velocity set, in [-1, 1]
+ * v: of each velocity set, in [0, 1]
+ *
+ * singleton file, one statement per line, # starts a comment:
+ *   name value ... one value per set
+ * the outputs left out keep their defaults.
+ */
+public class FzSingletons {
+
+	public static final String[] NAMES = { "w", "v" };
+
+	public static final int W = 0;
+	public static final int V = 1;
+
+	// the min and max singleton of each output
+	private static final double[] MIN = { -1, 0 };
+	private static final double[] MAX = { 1, 1 };
+
+	private double[][] values;
+
+	public FzSingletons() {
+		values = new double[][] { FzInference.DEF_AV_SINGLETONS.clone(),
+				FzInference.DEF_V_SINGLETONS.clone() };
+	}
+
+	/**
+	 * @param w
+	 * @param v
+	 * the singletons of each set
+	 * @throws IllegalArgumentException
+	 * if not one value per set or a value is out of its range
+	 */
+	public FzSingletons(double[] w, double[] v) {
+		values = new double[NAMES.length][];
+		set(W, w);
+		set(V, v);
+	}
+
+	/**
+	 * @param f
+	 * @return the singletons of a singleton file
+	 * @throws IOException
+	 * if it can not be read or has an error
+	 */
+	public static FzSingletons load(File f) throws IOException {
+		Reader r = new FileReader(f);
+		try {
+			return parse(r, f.getPath());
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * @param r
+	 * the singleton file
+	 * @param source
+	 * the file name for the error messages
+	 * @return the singletons
+	 * @throws IOException
+	 * if it has an error
+	 */
+	public static FzSingletons parse(Reader r, String source)
+			throws IOException {
+		FzSingletons singletons = new FzSingletons();
+		BufferedReader br = new BufferedReader(r);
+		String line;
+		int lineNum = 0;
+		while ((line = br.readLine()) != null) {
+			lineNum++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			String[] tokens = line.trim().split("\\s+");
+			String where = source + ":" + lineNum + ": ";
+			if (tokens[0].length() == 0) {
+				continue;
+			}
+			int i = Arrays.asList(NAMES).indexOf(tokens[0]);
+			if (i < 0 || tokens.length != FzMemberShipFuncs.FUNC_NUM + 1) {
+				throw new IOException(where + "expected: name and "
+						+ FzMemberShipFuncs.FUNC_NUM + " values, names "
+						+ Arrays.toString(NAMES));
+			}
+			double[] v = new double[FzMemberShipFuncs.FUNC_NUM];
+			try {
+				for (int k = 0; k < v.length; k++) {
+					v[k] = Double.parseDouble(tokens[k + 1]);
+				}
+				singletons.set(i, v);
+			} catch (NumberFormatException e) {
+				throw new IOException(where + "bad number: " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				throw new IOException(where + e.getMessage());
+			}
+		}
+		return singletons;
+	}
+
+	/**
+	 * write a singleton file
+	 * @param f
+	 * @param comment
+	 * written on top, may be null
+	 * @throws IOException
+	 */
+	public void save(File f, String comment) throws IOException {
+		PrintWriter w = new PrintWriter(new FileWriter(f));
+		try {
+			if (comment != null) {
+				w.println("# " + comment);
+			}
+			w.print(this);
+		} finally {
+			w.close();
+		}
+		if (w.checkError()) {
+			throw new IOException("can not write " + f);
+		}
+	}
+
+	/**
+	 * @param i
+	 * the output, W or V
+	 * @return the singletons of each set
+	 */
+	public double[] get(int i) {
+		return values[i].clone();
+	}
+
+	/**
+	 * @param i
+	 * the output, W or V
+	 * @param singletons
+	 * of each set
+	 * @throws IllegalArgumentException
+	 * if not one value per set or a value is out of the output range
+	 */
+	public void set(int i, double[] singletons) {
+		if (singletons.length != FzMemberShipFuncs.FUNC_NUM) {
+			throw new IllegalArgumentException("one " + NAMES[i]
+					+ " singleton per set: " + singletons.length);
+		}
+		for (double s : singletons) {
+			if (!(s >= MIN[i] && s <= MAX[i])) {
+				throw new IllegalArgumentException(NAMES[i]
+						+ " must be in [" + MIN[i] + ", " + MAX[i] + "]: "
+						+ s);
+			}
+		}
+		values[i] = singletons.clone();
+	}
+
+	/**
+	 * set the singletons of an inference, its mode is kept
+	 * @param inference
+	 */
+	public void apply(FzInference inference) {
+		inference.setSingletons(values[W], values[V]);
+	}
+
+	public FzSingletons copy() {
+		return new FzSingletons(values[W], values[V]);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < NAMES.length; i++) {
+			sb.append(NAMES[i]);
+			for (double s : values[i]) {
+				sb.append(' ').append(s);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// unit test
+	public static void main(String[] args) throws IOException {
+		FzSingletons t = new FzSingletons();
+		assert (Arrays.equals(t.get(W), FzInference.DEF_AV_SINGLETONS));
+		assert (Arrays.equals(t.get(V), FzInference.DEF_V_SINGLETONS));
+
+		// the file gives back the same singletons
+		t.set(V, new double[] { 0, 0.2, 0.4, 0.6, 0.9 });
+		FzSingletons p = parse(new StringReader(t.toString()), "test");
+		for (int i = 0; i < NAMES.length; i++) {
+			assert (Arrays.equals(p.get(i), t.get(i))) : NAMES[i];
+		}
+		p = parse(new StringReader("# wider\nw -1 -0.5 0 0.5 1  # turns\n\n"),
+				"test");
+		assert (p.get(W)[4] == 1 && p.get(V)[4] == 0.85);
+		File f = File.createTempFile("singletons", ".fzo");
+		try {
+			t.save(f, "test");
+			assert (load(f).get(V)[1] == 0.2);
+		} finally {
+			f.delete();
+		}
+
+		// the copy and the returned arrays are independent
+		p = t.copy();
+		p.set(W, new double[] { -1, -1, 0, 1, 1 });
+		assert (t.get(W)[0] == -0.7);
+		t.get(W)[0] = 1;
+		assert (t.get(W)[0] == -0.7);
+
+		// the inference uses them, only w changed
+		p = new FzSingletons();
+		p.set(W, new double[] { -1, -0.5, 0, 0.5, 1 });
+		FzInference inference = new FzInference();
+		inference.setMode(FzInference.Mode.SUGENO);
+		inference.setCalibratedY(200);
+		double[] before = inference.getVW(70, 0, 180, 0);
+		p.apply(inference);
+		double[] after = inference.getVW(70, 0, 180, 0);
+		assert (after[0] == before[0] && after[1] != before[1]);
+
+		String[] bad = { "w\n", "z 0 0 0 0 0\n", "v 0 0 0 0\n",
+				"v 0 one 0 0 0\n", "v -0.1 0 0 0 0\n", "w -2 0 0 0 0\n" };
+		for (String b : bad) {
+			try {
+				parse(new StringReader(b), "bad");
+				assert (false) : b;
+			} catch (IOException e) {
+				assert (e.getMessage().startsWith("bad:1:")) : e.getMessage();
+			}
+		}
+
+		assert (false) : "all tests passed!";
+	}
+}
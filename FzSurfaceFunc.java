@@ -0,0 +1,15 @@
+package l5;
+
+/**
+ * A function of two normalized inputs sampled by {@link FzControlSurface}
+ */
+interface FzSurfaceFunc {
+
+	/**
+	 * evaluate the exact function
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public double eval(double a, double b);
+}
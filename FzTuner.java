@@ -0,0 +1,523 @@
+package l5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Offline tuning of the {@link FzGains}, the normalizer ranges of the
+ * fuzzy control, over the closed loop {@link Simulation}.
+ *
+ * Every candidate runs all the scenarios and gets a score, lower is
+ * better: the mean over the scenarios of
+ *   distance rms / (DISTANCE_TOLERANCE * DESIRED_DISTANCE)
+ *   + bearing rms / BEARING_TOLERANCE
+ *   + effortWeight * effort + LOST_WEIGHT * lost detections
+ * so a candidate within the settling tolerances all the time scores
+ * below 2, plus the effort.
+ *
+ * search:
+ * grid: every gain at steps factors from 1 / spread to spread of the
+ *   defaults, steps^6 candidates
+ * evolve: a population around the defaults, each generation keeps the
+ *   best quarter and mutates it by log normal factors of a shrinking
+ *   sigma
+ * consequents: the same evolution of the Sugeno singletons, the
+ *   consequents of the rules, at fixed gains. The w singletons stay
+ *   symmetric about the center set and the slowest v singleton stays a
+ *   stop, so 6 singletons are free like the 6 gains
+ *
+ * The candidates of a grid or a generation are independent runs, so they
+ * are scored in parallel on one thread per core, each with its own
+ * simulation. The simulation is deterministic, so the scores do not
+ * depend on the number of threads.
+ *
+ * usage:
+ * java l5.FzTuner [grid [steps [spread]] | evolve [generations
+ *   [population]] | consequents [generations [population]]]
+ *   [mamdani|sugeno] [-o file]
+ *   writes the best gains to file, gains.fzg by default. The Sugeno
+ *   searches use the singletons of SINGLETONS_FILE next to it if found,
+ *   consequents tunes them at the gains of the file, or the defaults, and
+ *   writes them to SINGLETONS_FILE.
+ */
+public class FzTuner {
+
+	public static final double DEF_EFFORT_WEIGHT = 2;
+	public static final double LOST_WEIGHT = 0.1;
+
+	public static final int DEF_GRID_STEPS = 3;
+	public static final double DEF_GRID_SPREAD = 1.5;
+	public static final int DEF_GENERATIONS = 20;
+	public static final int DEF_POPULATION = 32;
+
+	// the singletons written next to the gain file
+	public static final String SINGLETONS_FILE = "singletons.fzo";
+
+	// the mutation sigma of the first and the last generation
+	private static final double FIRST_SIGMA = 0.3;
+	private static final double LAST_SIGMA = 0.05;
+
+	private String[] scenarios = Simulation.SCENARIOS;
+	private FzInference.Mode mode = FzInference.Mode.MAMDANI;
+	private FzSingletons singletons = new FzSingletons();
+	private double effortWeight = DEF_EFFORT_WEIGHT;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long evaluations = 0;
+
+	/**
+	 * A scored candidate.
+	 */
+	public static class Candidate implements Comparable<Candidate> {
+		private FzGains gains;
+		private FzSingletons singletons;
+		private double score;
+
+		Candidate(FzGains gains, FzSingletons singletons, double score) {
+			this.gains = gains;
+			this.singletons = singletons;
+			this.score = score;
+		}
+
+		public FzGains getGains() {
+			return gains.copy();
+		}
+
+		public FzSingletons getSingletons() {
+			return singletons.copy();
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		public int compareTo(Candidate o) {
+			return Double.compare(score, o.score);
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder(String.format("%8.4f", score));
+			for (int i = 0; i < FzGains.NAMES.length; i++) {
+				sb.append(String.format("  %s %.4g", FzGains.NAMES[i], gains
+						.get(i)));
+			}
+			for (int i = 0; i < FzSingletons.NAMES.length; i++) {
+				sb.append("  ").append(FzSingletons.NAMES[i]);
+				for (double v : singletons.get(i)) {
+					sb.append(String.format(" %.3f", v));
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * score one candidate on the calling thread, with the set singletons
+	 * @param gains
+	 * @return the score, lower is better
+	 */
+	public double score(FzGains gains) {
+		return score(gains, singletons);
+	}
+
+	/**
+	 * score one candidate on the calling thread
+	 * @param gains
+	 * @param singletons
+	 * used by the Sugeno mode
+	 * @return the score, lower is better
+	 */
+	public double score(FzGains gains, FzSingletons singletons) {
+		Simulation sim = new Simulation(SimulatedCamera.Perception.DIRECT);
+		sim.setMode(mode);
+		sim.setGains(gains);
+		sim.setSingletons(singletons);
+		double tolerance = Simulation.DISTANCE_TOLERANCE
+				* SimulatedCamera.DESIRED_DISTANCE;
+		double sum = 0;
+		for (String name : scenarios) {
+			Simulation.Result r = sim.run(name, Simulation.scenario(name));
+			sum += r.getDistanceError() / tolerance + r.getBearingError()
+					/ Simulation.BEARING_TOLERANCE + effortWeight
+					* r.getEffort() + LOST_WEIGHT * r.getLost();
+		}
+		sim.release();
+		return sum / scenarios.length;
+	}
+
+	/**
+	 * score the candidates in parallel, with the set singletons
+	 * @param candidates
+	 * @return the scored candidates, best first
+	 * @throws InterruptedException
+	 */
+	public List<Candidate> evaluate(List<FzGains> candidates)
+			throws InterruptedException {
+		List<Candidate> unscored = new ArrayList<Candidate>();
+		for (FzGains gains : candidates) {
+			unscored.add(new Candidate(gains, singletons, Double.NaN));
+		}
+		return score(unscored);
+	}
+
+	/**
+	 * score the candidates in parallel
+	 * @param candidates
+	 * unscored
+	 * @return the scored candidates, best first
+	 * @throws InterruptedException
+	 */
+	private List<Candidate> score(List<Candidate> candidates)
+			throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "tuner");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			List<Future<Candidate>> futures = new ArrayList<Future<Candidate>>();
+			for (final Candidate c : candidates) {
+				futures.add(pool.submit(new Callable<Candidate>() {
+					public Candidate call() {
+						return new Candidate(c.gains, c.singletons, score(
+								c.gains, c.singletons));
+					}
+				}));
+			}
+			List<Candidate> scored = new ArrayList<Candidate>();
+			for (Future<Candidate> f : futures) {
+				try {
+					scored.add(f.get());
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			evaluations += scored.size();
+			Collections.sort(scored);
+			return scored;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * score a full grid around the defaults
+	 * @param steps
+	 * factors of each gain, at least 2
+	 * @param spread
+	 * the largest factor, above 1
+	 * @return the scored candidates, best first
+	 * @throws InterruptedException
+	 */
+	public List<Candidate> grid(int steps, double spread)
+			throws InterruptedException {
+		if (steps < 2 || !(spread > 1)) {
+			throw new IllegalArgumentException("steps >= 2 and spread > 1: "
+					+ steps + " " + spread);
+		}
+		int n = FzGains.NAMES.length;
+		double[] factors = new double[steps];
+		for (int k = 0; k < steps; k++) {
+			factors[k] = Math.pow(spread, 2.0 * k / (steps - 1) - 1);
+		}
+		FzGains defaults = new FzGains();
+		List<FzGains> candidates = new ArrayList<FzGains>();
+		int[] index = new int[n];
+		while (true) {
+			FzGains g = defaults.copy();
+			for (int i = 0; i < n; i++) {
+				g.set(i, defaults.get(i) * factors[index[i]]);
+			}
+			candidates.add(g);
+			int i = 0;
+			while (i < n && ++index[i] == steps) {
+				index[i++] = 0;
+			}
+			if (i == n) {
+				break;
+			}
+		}
+		return evaluate(candidates);
+	}
+
+	/**
+	 * evolve a population of gains from the defaults, with the set
+	 * singletons
+	 * @param generations
+	 * @param population
+	 * at least 4
+	 * @param seed
+	 * @return the last generation, scored, best first
+	 * @throws InterruptedException
+	 */
+	public List<Candidate> evolve(int generations, int population, long seed)
+			throws InterruptedException {
+		return evolve(new Candidate(new FzGains(), singletons, Double.NaN),
+				false, generations, population, seed);
+	}
+
+	/**
+	 * evolve a population of Sugeno singletons from the set ones
+	 * @param gains
+	 * of every candidate
+	 * @param generations
+	 * @param population
+	 * at least 4
+	 * @param seed
+	 * @return the last generation, scored, best first
+	 * @throws IllegalStateException
+	 * if not in the Sugeno mode, the only one using the singletons
+	 * @throws InterruptedException
+	 */
+	public List<Candidate> evolveConsequents(FzGains gains, int generations,
+			int population, long seed) throws InterruptedException {
+		if (mode != FzInference.Mode.SUGENO) {
+			throw new IllegalStateException("the singletons are only used "
+					+ "by the Sugeno mode: " + mode);
+		}
+		return evolve(new Candidate(gains.copy(), singletons, Double.NaN),
+				true, generations, population, seed);
+	}
+
+	/**
+	 * evolve a population from a start candidate
+	 * @param start
+	 * @param consequents
+	 * mutate the singletons instead of the gains
+	 * @param generations
+	 * @param population
+	 * @param seed
+	 * @return the last generation, scored, best first
+	 * @throws InterruptedException
+	 */
+	private List<Candidate> evolve(Candidate start, boolean consequents,
+			int generations, int population, long seed)
+			throws InterruptedException {
+		if (generations < 1 || population < 4) {
+			throw new IllegalArgumentException(
+					"generations >= 1 and population >= 4: " + generations
+							+ " " + population);
+		}
+		Random random = new Random(seed);
+		int elite = population / 4;
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		candidates.add(start);
+		while (candidates.size() < population) {
+			candidates.add(mutate(start, consequents, FIRST_SIGMA, random));
+		}
+		List<Candidate> scored = score(candidates);
+		for (int g = 1; g < generations; g++) {
+			double sigma = FIRST_SIGMA
+					* Math.pow(LAST_SIGMA / FIRST_SIGMA, (double) g
+							/ Math.max(1, generations - 1));
+			candidates.clear();
+			List<Candidate> next = new ArrayList<Candidate>(scored.subList(0,
+					elite));
+			for (int i = elite; i < population; i++) {
+				candidates.add(mutate(scored.get(i % elite), consequents,
+						sigma, random));
+			}
+			next.addAll(score(candidates));
+			Collections.sort(next);
+			scored = next;
+			System.out.println("generation " + g + ", sigma "
+					+ String.format("%.3f", sigma) + ": " + scored.get(0));
+		}
+		return scored;
+	}
+
+	/**
+	 * @return an unscored candidate with its gains or its singletons
+	 * mutated
+	 */
+	private static Candidate mutate(Candidate c, boolean consequents,
+			double sigma, Random random) {
+		if (consequents) {
+			return new Candidate(c.gains, mutate(c.singletons, sigma, random),
+					Double.NaN);
+		}
+		return new Candidate(mutate(c.gains, sigma, random), c.singletons,
+				Double.NaN);
+	}
+
+	/**
+	 * @return gains scaled by a log normal factor each
+	 */
+	private static FzGains mutate(FzGains gains, double sigma, Random random) {
+		FzGains g = gains.copy();
+		for (int i = 0; i < FzGains.NAMES.length; i++) {
+			g.set(i, g.get(i) * Math.exp(sigma * random.nextGaussian()));
+		}
+		return g;
+	}
+
+	/**
+	 * @return singletons scaled by a log normal factor each, up to 1 and in
+	 * the order of the sets. The w singletons below the center set mirror
+	 * the ones above it, the center one and the slowest v one are kept.
+	 */
+	private static FzSingletons mutate(FzSingletons singletons, double sigma,
+			Random random) {
+		int n = FzMemberShipFuncs.FUNC_NUM;
+		int center = n / 2;
+		double[] w = singletons.get(FzSingletons.W);
+		double[] v = singletons.get(FzSingletons.V);
+		for (int k = center + 1; k < n; k++) {
+			w[k] = Math.min(1, w[k] * Math.exp(sigma * random.nextGaussian()));
+		}
+		for (int k = 1; k < n; k++) {
+			v[k] = Math.min(1, v[k] * Math.exp(sigma * random.nextGaussian()));
+		}
+		Arrays.sort(w, center + 1, n);
+		Arrays.sort(v, 1, n);
+		for (int k = center + 1; k < n; k++) {
+			w[n - 1 - k] = -w[k];
+		}
+		return new FzSingletons(w, v);
+	}
+
+	/**
+	 * @param scenarios
+	 * the scenarios of every score, of Simulation.SCENARIOS
+	 */
+	public void setScenarios(String[] scenarios) {
+		this.scenarios = scenarios.clone();
+	}
+
+	public void setMode(FzInference.Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * @param singletons
+	 * the Sugeno singletons of the gain searches and the start of the
+	 * consequent search, the defaults of FzInference by default
+	 */
+	public void setSingletons(FzSingletons singletons) {
+		this.singletons = singletons.copy();
+	}
+
+	/**
+	 * @param effortWeight
+	 * the score of an effort of 1
+	 */
+	public void setEffortWeight(double effortWeight) {
+		this.effortWeight = effortWeight;
+	}
+
+	/**
+	 * @param threads
+	 * the threads scoring in parallel, the number of cores by default
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be >= 1: "
+					+ threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the candidates scored so far
+	 */
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	/** Program entry point. **/
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		List<String> a = new ArrayList<String>(Arrays.asList(args));
+		File out = new File("gains.fzg");
+		int o = a.indexOf("-o");
+		if (o >= 0 && o + 1 < a.size()) {
+			out = new File(a.get(o + 1));
+			a.remove(o + 1);
+			a.remove(o);
+		}
+		File singletonsOut = new File(out.getAbsoluteFile().getParentFile(),
+				SINGLETONS_FILE);
+		FzTuner tuner = new FzTuner();
+		for (String mode : new String[] { "mamdani", "sugeno" }) {
+			if (a.remove(mode)) {
+				tuner.setMode(FzInference.Mode.valueOf(mode.toUpperCase()));
+			}
+		}
+		String search = a.isEmpty() ? "grid" : a.get(0);
+		if (search.equals("evolve") || search.equals("grid")
+				|| search.equals("consequents")) {
+			a.remove(0);
+		} else {
+			search = "grid";
+		}
+		FzGains gains = new FzGains();
+		if (search.equals("consequents")) {
+			tuner.setMode(FzInference.Mode.SUGENO);
+			if (out.exists()) {
+				gains = FzGains.load(out);
+				System.out.println("gains from " + out);
+			}
+		}
+		if (tuner.mode == FzInference.Mode.SUGENO && singletonsOut.exists()) {
+			tuner.setSingletons(FzSingletons.load(singletonsOut));
+			System.out.println("singletons from " + singletonsOut);
+		}
+
+		double baseline = tuner.score(gains);
+		System.out.println(tuner.mode + ", " + tuner.threads + " threads, "
+				+ "start: " + String.format("%.4f", baseline));
+		long start = System.nanoTime();
+		List<Candidate> scored;
+		if (search.equals("grid")) {
+			int steps = a.size() > 0 ? Integer.parseInt(a.get(0))
+					: DEF_GRID_STEPS;
+			double spread = a.size() > 1 ? Double.parseDouble(a.get(1))
+					: DEF_GRID_SPREAD;
+			search += " " + steps + " x " + spread;
+			scored = tuner.grid(steps, spread);
+		} else {
+			int generations = a.size() > 0 ? Integer.parseInt(a.get(0))
+					: DEF_GENERATIONS;
+			int population = a.size() > 1 ? Integer.parseInt(a.get(1))
+					: DEF_POPULATION;
+			if (search.equals("evolve")) {
+				scored = tuner.evolve(generations, population, 42);
+			} else {
+				scored = tuner.evolveConsequents(gains, generations,
+						population, 42);
+			}
+			search += " " + generations + " x " + population;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%s: %d evaluations in %.1f s, "
+				+ "%.1f per s", search, tuner.getEvaluations(), seconds,
+				tuner.getEvaluations() / seconds));
+		for (int i = 0; i < Math.min(5, scored.size()); i++) {
+			System.out.println(scored.get(i));
+		}
+
+		Candidate best = scored.get(0);
+		String comment = String.format("FzTuner %s %s, score %.4f, "
+				+ "start %.4f", tuner.mode, search, best.score, baseline);
+		if (search.startsWith("consequents")) {
+			best.singletons.save(singletonsOut, comment);
+			System.out.println("best singletons written to " + singletonsOut);
+			return;
+		}
+		best.gains.save(out, comment);
+		System.out.println("best gains written to " + out);
+	}
+}
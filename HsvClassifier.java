@@ -0,0 +1,323 @@
+package l5;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Human color classifier by table lookup.
+ *
+ * The hsv box around the human color is quantized into a bit table of
+ * 64 x 32 x 32 cells (8 KB), built once per color change. A cell is in the
+ * box if its center is. The hue distance wraps around, so a red human
+ * near hue 0 also matches the hues near 255.
+ *
+ * The fused table goes one step further: it is indexed by the bgr color
+ * quantized to 64 x 64 x 64 cells (32 KB), each cell holding the class of
+ * its center converted to hsv. Classifying a frame is then one pass over
+ * the bgr bytes, with no hsv image at all.
+ *
+ * The hue is the 0 - 255 hue of CV_BGR2HSV_FULL.
+ */
+public class HsvClassifier {
+
+	private static final int H_SHIFT = 2;
+	private static final int S_SHIFT = 3;
+	private static final int V_SHIFT = 3;
+	private static final int H_CELLS = 256 >> H_SHIFT;
+	private static final int S_CELLS = 256 >> S_SHIFT;
+	private static final int V_CELLS = 256 >> V_SHIFT;
+
+	// bgr cells of the fused table, per channel
+	private static final int BGR_SHIFT = 2;
+	private static final int BGR_CELLS = 256 >> BGR_SHIFT;
+
+	private int hTolerance;
+	private int sTolerance;
+	private int vTolerance;
+
+	// the color of the tables, -1 before the first one
+	private int hue = -1;
+	private int saturation = -1;
+	private int value = -1;
+
+	private long[] hsvTable = new long[H_CELLS * S_CELLS * V_CELLS / 64];
+	// built on the first fused classification
+	private long[] bgrTable = null;
+	private boolean bgrStale = true;
+
+	/**
+	 * @param hTolerance
+	 * @param sTolerance
+	 * @param vTolerance
+	 * half size of the box around the human color
+	 */
+	public HsvClassifier(int hTolerance, int sTolerance, int vTolerance) {
+		this.hTolerance = hTolerance;
+		this.sTolerance = sTolerance;
+		this.vTolerance = vTolerance;
+	}
+
+	/**
+	 * set the human color, the tables are rebuilt only if it changed
+	 * @param h
+	 * @param s
+	 * @param v
+	 * @return true if rebuilt
+	 */
+	public boolean setColor(int h, int s, int v) {
+		if (h == hue && s == saturation && v == value) {
+			return false;
+		}
+		hue = h;
+		saturation = s;
+		value = v;
+		for (int i = 0; i < hsvTable.length; i++) {
+			hsvTable[i] = 0;
+		}
+		int cell = 0;
+		for (int hi = 0; hi < H_CELLS; hi++) {
+			boolean hIn = inBox((hi << H_SHIFT) + (1 << H_SHIFT) / 2, -1, -1);
+			for (int si = 0; si < S_CELLS; si++) {
+				for (int vi = 0; vi < V_CELLS; vi++, cell++) {
+					if (hIn
+							&& inBox(-1, (si << S_SHIFT) + (1 << S_SHIFT) / 2,
+									(vi << V_SHIFT) + (1 << V_SHIFT) / 2)) {
+						hsvTable[cell >> 6] |= 1L << cell;
+					}
+				}
+			}
+		}
+		bgrStale = true;
+		return true;
+	}
+
+	/**
+	 * @param h
+	 * @param s
+	 * @param v
+	 * -1 to skip a channel
+	 * @return true if inside the box around the human color
+	 */
+	private boolean inBox(int h, int s, int v) {
+		if (h >= 0) {
+			int d = Math.abs(h - hue);
+			if (Math.min(d, 256 - d) > hTolerance) {
+				return false;
+			}
+		}
+		return (s < 0 || Math.abs(s - saturation) <= sTolerance)
+				&& (v < 0 || Math.abs(v - value) <= vTolerance);
+	}
+
+	private void buildBgrTable() {
+		if (bgrTable == null) {
+			bgrTable = new long[BGR_CELLS * BGR_CELLS * BGR_CELLS / 64];
+		}
+		int half = (1 << BGR_SHIFT) / 2;
+		int cell = 0;
+		for (int bi = 0; bi < BGR_CELLS; bi++) {
+			for (int gi = 0; gi < BGR_CELLS; gi++) {
+				long word = 0;
+				for (int ri = 0; ri < BGR_CELLS; ri++, cell++) {
+					int hsv = toHsv((bi << BGR_SHIFT) + half, (gi << BGR_SHIFT)
+							+ half, (ri << BGR_SHIFT) + half);
+					if (isHuman(hsv >> 16, (hsv >> 8) & 0xff, hsv & 0xff)) {
+						word |= 1L << cell;
+					}
+				}
+				// a row of the r cells is one word
+				bgrTable[cell - 1 >> 6] = word;
+			}
+		}
+		bgrStale = false;
+	}
+
+	/**
+	 * @param h
+	 * @param s
+	 * @param v
+	 * @return true if the hsv table has the pixel
+	 */
+	public boolean isHuman(int h, int s, int v) {
+		int cell = ((h >> H_SHIFT) * S_CELLS + (s >> S_SHIFT)) * V_CELLS
+				+ (v >> V_SHIFT);
+		return (hsvTable[cell >> 6] & (1L << cell)) != 0;
+	}
+
+	/**
+	 * classify an hsv image into a mask
+	 * @param hsv
+	 * 3 channel hsv bytes
+	 * @param hsvStep
+	 * @param mask
+	 * 1 channel mask bytes, gets 255 for the human and 0 otherwise
+	 * @param maskStep
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * the window, in pixels
+	 */
+	public void classifyHsv(ByteBuffer hsv, int hsvStep, ByteBuffer mask,
+			int maskStep, int x0, int y0, int w, int h) {
+		long[] table = hsvTable;
+		for (int y = y0; y < y0 + h; y++) {
+			int p = y * hsvStep + x0 * 3;
+			int m = y * maskStep + x0;
+			for (int i = 0; i < w; i++, p += 3, m++) {
+				int cell = (((hsv.get(p) & 0xff) >> H_SHIFT) * S_CELLS + ((hsv
+						.get(p + 1) & 0xff) >> S_SHIFT))
+						* V_CELLS
+						+ ((hsv.get(p + 2) & 0xff) >> V_SHIFT);
+				mask.put(m, (table[cell >> 6] & (1L << cell)) != 0 ? (byte) 255
+						: 0);
+			}
+		}
+	}
+
+	/**
+	 * classify a bgr image into a mask by the fused table, no hsv needed
+	 * @param bgr
+	 * 3 channel bgr bytes
+	 * @param bgrStep
+	 * @param mask
+	 * 1 channel mask bytes, gets 255 for the human and 0 otherwise
+	 * @param maskStep
+	 * @param x0
+	 * @param y0
+	 * @param w
+	 * @param h
+	 * the window, in pixels
+	 */
+	public void classifyBgr(ByteBuffer bgr, int bgrStep, ByteBuffer mask,
+			int maskStep, int x0, int y0, int w, int h) {
+		if (bgrStale) {
+			buildBgrTable();
+		}
+		long[] table = bgrTable;
+		for (int y = y0; y < y0 + h; y++) {
+			int p = y * bgrStep + x0 * 3;
+			int m = y * maskStep + x0;
+			for (int i = 0; i < w; i++, p += 3, m++) {
+				int cell = (((bgr.get(p) & 0xff) >> BGR_SHIFT) * BGR_CELLS + ((bgr
+						.get(p + 1) & 0xff) >> BGR_SHIFT))
+						* BGR_CELLS
+						+ ((bgr.get(p + 2) & 0xff) >> BGR_SHIFT);
+				mask.put(m, (table[cell >> 6] & (1L << cell)) != 0 ? (byte) 255
+						: 0);
+			}
+		}
+	}
+
+	/**
+	 * convert a bgr pixel like CV_BGR2HSV_FULL
+	 * @param b
+	 * @param g
+	 * @param r
+	 * @return h << 16 | s << 8 | v
+	 */
+	public static int toHsv(int b, int g, int r) {
+		int v = Math.max(b, Math.max(g, r));
+		int diff = v - Math.min(b, Math.min(g, r));
+		int s = v == 0 ? 0 : (diff * 255 + v / 2) / v;
+		double hd = 0;
+		if (diff > 0) {
+			if (v == r) {
+				hd = 60.0 * (g - b) / diff;
+			} else if (v == g) {
+				hd = 120 + 60.0 * (b - r) / diff;
+			} else {
+				hd = 240 + 60.0 * (r - g) / diff;
+			}
+			if (hd < 0) {
+				hd += 360;
+			}
+		}
+		int h = (int) Math.round(hd * 256 / 360) & 0xff;
+		return h << 16 | s << 8 | v;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		// bgr to hsv, full hue range
+		assert (toHsv(0, 0, 255) == (0 << 16 | 255 << 8 | 255));
+		assert (toHsv(0, 255, 0) >> 16 == 85);
+		assert (toHsv(255, 0, 0) >> 16 == 171);
+		assert (toHsv(40, 40, 200) == (0 << 16 | 204 << 8 | 200));
+		assert (toHsv(128, 128, 128) == 128);
+
+		HsvClassifier c = new HsvClassifier(70, 50, 50);
+		assert (c.setColor(250, 200, 200));
+		assert (!c.setColor(250, 200, 200));
+
+		// the hue wraps around
+		assert (c.isHuman(250, 200, 200));
+		assert (c.isHuman(10, 200, 200));
+		assert (!c.isHuman(128, 200, 200));
+		assert (!c.isHuman(250, 100, 200));
+
+		// the table matches the box away from the cell borders
+		Random rand = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			int h = rand.nextInt(256), s = rand.nextInt(256), v = rand
+					.nextInt(256);
+			int dh = Math.min(Math.abs(h - 250), 256 - Math.abs(h - 250));
+			if (Math.abs(dh - 70) < 4 || Math.abs(Math.abs(s - 200) - 50) < 8
+					|| Math.abs(Math.abs(v - 200) - 50) < 8) {
+				continue;
+			}
+			boolean in = dh <= 70 && Math.abs(s - 200) <= 50
+					&& Math.abs(v - 200) <= 50;
+			assert (c.isHuman(h, s, v) == in) : h + " " + s + " " + v;
+		}
+
+		// classify a frame both ways: hsv by table, bgr by fused table
+		int w = 64, h = 64;
+		ByteBuffer bgr = ByteBuffer.allocate(w * h * 3);
+		ByteBuffer hsv = ByteBuffer.allocate(w * h * 3);
+		for (int p = 0; p < w * h * 3; p += 3) {
+			int b = rand.nextInt(256), g = rand.nextInt(256), r = rand
+					.nextInt(256);
+			int x = toHsv(b, g, r);
+			bgr.put(p, (byte) b).put(p + 1, (byte) g).put(p + 2, (byte) r);
+			hsv.put(p, (byte) (x >> 16)).put(p + 1, (byte) (x >> 8))
+					.put(p + 2, (byte) x);
+		}
+		c.setColor(0, 204, 200);
+		ByteBuffer m1 = ByteBuffer.allocate(w * h);
+		ByteBuffer m2 = ByteBuffer.allocate(w * h);
+		c.classifyHsv(hsv, w * 3, m1, w, 0, 0, w, h);
+		c.classifyBgr(bgr, w * 3, m2, w, 0, 0, w, h);
+		int human = 0, differ = 0;
+		for (int i = 0; i < w * h; i++) {
+			int x = (hsv.get(i * 3) & 0xff) << 16 | (hsv.get(i * 3 + 1) & 0xff) << 8
+					| (hsv.get(i * 3 + 2) & 0xff);
+			assert ((m1.get(i) != 0) == c.isHuman(x >> 16, (x >> 8) & 0xff,
+					x & 0xff));
+			human += m1.get(i) != 0 ? 1 : 0;
+			differ += m1.get(i) != m2.get(i) ? 1 : 0;
+		}
+		assert (human > 0);
+		// the bgr cells only differ near the box borders
+		assert (differ < human / 5 + 5) : differ + " of " + human;
+
+		// a window leaves the rest of the mask alone
+		ByteBuffer m3 = ByteBuffer.allocate(w * h);
+		c.classifyBgr(bgr, w * 3, m3, w, 10, 10, 4, 4);
+		for (int i = 0; i < w * h; i++) {
+			int x = i % w, y = i / w;
+			boolean inWindow = x >= 10 && x < 14 && y >= 10 && y < 14;
+			assert (inWindow ? m3.get(i) == m2.get(i) : m3.get(i) == 0);
+		}
+
+		// the human color of the synthetic frame is human after fusing
+		c.setColor(0, 204, 200);
+		ByteBuffer one = ByteBuffer.allocate(3);
+		one.put(0, (byte) 40).put(1, (byte) 40).put(2, (byte) 200);
+		ByteBuffer m4 = ByteBuffer.allocate(1);
+		c.classifyBgr(one, 3, m4, 1, 0, 0, 1, 1);
+		assert (m4.get(0) != 0);
+
+		assert (false) : "all tests passed!";
+	}
+}
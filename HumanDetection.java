@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.googlecode.javacpp.*;
 import com.googlecode.javacv.cpp.opencv_core.CvScalar;
@@ -26,6 +27,30 @@ import ohmm.CvBase;
  * r: start grasp
  * e: start debug
  * w: stop debug
+ * o: start/stop roi tracking
+ * l: switch the blob finding between contours and java labeling
+ * m: switch the morphology between legacy and open-close, print the
+ *    pass timing
+ * p: change the pyramid levels of the whole frame search, 0 to 3
+ * i: print the pipeline statistics
+ * v: start/stop the preview file
+ * h: switch the human color between the threshold box and the adaptive
+ *    histogram, print the color model statistics
+ * u: change the threshold box classification: inRange, table lookup, table
+ *    lookup fused with the color conversion
+ * c: start/stop recording the grabbed frames to {@link #RECORD_FILE}, see
+ *    {@link FrameReplay}
+ *
+ * The grab loop only copies the frame into a {@link FramePipeline}, the
+ * segmentation and the drawing run on their own threads. The image shown
+ * is the last annotated one, a few frames behind the grabbed frame.
+ *
+ * In headless mode nothing is drawn and no mask is copied, the grabbed
+ * frame is shown as is. A downscaled preview of every n-th frame can be
+ * written to {@link #PREVIEW_FILE} instead, see {@link PreviewStream}. The
+ * preview is written by the annotation thread, so it does not delay the
+ * detection. Without the preview a headless run has no annotation thread
+ * and allocates only the headless slots.
  * 
  * This class will detect the specify object.
  * There is two main function for this class, calibrate and detect.
@@ -47,41 +72,99 @@ public class HumanDetection extends CvBase {
 	/** Clicked pixel coords pending RGB dump, or -1 if none. **/
 	protected int[] dumpXY = new int[] { -1, -1 };
 
-	/** Processed image buffer, allocated on first call to {@link #process}. **/
-	protected IplImage procImg = null;
-	CvMemStorage storage = CvMemStorage.create();
+	/** Pipeline stages, allocated on first call to {@link #process}. **/
+	protected FramePipeline pipeline = null;
+
+	// capacity of the pipeline rings, a frame waits for at most one other
+	private static final int PIPELINE_CAPACITY = 2;
+
+	// no drawing and no debug mask, set by the command line
+	private boolean headless = false;
+
+	// write every previewEvery-th frame to the preview file, 0 for off
+	private volatile int previewEvery = 0;
+
+	// preview of a headless run, null if off
+	private PreviewStream preview = null;
+
+	public static final File PREVIEW_FILE = new File("preview.jpg");
+
+	private static final int DEF_PREVIEW_EVERY = 10;
+
+	// raw frame recording, in the grab loop
+	private volatile boolean recording = false;
+	private FrameRecorder recorder = null;
+
+	public static final File RECORD_FILE = new File("record.l5fr");
+
+	// frames queued for the recording writer before the oldest is dropped
+	private static final int RECORD_CAPACITY = 8;
+
+	// downscale factor of the preview
+	private static final int PREVIEW_SCALE = 4;
 
 	/** members for lab4 **/
-	private CvSeq contour = new CvSeq();
-	
 	private CvScalar colorToBeDetected = null;
-	// hsv img
-	private IplImage hsvimg = null;
 
-	// binary img
-	private IplImage bimg = null;
+	// color statistics of the clicked window, reused
+	private RegionStats regionStats = new RegionStats();
+
+	// seed the human color by the median of the clicked window, which
+	// ignores the background pixels at the human border, or by the mean
+	private static final boolean SEED_MEDIAN = true;
+
+	// segmentation steps and buffers, allocated on first call to process
+	private HumanSegmenter segmenter = null;
+
+	// search window tracker, allocated on first call to process
+	private RoiTracker roiTracker = null;
+
+	// roi tracking flag
+	private volatile boolean tracking = true;
+
+	// coarse to fine search of the whole frame, null if off
+	private PyramidSegmenter pyramid = null;
+
+	// pyramid levels of the whole frame search, 0 for off
+	private volatile int pyramidLevels = 0;
+
+	// blob finding and morphology asked by the keys, applied by the
+	// segmentation thread before the next frame
+	private volatile boolean labeling = false;
+	private volatile boolean legacyMorphology = true;
+	private volatile boolean adaptiveColor = false;
+	private volatile HumanSegmenter.Classifier classifier = HumanSegmenter.Classifier.BOX;
+
+	private static final int MAX_PYRAMID_LEVELS = 3;
 
-	// img used for debug
-	private IplImage debugimg = null;
+	// misses in the search window before searching the whole frame
+	private static final int ROI_MAX_MISSES = 5;
 
-	// debug flag
-	private boolean debug = false;
+	// print the roi statistics every ROI_STATS_INTERVAL frames in debug mode
+	private static final int ROI_STATS_INTERVAL = 100;
+
+	// debug flag, shows the mask instead of the frame
+	private volatile boolean debug = false;
 
 	// calibrate phase flag
-	private boolean calibrate = false;
+	private volatile boolean calibrate = false;
 
 	// start grasp flag
-	private boolean run = false;
-//	private static final int H_THRESHOLD = 10;
-	private static final int H_THRESHOLD = 70;
-	private static final int S_THRESHOLD = 50;
-	private static final int V_THRESHOLD = 50;
+	private volatile boolean run = false;
+
+	// the last published detection, written by the vision thread only
+	private final AtomicReference<Detection> detection = new AtomicReference<Detection>(
+			Detection.NONE);
+
+	// notified on a new detection or on the run flag change,
+	// the detection itself is read without the lock
+	private final Object detectionLock = new Object();
 	private static final File CALIBRATE_FILE = new File("calibrate.txt");
 	private static final String SEP = " ";
 	public static final int NON_OBJECT = -9999;
 
-	// current object position
-	private int[] humanP = new int[3];
+	// current object position, only used by the vision thread
+	private int[] humanP = new int[] { NON_OBJECT, NON_OBJECT, NON_OBJECT };
 
 	// calibrate object position
 	private int[] calibrateP = new int[2];
@@ -100,11 +183,14 @@ public class HumanDetection extends CvBase {
 	/** Help for the extra command line parameter. **/
 	protected void cmdHelpExt() {
 		System.out.println("F: desired max FPS, default " + DEF_MAX_FPS);
+		System.out.println("headless: no drawing and no debug mask");
+		System.out.println("preview N: write every N-th frame downscaled to "
+				+ PREVIEW_FILE);
 	}
 
 	/** Shows the extra command line parameter. **/
 	protected String cmdHelpExtParams() {
-		return "[F] ";
+		return "[F] [headless] [preview N] ";
 	}
 
 	/** Help for the extra GUI keyboard commands. **/
@@ -115,45 +201,171 @@ public class HumanDetection extends CvBase {
 
 	/** Shows how to do image processing. **/
 	protected IplImage process(IplImage frame) {
+		return process(frame, System.nanoTime());
+	}
+
+	/**
+	 * process a grabbed or a replayed frame
+	 * @param frame
+	 * @param captureTime
+	 * the time of the frame in ns, the speed estimators use it
+	 * @return the image to show
+	 */
+	IplImage process(IplImage frame, long captureTime) {
 
 		// get dimensions of the grabbed frame
 		int w = frame.width(), h = frame.height();
 
 		// cannot modify grabbed frame bits!
 
-		// allocate processed image buffer once only
-		if (procImg == null)
-			procImg = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 3);
-		if (hsvimg == null)
-			hsvimg = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 3);
-		if (bimg == null)
-			bimg = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 1);
-		if (debugimg == null)
-			debugimg = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 1);
-
-		// technically this is not needed here because we are about to copy over
-		// all
-		// pixels, but this shows one way to clear an image
-		cvSet(procImg, CvScalar.BLACK, null);
-
-		// copy pixels to output
-		cvCopy(frame, procImg);
-		detectObject(frame);
-		if (debug && debugimg != null) {
-			return debugimg;
+		// allocate the segmentation and the pipeline once only
+		if (segmenter == null)
+			segmenter = new HumanSegmenter(w, h);
+		if (roiTracker == null)
+			roiTracker = new RoiTracker(w, h, ROI_MAX_MISSES);
+		if (pipeline == null) {
+			// headless only annotates for the preview, which is decided by
+			// the command line as no key reaches a headless run
+			pipeline = new FramePipeline(w, h, PIPELINE_CAPACITY,
+					new FrameStage() {
+						public void process(FrameSlot slot) {
+							segment(slot);
+						}
+					}, headless && previewEvery == 0 ? null : new FrameStage() {
+						public void process(FrameSlot slot) {
+							annotate(slot);
+						}
+					}, !headless);
+			pipeline.start();
+		}
+
+		if (recording != (recorder != null)) {
+			toggleRecorder(frame);
+		}
+		if (recorder != null) {
+			try {
+				recorder.record(frame, captureTime);
+			} catch (IOException e) {
+				e.printStackTrace();
+				recording = false;
+			}
+		}
+
+		// copy the frame to the segmentation, show the last annotated one
+		FrameSlot shown = pipeline.capture(frame, captureTime);
+		if (shown == null || headless) {
+			return frame;
+		} else if (debug) {
+			return shown.getMask();
 		} else {
-			return procImg;
+			return shown.getImage();
 		}
 	}
 
 	/**
-	 * detect object on the current frame
+	 * open or close the recorder as asked by the key
 	 * @param frame
 	 */
-	private void detectObject(IplImage frame) {
-		// convert to hsv img
-		cvCvtColor(frame, hsvimg, CV_BGR2HSV_FULL);
+	private void toggleRecorder(IplImage frame) {
+		try {
+			if (recorder == null) {
+				recorder = new FrameRecorder(RECORD_FILE, frame.width(),
+						frame.height(), frame.nChannels());
+				// the grab loop only copies the frame, the disk can lag
+				recorder.startWriter(RECORD_CAPACITY);
+				System.out.println("recording to " + RECORD_FILE);
+			} else {
+				recorder.close();
+				System.out.println("recorded " + recorder.getFrameCount()
+						+ " frames, dropped " + recorder.getDropped());
+				recorder = null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			recorder = null;
+			recording = false;
+		}
+	}
+
+	/**
+	 * run without drawing and debug mask, call before the first frame
+	 * @param headless
+	 */
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
 
+	/**
+	 * the segmentation stage, on the segmentation thread
+	 * @param slot
+	 */
+	private void segment(FrameSlot slot) {
+		int w = slot.getImage().width(), h = slot.getImage().height();
+		if (pyramidLevels > 0
+				&& (pyramid == null || pyramid.getLevels() != pyramidLevels)) {
+			if (pyramid != null)
+				pyramid.release();
+			pyramid = new PyramidSegmenter(segmenter, w, h, pyramidLevels);
+		} else if (pyramidLevels == 0 && pyramid != null) {
+			pyramid.release();
+			pyramid = null;
+		}
+		if (segmenter.isLabeling() != labeling) {
+			segmenter.setLabeling(labeling);
+		}
+		boolean legacy = segmenter.getMorphology().getOrder() == MorphologyStage.Order.LEGACY;
+		if (legacyMorphology != legacy) {
+			segmenter.setMorphology(legacyMorphology ? new MorphologyStage()
+					: new MorphologyStage(MorphologyStage.Order.OPEN_CLOSE, 3,
+							13, true));
+		}
+		if (segmenter.getClassifier() != classifier) {
+			segmenter.setClassifier(classifier);
+		}
+		if (adaptiveColor != (segmenter.getColorModel() != null)) {
+			segmenter.setColorModel(adaptiveColor ? new ColorModel(w, h,
+					ColorModel.DEF_FORGETTING) : null);
+		}
+		if (pyramid != null) {
+			pyramid.sync();
+		}
+		detectObject(slot);
+		publishDetection(slot);
+	}
+
+	/**
+	 * the annotation stage, writes the preview and draws the human
+	 * rectangle on the frame copy
+	 * @param slot
+	 */
+	private void annotate(FrameSlot slot) {
+		int w = slot.getImage().width(), h = slot.getImage().height();
+		if (previewEvery > 0
+				&& (preview == null || preview.getEvery() != previewEvery)) {
+			if (preview != null)
+				preview.release();
+			preview = new PreviewStream(w, h, previewEvery, PREVIEW_SCALE,
+					PREVIEW_FILE);
+		} else if (previewEvery == 0 && preview != null) {
+			preview.release();
+			preview = null;
+		}
+		if (preview != null) {
+			preview.offer(slot);
+		}
+		if (!headless && slot.hasBox()) {
+			cvRectangle(slot.getImage(), cvPoint(slot.getX(), slot.getY()),
+					cvPoint(slot.getX() + slot.getWidth(), slot.getY()
+							+ slot.getHeight()), CvScalar.RED, 1, CV_AA, 0);
+		}
+	}
+
+	/**
+	 * detect object on the current frame
+	 * @param slot
+	 */
+	private void detectObject(FrameSlot slot) {
+		IplImage frame = slot.getImage();
 		// handoff clicked pixel coords from handleMouse()
 		int x = -1, y = -1;
 		synchronized (dumpXY) {
@@ -162,17 +374,42 @@ public class HumanDetection extends CvBase {
 			dumpXY[0] = dumpXY[1] = -1;
 		}
 
+		// search around the last human position only, unless the
+		// clicked pixel needs the whole hsv img
+		if (tracking && roiTracker.hasWindow() && x < 0) {
+			int[] window = roiTracker.getWindow();
+			segmenter.setRoi(window[0], window[1], window[2], window[3]);
+		} else {
+			roiTracker.reset();
+			segmenter.clearRoi();
+		}
+		// search the whole frame coarse to fine, it converts the color by
+		// itself
+		boolean coarseToFine = pyramid != null && !segmenter.hasRoi()
+				&& x < 0;
+
+		// convert to hsv img
+		if (!coarseToFine) {
+			segmenter.convertColor(frame);
+		}
+
 		// show pixel color at clicked pixel coords, if any
 		if ((frame != null) && (x >= 0) && (y >= 0)) {
 			System.out.println("pixel: (" + x + ", " + y + ")");
-			colorToBeDetected = averagePixel(hsvimg, y, x, 7);
-			System.out.println("hsv: H " + colorToBeDetected.val(0) + ", S " + colorToBeDetected.val(1)
-					+ ", V " + colorToBeDetected.val(2));
+			CvScalar c = averagePixel(y, x, 7);
+			if (c != null) {
+				colorToBeDetected = c;
+				if (segmenter.learnColor(x - 7, y - 7, 15, 15)) {
+					System.out.println("learned the color histogram");
+				}
+				System.out.println("hsv: H " + colorToBeDetected.val(0) + ", S " + colorToBeDetected.val(1)
+						+ ", V " + colorToBeDetected.val(2));
+			}
 		}
 
 		if (colorToBeDetected != null) {
 
-			humanP = getHumanXHY(colorToBeDetected);
+			humanP = getHumanXHY(slot, colorToBeDetected, coarseToFine);
 			if (humanP[0] != NON_OBJECT && humanP[1] != NON_OBJECT) {
 				if (calibrate && (x >= 0) && (y >= 0)) {
 					// calibrate phase
@@ -184,40 +421,58 @@ public class HumanDetection extends CvBase {
 		}
 	}
 
+	/**
+	 * publish the detection of the current frame and wake up the threads
+	 * waiting for it
+	 * @param slot
+	 */
+	private void publishDetection(FrameSlot slot) {
+		Detection last = detection.get();
+		int x = humanP[0];
+		if (humanP[0] != NON_OBJECT && humanP[1] != NON_OBJECT) {
+			x -= calibrateP[0];
+		}
+		detection.set(new Detection(last.getSeq() + 1, slot.getFrameIndex(),
+				slot.getCaptureTime(), x, humanP[1], humanP[2]));
+		synchronized (detectionLock) {
+			detectionLock.notifyAll();
+		}
+	}
+
 	/**
 	 * get the human x and height and y
+	 * @param slot
+	 * the frame, gets the mask and the bounding box
 	 * @param blobColor
+	 * @param coarseToFine
+	 * search on the image pyramid, the frame is not converted yet
 	 * @return
 	 */
-	private int[] getHumanXHY(CvScalar blobColor) {
-		CvScalar hsv_min = cvScalar(blobColor.val(0) - H_THRESHOLD,
-				blobColor.val(1) - S_THRESHOLD, blobColor.val(2) - V_THRESHOLD,
-				0);
-		CvScalar hsv_max = cvScalar(blobColor.val(0) + H_THRESHOLD,
-				blobColor.val(1) + S_THRESHOLD, blobColor.val(2) + V_THRESHOLD,
-				0);
-		cvInRangeS(hsvimg, hsv_min, hsv_max, bimg);
-		cvErode(bimg, bimg, null, 1);
-		// dilate 6 times to remove the big black spot
-		// inside the human body.
-		cvDilate(bimg, bimg, null, 6);
-		// copy the originam bimg for debug
-		cvCopy(bimg, debugimg);
-		cvFindContours(bimg, storage, contour, Loader.sizeof(CvContour.class),
-				CV_RETR_EXTERNAL, CV_CHAIN_APPROX_SIMPLE);
-
-		CvRect r = null;
-		int maxArea = -1;
-		for (CvSeq c = contour; c != null && !c.isNull(); c = c.h_next()) {
-			if (c.elem_size() > 0) {
-				CvRect r1 = cvBoundingRect(c, 0);
-				int area = r1.width() * r1.height();
-				if (area > maxArea) {
-					r = r1;
-					maxArea = area;
-				}
+	private int[] getHumanXHY(FrameSlot slot, CvScalar blobColor,
+			boolean coarseToFine) {
+		boolean inWindow = segmenter.hasRoi();
+		CvRect r;
+		if (coarseToFine) {
+			r = pyramid.segment(slot.getImage(), blobColor, slot.getMask());
+		} else {
+			segmenter.threshold(blobColor);
+			segmenter.morphology();
+			// copy the originam bimg for debug
+			if (slot.getMask() != null) {
+				segmenter.copyMask(slot.getMask());
 			}
+			r = segmenter.findBlob();
 		}
+		if (r != null) {
+			segmenter.updateColor(r);
+			roiTracker.hit(r.x(), r.y(), r.width(), r.height(), inWindow);
+		} else {
+			roiTracker.miss(inWindow);
+		}
+		if (debug && slot.getFrameIndex() % ROI_STATS_INTERVAL == 0) {
+			System.out.println(roiTracker);
+		}
+
 		int x = NON_OBJECT;
 		int h = NON_OBJECT;
 		int y = NON_OBJECT;
@@ -228,41 +483,34 @@ public class HumanDetection extends CvBase {
 			if (debug) {
 				System.out.println("x = " + x + " h = " + h + " y = " + y);
 			}
-			// draw the rectangle
-			cvRectangle(procImage, cvPoint(r.x(), r.y()),
-					cvPoint(r.x() + r.width(), r.y() + r.height()),
-					CvScalar.RED, 1, CV_AA, 0);
+			// the annotation stage draws the rectangle
+			slot.setBox(r.x(), r.y(), r.width(), r.height());
 		}
 
-		cvClearMemStorage(storage);
 		return new int[] { x, h, y };
 	}
 
 	/**
-	 * calculate the average color to improve the precise
-	 * @param bimg2
+	 * calculate the color of a window to improve the precise
 	 * @param y
 	 * @param x
+	 * the window center
 	 * @param layerNum
-	 * @return
+	 * the window is 2 * layerNum + 1 pixels wide, clipped to the frame
+	 * @return the median, or the mean with the circular hue mean, see
+	 * SEED_MEDIAN. Null if the window is outside of the frame.
 	 */
-	private CvScalar averagePixel(IplImage bimg2, int y, int x, int layerNum) {
-		double sum0 = 0;
-		double sum1 = 0;
-		double sum2 = 0;
-		int min = x - layerNum;
-		int max = x + layerNum;
-		for (int i = min; i <= max; i++) {
-			for (int j = min; j <= max; j++) {
-				CvScalar c = cvGet2D(hsvimg, y, x);
-				sum0 += c.val(0);
-				sum1 += c.val(1);
-				sum2 += c.val(2);
-			}
+	private CvScalar averagePixel(int y, int x, int layerNum) {
+		if (segmenter.measureColor(regionStats, x, y, layerNum) == 0) {
+			return null;
+		}
+		System.out.println(regionStats);
+		if (SEED_MEDIAN) {
+			return cvScalar(regionStats.getMedian(0),
+					regionStats.getMedian(1), regionStats.getMedian(2), 0);
 		}
-		double squareL = (double) (layerNum * 2 + 1);
-		return cvScalar(sum0 / (squareL * squareL), sum1 / (squareL * squareL),
-				sum2 / (squareL * squareL), 0);
+		return cvScalar(regionStats.getHueMean(), regionStats.getMean(1),
+				regionStats.getMean(2), 0);
 	}
 
 	/**
@@ -335,12 +583,70 @@ public class HumanDetection extends CvBase {
 			debug = true;
 			System.out.println("start debug.");
 			break;
+		case 'O':
+			tracking = !tracking;
+			System.out.println((tracking ? "start" : "stop")
+					+ " roi tracking, " + roiTracker);
+			break;
+		case 'L':
+			labeling = !labeling;
+			System.out.println("blob finding: "
+					+ (labeling ? "labeling" : "contours"));
+			break;
+		case 'M':
+			if (segmenter != null) {
+				for (LatencyStats t : segmenter.getMorphology().getTimes()) {
+					System.out.println(t);
+				}
+			}
+			legacyMorphology = !legacyMorphology;
+			System.out.println("morphology: "
+					+ (legacyMorphology ? MorphologyStage.Order.LEGACY
+							: MorphologyStage.Order.OPEN_CLOSE));
+			break;
+		case 'I':
+			if (pipeline != null) {
+				System.out.println(pipeline);
+			}
+			break;
+		case 'H':
+			if (segmenter != null && segmenter.getColorModel() != null) {
+				System.out.println(segmenter.getColorModel());
+			}
+			adaptiveColor = !adaptiveColor;
+			System.out.println("human color: "
+					+ (adaptiveColor ? "adaptive histogram, click the human"
+							: "threshold box"));
+			break;
+		case 'U':
+			HumanSegmenter.Classifier[] classifiers = HumanSegmenter.Classifier
+					.values();
+			classifier = classifiers[(classifier.ordinal() + 1)
+					% classifiers.length];
+			System.out.println("threshold classifier: " + classifier);
+			break;
+		case 'C':
+			recording = !recording;
+			break;
+		case 'V':
+			previewEvery = previewEvery == 0 ? DEF_PREVIEW_EVERY : 0;
+			System.out.println(previewEvery == 0 ? "stop preview."
+					: "preview every " + previewEvery + " frames to "
+							+ PREVIEW_FILE);
+			break;
+		case 'P':
+			pyramidLevels = (pyramidLevels + 1) % (MAX_PYRAMID_LEVELS + 1);
+			System.out.println("pyramid levels: " + pyramidLevels);
+			break;
 		case 'T':
 			calibrate = true;
 			System.out.println("start calibrate.");
 			break;
 		case 'R':
-			run = true;
+			synchronized (detectionLock) {
+				run = true;
+				detectionLock.notifyAll();
+			}
 			System.out.println("start run.");
 			break;
 		case 'S':
@@ -380,13 +686,34 @@ public class HumanDetection extends CvBase {
 		// releasing even if this is called more than once, which it may be
 		// since
 		// CvBase.finalize() calls release()
-		if (storage != null) {
-			storage.release();
-			storage = null;
+		if (pipeline != null) {
+			try {
+				pipeline.stop();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			pipeline.release();
+			pipeline = null;
+		}
+		if (preview != null) {
+			preview.release();
+			preview = null;
+		}
+		if (recorder != null) {
+			try {
+				recorder.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			recorder = null;
 		}
-		if (procImg != null) {
-			procImg.release();
-			procImg = null;
+		if (pyramid != null) {
+			pyramid.release();
+			pyramid = null;
+		}
+		if (segmenter != null) {
+			segmenter.release();
+			segmenter = null;
 		}
 		super.release();
 	}
@@ -396,7 +723,7 @@ public class HumanDetection extends CvBase {
 
 		// are there any more command line params after init() finished eating
 		// them?
-		if (argc > ate) {
+		if (argc > ate && argv[ate].matches("\\d+")) {
 			try {
 				maxFPS = Integer.parseInt(argv[ate]);
 				ate++;
@@ -409,6 +736,27 @@ public class HumanDetection extends CvBase {
 			System.out.println("using default max FPS: " + maxFPS);
 		}
 
+		while (argc > ate) {
+			if (argv[ate].equals("headless")) {
+				headless = true;
+				ate++;
+				System.out.println("headless");
+			} else if (argv[ate].equals("preview") && argc > ate + 1) {
+				try {
+					previewEvery = Math.max(1, Integer.parseInt(argv[ate + 1]));
+					System.out.println("preview every " + previewEvery
+							+ " frames to " + PREVIEW_FILE);
+				} catch (NumberFormatException nfe) {
+					System.err.println("preview N not an int, using default: "
+							+ DEF_PREVIEW_EVERY);
+					previewEvery = DEF_PREVIEW_EVERY;
+				}
+				ate += 2;
+			} else {
+				break;
+			}
+		}
+
 		return ate;
 	}
 
@@ -419,10 +767,11 @@ public class HumanDetection extends CvBase {
 	 * @return
 	 */
 	public int[] getXHY() {
-		if (humanP[0] == NON_OBJECT || humanP[1] == NON_OBJECT) {
+		Detection d = detection.get();
+		if (!d.isVisible()) {
 			return new int[] { NON_OBJECT, NON_OBJECT, NON_OBJECT };
 		}
-		return new int[] { humanP[0] - calibrateP[0], humanP[1], humanP[2] };
+		return new int[] { d.getX(), d.getH(), d.getY() };
 	}
 
 	public int getCalibratedY() {
@@ -433,6 +782,53 @@ public class HumanDetection extends CvBase {
 		return run;
 	}
 
+	/**
+	 * wait for press r to start
+	 * @throws InterruptedException
+	 */
+	public void awaitRun() throws InterruptedException {
+		synchronized (detectionLock) {
+			while (!run) {
+				detectionLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * @return the detection of the last processed frame
+	 */
+	public Detection getDetection() {
+		return detection.get();
+	}
+
+	/**
+	 * wait for a detection newer than lastSeq
+	 * @param lastSeq
+	 * the sequence number of the last detection seen by the caller
+	 * @param deadline
+	 * give up at this {@link System#nanoTime()}
+	 * @return the last detection, its sequence number equals to lastSeq if
+	 * timed out
+	 * @throws InterruptedException
+	 */
+	public Detection awaitDetection(long lastSeq, long deadline)
+			throws InterruptedException {
+		Detection d = detection.get();
+		if (d.getSeq() != lastSeq) {
+			return d;
+		}
+		synchronized (detectionLock) {
+			while ((d = detection.get()).getSeq() == lastSeq) {
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0) {
+					break;
+				}
+				detectionLock.wait(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+		return d;
+	}
+
 	/** Program entry point. **/
 	public static void main(String argv[]) {
 		try {
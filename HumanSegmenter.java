@@ -0,0 +1,454 @@
+package l5;
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * The segmentation steps of {@link HumanDetection}, separated from the
+ * camera loop so they can also run on recorded or synthetic frames.
+ *
+ * steps:
+ * 1. convert the frame to hsv
+ * 2. threshold the hsv image around the human color into a binary mask,
+ *    or back project an adaptive {@link ColorModel}, see
+ *    {@link #setColorModel}. The threshold box can also be looked up in a
+ *    table, fused with the color conversion, see {@link #setClassifier}
+ * 3. erode and dilate the mask to remove noise and holes, see
+ *    {@link MorphologyStage}
+ * 4. find the contours of the mask and pick the biggest bounding rectangle,
+ *    or label the mask in java and pick the biggest blob, see
+ *    {@link #setLabeling}
+ *
+ * All the steps can be limited to a region of interest, see
+ * {@link #setRoi}. Outside of it the hsv img and the mask keep the content
+ * of older frames.
+ */
+public class HumanSegmenter {
+
+	/**
+	 * how the threshold box is applied
+	 * BOX: cvInRangeS on the hsv img, the hue does not wrap
+	 * TABLE: {@link HsvClassifier} lookup on the hsv img
+	 * FUSED: {@link HsvClassifier} lookup on the bgr frame, the hsv img is
+	 *   only converted if asked for by {@link #getHsvImage()}
+	 */
+	public enum Classifier {
+		BOX, TABLE, FUSED;
+	}
+
+	// private static final int H_THRESHOLD = 10;
+	private static final int H_THRESHOLD = 70;
+	private static final int S_THRESHOLD = 50;
+	private static final int V_THRESHOLD = 50;
+
+	private CvMemStorage storage = CvMemStorage.create();
+
+	private CvSeq contour = new CvSeq();
+
+	// hsv img
+	private IplImage hsvimg = null;
+
+	// binary img
+	private IplImage bimg = null;
+
+	// the threshold box, reused
+	private CvScalar hsvMin = cvScalar(0, 0, 0, 0);
+	private CvScalar hsvMax = cvScalar(0, 0, 0, 0);
+
+	private Classifier classifier = Classifier.BOX;
+	private HsvClassifier table = null;
+
+	// bytes of the hsv img and the binary img
+	private ByteBuffer hsvBytes = null;
+	private ByteBuffer maskBytes = null;
+
+	// the frame of the fused classification, not converted to hsv yet
+	private IplImage pendingFrame = null;
+
+	// mask cleaning
+	private MorphologyStage morphology = new MorphologyStage();
+
+	// pure java blob labeling, null to use cvFindContours
+	private BlobExtractor labeler = null;
+	private CvRect blobRect = null;
+
+	// adaptive color model, null to threshold around the blob color
+	private ColorModel colorModel = null;
+	// the model belongs to another segmenter, it is not released here
+	private boolean sharedColorModel = false;
+
+	// region of interest, null for the whole frame
+	private CvRect roi = null;
+
+	/**
+	 * allocate the buffers for the given frame size
+	 * @param w
+	 * @param h
+	 */
+	public HumanSegmenter(int w, int h) {
+		hsvimg = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 3);
+		bimg = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 1);
+		hsvBytes = hsvimg.getByteBuffer();
+		maskBytes = bimg.getByteBuffer();
+	}
+
+	/**
+	 * run all the segmentation steps
+	 * @param frame
+	 * @param blobColor
+	 * the hsv color of the human
+	 * @return the bounding rectangle of the biggest blob, null if none
+	 */
+	public CvRect segment(IplImage frame, CvScalar blobColor) {
+		convertColor(frame);
+		threshold(blobColor);
+		morphology();
+		return findBlob();
+	}
+
+	/**
+	 * convert to hsv img. The fused classification only keeps the frame
+	 * until the threshold.
+	 * @param frame
+	 */
+	public void convertColor(IplImage frame) {
+		if (classifier == Classifier.FUSED && colorModel == null) {
+			pendingFrame = frame;
+			return;
+		}
+		pendingFrame = null;
+		convert(frame);
+	}
+
+	private void convert(IplImage frame) {
+		if (roi != null) {
+			// only changes the frame header, not the grabbed bits
+			cvSetImageROI(frame, roi);
+			cvCvtColor(frame, hsvimg, CV_BGR2HSV_FULL);
+			cvResetImageROI(frame);
+		} else {
+			cvCvtColor(frame, hsvimg, CV_BGR2HSV_FULL);
+		}
+	}
+
+	/**
+	 * threshold the hsv img into the binary img. If a learned color model is
+	 * set, it is back projected instead.
+	 * @param blobColor
+	 */
+	public void threshold(CvScalar blobColor) {
+		if (colorModel != null && colorModel.isLearned()) {
+			colorModel.backProject(hsvimg, bimg);
+			return;
+		}
+		if (classifier == Classifier.BOX) {
+			hsvMin.val(0, blobColor.val(0) - H_THRESHOLD)
+					.val(1, blobColor.val(1) - S_THRESHOLD)
+					.val(2, blobColor.val(2) - V_THRESHOLD);
+			hsvMax.val(0, blobColor.val(0) + H_THRESHOLD)
+					.val(1, blobColor.val(1) + S_THRESHOLD)
+					.val(2, blobColor.val(2) + V_THRESHOLD);
+			cvInRangeS(hsvimg, hsvMin, hsvMax, bimg);
+			return;
+		}
+		// the table is rebuilt only if the color changed
+		table.setColor((int) blobColor.val(0), (int) blobColor.val(1),
+				(int) blobColor.val(2));
+		int x = 0, y = 0, w = bimg.width(), h = bimg.height();
+		if (roi != null) {
+			x = roi.x();
+			y = roi.y();
+			w = roi.width();
+			h = roi.height();
+		}
+		if (pendingFrame != null) {
+			table.classifyBgr(pendingFrame.getByteBuffer(),
+					pendingFrame.widthStep(), maskBytes, bimg.widthStep(), x,
+					y, w, h);
+			pendingFrame = null;
+		} else {
+			table.classifyHsv(hsvBytes, hsvimg.widthStep(), maskBytes,
+					bimg.widthStep(), x, y, w, h);
+		}
+	}
+
+	/**
+	 * choose how the threshold box is applied
+	 * @param classifier
+	 */
+	public void setClassifier(Classifier classifier) {
+		this.classifier = classifier;
+		pendingFrame = null;
+		if (classifier != Classifier.BOX && table == null) {
+			table = new HsvClassifier(H_THRESHOLD, S_THRESHOLD, V_THRESHOLD);
+		}
+	}
+
+	public Classifier getClassifier() {
+		return classifier;
+	}
+
+	/**
+	 * clean the binary img
+	 */
+	public void morphology() {
+		// by default erode once and dilate 6 times to remove the big black
+		// spot inside the human body.
+		morphology.apply(bimg);
+	}
+
+	/**
+	 * change the mask cleaning, the old stage is released
+	 * @param stage
+	 */
+	public void setMorphology(MorphologyStage stage) {
+		morphology.release();
+		morphology = stage;
+	}
+
+	public MorphologyStage getMorphology() {
+		return morphology;
+	}
+
+	/**
+	 * use an adaptive color model instead of the threshold box, the old model
+	 * is released
+	 * @param model
+	 * null for the threshold box
+	 */
+	public void setColorModel(ColorModel model) {
+		if (colorModel != null && !sharedColorModel) {
+			colorModel.release();
+		}
+		colorModel = model;
+		sharedColorModel = false;
+	}
+
+	/**
+	 * use the color model of another segmenter, it is not released by this
+	 * one
+	 * @param model
+	 * null for the threshold box
+	 */
+	void shareColorModel(ColorModel model) {
+		setColorModel(null);
+		colorModel = model;
+		sharedColorModel = model != null;
+	}
+
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	/**
+	 * compute the color statistics of a window of the hsv img
+	 * @param stats
+	 * gets the statistics
+	 * @param x
+	 * @param y
+	 * the window center
+	 * @param radius
+	 * the window is 2 * radius + 1 pixels wide, clipped to the frame
+	 * @return the number of pixels
+	 */
+	public int measureColor(RegionStats stats, int x, int y, int radius) {
+		IplImage img = getHsvImage();
+		return stats.compute(hsvBytes, img.widthStep(), img.width(),
+				img.height(), x, y, radius);
+	}
+
+	/**
+	 * learn the color model from a region of the hsv img
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * the region, clipped to the frame
+	 * @return false if there is no model or the region has no color
+	 */
+	public boolean learnColor(int x, int y, int w, int h) {
+		if (colorModel == null) {
+			return false;
+		}
+		int x0 = Math.max(0, x), y0 = Math.max(0, y);
+		int x1 = Math.min(hsvimg.width(), x + w);
+		int y1 = Math.min(hsvimg.height(), y + h);
+		if (x1 <= x0 || y1 <= y0) {
+			return false;
+		}
+		return colorModel.learn(hsvBytes, hsvimg.widthStep(), x0, y0, x1 - x0,
+				y1 - y0);
+	}
+
+	/**
+	 * update the color model from a detection of the current frame
+	 * @param r
+	 * the detection box
+	 * @return true if the model was updated
+	 */
+	public boolean updateColor(CvRect r) {
+		if (colorModel == null) {
+			return false;
+		}
+		return colorModel.update(hsvBytes, hsvimg.widthStep(), r.x(), r.y(),
+				r.width(), r.height());
+	}
+
+	/**
+	 * find the biggest blob, the binary img is destroyed
+	 * @return the bounding rectangle of the biggest blob, null if none
+	 */
+	public CvRect findBlob() {
+		if (labeler != null) {
+			return labelBlob();
+		}
+		// the offset moves the contours from the roi to the frame
+		cvFindContours(bimg, storage, contour, Loader.sizeof(CvContour.class),
+				CV_RETR_EXTERNAL, CV_CHAIN_APPROX_SIMPLE,
+				roi == null ? cvPoint(0, 0) : cvPoint(roi.x(), roi.y()));
+
+		CvRect r = null;
+		int maxArea = -1;
+		for (CvSeq c = contour; c != null && !c.isNull(); c = c.h_next()) {
+			if (c.elem_size() > 0) {
+				CvRect r1 = cvBoundingRect(c, 0);
+				int area = r1.width() * r1.height();
+				if (area > maxArea) {
+					r = r1;
+					maxArea = area;
+				}
+			}
+		}
+		cvClearMemStorage(storage);
+		return r;
+	}
+
+	/**
+	 * find the blob with the largest pixel area by {@link BlobExtractor},
+	 * the binary img is kept
+	 * @return the bounding rectangle of the blob, null if none. The object
+	 * is reused by the next call.
+	 */
+	private CvRect labelBlob() {
+		int x = 0, y = 0, w = bimg.width(), h = bimg.height();
+		if (roi != null) {
+			x = roi.x();
+			y = roi.y();
+			w = roi.width();
+			h = roi.height();
+		}
+		labeler.extract(maskBytes, bimg.widthStep(), x, y, w, h);
+		if (!labeler.hasBlob()) {
+			return null;
+		}
+		return blobRect.x(labeler.getX()).y(labeler.getY())
+				.width(labeler.getWidth()).height(labeler.getHeight());
+	}
+
+	/**
+	 * choose the blob finding: pure java labeling picks the blob by its
+	 * pixel area, cvFindContours by its bounding rectangle area
+	 * @param labeling
+	 */
+	public void setLabeling(boolean labeling) {
+		if (labeling && labeler == null) {
+			labeler = new BlobExtractor(bimg.width(), bimg.height());
+			blobRect = new CvRect();
+		} else if (!labeling) {
+			labeler = null;
+			blobRect = null;
+		}
+	}
+
+	public boolean isLabeling() {
+		return labeler != null;
+	}
+
+	/**
+	 * limit the following steps to a region of interest
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * the region in frame pixels, inside the frame
+	 */
+	public void setRoi(int x, int y, int w, int h) {
+		roi = cvRect(x, y, w, h);
+		cvSetImageROI(hsvimg, roi);
+		cvSetImageROI(bimg, roi);
+	}
+
+	/**
+	 * run the following steps on the whole frame
+	 */
+	public void clearRoi() {
+		if (roi != null) {
+			roi = null;
+			cvResetImageROI(hsvimg);
+			cvResetImageROI(bimg);
+		}
+	}
+
+	public boolean hasRoi() {
+		return roi != null;
+	}
+
+	/**
+	 * copy the mask, the part outside of the region of interest is cleared
+	 * @param dst
+	 * one channel image of the frame size
+	 */
+	public void copyMask(IplImage dst) {
+		if (roi != null) {
+			cvSetZero(dst);
+			cvSetImageROI(dst, roi);
+			cvCopy(bimg, dst);
+			cvResetImageROI(dst);
+		} else {
+			cvCopy(bimg, dst);
+		}
+	}
+
+	/**
+	 * @return the hsv img, converted now if the fused classification
+	 * skipped it
+	 */
+	public IplImage getHsvImage() {
+		if (pendingFrame != null) {
+			convert(pendingFrame);
+		}
+		return hsvimg;
+	}
+
+	public IplImage getMask() {
+		return bimg;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		clearRoi();
+		setColorModel(null);
+		if (morphology != null) {
+			morphology.release();
+			morphology = null;
+		}
+		if (storage != null) {
+			storage.release();
+			storage = null;
+		}
+		if (hsvimg != null) {
+			hsvimg.release();
+			hsvimg = null;
+		}
+		if (bimg != null) {
+			bimg.release();
+			bimg = null;
+		}
+	}
+}
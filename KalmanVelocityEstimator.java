@@ -0,0 +1,105 @@
+package l5;
+
+/**
+ * Constant velocity Kalman filter with state (value, speed).
+ *
+ * The speed is modeled as a random walk driven by white acceleration noise,
+ * so the filter gain adapts to the real time between the samples.
+ */
+public class KalmanVelocityEstimator implements VelocityEstimator {
+
+	// acceleration noise spectral density, (units/s^2)^2 * s
+	private double q;
+	// measurement noise variance, units^2
+	private double r;
+
+	private boolean started = false;
+	private long time;
+
+	// state
+	private double value;
+	private double speed;
+
+	// covariance, symmetric
+	private double p00;
+	private double p01;
+	private double p11;
+
+	/**
+	 * @param accelerationNoise
+	 * standard deviation of the value acceleration, units/s^2
+	 * @param measurementNoise
+	 * standard deviation of the measurement, units
+	 */
+	public KalmanVelocityEstimator(double accelerationNoise,
+			double measurementNoise) {
+		this.q = accelerationNoise * accelerationNoise;
+		this.r = measurementNoise * measurementNoise;
+	}
+
+	@Override
+	public void reset() {
+		started = false;
+		speed = 0;
+	}
+
+	@Override
+	public double update(double v, long t) {
+		if (!started) {
+			started = true;
+			time = t;
+			value = v;
+			speed = 0;
+			// the value is measured, the speed is unknown
+			p00 = r;
+			p01 = 0;
+			p11 = 1e6 * r;
+			return 0;
+		}
+		double dt = (t - time) / 1e9;
+		time = t;
+		if (dt <= 0) {
+			return speed;
+		}
+
+		// predict
+		value += speed * dt;
+		double dt2 = dt * dt;
+		p00 += dt * (2 * p01 + dt * p11) + q * dt2 * dt / 3;
+		p01 += dt * p11 + q * dt2 / 2;
+		p11 += q * dt;
+
+		// correct
+		double s = p00 + r;
+		double k0 = p00 / s;
+		double k1 = p01 / s;
+		double error = v - value;
+		value += k0 * error;
+		speed += k1 * error;
+		p11 -= k1 * p01;
+		p01 -= k1 * p00;
+		p00 -= k0 * p00;
+		return speed;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		KalmanVelocityEstimator t = new KalmanVelocityEstimator(5, 2);
+		assert (t.update(100, 0) == 0);
+
+		// converges to a constant speed of -40 units/s, with irregular
+		// frame times and +-2 noise
+		long time = 0;
+		double v = 100;
+		double speed = 0;
+		for (int i = 0; i < 300; i++) {
+			long dt = (i % 4 + 1) * 25000000L;
+			time += dt;
+			v += -40 * dt / 1e9;
+			speed = t.update(v + (i % 2 == 0 ? 2 : -2), time);
+		}
+		assert (Math.abs(speed + 40) < 5) : speed;
+
+		assert (false) : "all tests passed!";
+	}
+}
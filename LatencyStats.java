@@ -0,0 +1,121 @@
+package l5;
+
+/**
+ * Latency statistics: count, mean, max and a power of 2 histogram in ns,
+ * so percentiles can be read without keeping the samples.
+ *
+ * Recording does not allocate. The methods are synchronized so another
+ * thread can print the statistics while they are recorded.
+ */
+public class LatencyStats {
+
+	// bucket i counts the latencies in [2^(i-1), 2^i) ns
+	private static final int BUCKET_NUM = 64;
+
+	private String name;
+	private long[] buckets = new long[BUCKET_NUM];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	public LatencyStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * record one latency
+	 * @param nanos
+	 * negative values are counted as 0
+	 */
+	public synchronized void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKET_NUM; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean latency in ns
+	 */
+	public synchronized double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @return the max latency in ns
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * get the upper bound of a percentile, it is exact up to a factor of 2
+	 * @param p
+	 * the percentile in [0, 1]
+	 * @return the upper bound in ns
+	 */
+	public synchronized long getPercentile(double p) {
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_NUM; i++) {
+			seen += buckets[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min((1L << i) - 1, max);
+			}
+		}
+		return max;
+	}
+
+	public synchronized String toString() {
+		return String.format("%s: n = %d, mean = %.3f ms, p50 <= %.3f ms, "
+				+ "p99 <= %.3f ms, max = %.3f ms", name, count,
+				getMean() / 1e6, getPercentile(0.5) / 1e6,
+				getPercentile(0.99) / 1e6, max / 1e6);
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		LatencyStats t = new LatencyStats("test");
+		assert (t.getCount() == 0);
+		assert (t.getMean() == 0);
+		assert (t.getPercentile(0.5) == 0);
+
+		for (int i = 1; i <= 100; i++) {
+			t.record(i * 1000);
+		}
+		assert (t.getCount() == 100);
+		assert (t.getMean() == 50500);
+		assert (t.getMax() == 100000);
+		// the percentiles are upper bounds within a factor of 2
+		long p50 = t.getPercentile(0.5);
+		assert (p50 >= 50000 && p50 < 100000) : p50;
+		assert (t.getPercentile(1) == 100000);
+
+		t.record(-5);
+		assert (t.getCount() == 101);
+
+		t.reset();
+		assert (t.getCount() == 0);
+		assert (t.getMax() == 0);
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,164 @@
+package l5;
+
+import java.util.Random;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * Regression harness of the {@link MorphologyStage} configurations.
+ *
+ * On noisy {@link SyntheticFrame}s it compares the cleaned mask of every
+ * configuration with the mask of the original cleaning (LEGACY), and with
+ * the true human rectangle, by intersection over union. It also prints
+ * the time of each morphology pass.
+ *
+ * A configuration fails if the IoU of one of its masks with the legacy
+ * mask is below the min IoU, then the harness exits with 1.
+ *
+ * usage: java l5.MorphologyRegression [frames [noise dots [min IoU]]]
+ */
+public class MorphologyRegression {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int DEF_FRAMES = 200;
+	private static final int DEF_NOISE = 400;
+	// the legacy mask grows by 5 pixels on every side, the smallest human
+	// is 32 x 96
+	private static final double DEF_MIN_IOU = 0.6;
+
+	public static void main(String[] args) {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEF_FRAMES;
+		int noise = args.length > 1 ? Integer.parseInt(args[1]) : DEF_NOISE;
+		double minIou = args.length > 2 ? Double.parseDouble(args[2])
+				: DEF_MIN_IOU;
+
+		MorphologyStage[] stages = new MorphologyStage[] {
+				new MorphologyStage(),
+				new MorphologyStage(MorphologyStage.Order.CLOSE, 3, 13, false),
+				new MorphologyStage(MorphologyStage.Order.CLOSE, 3, 13, true),
+				new MorphologyStage(MorphologyStage.Order.OPEN_CLOSE, 3, 13,
+						true),
+				new MorphologyStage(MorphologyStage.Order.CLOSE_OPEN, 3, 13,
+						true),
+				new MorphologyStage(MorphologyStage.Order.OPEN_CLOSE, 5, 9,
+						true), };
+
+		SyntheticFrame scene = new SyntheticFrame(WIDTH, HEIGHT, 42);
+		scene.setNoise(noise);
+		HumanSegmenter segmenter = new HumanSegmenter(WIDTH, HEIGHT);
+		IplImage threshold = IplImage.create(cvSize(WIDTH, HEIGHT),
+				IPL_DEPTH_8U, 1);
+		IplImage legacy = IplImage.create(cvSize(WIDTH, HEIGHT), IPL_DEPTH_8U,
+				1);
+		IplImage truth = IplImage.create(cvSize(WIDTH, HEIGHT), IPL_DEPTH_8U,
+				1);
+		IplImage tmp = IplImage.create(cvSize(WIDTH, HEIGHT), IPL_DEPTH_8U, 1);
+
+		double[] iouLegacy = new double[stages.length];
+		double[] iouTruth = new double[stages.length];
+		double[] minIouLegacy = new double[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			minIouLegacy[i] = 1;
+		}
+
+		Random random = new Random(7);
+		for (int f = 0; f < frames; f++) {
+			int hh = HEIGHT / 5 + random.nextInt(HEIGHT / 2);
+			int hw = hh / 3;
+			int x = hw / 2 + random.nextInt(WIDTH - hw);
+			int y = hh / 2 + random.nextInt(HEIGHT - hh);
+			IplImage frame = scene.render(x, y, hw, hh);
+
+			cvSetZero(truth);
+			cvRectangle(truth, cvPoint(x - hw / 2, y - hh / 2),
+					cvPoint(x + hw / 2, y + hh / 2), cvScalarAll(255),
+					CV_FILLED, 8, 0);
+
+			segmenter.convertColor(frame);
+			segmenter.threshold(SyntheticFrame.HUMAN_HSV);
+			cvCopy(segmenter.getMask(), threshold);
+
+			for (int i = 0; i < stages.length; i++) {
+				cvCopy(threshold, tmp);
+				stages[i].apply(tmp);
+				if (i == 0) {
+					cvCopy(tmp, legacy);
+				}
+				double iou = iou(tmp, legacy, segmenter.getMask());
+				iouLegacy[i] += iou;
+				minIouLegacy[i] = Math.min(minIouLegacy[i], iou);
+				iouTruth[i] += iou(tmp, truth, segmenter.getMask());
+			}
+		}
+
+		int failed = 0;
+		for (int i = 0; i < stages.length; i++) {
+			MorphologyStage s = stages[i];
+			double ms = 0;
+			for (LatencyStats t : s.getTimes()) {
+				ms += t.getMean() / 1e6;
+			}
+			boolean fail = minIouLegacy[i] < minIou;
+			if (fail) {
+				failed++;
+			}
+			System.out.println(String.format(
+					"%-36s IoU vs legacy mean %.4f min %.4f, IoU vs truth "
+							+ "%.4f, %.3f ms%s", describe(s), iouLegacy[i]
+							/ frames, minIouLegacy[i], iouTruth[i] / frames,
+					ms, fail ? ", FAIL" : ""));
+			for (LatencyStats t : s.getTimes()) {
+				System.out.println("    " + t);
+			}
+			s.release();
+		}
+
+		threshold.release();
+		legacy.release();
+		truth.release();
+		tmp.release();
+		segmenter.release();
+		scene.release();
+
+		System.out.println(String.format("%d of %d configurations below "
+				+ "the min IoU %.2f vs legacy", failed, stages.length, minIou));
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * intersection over union of two masks
+	 * @param a
+	 * @param b
+	 * @param tmp
+	 * one channel image of the same size
+	 * @return 1 if both are empty
+	 */
+	public static double iou(IplImage a, IplImage b, IplImage tmp) {
+		cvAnd(a, b, tmp, null);
+		int intersection = cvCountNonZero(tmp);
+		cvOr(a, b, tmp, null);
+		int union = cvCountNonZero(tmp);
+		return union == 0 ? 1 : (double) intersection / union;
+	}
+
+	private static String describe(MorphologyStage s) {
+		StringBuilder sb = new StringBuilder(s.getOrder().toString());
+		switch (s.getOrder()) {
+		case LEGACY:
+			break;
+		case CLOSE:
+			sb.append(" close ").append(s.getCloseSize());
+			break;
+		default:
+			sb.append(" open ").append(s.getOpenSize()).append(" close ")
+					.append(s.getCloseSize());
+		}
+		sb.append(s.isSeparable() ? " separable" : "");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,187 @@
+package l5;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * Configurable morphology stage cleaning the binary mask.
+ *
+ * orders:
+ * LEGACY: one 3x3 erode and six 3x3 dilations, the original cleaning. It
+ *   grows the mask by 5 pixels on every side, it is not a close.
+ * OPEN_CLOSE: open (erode, dilate) removes the speckles, then close
+ *   (dilate, erode) fills the holes inside the human body.
+ * CLOSE_OPEN: close first, then open.
+ * CLOSE: only fill the holes.
+ *
+ * The open and close use rectangle kernels of the given sizes. A separable
+ * stage runs each rectangle as a row pass and a column pass, which costs
+ * n + n instead of n * n per pixel.
+ *
+ * The time of every pass is recorded, see {@link #getTimes()}.
+ */
+public class MorphologyStage {
+
+	public enum Order {
+		LEGACY, OPEN_CLOSE, CLOSE_OPEN, CLOSE;
+	}
+
+	private static final int ERODE = 0;
+	private static final int DILATE = 1;
+
+	private Order order;
+	private int openSize;
+	private int closeSize;
+	private boolean separable;
+
+	// the passes: operation, kernels and iterations
+	private int[] ops;
+	private IplConvKernel[][] kernels;
+	private int[] iterations;
+	private LatencyStats[] times;
+
+	/**
+	 * the original cleaning
+	 */
+	public MorphologyStage() {
+		this(Order.LEGACY, 3, 3, false);
+	}
+
+	/**
+	 * @param order
+	 * @param openSize
+	 * side of the open kernel, odd
+	 * @param closeSize
+	 * side of the close kernel, odd
+	 * @param separable
+	 * run the rectangle kernels as a row and a column pass
+	 */
+	public MorphologyStage(Order order, int openSize, int closeSize,
+			boolean separable) {
+		this.order = order;
+		this.openSize = openSize;
+		this.closeSize = closeSize;
+		this.separable = separable;
+		switch (order) {
+		case LEGACY:
+			// null kernel is the default 3x3 rectangle
+			init(new int[] { ERODE, DILATE }, new IplConvKernel[][] {
+					{ null }, { null } }, new int[] { 1, 6 },
+					new String[] { "erode 3x3", "dilate 3x3 x6" });
+			break;
+		case OPEN_CLOSE:
+			init(new int[] { ERODE, DILATE, DILATE, ERODE },
+					new IplConvKernel[][] { kernels(openSize, separable),
+							kernels(openSize, separable),
+							kernels(closeSize, separable),
+							kernels(closeSize, separable) }, new int[] { 1, 1,
+							1, 1 }, new String[] { "open erode " + openSize,
+							"open dilate " + openSize,
+							"close dilate " + closeSize,
+							"close erode " + closeSize });
+			break;
+		case CLOSE_OPEN:
+			init(new int[] { DILATE, ERODE, ERODE, DILATE },
+					new IplConvKernel[][] { kernels(closeSize, separable),
+							kernels(closeSize, separable),
+							kernels(openSize, separable),
+							kernels(openSize, separable) }, new int[] { 1, 1,
+							1, 1 }, new String[] { "close dilate " + closeSize,
+							"close erode " + closeSize,
+							"open erode " + openSize, "open dilate " + openSize });
+			break;
+		case CLOSE:
+			init(new int[] { DILATE, ERODE }, new IplConvKernel[][] {
+					kernels(closeSize, separable),
+					kernels(closeSize, separable) }, new int[] { 1, 1 },
+					new String[] { "close dilate " + closeSize,
+							"close erode " + closeSize });
+			break;
+		}
+	}
+
+	private void init(int[] ops, IplConvKernel[][] kernels, int[] iterations,
+			String[] names) {
+		this.ops = ops;
+		this.kernels = kernels;
+		this.iterations = iterations;
+		times = new LatencyStats[ops.length];
+		for (int i = 0; i < ops.length; i++) {
+			times[i] = new LatencyStats(names[i]);
+		}
+	}
+
+	/**
+	 * create the rectangle kernels of a pass
+	 * @param size
+	 * @param separable
+	 * @return one square kernel, or a row and a column kernel
+	 */
+	private static IplConvKernel[] kernels(int size, boolean separable) {
+		if (separable) {
+			return new IplConvKernel[] {
+					cvCreateStructuringElementEx(size, 1, size / 2, 0,
+							CV_SHAPE_RECT, null),
+					cvCreateStructuringElementEx(1, size, 0, size / 2,
+							CV_SHAPE_RECT, null) };
+		}
+		return new IplConvKernel[] { cvCreateStructuringElementEx(size, size,
+				size / 2, size / 2, CV_SHAPE_RECT, null) };
+	}
+
+	/**
+	 * clean the mask in place, honors the mask roi
+	 * @param mask
+	 */
+	public void apply(IplImage mask) {
+		for (int i = 0; i < ops.length; i++) {
+			long start = System.nanoTime();
+			for (IplConvKernel k : kernels[i]) {
+				if (ops[i] == ERODE) {
+					cvErode(mask, mask, k, iterations[i]);
+				} else {
+					cvDilate(mask, mask, k, iterations[i]);
+				}
+			}
+			times[i].record(System.nanoTime() - start);
+		}
+	}
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public int getOpenSize() {
+		return openSize;
+	}
+
+	public int getCloseSize() {
+		return closeSize;
+	}
+
+	public boolean isSeparable() {
+		return separable;
+	}
+
+	/**
+	 * @return the time of each pass
+	 */
+	public LatencyStats[] getTimes() {
+		return times;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (kernels != null) {
+			for (IplConvKernel[] ks : kernels) {
+				for (IplConvKernel k : ks) {
+					if (k != null) {
+						cvReleaseStructuringElement(k);
+					}
+				}
+			}
+			kernels = null;
+		}
+	}
+}
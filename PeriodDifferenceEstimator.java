@@ -0,0 +1,110 @@
+package l5;
+
+/**
+ * The difference of the newest sample and the sample about a period older,
+ * over their time difference. The older sample is the one whose age is
+ * nearest to the period, the newer one on a tie.
+ *
+ * At frame periods of 2/3 of the period or longer this is the plain
+ * difference of the last two samples. At shorter frame periods the
+ * difference spans several frames, so the single frame noise in the speed
+ * does not grow with the frame rate. Until a sample is a period old, the
+ * oldest one is used.
+ */
+public class PeriodDifferenceEstimator implements VelocityEstimator {
+
+	private long period;
+	private SampleRing samples;
+
+	/**
+	 * @param period
+	 * the min time between the differenced samples, in ns
+	 * @param capacity
+	 * samples kept, at least 2. With more frames per period the oldest
+	 * kept sample is used
+	 */
+	public PeriodDifferenceEstimator(long period, int capacity) {
+		if (period <= 0 || capacity < 2) {
+			throw new IllegalArgumentException(
+					"period > 0 and capacity >= 2: " + period + " "
+							+ capacity);
+		}
+		this.period = period;
+		samples = new SampleRing(capacity);
+	}
+
+	@Override
+	public void reset() {
+		samples.clear();
+	}
+
+	@Override
+	public double update(double value, long time) {
+		samples.add(value, time);
+		int n = samples.size();
+		if (n < 2) {
+			return 0;
+		}
+		// the ages grow to the oldest sample, stop at the first one at
+		// least a period old
+		int i = n - 2;
+		long dt = time - samples.getTime(i);
+		while (i > 0 && dt < period) {
+			long older = time - samples.getTime(i - 1);
+			if (older - period >= period - dt) {
+				break;
+			}
+			i--;
+			dt = older;
+		}
+		if (dt <= 0) {
+			return 0;
+		}
+		return (value - samples.getValue(i)) * 1e9 / dt;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		long period = 300000000L;
+		PeriodDifferenceEstimator t = new PeriodDifferenceEstimator(period, 32);
+		assert (t.update(0, 0) == 0);
+
+		// frames a period apart give the plain difference
+		DifferenceEstimator d = new DifferenceEstimator();
+		d.update(0, 0);
+		double[] values = { 3, -2, 7, 7, 1 };
+		for (int i = 0; i < values.length; i++) {
+			long time = (i + 1) * period;
+			assert (t.update(values[i], time) == d.update(values[i], time));
+		}
+
+		// at 5 fps too, 200 ms is nearer to 300 ms than 400 ms
+		t.reset();
+		d.reset();
+		for (int i = 0; i < values.length; i++) {
+			long time = i * 200000000L;
+			assert (t.update(values[i], time) == d.update(values[i], time));
+		}
+
+		// at 30 fps the difference spans a period, an alternating noise of
+		// +-1 px gives at most 2 px per period instead of 2 px per frame
+		t.reset();
+		long frame = 33333333L;
+		double speed = 0;
+		for (int i = 0; i < 100; i++) {
+			speed = t.update(10.0 * i * frame / 1e9 + (i % 2 == 0 ? 1 : -1), i
+					* frame);
+			if (i >= 10) {
+				// 2 px over the 9 frames nearest to 300 ms
+				assert (Math.abs(speed - 10) < 2 / 0.29) : i + " " + speed;
+			}
+		}
+
+		// a short ring uses its oldest sample
+		t = new PeriodDifferenceEstimator(period, 2);
+		t.update(0, 0);
+		assert (t.update(1, frame) == 1e9 / frame);
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,93 @@
+package l5;
+
+import java.io.File;
+
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * Low rate preview for a headless run.
+ *
+ * Every n-th frame is downscaled, the human rectangle is drawn on it and it
+ * is written to an image file, which can be watched remotely. The file is
+ * replaced by a rename, so a reader never sees a half written image.
+ */
+public class PreviewStream {
+
+	private int every;
+	private int scale;
+	private File file;
+	private File tmpFile;
+
+	// the downscaled frame
+	private IplImage small;
+
+	private final LatencyStats time = new LatencyStats("preview");
+
+	/**
+	 * @param w
+	 * @param h
+	 * the frame size
+	 * @param every
+	 * write every n-th frame
+	 * @param scale
+	 * downscale factor of the width and the height
+	 * @param file
+	 * the image file, its extension gives the format
+	 */
+	public PreviewStream(int w, int h, int every, int scale, File file) {
+		if (every < 1 || scale < 1) {
+			throw new IllegalArgumentException("every and scale must be >= 1: "
+					+ every + " " + scale);
+		}
+		this.every = every;
+		this.scale = scale;
+		this.file = file;
+		tmpFile = new File(file.getParentFile(), "tmp-" + file.getName());
+		small = IplImage.create(cvSize(w / scale, h / scale), IPL_DEPTH_8U, 3);
+	}
+
+	/**
+	 * write the frame if it is the n-th one
+	 * @param slot
+	 * a segmented frame
+	 * @return true if written
+	 */
+	public boolean offer(FrameSlot slot) {
+		if (slot.getFrameIndex() % every != 0) {
+			return false;
+		}
+		long start = System.nanoTime();
+		cvResize(slot.getImage(), small, CV_INTER_AREA);
+		if (slot.hasBox()) {
+			cvRectangle(small, cvPoint(slot.getX() / scale, slot.getY()
+					/ scale), cvPoint((slot.getX() + slot.getWidth()) / scale,
+					(slot.getY() + slot.getHeight()) / scale), CvScalar.RED, 1,
+					CV_AA, 0);
+		}
+		boolean written = cvSaveImage(tmpFile.getPath(), small) != 0
+				&& tmpFile.renameTo(file);
+		time.record(System.nanoTime() - start);
+		return written;
+	}
+
+	public int getEvery() {
+		return every;
+	}
+
+	public LatencyStats getTime() {
+		return time;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (small != null) {
+			small.release();
+			small = null;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package l5;
+
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * Coarse to fine segmentation on an image pyramid.
+ *
+ * The frame is downsampled by cvPyrDown levels times, every level halves
+ * the width and the height. The human is searched on the smallest image,
+ * then the bounding box is refined at full resolution only inside the
+ * coarse box, padded by a few coarse pixels.
+ *
+ * The full resolution steps run on the given {@link HumanSegmenter}, its
+ * region of interest is cleared after each call. The coarse segmenter
+ * follows its settings, see {@link #sync()}.
+ */
+public class PyramidSegmenter {
+
+	// padding of the coarse box, in coarse pixels
+	private static final int COARSE_PADDING = 2;
+
+	private HumanSegmenter fine;
+	private HumanSegmenter coarse;
+	// the fine morphology the coarse one was scaled from
+	private MorphologyStage fineMorphology = null;
+	private int levels;
+	private int w;
+	private int h;
+
+	// downsampled frames, pyramid[i] is level i + 1
+	private IplImage[] pyramid;
+
+	/**
+	 * @param fine
+	 * segmenter of the full frame size
+	 * @param w
+	 * @param h
+	 * the frame size
+	 * @param levels
+	 * number of pyramid levels, at least 1. The coarse image has
+	 * 1 / 4^levels of the frame area
+	 */
+	public PyramidSegmenter(HumanSegmenter fine, int w, int h, int levels) {
+		if (levels < 1) {
+			throw new IllegalArgumentException("levels must be >= 1: "
+					+ levels);
+		}
+		this.fine = fine;
+		this.levels = levels;
+		this.w = w;
+		this.h = h;
+		pyramid = new IplImage[levels];
+		int lw = w, lh = h;
+		for (int i = 0; i < levels; i++) {
+			lw = (lw + 1) / 2;
+			lh = (lh + 1) / 2;
+			pyramid[i] = IplImage.create(cvSize(lw, lh), IPL_DEPTH_8U, 3);
+		}
+		coarse = new HumanSegmenter(lw, lh);
+		sync();
+	}
+
+	/**
+	 * give the coarse segmenter the classifier, the blob finding, the
+	 * morphology and the color model of the fine one, call after changing
+	 * them. The morphology kernels are scaled down to the coarse pixels, the
+	 * color model is shared.
+	 */
+	public void sync() {
+		if (coarse.getClassifier() != fine.getClassifier()) {
+			coarse.setClassifier(fine.getClassifier());
+		}
+		if (coarse.isLabeling() != fine.isLabeling()) {
+			coarse.setLabeling(fine.isLabeling());
+		}
+		MorphologyStage m = fine.getMorphology();
+		if (m != fineMorphology) {
+			if (m.getOrder() == MorphologyStage.Order.LEGACY) {
+				coarse.setMorphology(new MorphologyStage());
+			} else {
+				coarse.setMorphology(new MorphologyStage(m.getOrder(),
+						coarseSize(m.getOpenSize()),
+						coarseSize(m.getCloseSize()), m.isSeparable()));
+			}
+			fineMorphology = m;
+		}
+		if (coarse.getColorModel() != fine.getColorModel()) {
+			coarse.shareColorModel(fine.getColorModel());
+		}
+	}
+
+	/**
+	 * @param size
+	 * kernel side in frame pixels
+	 * @return the odd kernel side in coarse pixels
+	 */
+	private int coarseSize(int size) {
+		return (size >> levels) | 1;
+	}
+
+	/**
+	 * search the human coarse to fine
+	 * @param frame
+	 * @param blobColor
+	 * the hsv color of the human
+	 * @param debugMask
+	 * if not null, gets a copy of the refined mask
+	 * @return the bounding rectangle in frame pixels, null if none
+	 */
+	public CvRect segment(IplImage frame, CvScalar blobColor,
+			IplImage debugMask) {
+		IplImage src = frame;
+		for (int i = 0; i < levels; i++) {
+			cvPyrDown(src, pyramid[i], CV_GAUSSIAN_5x5);
+			src = pyramid[i];
+		}
+		CvRect c = coarse.segment(src, blobColor);
+		if (c == null) {
+			if (debugMask != null) {
+				cvSetZero(debugMask);
+			}
+			return null;
+		}
+
+		// refine inside the coarse box at full resolution
+		int scale = 1 << levels;
+		int x0 = Math.max(0, (c.x() - COARSE_PADDING) * scale);
+		int y0 = Math.max(0, (c.y() - COARSE_PADDING) * scale);
+		int x1 = Math.min(w, (c.x() + c.width() + COARSE_PADDING) * scale);
+		int y1 = Math.min(h, (c.y() + c.height() + COARSE_PADDING) * scale);
+		fine.setRoi(x0, y0, x1 - x0, y1 - y0);
+		fine.convertColor(frame);
+		fine.threshold(blobColor);
+		fine.morphology();
+		if (debugMask != null) {
+			fine.copyMask(debugMask);
+		}
+		CvRect r = fine.findBlob();
+		fine.clearRoi();
+		if (r == null) {
+			// the coarse hit is still a good guess
+			r = cvRect(c.x() * scale, c.y() * scale, c.width() * scale,
+					c.height() * scale);
+		}
+		return r;
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (pyramid != null) {
+			for (IplImage img : pyramid) {
+				img.release();
+			}
+			pyramid = null;
+		}
+		if (coarse != null) {
+			coarse.release();
+			coarse = null;
+		}
+	}
+}
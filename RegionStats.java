@@ -0,0 +1,224 @@
+package l5;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Color statistics of a square window of an hsv image: mean, variance and
+ * median of each channel, and the circular mean of the hue.
+ *
+ * The window is clipped to the image and read in one pass over the hsv
+ * bytes, keeping a 256 bin histogram per channel. The medians come from
+ * the histograms, so a few outlier pixels, like a background pixel at the
+ * human border, do not move them.
+ *
+ * The hue is circular, 255 is next to 0, so its mean is the angle of the
+ * summed unit vectors, and its median is taken around that mean.
+ * {@link #getVariance(int)} of the hue is the plain one, use
+ * {@link #getHueDeviation()} for the circular spread.
+ *
+ * Nothing is allocated after construction.
+ */
+public class RegionStats {
+
+	private static final double[] SIN = new double[256];
+	private static final double[] COS = new double[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			SIN[i] = Math.sin(2 * Math.PI * i / 256);
+			COS[i] = Math.cos(2 * Math.PI * i / 256);
+		}
+	}
+
+	private int[][] counts = new int[3][256];
+	private long[] sums = new long[3];
+	private long[] squareSums = new long[3];
+	private int count = 0;
+
+	private double hueMean = 0;
+	private double hueLength = 0;
+
+	/**
+	 * compute the statistics of a window
+	 * @param hsv
+	 * 3 channel hsv bytes
+	 * @param step
+	 * bytes per row
+	 * @param imgW
+	 * @param imgH
+	 * the image size
+	 * @param x
+	 * @param y
+	 * the window center
+	 * @param radius
+	 * the window is 2 * radius + 1 pixels wide, clipped to the image
+	 * @return the number of pixels, 0 if the window is outside the image
+	 */
+	public int compute(ByteBuffer hsv, int step, int imgW, int imgH, int x,
+			int y, int radius) {
+		for (int c = 0; c < 3; c++) {
+			for (int i = 0; i < 256; i++) {
+				counts[c][i] = 0;
+			}
+			sums[c] = 0;
+			squareSums[c] = 0;
+		}
+		int x0 = Math.max(0, x - radius), x1 = Math.min(imgW - 1, x + radius);
+		int y0 = Math.max(0, y - radius), y1 = Math.min(imgH - 1, y + radius);
+		double sin = 0, cos = 0;
+		count = 0;
+		for (int j = y0; j <= y1; j++) {
+			int p = j * step + x0 * 3;
+			for (int i = x0; i <= x1; i++, p += 3) {
+				for (int c = 0; c < 3; c++) {
+					int v = hsv.get(p + c) & 0xff;
+					counts[c][v]++;
+					sums[c] += v;
+					squareSums[c] += v * v;
+				}
+				int h = hsv.get(p) & 0xff;
+				sin += SIN[h];
+				cos += COS[h];
+				count++;
+			}
+		}
+		if (count > 0) {
+			double a = Math.atan2(sin, cos) * 256 / (2 * Math.PI);
+			hueMean = a < 0 ? a + 256 : a;
+			hueLength = Math.sqrt(sin * sin + cos * cos) / count;
+		} else {
+			hueMean = 0;
+			hueLength = 0;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of pixels of the last window
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param c
+	 * the channel, 0 h, 1 s, 2 v
+	 * @return the mean, the plain one for the hue
+	 */
+	public double getMean(int c) {
+		return count == 0 ? 0 : (double) sums[c] / count;
+	}
+
+	/**
+	 * @param c
+	 * the channel
+	 * @return the variance, the plain one for the hue
+	 */
+	public double getVariance(int c) {
+		if (count == 0) {
+			return 0;
+		}
+		double mean = getMean(c);
+		return Math.max(0, (double) squareSums[c] / count - mean * mean);
+	}
+
+	/**
+	 * @return the circular mean of the hue, in [0, 256)
+	 */
+	public double getHueMean() {
+		return hueMean;
+	}
+
+	/**
+	 * @return the circular standard deviation of the hue, in hue units.
+	 * Infinite if the hues cancel out.
+	 */
+	public double getHueDeviation() {
+		if (count == 0) {
+			return 0;
+		}
+		return Math.sqrt(-2 * Math.log(hueLength)) * 256 / (2 * Math.PI);
+	}
+
+	/**
+	 * @param c
+	 * the channel, the hue median is taken around the circular mean
+	 * @return the median, the lower one for an even count
+	 */
+	public int getMedian(int c) {
+		if (count == 0) {
+			return 0;
+		}
+		int half = (count + 1) / 2;
+		int seen = 0;
+		if (c == 0) {
+			// the hues in [mean - 128, mean + 128)
+			int start = ((int) Math.round(hueMean) + 128) & 0xff;
+			for (int i = 0; i < 256; i++) {
+				seen += counts[0][(start + i) & 0xff];
+				if (seen >= half) {
+					return (start + i) & 0xff;
+				}
+			}
+		} else {
+			for (int i = 0; i < 256; i++) {
+				seen += counts[c][i];
+				if (seen >= half) {
+					return i;
+				}
+			}
+		}
+		return 255;
+	}
+
+	public String toString() {
+		return String.format("n %d, h mean %.1f sd %.1f median %d, "
+				+ "s mean %.1f sd %.1f median %d, v mean %.1f sd %.1f "
+				+ "median %d", count, hueMean, getHueDeviation(),
+				getMedian(0), getMean(1), Math.sqrt(getVariance(1)),
+				getMedian(1), getMean(2), Math.sqrt(getVariance(2)),
+				getMedian(2));
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		int w = 20, h = 10, step = w * 3;
+		ByteBuffer hsv = ByteBuffer.allocate(step * h);
+		// hue 250 and 6 alternating, s 100, v rising with x
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int p = y * step + x * 3;
+				hsv.put(p, (byte) ((x + y) % 2 == 0 ? 250 : 6));
+				hsv.put(p + 1, (byte) 100);
+				hsv.put(p + 2, (byte) (10 * x));
+			}
+		}
+		RegionStats t = new RegionStats();
+
+		// 3x3 window around (5, 5): v 40, 50, 60 on each row
+		assert (t.compute(hsv, step, w, h, 5, 5, 1) == 9);
+		assert (t.getMean(1) == 100);
+		assert (t.getVariance(1) == 0);
+		assert (t.getMean(2) == 50);
+		assert (Math.abs(t.getVariance(2) - 200.0 / 3) < 1e-9);
+		assert (t.getMedian(2) == 50);
+		// hues 250 and 6 average to 0 around the circle, not to 128
+		double d = t.getHueMean();
+		assert (Math.min(d, 256 - d) < 1.5) : d;
+		assert (t.getMedian(0) == 250 || t.getMedian(0) == 6);
+		assert (t.getHueDeviation() < 10) : t.getHueDeviation();
+
+		// clipped at the corner: 2x2 pixels
+		assert (t.compute(hsv, step, w, h, 0, 0, 1) == 4);
+		assert (t.getMean(2) == 5);
+		assert (t.compute(hsv, step, w, h, 19, 9, 7) == 8 * 8);
+		assert (t.compute(hsv, step, w, h, 40, 40, 3) == 0);
+
+		// one outlier does not move the median
+		hsv.put(5 * step + 5 * 3 + 2, (byte) 255);
+		t.compute(hsv, step, w, h, 5, 5, 1);
+		assert (t.getMedian(2) == 50);
+		assert (t.getMean(2) > 70);
+
+		assert (false) : "all tests passed!";
+	}
+}
@@ -0,0 +1,200 @@
+package l5;
+
+/**
+ * Region of interest tracker for the segmentation.
+ *
+ * The human moves only a little between two frames, so after a hit the
+ * next frame is only searched inside a window around the last bounding
+ * box, moved by the last box speed and padded by a margin plus the speed.
+ * After maxMisses frames without a hit in the window, the whole frame is
+ * searched again.
+ *
+ * All boxes are x, y, width, height in full frame pixels.
+ */
+public class RoiTracker {
+
+	// padding around the box, as fraction of the box size
+	private static final double MARGIN_RATIO = 0.25;
+	// min padding around the box, in pixels
+	private static final int MIN_MARGIN = 16;
+	// padding per pixel of box speed, per frame
+	private static final int SPEED_GAIN = 2;
+
+	private int frameW;
+	private int frameH;
+	private int maxMisses;
+
+	// last hit box, and the center speed between the last two hits
+	private boolean tracking = false;
+	private int[] box = new int[4];
+	private int vx = 0;
+	private int vy = 0;
+	private int misses = 0;
+
+	// the predicted window, reused
+	private int[] window = new int[4];
+
+	// statistics
+	private long roiHits = 0;
+	private long roiMisses = 0;
+	private long fullSearches = 0;
+
+	/**
+	 * @param frameW
+	 * @param frameH
+	 * the frame size
+	 * @param maxMisses
+	 * number of misses in the window before searching the whole frame
+	 */
+	public RoiTracker(int frameW, int frameH, int maxMisses) {
+		this.frameW = frameW;
+		this.frameH = frameH;
+		this.maxMisses = maxMisses;
+	}
+
+	/**
+	 * @return true if the next frame should only be searched in
+	 * {@link #getWindow()}
+	 */
+	public boolean hasWindow() {
+		return tracking;
+	}
+
+	/**
+	 * predict the search window of the next frame
+	 * @return x, y, width, height, owned by this object. Clipped to the
+	 * frame.
+	 */
+	public int[] getWindow() {
+		int padX = (int) (box[2] * MARGIN_RATIO) + MIN_MARGIN + SPEED_GAIN
+				* Math.abs(vx);
+		int padY = (int) (box[3] * MARGIN_RATIO) + MIN_MARGIN + SPEED_GAIN
+				* Math.abs(vy);
+		int x0 = Math.max(0, box[0] + vx - padX);
+		int y0 = Math.max(0, box[1] + vy - padY);
+		int x1 = Math.min(frameW, box[0] + box[2] + vx + padX);
+		int y1 = Math.min(frameH, box[1] + box[3] + vy + padY);
+		window[0] = x0;
+		window[1] = y0;
+		window[2] = Math.max(1, x1 - x0);
+		window[3] = Math.max(1, y1 - y0);
+		return window;
+	}
+
+	/**
+	 * the human was found
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * the bounding box
+	 * @param inWindow
+	 * true if only the window was searched
+	 */
+	public void hit(int x, int y, int w, int h, boolean inWindow) {
+		if (inWindow) {
+			roiHits++;
+			// the speed of the box center, in pixels per frame
+			vx = (2 * x + w - 2 * box[0] - box[2]) / 2;
+			vy = (2 * y + h - 2 * box[1] - box[3]) / 2;
+		} else {
+			fullSearches++;
+			vx = 0;
+			vy = 0;
+		}
+		box[0] = x;
+		box[1] = y;
+		box[2] = w;
+		box[3] = h;
+		tracking = true;
+		misses = 0;
+	}
+
+	/**
+	 * the human was not found
+	 * @param inWindow
+	 * true if only the window was searched
+	 */
+	public void miss(boolean inWindow) {
+		if (inWindow) {
+			roiMisses++;
+			if (++misses >= maxMisses) {
+				tracking = false;
+			}
+		} else {
+			fullSearches++;
+			tracking = false;
+		}
+	}
+
+	/**
+	 * forget the last box, the next frame is searched fully
+	 */
+	public void reset() {
+		tracking = false;
+		misses = 0;
+		vx = 0;
+		vy = 0;
+	}
+
+	public long getRoiHits() {
+		return roiHits;
+	}
+
+	public long getRoiMisses() {
+		return roiMisses;
+	}
+
+	public long getFullSearches() {
+		return fullSearches;
+	}
+
+	public String toString() {
+		long roi = roiHits + roiMisses;
+		return "roi hits " + roiHits + ", roi misses " + roiMisses
+				+ ", full searches " + fullSearches + ", roi hit rate "
+				+ (roi == 0 ? 0 : 100 * roiHits / roi) + "%";
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		RoiTracker t = new RoiTracker(640, 480, 3);
+		assert (!t.hasWindow());
+
+		// a full frame hit starts tracking, the window pads the box
+		t.hit(100, 100, 40, 120, false);
+		assert (t.hasWindow());
+		int[] w = t.getWindow();
+		assert (w[0] == 100 - 10 - 16);
+		assert (w[1] == 100 - 30 - 16);
+		assert (w[2] == 40 + 2 * 26);
+		assert (w[3] == 120 + 2 * 46);
+
+		// the window moves with the box and grows with the speed
+		t.hit(110, 100, 40, 120, true);
+		w = t.getWindow();
+		assert (w[0] == 110 + 10 - 10 - 16 - 20);
+		assert (w[2] == 40 + 2 * (26 + 20));
+
+		// clipped to the frame
+		t.hit(0, 0, 40, 120, false);
+		w = t.getWindow();
+		assert (w[0] == 0 && w[1] == 0);
+		t.hit(620, 400, 20, 80, false);
+		w = t.getWindow();
+		assert (w[0] + w[2] == 640 && w[1] + w[3] == 480);
+
+		// back to the full frame after 3 misses
+		t.miss(true);
+		t.miss(true);
+		assert (t.hasWindow());
+		t.miss(true);
+		assert (!t.hasWindow());
+
+		assert (t.getRoiHits() == 1);
+		assert (t.getRoiMisses() == 3);
+		assert (t.getFullSearches() == 3);
+
+		assert (false) : "all tests passed!";
+	}
+}
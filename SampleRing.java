@@ -0,0 +1,65 @@
+package l5;
+
+/**
+ * Fixed size ring buffer of timestamped samples, kept in primitive arrays.
+ * When it is full, adding a sample drops the oldest one.
+ */
+public class SampleRing {
+
+	private double[] values;
+	private long[] times;
+
+	// index of the next sample to write
+	private int head = 0;
+	private int size = 0;
+
+	public SampleRing(int capacity) {
+		values = new double[capacity];
+		times = new long[capacity];
+	}
+
+	public void add(double value, long time) {
+		values[head] = value;
+		times[head] = time;
+		head = head + 1 == values.length ? 0 : head + 1;
+		if (size < values.length) {
+			size++;
+		}
+	}
+
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * @param i
+	 * 0 is the oldest sample, size() - 1 the newest one
+	 * @return
+	 */
+	public double getValue(int i) {
+		return values[index(i)];
+	}
+
+	/**
+	 * @param i
+	 * 0 is the oldest sample, size() - 1 the newest one
+	 * @return
+	 */
+	public long getTime(int i) {
+		return times[index(i)];
+	}
+
+	private int index(int i) {
+		int k = head - size + i;
+		return k < 0 ? k + values.length : k;
+	}
+}
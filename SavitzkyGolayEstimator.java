@@ -0,0 +1,80 @@
+package l5;
+
+/**
+ * Savitzky-Golay style speed estimator: the slope of the least squares line
+ * through the last N samples.
+ *
+ * The samples keep their real timestamps, so the window also works when
+ * the frames are not evenly spaced. The speed lags by about half a window.
+ */
+public class SavitzkyGolayEstimator implements VelocityEstimator {
+
+	private SampleRing samples;
+
+	/**
+	 * @param window
+	 * number of samples in the window, at least 2
+	 */
+	public SavitzkyGolayEstimator(int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("window must be >= 2: "
+					+ window);
+		}
+		samples = new SampleRing(window);
+	}
+
+	@Override
+	public void reset() {
+		samples.clear();
+	}
+
+	@Override
+	public double update(double value, long time) {
+		samples.add(value, time);
+		int n = samples.size();
+		if (n < 2) {
+			return 0;
+		}
+		// times relative to the newest sample in seconds, to keep the sums
+		// small
+		long t0 = samples.getTime(n - 1);
+		double st = 0, sv = 0, stt = 0, stv = 0;
+		for (int i = 0; i < n; i++) {
+			double t = (samples.getTime(i) - t0) / 1e9;
+			double v = samples.getValue(i);
+			st += t;
+			sv += v;
+			stt += t * t;
+			stv += t * v;
+		}
+		double d = n * stt - st * st;
+		if (d <= 0) {
+			return 0;
+		}
+		return (n * stv - st * sv) / d;
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		SavitzkyGolayEstimator t = new SavitzkyGolayEstimator(5);
+		assert (t.update(0, 0) == 0);
+
+		// a ramp gives the exact speed, with irregular frame times
+		long time = 0;
+		double speed = 0;
+		for (int i = 1; i < 20; i++) {
+			time += (i % 3 + 1) * 40000000L;
+			speed = t.update(12.5 * time / 1e9, time);
+			assert (Math.abs(speed - 12.5) < 0.000001) : speed;
+		}
+
+		// alternating noise on a constant is averaged out
+		t.reset();
+		for (int i = 0; i < 5; i++) {
+			speed = t.update(i % 2 == 0 ? 1 : -1, i * 100000000L);
+		}
+		assert (Math.abs(speed) < 0.000001) : speed;
+
+		assert (false) : "all tests passed!";
+	}
+}
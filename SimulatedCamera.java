@@ -0,0 +1,209 @@
+package l5;
+
+import java.util.Random;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * A simulated pinhole camera on the {@link SimulatedRobot}, looking along
+ * the robot heading, that sees a {@link SimulatedHuman}.
+ *
+ * The human is the colored box the segmentation looks for, HUMAN_HEIGHT mm
+ * high and HUMAN_WIDTH mm wide, with its center HUMAN_CENTER mm above the
+ * camera. Like on the robot, the center goes up the frame when the human
+ * comes near, and the box is clipped by the frame, so the height shrinks.
+ *
+ * perception:
+ * direct: the x, h and y of the projected box go straight into the
+ *   detection, plus a gaussian box noise if set, see {@link #setNoise}
+ * render: the box is rendered into a synthetic frame and found by
+ *   {@link HumanSegmenter}, with its pixel errors and its cost
+ *
+ * The calibrated x is the frame center, and the calibrated height is the
+ * height at DESIRED_DISTANCE.
+ */
+public class SimulatedCamera {
+
+	public enum Perception {
+		DIRECT, RENDER;
+	}
+
+	public static final int DEF_WIDTH = 640;
+	public static final int DEF_HEIGHT = 480;
+
+	// focal length, in pixels
+	public static final double FOCAL = 400;
+
+	public static final double HUMAN_HEIGHT = 1000;
+	public static final double HUMAN_WIDTH = 400;
+	public static final double HUMAN_CENTER = 300;
+
+	// the distance the robot should keep, in mm
+	public static final double DESIRED_DISTANCE = 2000;
+
+	// nearer the human is behind the camera
+	private static final double MIN_DISTANCE = 50;
+
+	private int width;
+	private int height;
+	private Perception perception;
+
+	private SyntheticFrame scene;
+	private HumanSegmenter segmenter;
+
+	// the projected box: center x, center y, width, height
+	private int[] box = new int[4];
+
+	// standard deviation of the direct box edges, in pixels
+	private double noise = 0;
+	private Random random = new Random();
+
+	/**
+	 * @param width
+	 * @param height
+	 * the frame size
+	 * @param perception
+	 */
+	public SimulatedCamera(int width, int height, Perception perception) {
+		this.width = width;
+		this.height = height;
+		this.perception = perception;
+		if (perception == Perception.RENDER) {
+			scene = new SyntheticFrame(width, height, 7);
+			segmenter = new HumanSegmenter(width, height);
+		}
+	}
+
+	/**
+	 * @param robot
+	 * @param human
+	 * @return the distance along the camera axis, in mm
+	 */
+	public static double depth(SimulatedRobot robot, SimulatedHuman human) {
+		double dx = human.getX() - robot.getX();
+		double dy = human.getY() - robot.getY();
+		return dx * Math.cos(robot.getHeading()) + dy
+				* Math.sin(robot.getHeading());
+	}
+
+	/**
+	 * @param robot
+	 * @param human
+	 * @return the distance to the left of the camera axis, in mm
+	 */
+	public static double lateral(SimulatedRobot robot, SimulatedHuman human) {
+		double dx = human.getX() - robot.getX();
+		double dy = human.getY() - robot.getY();
+		return -dx * Math.sin(robot.getHeading()) + dy
+				* Math.cos(robot.getHeading());
+	}
+
+	/**
+	 * project the human box into the frame
+	 * @param robot
+	 * @param human
+	 * @param box
+	 * gets the center x, center y, width and height, clipped to the frame
+	 * @return false if the box is not in the frame
+	 */
+	public boolean project(SimulatedRobot robot, SimulatedHuman human,
+			int[] box) {
+		double d = depth(robot, human);
+		if (d < MIN_DISTANCE) {
+			return false;
+		}
+		double l = lateral(robot, human);
+		double s = FOCAL / d;
+		double cx = width / 2.0 - s * l;
+		double cy = height / 2.0 - s * HUMAN_CENTER;
+		int x0 = (int) Math.max(0, Math.round(cx - s * HUMAN_WIDTH / 2));
+		int x1 = (int) Math.min(width, Math.round(cx + s * HUMAN_WIDTH / 2));
+		int y0 = (int) Math.max(0, Math.round(cy - s * HUMAN_HEIGHT / 2));
+		int y1 = (int) Math.min(height, Math.round(cy + s * HUMAN_HEIGHT / 2));
+		if (x1 - x0 < 1 || y1 - y0 < 1) {
+			return false;
+		}
+		box[0] = (x0 + x1) / 2;
+		box[1] = (y0 + y1) / 2;
+		box[2] = x1 - x0;
+		box[3] = y1 - y0;
+		return true;
+	}
+
+	/**
+	 * take a frame and detect the human
+	 * @param robot
+	 * @param human
+	 * @param seq
+	 * @param frameIndex
+	 * @param time
+	 * the capture time, in ns
+	 * @return the detection, x relative to the frame center
+	 */
+	public Detection capture(SimulatedRobot robot, SimulatedHuman human,
+			long seq, long frameIndex, long time) {
+		boolean inFrame = human.isVisible() && project(robot, human, box);
+		int x = HumanDetection.NON_OBJECT;
+		int h = HumanDetection.NON_OBJECT;
+		int y = HumanDetection.NON_OBJECT;
+		if (perception == Perception.RENDER) {
+			IplImage frame = inFrame ? scene.render(box[0], box[1], box[2],
+					box[3]) : scene.render(-width, 0, 0, 0);
+			CvRect r = segmenter.segment(frame, SyntheticFrame.HUMAN_HSV);
+			if (r != null) {
+				x = r.x() + r.width() / 2 - width / 2;
+				h = r.height();
+				y = r.y() + r.height() / 2;
+			}
+		} else if (inFrame) {
+			x = box[0] - width / 2;
+			h = box[3];
+			y = box[1];
+			if (noise > 0) {
+				// each box edge is off by its own error
+				double left = noise * random.nextGaussian();
+				double right = noise * random.nextGaussian();
+				double top = noise * random.nextGaussian();
+				double bottom = noise * random.nextGaussian();
+				x += (int) Math.round((left + right) / 2);
+				h = Math.max(1, h + (int) Math.round(bottom - top));
+				y += (int) Math.round((top + bottom) / 2);
+			}
+		}
+		return new Detection(seq, frameIndex, time, x, h, y);
+	}
+
+	/**
+	 * add a gaussian error to each edge of the direct box, like the single
+	 * frame jitter of the segmentation
+	 * @param pixels
+	 * standard deviation of an edge, 0 for none
+	 * @param seed
+	 * of the errors, the same seed gives the same errors
+	 */
+	public void setNoise(double pixels, long seed) {
+		noise = pixels;
+		random.setSeed(seed);
+	}
+
+	/**
+	 * @return the human height at DESIRED_DISTANCE, the calibrated height
+	 * of the control
+	 */
+	public int getCalibratedHeight() {
+		return (int) Math.round(FOCAL * HUMAN_HEIGHT / DESIRED_DISTANCE);
+	}
+
+	public Perception getPerception() {
+		return perception;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (scene != null) {
+			scene.release();
+			segmenter.release();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package l5;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scripted walking human for the {@link Simulation}.
+ *
+ * The script is a list of segments, each walks with a constant speed and
+ * turn rate for a duration, visible or hidden behind an occlusion. After
+ * the script the human stands still and visible. The pose is x, y in mm and
+ * the heading in rad, like {@link SimulatedRobot}.
+ */
+public class SimulatedHuman {
+
+	private double x;
+	private double y;
+	private double heading;
+
+	// duration s, v mm/s, w rad/s, visible 1 or 0
+	private List<double[]> script = new ArrayList<double[]>();
+	private double duration = 0;
+	private double time = 0;
+
+	/**
+	 * @param x
+	 * @param y
+	 * the start position, in mm
+	 * @param heading
+	 * in rad
+	 */
+	public SimulatedHuman(double x, double y, double heading) {
+		this.x = x;
+		this.y = y;
+		this.heading = heading;
+	}
+
+	/**
+	 * append a segment to the script
+	 * @param seconds
+	 * @param v
+	 * walking speed, in mm/s
+	 * @param w
+	 * turn rate, in rad/s, left is positive
+	 */
+	public void walk(double seconds, double v, double w) {
+		script.add(new double[] { seconds, v, w, 1 });
+		duration += seconds;
+	}
+
+	/**
+	 * append a segment hidden from the camera
+	 * @param seconds
+	 * @param v
+	 * @param w
+	 */
+	public void hide(double seconds, double v, double w) {
+		script.add(new double[] { seconds, v, w, 0 });
+		duration += seconds;
+	}
+
+	/**
+	 * @return the current segment, null after the script
+	 */
+	private double[] segment() {
+		double t = time;
+		for (double[] s : script) {
+			if (t < s[0]) {
+				return s;
+			}
+			t -= s[0];
+		}
+		return null;
+	}
+
+	/**
+	 * advance the script
+	 * @param dt
+	 * in s
+	 */
+	public void step(double dt) {
+		double[] s = segment();
+		if (s != null) {
+			double turn = s[2] * dt;
+			x += s[1] * dt * Math.cos(heading + turn / 2);
+			y += s[1] * dt * Math.sin(heading + turn / 2);
+			heading = SimulatedRobot.normalizeAngle(heading + turn);
+		}
+		time += dt;
+	}
+
+	public boolean isVisible() {
+		double[] s = segment();
+		return s == null || s[3] != 0;
+	}
+
+	/**
+	 * @return the time the human stops, in s
+	 */
+	public double getDuration() {
+		return duration;
+	}
+
+	public double getTime() {
+		return time;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getHeading() {
+		return heading;
+	}
+}
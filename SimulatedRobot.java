@@ -0,0 +1,216 @@
+package l5;
+
+/**
+ * A simulated differential drive robot, a stand-in for
+ * {@link ohmm.OHMMDrive} that takes the same velocity commands.
+ *
+ * The pose is x, y in mm and the heading in rad, counter clockwise from the
+ * x axis, so a positive w turns left like on the robot. The wheel speeds
+ * follow the command with a first order lag and are limited, then the pose
+ * is integrated exactly along the arc of each step.
+ *
+ * Only the thread calling {@link #step(double)} may read the pose.
+ */
+public class SimulatedRobot implements Drive {
+
+	// time constant of the wheel speeds, in s
+	public static final double DEF_TIME_CONSTANT = 0.15;
+
+	// max forward speed, in mm/s
+	public static final double DEF_MAX_V = 500;
+
+	// max turn rate, in rad/s
+	public static final double DEF_MAX_W = 2;
+
+	private double x = 0;
+	private double y = 0;
+	private double heading = 0;
+
+	// the actual speeds
+	private double v = 0;
+	private double w = 0;
+
+	// the last command
+	private volatile float commandV = 0;
+	private volatile float commandW = 0;
+	private volatile long commands = 0;
+
+	private double timeConstant = DEF_TIME_CONSTANT;
+	private double maxV = DEF_MAX_V;
+	private double maxW = DEF_MAX_W;
+
+	private double traveled = 0;
+
+	public void driveSetVW(float v, float w) {
+		commandV = v;
+		commandW = w;
+		commands++;
+	}
+
+	/**
+	 * advance the simulation
+	 * @param dt
+	 * in s
+	 */
+	public void step(double dt) {
+		double a = timeConstant > 0 ? 1 - Math.exp(-dt / timeConstant) : 1;
+		v += (clamp(commandV, maxV) - v) * a;
+		w += (clamp(commandW, maxW) - w) * a;
+
+		double turn = w * dt;
+		if (Math.abs(turn) < 1e-9) {
+			x += v * dt * Math.cos(heading);
+			y += v * dt * Math.sin(heading);
+		} else {
+			// along the arc of radius v / w
+			double r = v / w;
+			x += r * (Math.sin(heading + turn) - Math.sin(heading));
+			y -= r * (Math.cos(heading + turn) - Math.cos(heading));
+		}
+		heading = normalizeAngle(heading + turn);
+		traveled += Math.abs(v) * dt;
+	}
+
+	private static double clamp(double value, double max) {
+		return Math.max(-max, Math.min(max, value));
+	}
+
+	/**
+	 * @param a
+	 * @return the angle in (-pi, pi]
+	 */
+	public static double normalizeAngle(double a) {
+		a = Math.IEEEremainder(a, 2 * Math.PI);
+		return a <= -Math.PI ? a + 2 * Math.PI : a;
+	}
+
+	/**
+	 * place the robot, stopped
+	 * @param x
+	 * @param y
+	 * in mm
+	 * @param heading
+	 * in rad
+	 */
+	public void setPose(double x, double y, double heading) {
+		this.x = x;
+		this.y = y;
+		this.heading = normalizeAngle(heading);
+		v = 0;
+		w = 0;
+		commandV = 0;
+		commandW = 0;
+		traveled = 0;
+	}
+
+	/**
+	 * @param timeConstant
+	 * of the wheel speeds in s, 0 follows the command at once
+	 */
+	public void setTimeConstant(double timeConstant) {
+		this.timeConstant = timeConstant;
+	}
+
+	/**
+	 * @param maxV
+	 * in mm/s
+	 * @param maxW
+	 * in rad/s
+	 */
+	public void setLimits(double maxV, double maxW) {
+		this.maxV = maxV;
+		this.maxW = maxW;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public double getHeading() {
+		return heading;
+	}
+
+	public double getV() {
+		return v;
+	}
+
+	public double getW() {
+		return w;
+	}
+
+	/**
+	 * @return the number of commands received
+	 */
+	public long getCommandCount() {
+		return commands;
+	}
+
+	/**
+	 * @return the path length since the last pose, in mm
+	 */
+	public double getTraveled() {
+		return traveled;
+	}
+
+	public String toString() {
+		return String.format("x %.1f y %.1f heading %.3f v %.1f w %.3f", x,
+				y, heading, v, w);
+	}
+
+	// unit test
+	public static void main(String[] args) {
+		SimulatedRobot r = new SimulatedRobot();
+		r.setTimeConstant(0);
+
+		// straight ahead, 100 mm/s for 1 s
+		r.driveSetVW(100, 0);
+		for (int i = 0; i < 100; i++) {
+			r.step(0.01);
+		}
+		assert (Math.abs(r.getX() - 100) < 1e-9) : r;
+		assert (Math.abs(r.getY()) < 1e-9) : r;
+		assert (r.getCommandCount() == 1);
+
+		// a full circle comes back, a left turn goes to +y first
+		r.setPose(0, 0, 0);
+		r.driveSetVW(100, 0.5f);
+		r.step(0.5);
+		assert (r.getY() > 0) : r;
+		r.setPose(0, 0, 0);
+		r.driveSetVW(100, 0.5f);
+		int n = 1000;
+		for (int i = 0; i < n; i++) {
+			r.step(2 * Math.PI / 0.5 / n);
+		}
+		assert (Math.abs(r.getX()) < 1e-6 && Math.abs(r.getY()) < 1e-6) : r;
+		assert (Math.abs(r.getTraveled() - 2 * Math.PI * 200) < 1e-6);
+
+		// turning in place
+		r.setPose(0, 0, Math.PI / 2);
+		r.driveSetVW(0, -1);
+		r.step(Math.PI / 2);
+		assert (Math.abs(r.getHeading()) < 1e-9) : r;
+		assert (Math.abs(r.getX()) < 1e-9 && Math.abs(r.getY()) < 1e-9);
+
+		// the limits and the lag
+		r.setPose(0, 0, 0);
+		r.setLimits(200, 1);
+		r.setTimeConstant(0.1);
+		r.driveSetVW(1000, 5);
+		r.step(0.1);
+		assert (Math.abs(r.getV() - 200 * (1 - Math.exp(-1))) < 1e-9) : r;
+		for (int i = 0; i < 100; i++) {
+			r.step(0.01);
+		}
+		assert (Math.abs(r.getV() - 200) < 1e-2 && r.getW() <= 1) : r;
+
+		assert (Math.abs(normalizeAngle(3 * Math.PI) - Math.PI) < 1e-9);
+		assert (Math.abs(normalizeAngle(-Math.PI / 2) + Math.PI / 2) < 1e-9);
+
+		assert (false) : "all tests passed!";
+	}
+}
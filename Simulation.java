@@ -0,0 +1,500 @@
+package l5;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+
+/**
+ * Closed loop simulation of the human following, without the robot or the
+ * camera: the fuzzy control of {@link FzControll} drives a
+ * {@link SimulatedRobot} that follows a scripted {@link SimulatedHuman},
+ * seen by a {@link SimulatedCamera}.
+ *
+ * The time is simulated, so a run takes as long as the control and the
+ * perception compute. The robot and the human move in steps of STEP s, the
+ * camera takes a frame every FRAME_PERIOD by default, and each detection
+ * reaches the
+ * control LATENCY after its capture, like the detection pipeline. The
+ * control runs once per detection, like
+ * {@link FzControll#followHuman()}.
+ *
+ * metrics of a run:
+ * distance: rms and max of the distance minus DESIRED_DISTANCE, in mm
+ * bearing: rms of the human angle off the camera axis, in degrees
+ * x: rms of the detected x, in pixels
+ * lost: detections without the human while it is not occluded
+ * effort: rms of the command changes between the control ticks, v and w
+ *   relative to the max of the robot
+ * settle: time from the end of the script until the distance and the
+ *   bearing stay within the tolerances, "-" if they do not
+ * cpu: thread cpu time of the control per detection
+ *
+ * usage:
+ * java l5.Simulation [direct|render] [mamdani|sugeno] [-g file] [-s file]
+ *   [-f ms] [-n px] [-e period|difference|savitzky-golay] [scenario ...]
+ *   runs all the scenarios by default, with the mode of
+ *   {@link FzInference}, the gains of a gain file, the Sugeno singletons
+ *   of a singleton file, a frame period, a direct box noise and a speed
+ *   estimator, see ESTIMATORS
+ */
+public class Simulation {
+
+	// simulation step, in s
+	public static final double STEP = 0.01;
+
+	// camera frame period, in ns
+	public static final long FRAME_PERIOD = 200000000L;
+
+	// from capture to control, in ns
+	public static final long LATENCY = 100000000L;
+
+	// time simulated after the end of the script, in s
+	public static final double SETTLE_TIME = 10;
+
+	// settled within DISTANCE_TOLERANCE * DESIRED_DISTANCE and
+	// BEARING_TOLERANCE rad
+	public static final double DISTANCE_TOLERANCE = 0.1;
+	public static final double BEARING_TOLERANCE = 0.1;
+
+	public static final String[] SCENARIOS = { "straight", "turns",
+			"stop-go", "occlusion", "sidestep", "approach" };
+
+	/**
+	 * human speed estimators:
+	 * period: the default of FzControll, the difference over a
+	 *   DERIVATIVE_PERIOD
+	 * difference: the difference of the last two frames
+	 * savitzky-golay: the least squares slope over a DERIVATIVE_PERIOD
+	 */
+	public static final String[] ESTIMATORS = { "period", "difference",
+			"savitzky-golay" };
+
+	// seed of the box noise of every run
+	private static final long NOISE_SEED = 11;
+
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory
+			.getThreadMXBean();
+
+	private SimulatedCamera camera;
+	private FzInference.Mode mode = FzInference.Mode.MAMDANI;
+	private FzGains gains = new FzGains();
+	private FzSingletons singletons = new FzSingletons();
+	private long framePeriod = FRAME_PERIOD;
+	private double noise = 0;
+	private String estimator = ESTIMATORS[0];
+
+	/**
+	 * @param perception
+	 */
+	public Simulation(SimulatedCamera.Perception perception) {
+		camera = new SimulatedCamera(SimulatedCamera.DEF_WIDTH,
+				SimulatedCamera.DEF_HEIGHT, perception);
+	}
+
+	/**
+	 * @param mode
+	 * the fuzzy inference of the following runs
+	 */
+	public void setMode(FzInference.Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * @param gains
+	 * the normalizer ranges of the following runs
+	 */
+	public void setGains(FzGains gains) {
+		this.gains = gains.copy();
+	}
+
+	/**
+	 * @param singletons
+	 * the Sugeno singletons of the following runs
+	 */
+	public void setSingletons(FzSingletons singletons) {
+		this.singletons = singletons.copy();
+	}
+
+	/**
+	 * @param framePeriod
+	 * the camera frame period of the following runs, in ns
+	 */
+	public void setFramePeriod(long framePeriod) {
+		if (framePeriod <= 0) {
+			throw new IllegalArgumentException("frame period must be > 0: "
+					+ framePeriod);
+		}
+		this.framePeriod = framePeriod;
+	}
+
+	/**
+	 * @param pixels
+	 * standard deviation of the direct box edges of the following runs
+	 */
+	public void setNoise(double pixels) {
+		noise = pixels;
+	}
+
+	/**
+	 * @param name
+	 * the human speed estimator of the following runs, one of ESTIMATORS
+	 */
+	public void setEstimator(String name) {
+		estimator(name, framePeriod);
+		estimator = name;
+	}
+
+	/**
+	 * @param name
+	 * one of ESTIMATORS
+	 * @param framePeriod
+	 * in ns
+	 * @return a new estimator
+	 */
+	public static VelocityEstimator estimator(String name, long framePeriod) {
+		if (name.equals("period")) {
+			return FzControll.newSpeedEstimator();
+		} else if (name.equals("difference")) {
+			return new DifferenceEstimator();
+		} else if (name.equals("savitzky-golay")) {
+			long period = FzControll.DERIVATIVE_PERIOD * 1000000L;
+			return new SavitzkyGolayEstimator((int) Math.max(2, period
+					/ framePeriod + 1));
+		}
+		throw new IllegalArgumentException("unknown estimator: " + name);
+	}
+
+	/**
+	 * @param name
+	 * one of SCENARIOS
+	 * @return the human of the scenario, DESIRED_DISTANCE ahead of the robot
+	 * at the origin
+	 */
+	public static SimulatedHuman scenario(String name) {
+		double d = SimulatedCamera.DESIRED_DISTANCE;
+		SimulatedHuman human;
+		if (name.equals("straight")) {
+			human = new SimulatedHuman(d, 0, 0);
+			human.walk(10, 200, 0);
+		} else if (name.equals("turns")) {
+			human = new SimulatedHuman(d, 0, 0);
+			human.walk(3, 200, 0);
+			human.walk(4, 200, 0.3);
+			human.walk(4, 200, -0.3);
+			human.walk(3, 200, 0);
+		} else if (name.equals("stop-go")) {
+			human = new SimulatedHuman(d, 0, 0);
+			human.walk(4, 200, 0);
+			human.walk(3, 0, 0);
+			human.walk(4, 200, 0);
+			human.walk(3, 0, 0);
+			human.walk(4, 200, 0);
+		} else if (name.equals("occlusion")) {
+			human = new SimulatedHuman(d, 0, 0);
+			human.walk(3, 200, 0);
+			human.hide(1.5, 200, 0.2);
+			human.walk(4, 200, 0);
+		} else if (name.equals("sidestep")) {
+			// across the view, to the left and back
+			human = new SimulatedHuman(d, 0, Math.PI / 2);
+			human.walk(4, 150, 0);
+			human.walk(4, -150, 0);
+		} else if (name.equals("approach")) {
+			// the robot does not back off
+			human = new SimulatedHuman(d, 0, Math.PI);
+			human.walk(3, 200, 0);
+		} else {
+			throw new IllegalArgumentException("unknown scenario: " + name);
+		}
+		return human;
+	}
+
+	/**
+	 * run a scenario to the end of the script and SETTLE_TIME more
+	 * @param name
+	 * @param human
+	 * @return the metrics
+	 */
+	public Result run(String name, SimulatedHuman human) {
+		SimulatedRobot robot = new SimulatedRobot();
+		FzControll control = new FzControll(robot, null);
+		control.setVerbose(false);
+		control.setCalibratedY(camera.getCalibratedHeight());
+		control.getInference().setMode(mode);
+		control.getInference().setGains(gains);
+		singletons.apply(control.getInference());
+		control.setVelocityEstimators(estimator(estimator, framePeriod),
+				estimator(estimator, framePeriod));
+		camera.setNoise(noise, NOISE_SEED);
+
+		Result result = new Result(name);
+		ArrayDeque<Detection> inFlight = new ArrayDeque<Detection>();
+		double[] command = new double[2];
+		double lastV = 0, lastW = 0;
+		long stepTime = (long) (STEP * 1e9);
+		long end = (long) ((human.getDuration() + SETTLE_TIME) * 1e9);
+		double distanceTolerance = DISTANCE_TOLERANCE
+				* SimulatedCamera.DESIRED_DISTANCE;
+		double lastUnsettled = 0;
+		boolean cpuTime = THREAD_BEAN.isCurrentThreadCpuTimeSupported();
+		long frameIndex = 0;
+		long nextFrame = 0;
+		long start = System.nanoTime();
+
+		for (long t = 0; t <= end; t += stepTime) {
+			if (t >= nextFrame) {
+				long p = System.nanoTime();
+				Detection d = camera.capture(robot, human, frameIndex + 1,
+						frameIndex, t);
+				result.perception.record(System.nanoTime() - p);
+				inFlight.add(d);
+				frameIndex++;
+				nextFrame += framePeriod;
+				if (d.isVisible()) {
+					result.xSquares += (double) d.getX() * d.getX();
+					result.visibleFrames++;
+				} else if (human.isVisible()) {
+					result.lost++;
+				}
+			}
+			while (!inFlight.isEmpty()
+					&& inFlight.peek().getCaptureTime() + LATENCY <= t) {
+				Detection d = inFlight.poll();
+				long cpu = cpuTime ? THREAD_BEAN.getCurrentThreadCpuTime() : 0;
+				long c = System.nanoTime();
+				control.control(d, command);
+				robot.driveSetVW((float) command[0], (float) command[1]);
+				double dv = (command[0] - lastV) / SimulatedRobot.DEF_MAX_V;
+				double dw = (command[1] - lastW) / SimulatedRobot.DEF_MAX_W;
+				result.effortSquares += dv * dv + dw * dw;
+				lastV = command[0];
+				lastW = command[1];
+				result.control.record(System.nanoTime() - c);
+				if (cpuTime) {
+					result.cpu += THREAD_BEAN.getCurrentThreadCpuTime() - cpu;
+				}
+			}
+
+			robot.step(STEP);
+			human.step(STEP);
+
+			double depth = SimulatedCamera.depth(robot, human);
+			double lateral = SimulatedCamera.lateral(robot, human);
+			double distance = Math.sqrt(depth * depth + lateral * lateral);
+			double distanceError = distance
+					- SimulatedCamera.DESIRED_DISTANCE;
+			double bearing = Math.atan2(lateral, depth);
+			result.distanceSquares += distanceError * distanceError;
+			result.bearingSquares += bearing * bearing;
+			result.maxDistance = Math.max(result.maxDistance, Math
+					.abs(distanceError));
+			result.steps++;
+			if (Math.abs(distanceError) > distanceTolerance
+					|| Math.abs(bearing) > BEARING_TOLERANCE) {
+				lastUnsettled = human.getTime();
+			}
+		}
+		result.wallTime = (System.nanoTime() - start) / 1e9;
+		result.simulatedTime = end / 1e9;
+		result.commands = robot.getCommandCount();
+		result.traveled = robot.getTraveled();
+		result.settlingTime = lastUnsettled >= human.getTime() - STEP ? -1
+				: Math.max(0, lastUnsettled - human.getDuration());
+		return result;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		camera.release();
+	}
+
+	/**
+	 * The metrics of a run.
+	 */
+	public static class Result {
+
+		private String name;
+		private long steps = 0;
+		private double distanceSquares = 0;
+		private double bearingSquares = 0;
+		private double maxDistance = 0;
+		private double xSquares = 0;
+		private long visibleFrames = 0;
+		private long lost = 0;
+		private double effortSquares = 0;
+		private long commands = 0;
+		private double traveled = 0;
+		private double settlingTime = -1;
+		private long cpu = 0;
+		private double wallTime = 0;
+		private double simulatedTime = 0;
+		private LatencyStats control = new LatencyStats("control tick");
+		private LatencyStats perception = new LatencyStats("perception");
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the rms distance error, in mm
+		 */
+		public double getDistanceError() {
+			return steps == 0 ? 0 : Math.sqrt(distanceSquares / steps);
+		}
+
+		/**
+		 * @return the max absolute distance error, in mm
+		 */
+		public double getMaxDistanceError() {
+			return maxDistance;
+		}
+
+		/**
+		 * @return the rms bearing error, in rad
+		 */
+		public double getBearingError() {
+			return steps == 0 ? 0 : Math.sqrt(bearingSquares / steps);
+		}
+
+		/**
+		 * @return the rms detected x, in pixels
+		 */
+		public double getXError() {
+			return visibleFrames == 0 ? 0 : Math.sqrt(xSquares
+					/ visibleFrames);
+		}
+
+		/**
+		 * @return the detections without the human while it is not occluded
+		 */
+		public long getLost() {
+			return lost;
+		}
+
+		/**
+		 * @return the rms of the relative command changes per control tick
+		 */
+		public double getEffort() {
+			long n = control.getCount();
+			return n == 0 ? 0 : Math.sqrt(effortSquares / n);
+		}
+
+		/**
+		 * @return the time from the end of the script until settled, in s,
+		 * -1 if not settled
+		 */
+		public double getSettlingTime() {
+			return settlingTime;
+		}
+
+		/**
+		 * @return the mean control thread cpu time per detection, in ns
+		 */
+		public double getControlCpu() {
+			long n = control.getCount();
+			return n == 0 ? 0 : (double) cpu / n;
+		}
+
+		public LatencyStats getControlTime() {
+			return control;
+		}
+
+		public LatencyStats getPerceptionTime() {
+			return perception;
+		}
+
+		/**
+		 * @return simulated time over wall time
+		 */
+		public double getSpeedup() {
+			return wallTime == 0 ? 0 : simulatedTime / wallTime;
+		}
+
+		public static String header() {
+			return String.format(
+					"%-10s %9s %9s %8s %7s %5s %6s %7s %8s %9s %8s",
+					"scenario", "dist rms", "dist max", "bear rms", "x rms",
+					"lost", "effort", "settle", "traveled", "cpu/tick",
+					"speedup");
+		}
+
+		public String toString() {
+			return String.format("%-10s %6.0f mm %6.0f mm %6.2f d %4.0f px "
+					+ "%5d %6.3f %7s %5.0f mm %6.1f us %7.0fx", name,
+					getDistanceError(), maxDistance, Math
+							.toDegrees(getBearingError()), getXError(), lost,
+					getEffort(),
+					settlingTime < 0 ? "-" : String.format("%.1f s",
+							settlingTime), traveled, getControlCpu() / 1e3,
+					getSpeedup());
+		}
+	}
+
+	/** Program entry point. **/
+	public static void main(String[] args) throws IOException {
+		SimulatedCamera.Perception perception = SimulatedCamera.Perception.DIRECT;
+		int first = 0;
+		if (args.length > 0
+				&& (args[0].equals("direct") || args[0].equals("render"))) {
+			perception = SimulatedCamera.Perception.valueOf(args[0]
+					.toUpperCase());
+			first = 1;
+		}
+		FzInference.Mode mode = FzInference.Mode.MAMDANI;
+		if (args.length > first
+				&& (args[first].equals("mamdani") || args[first]
+						.equals("sugeno"))) {
+			mode = FzInference.Mode.valueOf(args[first].toUpperCase());
+			first++;
+		}
+		Simulation sim = new Simulation(perception);
+		sim.setMode(mode);
+		while (args.length > first + 1 && args[first].startsWith("-")) {
+			String option = args[first], value = args[first + 1];
+			if (option.equals("-g")) {
+				sim.setGains(FzGains.load(new File(value)));
+			} else if (option.equals("-s")) {
+				sim.setSingletons(FzSingletons.load(new File(value)));
+			} else if (option.equals("-f")) {
+				sim.setFramePeriod((long) (Double.parseDouble(value) * 1e6));
+			} else if (option.equals("-n")) {
+				sim.setNoise(Double.parseDouble(value));
+			} else if (option.equals("-e")) {
+				sim.setEstimator(value);
+			} else {
+				throw new IllegalArgumentException("unknown option: "
+						+ option);
+			}
+			first += 2;
+		}
+		String[] names = SCENARIOS;
+		if (args.length > first) {
+			names = new String[args.length - first];
+			System.arraycopy(args, first, names, 0, names.length);
+		}
+
+		// warm up the JIT so the cpu times are of the compiled control
+		sim.run("warmup", scenario(SCENARIOS[0]));
+
+		System.out.println(perception + ", " + mode + ", step " + STEP * 1000 + " ms, "
+				+ "frame " + String.format("%.1f", sim.framePeriod / 1e6)
+				+ " ms, latency "
+				+ LATENCY / 1000000 + " ms, noise " + sim.noise + " px, "
+				+ sim.estimator);
+		System.out.println(Result.header());
+		for (String name : names) {
+			Result r = sim.run(name, scenario(name));
+			System.out.println(r);
+			if (perception == SimulatedCamera.Perception.RENDER) {
+				System.out.println(r.getPerceptionTime());
+			}
+		}
+		sim.release();
+	}
+}
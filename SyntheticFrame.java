@@ -0,0 +1,121 @@
+package l5;
+
+import java.util.Random;
+
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * Synthetic camera frame: a cluttered background with a solid colored
+ * rectangle standing for the human.
+ *
+ * It is used to run the segmentation without a camera, so the true
+ * human position is known and the detection error can be measured.
+ */
+public class SyntheticFrame {
+
+	/** BGR color of the human **/
+	public static final CvScalar HUMAN_COLOR = cvScalar(40, 40, 200, 0);
+
+	/** CV_BGR2HSV_FULL color of the human **/
+	public static final CvScalar HUMAN_HSV = cvScalar(0, 204, 200, 0);
+
+	/** BGR color of the background **/
+	public static final CvScalar BACKGROUND_COLOR = cvScalar(120, 110, 100, 0);
+
+	// number of clutter rectangles
+	private static final int CLUTTER_NUM = 12;
+
+	private IplImage frame;
+
+	// number of noise dots per frame
+	private int noise = 0;
+	private Random noiseRandom;
+
+	// clutter rectangles, x, y, w, h, b, g, r
+	private int[][] clutter = new int[CLUTTER_NUM][7];
+
+	/**
+	 * @param w
+	 * @param h
+	 * @param seed
+	 * seed of the background clutter
+	 */
+	public SyntheticFrame(int w, int h, long seed) {
+		frame = IplImage.create(cvSize(w, h), IPL_DEPTH_8U, 3);
+		Random random = new Random(seed);
+		for (int[] c : clutter) {
+			c[0] = random.nextInt(w);
+			c[1] = random.nextInt(h);
+			c[2] = 10 + random.nextInt(w / 4);
+			c[3] = 10 + random.nextInt(h / 4);
+			// keep the clutter away from the human hue
+			c[4] = 60 + random.nextInt(190);
+			c[5] = 60 + random.nextInt(190);
+			c[6] = random.nextInt(120);
+		}
+		noiseRandom = new Random(seed + 1);
+	}
+
+	/**
+	 * add noise dots to the following frames: background colored holes
+	 * and human colored speckles, like a real mask has
+	 * @param dots
+	 * number of dots per frame
+	 */
+	public void setNoise(int dots) {
+		this.noise = dots;
+	}
+
+	/**
+	 * draw the frame with the human at the given position
+	 * @param x
+	 * the human center x
+	 * @param y
+	 * the human center y
+	 * @param w
+	 * the human width
+	 * @param h
+	 * the human height
+	 * @return the frame, owned by this object
+	 */
+	public IplImage render(int x, int y, int w, int h) {
+		cvSet(frame, BACKGROUND_COLOR, null);
+		for (int[] c : clutter) {
+			cvRectangle(frame, cvPoint(c[0], c[1]),
+					cvPoint(c[0] + c[2], c[1] + c[3]),
+					cvScalar(c[4], c[5], c[6], 0), CV_FILLED, 8, 0);
+		}
+		cvRectangle(frame, cvPoint(x - w / 2, y - h / 2),
+				cvPoint(x + w / 2, y + h / 2), HUMAN_COLOR, CV_FILLED, 8, 0);
+		for (int i = 0; i < noise; i++) {
+			// half of the dots inside the human, half anywhere
+			int dx, dy;
+			if (i % 2 == 0) {
+				dx = x - w / 2 + noiseRandom.nextInt(w + 1);
+				dy = y - h / 2 + noiseRandom.nextInt(h + 1);
+			} else {
+				dx = noiseRandom.nextInt(frame.width());
+				dy = noiseRandom.nextInt(frame.height());
+			}
+			cvCircle(frame, cvPoint(dx, dy), 1 + noiseRandom.nextInt(3),
+					i % 2 == 0 ? BACKGROUND_COLOR : HUMAN_COLOR, CV_FILLED,
+					8, 0);
+		}
+		return frame;
+	}
+
+	public IplImage getFrame() {
+		return frame;
+	}
+
+	/** Releases allocated memory. **/
+	public void release() {
+		if (frame != null) {
+			frame.release();
+			frame = null;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package l5;
+
+/**
+ * Estimates the speed of a measured value, like the human x position or
+ * height, from samples with their timestamps.
+ *
+ * The speed is normalized by the real time between the samples, so it does
+ * not change with the frame rate or the control loop timing.
+ * Implementations keep their state in primitive fields or a fixed size
+ * {@link SampleRing}, so update does not allocate.
+ */
+public interface VelocityEstimator {
+
+	/**
+	 * forget all the samples, e.g. when the human is lost
+	 */
+	public void reset();
+
+	/**
+	 * add a sample and estimate the speed
+	 * @param value
+	 * the measured value
+	 * @param time
+	 * the sample time in {@link System#nanoTime()}, increasing
+	 * @return the speed in value units per second, 0 if not enough samples
+	 */
+	public double update(double value, long time);
+}
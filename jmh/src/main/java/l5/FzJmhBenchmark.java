@@ -0,0 +1,185 @@
+package l5;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The {@link FzBenchmark} hot paths under JMH: forked JVMs, error bars and
+ * the allocation by -prof gc. Each path has its own benchmark method, so
+ * each call site only ever sees one receiver type.
+ *
+ * A benchmark call runs over all the inputs of a distribution, the score
+ * is per input sample.
+ *
+ * usage: java -jar jmh/target/benchmarks.jar [-prof gc] [-p dist=SATURATED]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class FzJmhBenchmark {
+
+	// number of inputs of a distribution, power of 2
+	static final int INPUT_NUM = 4096;
+
+	private static final int CALIBRATED_Y = 200;
+
+	/**
+	 * the normalized inputs and their fuzzified sets
+	 */
+	@State(Scope.Thread)
+	public static class Inputs {
+		@Param({ "UNIFORM", "CENTERED", "SATURATED" })
+		FzBenchmark.Distribution dist;
+
+		double[] a;
+		double[] b;
+		// the fired angle velocity sets of each input pair
+		double[][] fired;
+
+		FzMemberShipFuncs funcs = new FzMemberShipFuncs();
+		double[] degrees = new double[FzMemberShipFuncs.FUNC_NUM];
+		double[] result = new double[FzMemberShipFuncs.FUNC_NUM];
+		FzActiveSets setsa = new FzActiveSets();
+		FzActiveSets setsb = new FzActiveSets();
+		FzRule avrule = new FzAVRule();
+
+		@Setup
+		public void setup() {
+			Random random = new Random(42);
+			a = dist.sample(random, INPUT_NUM);
+			b = dist.sample(random, INPUT_NUM);
+			fired = new double[INPUT_NUM][FzMemberShipFuncs.FUNC_NUM];
+			for (int i = 0; i < INPUT_NUM; i++) {
+				funcs.fuzzify(a[i], setsa);
+				funcs.fuzzify(b[i], setsb);
+				avrule.fire(setsa, setsb, fired[i]);
+			}
+		}
+	}
+
+	/**
+	 * an inference over the raw inputs of a distribution
+	 */
+	@State(Scope.Thread)
+	public static class Control {
+		@Param({ "MAMDANI", "SUGENO" })
+		FzInference.Mode mode;
+
+		// control surface resolution, 0 for the exact inference
+		@Param({ "0", "129" })
+		int resolution;
+
+		FzInference inference = new FzInference();
+		double[] x = new double[INPUT_NUM];
+		double[] xd = new double[INPUT_NUM];
+		double[] y = new double[INPUT_NUM];
+		double[] yd = new double[INPUT_NUM];
+		double[] vw = new double[2];
+		double[] v = new double[INPUT_NUM];
+		double[] w = new double[INPUT_NUM];
+
+		@Setup
+		public void setup(Inputs inputs) {
+			inference.setMode(mode);
+			inference.setCalibratedY(CALIBRATED_Y);
+			if (resolution > 0) {
+				inference.compileSurfaces(resolution);
+			}
+			FzBenchmark.toRawInputs(inputs.a, inputs.b, CALIBRATED_Y, x, xd,
+					y, yd);
+		}
+	}
+
+	/**
+	 * a defuzzification of the fired sets
+	 */
+	@State(Scope.Thread)
+	public static class Defuzzify {
+		@Param({ "AREA_CENTERS", "CENTROID", "SAMPLED", "HEIGHT" })
+		FzDefuzzifier.Method method;
+
+		FzDefuzzifier defuzzifier = new FzDefuzzifier(FzMemberShipFuncs.SHAPES);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void fuzzify(Inputs in, Blackhole bh) {
+		for (int i = 0; i < INPUT_NUM; i++) {
+			in.funcs.fuzzify(in.a[i], in.degrees);
+			bh.consume(in.degrees[2]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void fuzzifyActiveSets(Inputs in, Blackhole bh) {
+		for (int i = 0; i < INPUT_NUM; i++) {
+			in.funcs.fuzzify(in.a[i], in.setsa);
+			bh.consume(in.setsa.getCount());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void fireActiveSets(Inputs in, Blackhole bh) {
+		for (int i = 0; i < INPUT_NUM; i++) {
+			in.funcs.fuzzify(in.a[i], in.setsa);
+			in.funcs.fuzzify(in.b[i], in.setsb);
+			in.avrule.fire(in.setsa, in.setsb, in.result);
+			bh.consume(in.result[2]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void fireSingletons(Inputs in, Blackhole bh) {
+		for (int i = 0; i < INPUT_NUM; i++) {
+			in.funcs.fuzzify(in.a[i], in.setsa);
+			in.funcs.fuzzify(in.b[i], in.setsb);
+			bh.consume(in.avrule.fireSingletons(in.setsa, in.setsb,
+					FzInference.DEF_AV_SINGLETONS));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void defuzzify(Inputs in, Defuzzify d, Blackhole bh) {
+		for (int i = 0; i < INPUT_NUM; i++) {
+			bh.consume(d.defuzzifier.defuzzify(in.fired[i], d.method));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void getVW(Control c, Blackhole bh) {
+		for (int i = 0; i < INPUT_NUM; i++) {
+			c.inference.getVW(c.x[i], c.xd[i], c.y[i], c.yd[i], c.vw);
+			bh.consume(c.vw[0]);
+			bh.consume(c.vw[1]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INPUT_NUM)
+	public void getVWBatch(Control c, Blackhole bh) {
+		c.inference.getVW(c.x, c.xd, c.y, c.yd, c.v, c.w, 0, INPUT_NUM);
+		bh.consume(c.v);
+		bh.consume(c.w);
+	}
+}